@@ -0,0 +1,28 @@
+package cn.flizi.push.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 与 JMH 默认入口相同的命令行参数, 默认附带 GC 分配统计(gc.alloc.rate.norm 为每次操作分配的字节数),
+ * 结果同时写入 target/jmh-result.json. 不需要分配统计时加 -Dgc=false.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+        if (!"false".equals(System.getProperty("gc"))) {
+            options.addProfiler(GCProfiler.class);
+        }
+        if (!commandLine.getResult().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+            options.result("target/jmh-result.json");
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,113 @@
+package cn.flizi.push.benchmark;
+
+import cn.flizi.push.mqtt.MqttBrokerHandler;
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.TestBrokers;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.Collections;
+
+/**
+ * 由 TestBrokers 组装的 broker, 连接使用 EmbeddedChannel
+ */
+final class BrokerFixture {
+
+    final MqttBrokerHandler handler = TestBrokers.handler(new MqttProperties());
+
+    private int packetId;
+
+    void close() {
+        TestBrokers.close(handler);
+    }
+
+    /**
+     * 新连接并完成 CONNECT
+     */
+    EmbeddedChannel connect(String clientId) {
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        channel.writeInbound(connectMessage(clientId));
+        // 认证结果回到连接线程处理
+        channel.runPendingTasks();
+        channel.releaseOutbound();
+        return channel;
+    }
+
+    void subscribe(EmbeddedChannel channel, String filter, MqttQoS qos) {
+        channel.writeInbound(subscribeMessage(filter, qos));
+        channel.runPendingTasks();
+        channel.releaseOutbound();
+    }
+
+    MqttConnectMessage connectMessage(String clientId) {
+        return new MqttConnectMessage(
+                new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttConnectVariableHeader("MQTT", 4, true, true, false, 0, false, true, 60),
+                new MqttConnectPayload(clientId, null, (byte[]) null, "bench", "bench".getBytes()));
+    }
+
+    MqttSubscribeMessage subscribeMessage(String filter, MqttQoS qos) {
+        return new MqttSubscribeMessage(
+                new MqttFixedHeader(MqttMessageType.SUBSCRIBE, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                MqttMessageIdVariableHeader.from(nextPacketId()),
+                new MqttSubscribePayload(Collections.singletonList(new MqttTopicSubscription(filter, qos))));
+    }
+
+    MqttUnsubscribeMessage unsubscribeMessage(String filter) {
+        return new MqttUnsubscribeMessage(
+                new MqttFixedHeader(MqttMessageType.UNSUBSCRIBE, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                MqttMessageIdVariableHeader.from(nextPacketId()),
+                new MqttUnsubscribePayload(Collections.singletonList(filter)));
+    }
+
+    /**
+     * 确认写给订阅者的 QoS 1 消息并释放, 消息为 MqttPublishMessage 或共享编码后的 ByteBuf
+     */
+    void ack(EmbeddedChannel channel, Object msg) {
+        int id = 0;
+        if (msg instanceof MqttPublishMessage) {
+            MqttPublishMessage publish = (MqttPublishMessage) msg;
+            if (publish.fixedHeader().qosLevel() == MqttQoS.AT_LEAST_ONCE) {
+                id = publish.variableHeader().packetId();
+            }
+        } else if (msg instanceof ByteBuf) {
+            id = packetId((ByteBuf) msg);
+        }
+        ReferenceCountUtil.release(msg);
+        if (id > 0) {
+            channel.writeInbound(new MqttMessage(
+                    new MqttFixedHeader(MqttMessageType.PUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                    MqttMessageIdVariableHeader.from(id)));
+        }
+    }
+
+    /**
+     * 编码后 QoS 1 PUBLISH 的 packetId, 其他报文为 0
+     */
+    private static int packetId(ByteBuf buf) {
+        int index = buf.readerIndex();
+        int header = buf.getUnsignedByte(index++);
+        if ((header & 0xF0) != 0x30 || (header & 0x06) != 0x02) {
+            return 0;
+        }
+        while ((buf.getByte(index++) & 0x80) != 0) {
+            // 剩余长度
+        }
+        index += 2 + buf.getUnsignedShort(index);
+        return buf.getUnsignedShort(index);
+    }
+
+    static MqttPublishMessage publishMessage(String topic, MqttQoS qos, int packetId, ByteBuf payload) {
+        return new MqttPublishMessage(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0),
+                new MqttPublishVariableHeader(topic, packetId),
+                payload);
+    }
+
+    private int nextPacketId() {
+        packetId = packetId >= 0xFFFF ? 1 : packetId + 1;
+        return packetId;
+    }
+}
@@ -0,0 +1,88 @@
+package cn.flizi.push.benchmark;
+
+import cn.flizi.push.mqtt.codec.MqttFastDecoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PUBLISH 经 MqttEncoder/MqttDecoder 编码、解码及往返, fastDecodePublish 为 broker 使用的 MqttFastDecoder
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    @Param({"16", "256", "4096", "65536"})
+    private int payloadSize;
+
+    private EmbeddedChannel encoder;
+
+    private EmbeddedChannel decoder;
+
+    private EmbeddedChannel fastDecoder;
+
+    private ByteBuf payload;
+
+    private ByteBuf encoded;
+
+    @Setup
+    public void setup() {
+        encoder = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        encoder.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+        decoder = new EmbeddedChannel(new MqttDecoder(1024 * 1024));
+        decoder.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+        fastDecoder = new EmbeddedChannel(new MqttFastDecoder(1024 * 1024), new MqttDecoder(1024 * 1024));
+        fastDecoder.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+        payload = PooledByteBufAllocator.DEFAULT.directBuffer(payloadSize).writeZero(payloadSize);
+        encoded = encode();
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoded.release();
+        payload.release();
+        encoder.finishAndReleaseAll();
+        decoder.finishAndReleaseAll();
+        fastDecoder.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public void encodePublish() {
+        ReferenceCountUtil.release(encode());
+    }
+
+    @Benchmark
+    public void decodePublish() {
+        decoder.writeInbound(encoded.retainedDuplicate());
+        ReferenceCountUtil.release(decoder.readInbound());
+    }
+
+    @Benchmark
+    public void fastDecodePublish() {
+        fastDecoder.writeInbound(encoded.retainedDuplicate());
+        ReferenceCountUtil.release(fastDecoder.readInbound());
+    }
+
+    @Benchmark
+    public void roundTrip() {
+        decoder.writeInbound(encode());
+        ReferenceCountUtil.release(decoder.readInbound());
+    }
+
+    private ByteBuf encode() {
+        encoder.writeOutbound(BrokerFixture.publishMessage("device/123456/cmd", MqttQoS.AT_LEAST_ONCE, 1,
+                payload.retainedDuplicate()));
+        return encoder.readOutbound();
+    }
+}
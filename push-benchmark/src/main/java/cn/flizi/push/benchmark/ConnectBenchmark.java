@@ -0,0 +1,38 @@
+package cn.flizi.push.benchmark;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CONNECT 处理到 CONNACK 写出再断开, 认证直接通过, 只衡量 broker 自身的连接与会话开销
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ConnectBenchmark {
+
+    private BrokerFixture broker;
+
+    private int sequence;
+
+    @Setup
+    public void setup() {
+        broker = new BrokerFixture();
+    }
+
+    @TearDown
+    public void tearDown() {
+        broker.close();
+    }
+
+    @Benchmark
+    public void connectDisconnect() {
+        EmbeddedChannel channel = broker.connect("client-" + (sequence++ & 0xFFFF));
+        channel.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,87 @@
+package cn.flizi.push.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一条 PUBLISH 扇出到不同数量的订阅者, 包含订阅者连接写出, 不含网络
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RoutingBenchmark {
+
+    @Param({"1", "100", "10000"})
+    private int subscribers;
+
+    @Param({"0", "1"})
+    private int qos;
+
+    @Param({"256"})
+    private int payloadSize;
+
+    private BrokerFixture broker;
+
+    private EmbeddedChannel publisher;
+
+    private EmbeddedChannel[] channels;
+
+    private ByteBuf payload;
+
+    private int packetId;
+
+    @Setup
+    public void setup() {
+        broker = new BrokerFixture();
+        channels = new EmbeddedChannel[subscribers];
+        for (int i = 0; i < subscribers; i++) {
+            channels[i] = broker.connect("sub-" + i);
+            // 一半精确订阅, 一半通配符订阅
+            broker.subscribe(channels[i], i % 2 == 0 ? "bench/topic" : "bench/+", MqttQoS.valueOf(qos));
+        }
+        publisher = broker.connect("pub");
+        payload = PooledByteBufAllocator.DEFAULT.directBuffer(payloadSize).writeZero(payloadSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        publisher.finishAndReleaseAll();
+        for (EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+        payload.release();
+        broker.close();
+    }
+
+    @Benchmark
+    public void publish() {
+        int id = qos == 0 ? 0 : nextPacketId();
+        publisher.writeInbound(BrokerFixture.publishMessage("bench/topic", MqttQoS.valueOf(qos), id,
+                payload.retainedDuplicate()));
+        publisher.releaseOutbound();
+        for (EmbeddedChannel channel : channels) {
+            // QoS 1 时确认消息, 避免在途窗口占满
+            if (qos > 0) {
+                channel.runPendingTasks();
+                for (Object msg; (msg = channel.readOutbound()) != null; ) {
+                    broker.ack(channel, msg);
+                }
+            } else {
+                channel.releaseOutbound();
+            }
+        }
+    }
+
+    private int nextPacketId() {
+        packetId = packetId >= 0xFFFF ? 1 : packetId + 1;
+        return packetId;
+    }
+}
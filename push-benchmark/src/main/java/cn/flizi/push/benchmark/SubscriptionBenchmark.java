@@ -0,0 +1,62 @@
+package cn.flizi.push.benchmark;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SUBSCRIBE/UNSUBSCRIBE 交替, 订阅树中已有不同数量的其他订阅
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SubscriptionBenchmark {
+
+    @Param({"0", "100000"})
+    private int existing;
+
+    /**
+     * 通配符订阅会清空整个匹配缓存
+     */
+    @Param({"false", "true"})
+    private boolean wildcard;
+
+    private BrokerFixture broker;
+
+    private EmbeddedChannel channel;
+
+    private EmbeddedChannel background;
+
+    private int sequence;
+
+    @Setup
+    public void setup() {
+        broker = new BrokerFixture();
+        background = broker.connect("background");
+        for (int i = 0; i < existing; i++) {
+            broker.subscribe(background, "device/" + i + "/cmd", MqttQoS.AT_MOST_ONCE);
+        }
+        channel = broker.connect("churn");
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        background.finishAndReleaseAll();
+        broker.close();
+    }
+
+    @Benchmark
+    public void subscribeUnsubscribe() {
+        int i = sequence++ & 0xFFFF;
+        String filter = wildcard ? "churn/" + i + "/#" : "churn/" + i + "/cmd";
+        channel.writeInbound(broker.subscribeMessage(filter, MqttQoS.AT_LEAST_ONCE));
+        channel.writeInbound(broker.unsubscribeMessage(filter));
+        channel.releaseOutbound();
+    }
+}
@@ -0,0 +1,94 @@
+package cn.flizi.push.benchmark;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+
+import java.net.InetSocketAddress;
+import java.util.function.Supplier;
+
+/**
+ * 回环地址上的 TLS 服务端和客户端, 两端使用相同的实现
+ */
+final class TlsFixture {
+
+    private static final String HOST = "localhost";
+
+    private final SelfSignedCertificate certificate;
+
+    private final EventLoopGroup serverGroup = new NioEventLoopGroup(1);
+
+    private final EventLoopGroup clientGroup = new NioEventLoopGroup(1);
+
+    private final SslContext clientContext;
+
+    private final Channel server;
+
+    private final int port;
+
+    /**
+     * @param serverHandler 每个服务端连接在 SslHandler 之后的 handler
+     */
+    TlsFixture(SslProvider provider, Supplier<ChannelHandler> serverHandler) throws Exception {
+        certificate = new SelfSignedCertificate(HOST);
+        SslContext serverContext = SslContextBuilder.forServer(certificate.certificate(), certificate.privateKey())
+                .sslProvider(provider)
+                .sessionCacheSize(20480)
+                .sessionTimeout(86400)
+                .build();
+        clientContext = SslContextBuilder.forClient()
+                .sslProvider(provider)
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .build();
+        server = new ServerBootstrap().group(serverGroup)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(serverContext.newHandler(ch.alloc()), serverHandler.get());
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+        port = ((InetSocketAddress) server.localAddress()).getPort();
+    }
+
+    /**
+     * 连接并完成握手
+     *
+     * @param resume 是否按 host:port 复用客户端缓存的会话
+     */
+    Channel connect(boolean resume, ChannelHandler handler) throws Exception {
+        Channel channel = new Bootstrap().group(clientGroup)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        SslHandler ssl = resume
+                                ? clientContext.newHandler(ch.alloc(), HOST, port)
+                                : clientContext.newHandler(ch.alloc());
+                        ch.pipeline().addLast(ssl, handler);
+                    }
+                })
+                .connect("127.0.0.1", port).sync().channel();
+        channel.pipeline().get(SslHandler.class).handshakeFuture().sync();
+        return channel;
+    }
+
+    void close() {
+        server.close().syncUninterruptibly();
+        clientGroup.shutdownGracefully().syncUninterruptibly();
+        serverGroup.shutdownGracefully().syncUninterruptibly();
+        certificate.delete();
+    }
+}
@@ -0,0 +1,49 @@
+package cn.flizi.push.benchmark;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.ssl.SslProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 回环地址上建立 TLS 连接并完成握手, 对比 JDK 与 OpenSSL, 以及完整握手与会话恢复
+ * <p>
+ * 客户端和服务端在同一进程, 结果为两端开销之和.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Thread)
+public class TlsHandshakeBenchmark {
+
+    @Param({"JDK", "OPENSSL"})
+    private SslProvider provider;
+
+    @Param({"false", "true"})
+    private boolean resume;
+
+    private TlsFixture fixture;
+
+    @Setup
+    public void setup() throws Exception {
+        fixture = new TlsFixture(provider, Discard::new);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void handshake() throws Exception {
+        fixture.connect(resume, new Discard()).close().sync();
+    }
+
+    @ChannelHandler.Sharable
+    static final class Discard extends ChannelInboundHandlerAdapter {
+    }
+}
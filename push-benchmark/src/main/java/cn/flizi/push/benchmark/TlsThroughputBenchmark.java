@@ -0,0 +1,89 @@
+package cn.flizi.push.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一条 TLS 连接上的单向吞吐, 每次操作写 1MB 并等待服务端确认收齐, ops/s 即 MB/s
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Thread)
+public class TlsThroughputBenchmark {
+
+    private static final int CHUNK = 1024 * 1024;
+
+    @Param({"JDK", "OPENSSL"})
+    private SslProvider provider;
+
+    @Param({"1024", "16384"})
+    private int writeSize;
+
+    private TlsFixture fixture;
+
+    private Channel channel;
+
+    private ByteBuf data;
+
+    private final Semaphore acks = new Semaphore(0);
+
+    @Setup
+    public void setup() throws Exception {
+        fixture = new TlsFixture(provider, Sink::new);
+        channel = fixture.connect(false, new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                ByteBuf buf = (ByteBuf) msg;
+                acks.release(buf.readableBytes());
+                buf.release();
+            }
+        });
+        data = PooledByteBufAllocator.DEFAULT.directBuffer(writeSize).writeZero(writeSize);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        channel.close().sync();
+        data.release();
+        fixture.close();
+    }
+
+    @Benchmark
+    public void transfer() throws Exception {
+        for (int written = 0; written < CHUNK; written += writeSize) {
+            channel.write(data.retainedDuplicate());
+        }
+        channel.flush();
+        acks.acquire();
+    }
+
+    /**
+     * 每收齐 1MB 回复 1 字节
+     */
+    static final class Sink extends ChannelInboundHandlerAdapter {
+
+        private long received;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            received += ((ByteBuf) msg).readableBytes();
+            ReferenceCountUtil.release(msg);
+            while (received >= CHUNK) {
+                received -= CHUNK;
+                ctx.writeAndFlush(ctx.alloc().buffer(1).writeByte(1));
+            }
+        }
+    }
+}
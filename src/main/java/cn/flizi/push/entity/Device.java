@@ -0,0 +1,21 @@
+package cn.flizi.push.entity;
+
+import lombok.Data;
+
+/**
+ * 设备账号
+ */
+@Data
+public class Device {
+
+    private Long id;
+
+    private String username;
+
+    /**
+     * 带算法前缀的密码, 例如 {bcrypt}..., {noop}...
+     */
+    private String password;
+
+    private boolean enabled;
+}
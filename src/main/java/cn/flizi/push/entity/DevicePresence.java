@@ -0,0 +1,22 @@
+package cn.flizi.push.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+
+/**
+ * 设备在线状态, 以 clientId 区分设备
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DevicePresence {
+
+    private String clientId;
+
+    private boolean online;
+
+    private Date lastSeen;
+}
@@ -1,8 +1,25 @@
 package cn.flizi.push.mapper;
 
+import cn.flizi.push.entity.Device;
+import cn.flizi.push.entity.DevicePresence;
+import org.apache.ibatis.annotations.Insert;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
 
 @Mapper
 public interface DeviceMapper {
 
+    @Select("SELECT id, username, password, enabled FROM device WHERE username = #{username}")
+    Device findByUsername(@Param("username") String username);
+
+    /**
+     * 批量执行时由驱动合并为多行 INSERT (rewriteBatchedStatements)
+     */
+    @Insert("INSERT INTO device_presence (client_id, online, last_seen) VALUES (#{clientId}, #{online}, #{lastSeen})"
+            + " ON DUPLICATE KEY UPDATE online = VALUES(online), last_seen = VALUES(last_seen)")
+    int savePresence(DevicePresence presence);
+
+    @Select("SELECT client_id, online, last_seen FROM device_presence WHERE client_id = #{clientId}")
+    DevicePresence findPresence(@Param("clientId") String clientId);
 }
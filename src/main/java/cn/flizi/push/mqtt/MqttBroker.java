@@ -1,20 +1,29 @@
 package cn.flizi.push.mqtt;
 
+import cn.flizi.push.mqtt.codec.MqttFastDecoder;
+import cn.flizi.push.mqtt.keepalive.KeepAliveManager;
+import cn.flizi.push.mqtt.metrics.BrokerMetrics;
+import cn.flizi.push.mqtt.tls.SslContexts;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.mqtt.MqttDecoder;
 import io.netty.handler.codec.mqtt.MqttEncoder;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
-import io.netty.handler.timeout.IdleStateHandler;
-import io.netty.util.NettyRuntime;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.util.concurrent.DefaultEventExecutorGroup;
 import io.netty.util.concurrent.DefaultThreadFactory;
 import io.netty.util.concurrent.EventExecutorGroup;
-import io.netty.util.concurrent.UnorderedThreadPoolEventExecutor;
 import lombok.extern.log4j.Log4j2;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.SpringApplication;
@@ -23,7 +32,8 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * @author : taoroot
@@ -33,13 +43,15 @@ import java.util.concurrent.TimeUnit;
 @Log4j2
 public class MqttBroker {
 
+    private static final int DENSITY_SOCKET_BUFFER = 8 * 1024;
+
     private EventLoopGroup bossGroup;
 
     private EventLoopGroup workerGroup;
 
     private EventExecutorGroup handlerGroup;
 
-    private Channel channel;
+    private final List<Channel> channels = new CopyOnWriteArrayList<>();
 
 
     @Autowired
@@ -51,50 +63,166 @@ public class MqttBroker {
     @Autowired
     private MqttProperties mqttProperties;
 
+    @Autowired
+    private KeepAliveManager keepAliveManager;
+
+    @Autowired
+    private BrokerMetrics brokerMetrics;
+
     @PostConstruct
     public void start() throws Exception {
         log.info("Start MqttBroker ...");
         int port = mqttProperties.getPort();
-        bossGroup = new NioEventLoopGroup(1, new DefaultThreadFactory("mqtt-boss"));
-        workerGroup = new NioEventLoopGroup(new DefaultThreadFactory("mqtt-work"));
-        handlerGroup = new DefaultEventExecutorGroup(NettyRuntime.availableProcessors() * 2,
-                new DefaultThreadFactory("mqtt-hand"));
+        MqttProperties.Transport transport = mqttProperties.getTransport();
+        boolean epoll = transport.isEpoll() && Epoll.isAvailable();
+        if (transport.isEpoll() && !epoll) {
+            log.warn("Epoll unavailable, fallback to NIO", Epoll.unavailabilityCause());
+        }
+        bossGroup = newEventLoopGroup(epoll, transport.getBossThreads(), "mqtt-boss");
+        workerGroup = newEventLoopGroup(epoll, transport.getWorkerThreads(), "mqtt-work");
+        // 业务线程为 0 时直接在 I/O 线程处理, 省去每个报文一次线程切换
+        handlerGroup = transport.getHandlerThreads() > 0
+                ? new DefaultEventExecutorGroup(transport.getHandlerThreads(), new DefaultThreadFactory("mqtt-hand"))
+                : null;
+        ByteBufAllocator allocator = transport.isPooledDirect()
+                ? new PooledByteBufAllocator(true) : ByteBufAllocator.DEFAULT;
+
         ServerBootstrap b = new ServerBootstrap();
         b.group(bossGroup, workerGroup);
-        b.option(ChannelOption.SO_BACKLOG, 1024);
-        b.channel(NioServerSocketChannel.class);
-        b.childHandler(new ChannelInitializer<SocketChannel>() {
-            protected void initChannel(SocketChannel ch) throws Exception {
+        b.option(ChannelOption.SO_BACKLOG, transport.getBacklog());
+        b.option(ChannelOption.ALLOCATOR, allocator);
+        b.childOption(ChannelOption.ALLOCATOR, allocator);
+        b.childOption(ChannelOption.TCP_NODELAY, transport.isTcpNoDelay());
+        b.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                transport.getWriteBufferLowWaterMark(), transport.getWriteBufferHighWaterMark()));
+        int acceptors = 1;
+        if (epoll) {
+            b.channel(EpollServerSocketChannel.class);
+            if (transport.isReusePort()) {
+                // 多个监听 socket 绑定同一端口, 由内核分发连接
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+                acceptors = Math.max(1, transport.getBossThreads());
+            }
+        } else {
+            b.channel(NioServerSocketChannel.class);
+        }
+        if (transport.isDensity()) {
+            // 空闲连接不读数据, 初始读缓冲取小, 有流量后自适应增大
+            b.childOption(ChannelOption.RCVBUF_ALLOCATOR, new AdaptiveRecvByteBufAllocator(64, 256, 65536));
+        }
+        int socketBuffer = transport.getSocketBuffer() > 0 ? transport.getSocketBuffer()
+                : transport.isDensity() ? DENSITY_SOCKET_BUFFER : 0;
+        if (socketBuffer > 0) {
+            b.childOption(ChannelOption.SO_RCVBUF, socketBuffer);
+            b.childOption(ChannelOption.SO_SNDBUF, socketBuffer);
+        }
+        log.info("MqttBroker transport: {}, acceptors: {}, handler threads: {}, density: {}",
+                epoll ? "epoll" : "nio", acceptors, transport.getHandlerThreads(), transport.isDensity());
+        MqttProperties.Tls tls = mqttProperties.getTls();
+        if (tls.isEnabled()) {
+            SslContext sslContext = SslContexts.forServer(tls);
+            log.info("MqttBroker TLS provider: {}, OpenSSL version: {}",
+                    SslContexts.provider(tls.getProvider()), OpenSsl.isAvailable() ? OpenSsl.versionString() : "-");
+            bind(b.clone().childHandler(channelInitializer(sslContext)), tls.getPort(), acceptors);
+        }
+        bind(b.childHandler(channelInitializer(null)), port, acceptors);
+    }
+
+    private void bind(ServerBootstrap b, int port, int acceptors) {
+        for (int i = 0; i < acceptors; i++) {
+            b.bind(port).addListener((ChannelFutureListener) channelFuture -> {
+                if (channelFuture.cause() != null) {
+                    log.error("MqttBroker Bind Port: {} FAIL", port, channelFuture.cause());
+                    int exitCode = SpringApplication.exit(context, () -> -1);
+                    System.exit(exitCode);
+                    return;
+                }
+                if (channelFuture.isSuccess()) {
+                    channels.add(channelFuture.channel());
+                    log.info("MqttBroker Bind Port: {} SUCCESS", port);
+                } else {
+                    log.error("MqttBroker Bind Port: {} FAIL", port);
+                }
+            });
+        }
+    }
+
+    /**
+     * 每个连接只有 MqttFastDecoder、MqttDecoder 和 {@link cn.flizi.push.mqtt.keepalive.KeepAliveHandler}
+     * 三个有状态的 handler, 其余共享. PUBLISH 和 PINGREQ 由 MqttFastDecoder 解码, 其余报文交给 MqttDecoder
+     *
+     * @param sslContext MQTTS 监听端口使用, 明文为 null
+     */
+    ChannelInitializer<Channel> channelInitializer(SslContext sslContext) {
+        LoggingHandler logger = mqttProperties.getTransport().isWireLog() ? new LoggingHandler(LogLevel.DEBUG) : null;
+        int handshakeTimeout = mqttProperties.getTls().getHandshakeTimeout();
+        return new ChannelInitializer<Channel>() {
+            protected void initChannel(Channel ch) throws Exception {
+                if (sslContext != null) {
+                    SslHandler ssl = sslContext.newHandler(ch.alloc());
+                    ssl.setHandshakeTimeoutMillis(handshakeTimeout);
+                    long startNanos = System.nanoTime();
+                    ssl.handshakeFuture().addListener(future ->
+                            brokerMetrics.onTlsHandshake(startNanos, future.isSuccess()));
+                    ch.pipeline().addLast("ssl", ssl);
+                }
                 ch.pipeline().addLast("encoder", MqttEncoder.INSTANCE);
+                ch.pipeline().addLast("fastDecoder", new MqttFastDecoder());
                 ch.pipeline().addLast("decoder", new MqttDecoder());
-                ch.pipeline().addLast("logger", new LoggingHandler(LogLevel.DEBUG));
-                ch.pipeline().addLast("idleStateHandler", new IdleStateHandler(mqttProperties.getIdle(), 0, 0, TimeUnit.SECONDS));
+                if (logger != null) {
+                    ch.pipeline().addLast("logger", logger);
+                }
+                // 在 I/O 线程中处理, 不指定业务线程
+                ch.pipeline().addLast("keepAlive", keepAliveManager.newHandler());
                 ch.pipeline().addLast(handlerGroup, "mqttBrokerHandler", mqttBrokerHandler);
             }
-        });
-        b.bind(port).addListener((ChannelFutureListener) channelFuture -> {
-            if (channelFuture.cause() != null) {
-                log.error("MqttBroker Bind Port: {} FAIL", port, channelFuture.cause());
-                int exitCode = SpringApplication.exit(context, () -> -1);
-                System.exit(exitCode);
-                return;
-            }
-            if (channelFuture.isSuccess()) {
-                log.info("MqttBroker Bind Port: {} SUCCESS", port);
-            } else {
-                log.error("MqttBroker Bind Port: {} FAIL", port);
-            }
-        });
+        };
     }
 
+    /**
+     * 关闭监听端口, 不再接受新连接, 已建立的连接不受影响
+     */
+    public void unbind() {
+        for (Channel channel : channels) {
+            channel.close().syncUninterruptibly();
+        }
+        channels.clear();
+    }
+
+    /**
+     * 直接关闭所有连接, 需要平滑停机时先由 {@link cn.flizi.push.mqtt.drain.DrainManager} 排空
+     */
     @PreDestroy
     public void stop() {
         log.info("Shutdown Netty Server ...");
+        unbind();
         bossGroup.shutdownGracefully();
         bossGroup = null;
         workerGroup.shutdownGracefully();
         workerGroup = null;
-        channel.closeFuture().syncUninterruptibly();
-        channel = null;
+        if (handlerGroup != null) {
+            handlerGroup.shutdownGracefully();
+            handlerGroup = null;
+        }
+        keepAliveManager.clear();
+    }
+
+    /**
+     * I/O 线程, 未启动时为 null
+     */
+    public EventLoopGroup workerGroup() {
+        return workerGroup;
+    }
+
+    /**
+     * 业务线程, 未配置时为 null
+     */
+    public EventExecutorGroup handlerGroup() {
+        return handlerGroup;
+    }
+
+    private static EventLoopGroup newEventLoopGroup(boolean epoll, int threads, String name) {
+        DefaultThreadFactory threadFactory = new DefaultThreadFactory(name);
+        return epoll ? new EpollEventLoopGroup(threads, threadFactory) : new NioEventLoopGroup(threads, threadFactory);
     }
 }
@@ -1,81 +1,206 @@
 package cn.flizi.push.mqtt;
 
+import cn.flizi.push.mqtt.cluster.ClusterNode;
+import cn.flizi.push.mqtt.codec.FixedPackets;
+import cn.flizi.push.mqtt.codec.InboundPublish;
+import cn.flizi.push.mqtt.codec.SharedPublish;
+import cn.flizi.push.mqtt.limit.RateLimiter;
+import cn.flizi.push.mqtt.limit.TokenBucket;
+import cn.flizi.push.mqtt.metrics.BrokerMetrics;
+import cn.flizi.push.mqtt.session.MqttSession;
+import cn.flizi.push.mqtt.session.SessionRegistry;
+import cn.flizi.push.mqtt.session.ShareGroup;
+import cn.flizi.push.mqtt.session.ShareStrategy;
+import cn.flizi.push.mqtt.session.SharedSubscriptions;
+import cn.flizi.push.mqtt.session.SlowConsumerPolicies;
+import cn.flizi.push.mqtt.session.Subscription;
+import cn.flizi.push.mqtt.store.MessageJournal;
+import cn.flizi.push.mqtt.store.OfflineMessageStore;
+import cn.flizi.push.mqtt.store.RetainedMessageStore;
+import cn.flizi.push.mqtt.topic.TopicTrie;
 import cn.flizi.push.service.DeviceService;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.group.ChannelGroup;
-import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.handler.codec.mqtt.*;
-import io.netty.handler.timeout.IdleState;
-import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.util.AttributeKey;
 import io.netty.util.CharsetUtil;
-import io.netty.util.concurrent.GlobalEventExecutor;
-import io.netty.util.internal.PlatformDependent;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
 import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j2;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 @Component
 @Log4j2
 @Sharable
 public final class MqttBrokerHandler extends SimpleChannelInboundHandler<MqttMessage> {
 
-    public static final AttributeKey<MqttConnectPayload> CONNECT_ATTRIBUTE_KEY =
-            AttributeKey.valueOf("MqttConnectPayload");
+    public static final AttributeKey<MqttSession> SESSION_KEY =
+            AttributeKey.valueOf("session");
 
-    public static final AttributeKey<AtomicInteger> MESSAGE_ID =
-            AttributeKey.valueOf("messageId");
+    /**
+     * 认证期间收到的报文
+     */
+    public static final AttributeKey<Queue<MqttMessage>> PENDING_KEY =
+            AttributeKey.valueOf("pending");
 
-    public static final ChannelGroup GLOBAL_CHANNEL_GROUP = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    /**
+     * 连接的 PUBLISH 令牌桶
+     */
+    public static final AttributeKey<TokenBucket> PUBLISH_LIMIT_KEY =
+            AttributeKey.valueOf("publishLimit");
 
-    public static final ChannelGroup AUTH_CHANNEL_GROUP = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private static final int MAX_PENDING = 16;
 
-    private static final ConcurrentMap<String, DefaultChannelGroup> TOPIC_CHANNEL_GROUPS = PlatformDependent.newConcurrentHashMap();
+    /**
+     * MQTT 5 原因码: Message rate too high
+     */
+    private static final byte MESSAGE_RATE_TOO_HIGH = (byte) 0x96;
+
+    /**
+     * 只计数, 不像 ChannelGroup 那样为每个连接保存 map 节点和关闭监听器; 已认证的连接可从会话中取得
+     */
+    private final LongAdder connections = new LongAdder();
+
+    private final LongAdder authenticated = new LongAdder();
 
     @Autowired
     private DeviceService deviceService;
 
-    @Override
-    public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
-        ctx.channel().attr(MESSAGE_ID).set(new AtomicInteger(0));
+    @Autowired
+    private MqttProperties mqttProperties;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private OfflineMessageStore offlineStore;
+
+    @Autowired
+    private RetainedMessageStore retainedStore;
+
+    @Autowired
+    private MessageJournal messageJournal;
+
+    @Autowired
+    private SlowConsumerPolicies slowConsumerPolicies;
+
+    @Autowired
+    private ClusterNode clusterNode;
+
+    @Autowired
+    private BrokerMetrics brokerMetrics;
+
+    @Autowired
+    private RateLimiter rateLimiter;
+
+    private TopicTrie<Subscription> topicTrie;
+
+    private SharedSubscriptions sharedSubscriptions;
+
+    /**
+     * 所有会话共享的重发时间轮
+     */
+    private HashedWheelTimer timer;
+
+    @PostConstruct
+    public void init() {
+        topicTrie = new TopicTrie<>(mqttProperties.getTopicCacheSize());
+        sharedSubscriptions = new SharedSubscriptions(mqttProperties.getTopicCacheSize());
+        timer = new HashedWheelTimer(new DefaultThreadFactory("mqtt-timer"), 100, TimeUnit.MILLISECONDS, 512);
+        timer.newTimeout(this::expireSessions, 60, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        timer.stop();
     }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        GLOBAL_CHANNEL_GROUP.add(ctx.channel());
+        connections.increment();
     }
 
     @Override
     public void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) throws Exception {
-        switch (msg.fixedHeader().messageType()) {
+        Queue<MqttMessage> pending = ctx.channel().attr(PENDING_KEY).get();
+        if (pending != null) {
+            if (pending.size() >= MAX_PENDING) {
+                ctx.close();
+                return;
+            }
+            pending.add(ReferenceCountUtil.retain(msg));
+            return;
+        }
+        if (msg.decoderResult().isFailure()) {
+            // MqttDecoder 解码失败后丢弃之后的所有数据
+            ctx.close();
+            return;
+        }
+        MqttMessageType messageType = msg.fixedHeader().messageType();
+        if (messageType != MqttMessageType.CONNECT && !checkAuth(ctx)) {
+            ctx.close();
+            return;
+        }
+        if (messageType != MqttMessageType.CONNECT && session(ctx).context() != ctx) {
+            // 会话已被新连接接管, 旧连接关闭前收到的报文丢弃, 不触碰会话状态
+            ctx.close();
+            return;
+        }
+        switch (messageType) {
             case CONNECT:
                 connect(ctx, msg);
                 break;
             case PINGREQ:
-                MqttFixedHeader pingReqFixedHeader = new MqttFixedHeader(MqttMessageType.PINGRESP, false,
-                        MqttQoS.AT_MOST_ONCE, false, 0);
-                MqttMessage pingResp = new MqttMessage(pingReqFixedHeader);
-                ctx.writeAndFlush(pingResp);
+                ctx.writeAndFlush(FixedPackets.pingResp());
                 break;
             case SUBSCRIBE:
-                checkAuth(ctx);
                 subscribe(ctx, msg);
                 break;
             case UNSUBSCRIBE:
-                checkAuth(ctx);
                 unsubscribe(ctx, msg);
                 break;
             case PUBLISH:
                 publish(ctx, msg);
                 break;
+            case PUBACK:
+                session(ctx).onPubAck(messageId(msg));
+                break;
+            case PUBREC:
+                session(ctx).onPubRec(messageId(msg));
+                break;
+            case PUBREL:
+                session(ctx).release(ctx, messageId(msg));
+                ctx.writeAndFlush(FixedPackets.ack(ctx.alloc(), MqttMessageType.PUBCOMP, messageId(msg)));
+                break;
+            case PUBCOMP:
+                session(ctx).onPubComp(messageId(msg));
+                break;
+            case DISCONNECT:
+                ctx.close();
+                break;
             default:
                 ctx.close();
         }
@@ -83,10 +208,12 @@ public final class MqttBrokerHandler extends SimpleChannelInboundHandler<MqttMes
 
 
     @Override
-    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
-        if (evt instanceof IdleStateEvent && IdleState.READER_IDLE == ((IdleStateEvent) evt).state()) {
-            ctx.close();
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        MqttSession session = session(ctx);
+        if (session != null && ctx.channel().isWritable()) {
+            session.onWritable();
         }
+        super.channelWritabilityChanged(ctx);
     }
 
     @Override
@@ -97,92 +224,481 @@ public final class MqttBrokerHandler extends SimpleChannelInboundHandler<MqttMes
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        connections.decrement();
+        MqttSession session = session(ctx);
+        if (session != null) {
+            authenticated.decrement();
+            if (session.context() == ctx) {
+                // 已被新连接接管时由新连接记录状态
+                deviceService.offline(session.clientId());
+            }
+            if (!session.isPersistent()) {
+                unsubscribeAll(session);
+                sessionRegistry.remove(session);
+            }
+            session.detach(ctx);
+        }
         super.channelInactive(ctx);
     }
 
-    @SneakyThrows
     private void connect(ChannelHandlerContext ctx, MqttMessage msg) {
-        MqttConnectPayload connectPayload = (MqttConnectPayload) msg.payload();
+        MqttConnectMessage connectMessage = (MqttConnectMessage) msg;
+        MqttConnectPayload connectPayload = connectMessage.payload();
+        Channel channel = ctx.channel();
+        if (checkAuth(ctx)) {
+            // 重复 CONNECT
+            ctx.close();
+            return;
+        }
+        // 通常已由 MqttFastDecoder 记录, 这里补上没有经过它的连接
+        MqttConnectVariableHeader variableHeader = connectMessage.variableHeader();
+        channel.attr(SharedPublish.PROTOCOL_VERSION_KEY).setIfAbsent(
+                MqttVersion.fromProtocolNameAndLevel(variableHeader.name(), (byte) variableHeader.version()));
+        long startNanos = System.nanoTime();
 
         String clientId = connectPayload.clientIdentifier();
         String username = connectPayload.userName();
         String password = connectPayload.passwordInBytes() == null
                 ? null : new String(connectPayload.passwordInBytes(), CharsetUtil.UTF_8);
 
-        if (!StringUtils.hasLength(clientId)) {
+        if (!StringUtils.hasLength(clientId) || !StringUtils.hasLength(username)
+                || !StringUtils.hasLength(password)) {
+            brokerMetrics.onConnectInvalid();
             ctx.close();
             return;
         }
-        if (!StringUtils.hasLength(username)) {
-            ctx.close();
+        // 认证之前准入, 避免大量重连压垮认证
+        if (!rateLimiter.tryConnect(channel)) {
+            // 5.0 返回 Server busy, 3.1.1 只有 Server unavailable
+            MqttConnectReturnCode returnCode = SharedPublish.isCompatible(channel)
+                    ? MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE
+                    : MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_BUSY;
+            ctx.writeAndFlush(connAck(ctx, returnCode, false)).addListener(ChannelFutureListener.CLOSE);
             return;
         }
-        if (!StringUtils.hasLength(password)) {
-            ctx.close();
+
+        // 账号密码认证, 完成前收到的报文暂存
+        channel.attr(PENDING_KEY).set(new ArrayDeque<>());
+        deviceService.auth(username, password).whenComplete((accepted, cause) -> {
+            if (ctx.executor().inEventLoop()) {
+                connected(ctx, connectMessage, startNanos, accepted, cause);
+            } else {
+                ctx.executor().execute(() -> connected(ctx, connectMessage, startNanos, accepted, cause));
+            }
+        });
+    }
+
+    @SneakyThrows
+    private void connected(ChannelHandlerContext ctx, MqttConnectMessage connectMessage, long startNanos,
+                           Boolean accepted, Throwable cause) {
+        Channel channel = ctx.channel();
+        Queue<MqttMessage> pending = channel.attr(PENDING_KEY).getAndSet(null);
+        brokerMetrics.onConnect(startNanos, cause == null && Boolean.TRUE.equals(accepted), cause != null);
+        if (!channel.isActive() || cause != null || !Boolean.TRUE.equals(accepted)) {
+            for (MqttMessage message; (message = pending.poll()) != null; ) {
+                ReferenceCountUtil.release(message);
+            }
+            if (channel.isActive()) {
+                MqttConnectReturnCode returnCode = cause != null
+                        ? MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE
+                        : MqttConnectReturnCode.CONNECTION_REFUSED_BAD_USER_NAME_OR_PASSWORD;
+                ctx.writeAndFlush(connAck(ctx, returnCode, false)).addListener(ChannelFutureListener.CLOSE);
+            }
             return;
         }
 
-        // 账号密码认证
-        if (!deviceService.auth(username, password)) {
-            ctx.close();
-            return;
+        MqttConnectPayload connectPayload = connectMessage.payload();
+        String clientId = connectPayload.clientIdentifier();
+        boolean cleanSession = connectMessage.variableHeader().isCleanSession();
+        MqttSession session = sessionRegistry.get(clientId);
+        if (session != null) {
+            ChannelHandlerContext old = session.context();
+            if (old != null && old.channel() != channel) {
+                // 同一 clientId 的旧连接
+                old.close();
+            }
+            if (cleanSession || !session.isPersistent()) {
+                discard(session);
+                session = null;
+            }
+        }
+        // 恢复的会话可能已被过期清理丢弃
+        boolean sessionPresent = session != null && session.attach(ctx);
+        if (!sessionPresent) {
+            session = new MqttSession(clientId, !cleanSession, ctx.executor(),
+                    mqttProperties.getDelivery(), timer, offlineStore, slowConsumerPolicies);
+            MqttSession replaced = sessionRegistry.put(session);
+            if (replaced != null && replaced != session) {
+                ChannelHandlerContext old = replaced.context();
+                if (old != null) {
+                    old.close();
+                }
+                discard(replaced);
+            }
+            session.attach(ctx);
         }
 
-        Channel channel = ctx.channel();
-        channel.attr(CONNECT_ATTRIBUTE_KEY).set(connectPayload);
-        AUTH_CHANNEL_GROUP.add(channel);
+        channel.attr(SESSION_KEY).set(session);
+        TokenBucket publishLimit = rateLimiter.newPublishBucket();
+        if (publishLimit != null) {
+            channel.attr(PUBLISH_LIMIT_KEY).set(publishLimit);
+        }
+        authenticated.increment();
+        ctx.writeAndFlush(connAck(ctx, MqttConnectReturnCode.CONNECTION_ACCEPTED, sessionPresent));
+        deviceService.online(clientId);
+
+        for (MqttMessage message; (message = pending.poll()) != null; ) {
+            try {
+                channelRead0(ctx, message);
+            } finally {
+                ReferenceCountUtil.release(message);
+            }
+        }
+    }
 
+    /**
+     * 丢弃会话及其订阅, 持有会话锁以免与恢复、订阅并发
+     */
+    private void discard(MqttSession session) {
+        sessionRegistry.remove(session);
+        synchronized (session) {
+            unsubscribeAll(session);
+            session.discard();
+        }
+    }
+
+    private void unsubscribeAll(MqttSession session) {
+        synchronized (session) {
+            for (String topicFilter : session.subscriptions().keySet()) {
+                removeSubscription(session, topicFilter);
+            }
+            session.subscriptions().clear();
+        }
+    }
+
+    private void removeSubscription(MqttSession session, String topicFilter) {
+        boolean removed = SharedSubscriptions.isShared(topicFilter)
+                ? sharedSubscriptions.unsubscribe(topicFilter, session)
+                : topicTrie.unsubscribe(topicFilter, new Subscription(session, MqttQoS.AT_MOST_ONCE));
+        if (removed) {
+            clusterNode.unsubscribe(SharedSubscriptions.topicFilter(topicFilter));
+        }
+    }
+
+    /**
+     * 清理超过保留时间的离线持久会话
+     */
+    private void expireSessions(Timeout timeout) {
+        long expireBefore = System.currentTimeMillis()
+                - TimeUnit.SECONDS.toMillis(mqttProperties.getSession().getExpiry());
+        for (MqttSession session : sessionRegistry.sessions()) {
+            long detachedAt = session.detachedAt();
+            if (detachedAt > 0 && detachedAt < expireBefore && session.context() == null) {
+                try {
+                    session.executor().execute(() -> expire(session, expireBefore));
+                } catch (RejectedExecutionException ignored) {
+                    // 线程池已关闭
+                }
+            }
+        }
+        timer.newTimeout(this::expireSessions, 60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 在会话线程中再次检查, 期间已重连或已从注册表移除的会话不丢弃
+     */
+    private void expire(MqttSession session, long expireBefore) {
+        synchronized (session) {
+            long detachedAt = session.detachedAt();
+            if (session.context() != null || detachedAt == 0 || detachedAt >= expireBefore
+                    || !sessionRegistry.remove(session)) {
+                return;
+            }
+            unsubscribeAll(session);
+            session.discard();
+        }
+    }
+
+    /**
+     * 3.1/3.1.1 连接写出预先编码的 CONNACK
+     */
+    private static Object connAck(ChannelHandlerContext ctx, MqttConnectReturnCode returnCode,
+                                  boolean sessionPresent) {
+        if (SharedPublish.isCompatible(ctx.channel())) {
+            ByteBuf encoded = FixedPackets.connAck(returnCode, sessionPresent);
+            if (encoded != null) {
+                return encoded;
+            }
+        }
         MqttFixedHeader connAckFixedHeader =
                 new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
         MqttConnAckVariableHeader mqttConnAckVariableHeader =
-                new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_ACCEPTED, false);
-        MqttConnAckMessage connAck = new MqttConnAckMessage(connAckFixedHeader, mqttConnAckVariableHeader);
-        ctx.writeAndFlush(connAck);
+                new MqttConnAckVariableHeader(returnCode, sessionPresent);
+        return new MqttConnAckMessage(connAckFixedHeader, mqttConnAckVariableHeader);
     }
 
     private void publish(ChannelHandlerContext ctx, MqttMessage msg) {
-        MqttPublishMessage message = (MqttPublishMessage) msg;
-        String topic = message.variableHeader().topicName();
-        DefaultChannelGroup group = TOPIC_CHANNEL_GROUPS.get(topic);
-        if (group != null) {
-            group.writeAndFlush(message.copy());
+        String topic;
+        int packetId;
+        ByteBuf payload;
+        if (msg instanceof InboundPublish) {
+            InboundPublish message = (InboundPublish) msg;
+            topic = message.topicName();
+            packetId = message.packetId();
+            payload = message.payload();
+        } else {
+            // MQTT 5 连接由 MqttDecoder 解码
+            MqttPublishMessage message = (MqttPublishMessage) msg;
+            topic = message.variableHeader().topicName();
+            packetId = message.variableHeader().packetId();
+            payload = message.payload();
+        }
+        MqttQoS qos = msg.fixedHeader().qosLevel();
+        boolean retain = msg.fixedHeader().isRetain();
+        // 未限速的连接不创建属性
+        TokenBucket publishLimit = ctx.channel().hasAttr(PUBLISH_LIMIT_KEY)
+                ? ctx.channel().attr(PUBLISH_LIMIT_KEY).get() : null;
+        if (!rateLimiter.tryPublish(publishLimit, topic)) {
+            if (rateLimiter.isDisconnectOnLimit()) {
+                ctx.close();
+            } else {
+                rejectPublish(ctx, qos, packetId);
+            }
+            return;
+        }
+        switch (qos) {
+            case AT_MOST_ONCE:
+                publish(topic, qos, retain, payload);
+                break;
+            case AT_LEAST_ONCE:
+                publish(topic, qos, retain, payload);
+                ctx.writeAndFlush(FixedPackets.ack(ctx.alloc(), MqttMessageType.PUBACK, packetId));
+                break;
+            case EXACTLY_ONCE:
+                // 重发的 PUBLISH 只回复 PUBREC, 不再路由
+                if (session(ctx).receive(ctx, packetId)) {
+                    publish(topic, qos, retain, payload);
+                }
+                ctx.writeAndFlush(FixedPackets.ack(ctx.alloc(), MqttMessageType.PUBREC, packetId));
+                break;
+            default:
+                ctx.close();
+        }
+    }
+
+    /**
+     * 丢弃超出限速的 PUBLISH, 不作为成功确认
+     * <p>
+     * MQTT 5 的 QoS 1/2 以 0x96 原因码回复 PUBACK/PUBREC; 3.1/3.1.1 没有失败的确认, 不回复,
+     * 消息留在客户端的在途窗口中, 重连后重发, 窗口占满时客户端自然停止发送
+     */
+    private static void rejectPublish(ChannelHandlerContext ctx, MqttQoS qos, int packetId) {
+        if (qos == MqttQoS.AT_MOST_ONCE || SharedPublish.isCompatible(ctx.channel())) {
+            return;
+        }
+        MqttMessageType type = qos == MqttQoS.AT_LEAST_ONCE ? MqttMessageType.PUBACK : MqttMessageType.PUBREC;
+        ctx.writeAndFlush(new MqttMessage(
+                new MqttFixedHeader(type, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttPubReplyMessageVariableHeader(packetId, MESSAGE_RATE_TOO_HIGH,
+                        io.netty.handler.codec.mqtt.MqttProperties.NO_PROPERTIES)));
+    }
+
+    /**
+     * 发布到集群, 服务端也可直接调用, 不经过 MQTT 编解码, 不改变 payload 的引用计数
+     *
+     * @return 本节点投递的订阅者数量
+     */
+    public int publish(String topic, MqttQoS qos, boolean retain, ByteBuf payload) {
+        brokerMetrics.onPublish(payload.readableBytes());
+        messageJournal.append(topic, qos, payload);
+        clusterNode.forward(topic, qos, retain, payload);
+        return deliver(topic, qos, retain, payload);
+    }
+
+    /**
+     * 重放消息日志中的消息, 与 publish 相同地发布到集群, 但不再写入日志, 也不作为保留消息.
+     * 日志不记录接收方, 广播及按 clientId 投递的消息也按主题投递给当前的订阅者
+     *
+     * @return 本节点投递的订阅者数量
+     */
+    public int replay(String topic, MqttQoS qos, ByteBuf payload) {
+        clusterNode.forward(topic, qos, false, payload);
+        return route(topic, qos, payload);
+    }
+
+    /**
+     * 只发布到本节点, 用于其他节点转发来的消息, 不改变 payload 的引用计数
+     *
+     * @return 投递的订阅者数量
+     */
+    public int deliver(String topic, MqttQoS qos, boolean retain, ByteBuf payload) {
+        if (retain) {
+            retainedStore.put(topic, qos, payload);
         }
+        return route(topic, qos, payload);
+    }
 
-        MqttFixedHeader pubAckFixedHeader =
-                new MqttFixedHeader(MqttMessageType.PUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
-        MqttMessageIdVariableHeader mqttConnAckVariableHeader = MqttMessageIdVariableHeader.from(getNextMessageId(ctx.channel()));
+    /**
+     * 投递给所有匹配的订阅者及每个匹配的共享订阅组中的一个成员, QoS 取发布与订阅中较小的一个,
+     * 不改变 payload 的引用计数
+     * <p>
+     * 报文只编码一次, 订阅者共享编码结果和 payload
+     *
+     * @return 投递的订阅者数量
+     */
+    public int route(String topic, MqttQoS qos, ByteBuf payload) {
+        List<Subscription> subscriptions = topicTrie.match(topic);
+        List<ShareGroup> groups = sharedSubscriptions.match(topic);
+        int subscribers = subscriptions.size() + groups.size();
+        brokerMetrics.onRoute(subscribers, payload.readableBytes());
+        if (subscribers == 0) {
+            return 0;
+        }
+        SharedPublish packet = new SharedPublish(topic, payload.retainedDuplicate());
+        try {
+            for (Subscription subscription : subscriptions) {
+                deliver(subscription, qos, packet);
+            }
+            ShareStrategy strategy = mqttProperties.getDelivery().getShareStrategy();
+            for (ShareGroup group : groups) {
+                Subscription member = group.select(strategy);
+                if (member != null) {
+                    deliver(member, qos, packet);
+                } else {
+                    // 最后一个成员刚退出
+                    subscribers--;
+                }
+            }
+        } finally {
+            packet.release();
+        }
+        return subscribers;
+    }
 
-        MqttPubAckMessage pubAck = new MqttPubAckMessage(pubAckFixedHeader, mqttConnAckVariableHeader);
-        ctx.writeAndFlush(pubAck);
+    private static void deliver(Subscription subscription, MqttQoS qos, SharedPublish packet) {
+        MqttQoS granted = subscription.qos().value() < qos.value() ? subscription.qos() : qos;
+        packet.prepare(granted);
+        subscription.session().publish(packet.retain(), granted);
     }
 
+    /**
+     * 按 clientId 直接投递到本节点的会话, 不经过主题匹配, 不改变 payload 的引用计数
+     * <p>
+     * 报文只编码一次; 会话按所在线程分组, 每个线程只提交一个任务. 每次调用在消息日志中记录一条
+     *
+     * @return 找到会话的 clientId 数量, 包括离线的持久会话
+     */
+    public int deliverTo(Collection<String> clientIds, String topic, MqttQoS qos, ByteBuf payload) {
+        messageJournal.append(topic, qos, payload);
+        Map<EventExecutor, List<MqttSession>> groups = new IdentityHashMap<>();
+        for (String clientId : clientIds) {
+            MqttSession session = sessionRegistry.get(clientId);
+            if (session != null) {
+                groups.computeIfAbsent(session.executor(), executor -> new ArrayList<>()).add(session);
+            }
+        }
+        if (groups.isEmpty()) {
+            return 0;
+        }
+        int sessions = 0;
+        SharedPublish packet = new SharedPublish(topic, payload.retainedDuplicate());
+        packet.prepare(qos);
+        try {
+            for (Map.Entry<EventExecutor, List<MqttSession>> entry : groups.entrySet()) {
+                EventExecutor executor = entry.getKey();
+                List<MqttSession> group = entry.getValue();
+                sessions += group.size();
+                packet.retain();
+                if (executor.inEventLoop()) {
+                    deliverTo(group, packet, qos);
+                    continue;
+                }
+                try {
+                    executor.execute(() -> deliverTo(group, packet, qos));
+                } catch (RejectedExecutionException e) {
+                    packet.release();
+                }
+            }
+        } finally {
+            packet.release();
+        }
+        brokerMetrics.onDirectDelivery(sessions, payload.readableBytes());
+        return sessions;
+    }
+
+    /**
+     * 在会话所在线程中依次投递, 释放 packet 的一个引用
+     */
+    private static void deliverTo(List<MqttSession> sessions, SharedPublish packet, MqttQoS qos) {
+        try {
+            for (MqttSession session : sessions) {
+                session.publish(packet.retain(), qos);
+            }
+        } finally {
+            packet.release();
+        }
+    }
 
     private void subscribe(ChannelHandlerContext ctx, MqttMessage msg) {
-        // TODO 未考虑 * 和 +
         MqttSubscribeMessage message = (MqttSubscribeMessage) msg;
-        for (MqttTopicSubscription topicSubscription : message.payload().topicSubscriptions()) {
-            TOPIC_CHANNEL_GROUPS.computeIfAbsent(topicSubscription.topicName(),
-                    k -> new DefaultChannelGroup(GlobalEventExecutor.INSTANCE))
-                    .add(ctx.channel());
+        MqttSession session = session(ctx);
+        List<MqttTopicSubscription> topicSubscriptions = message.payload().topicSubscriptions();
+        int[] grantedQoSLevels = new int[topicSubscriptions.size()];
+        for (int i = 0; i < grantedQoSLevels.length; i++) {
+            MqttTopicSubscription topicSubscription = topicSubscriptions.get(i);
+            String topicFilter = topicSubscription.topicName();
+            MqttQoS qos = topicSubscription.qualityOfService();
+            boolean shared = SharedSubscriptions.isShared(topicFilter);
+            if (!(shared ? SharedSubscriptions.isValidFilter(topicFilter) : TopicTrie.isValidFilter(topicFilter))
+                    || qos == MqttQoS.FAILURE) {
+                grantedQoSLevels[i] = MqttQoS.FAILURE.value();
+                continue;
+            }
+            synchronized (session) {
+                if (session.isDiscarded()) {
+                    // 已被接管或过期, 不再登记
+                    grantedQoSLevels[i] = MqttQoS.FAILURE.value();
+                    continue;
+                }
+                Subscription subscription = new Subscription(session, qos);
+                if (shared ? sharedSubscriptions.subscribe(topicFilter, subscription)
+                        : topicTrie.subscribe(topicFilter, subscription)) {
+                    clusterNode.subscribe(SharedSubscriptions.topicFilter(topicFilter));
+                }
+                session.subscriptions().put(topicFilter, qos);
+            }
+            grantedQoSLevels[i] = qos.value();
         }
 
         MqttFixedHeader subAckFixedHeader =
                 new MqttFixedHeader(MqttMessageType.SUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
         MqttMessageIdVariableHeader subAckVariableHeader = MqttMessageIdVariableHeader.from(message.variableHeader().messageId());
 
-        MqttSubAckPayload payload = new MqttSubAckPayload();
+        MqttSubAckPayload payload = new MqttSubAckPayload(grantedQoSLevels);
         MqttSubAckMessage subAck = new MqttSubAckMessage(subAckFixedHeader, subAckVariableHeader, payload);
         ctx.writeAndFlush(subAck);
+
+        // 发送匹配的保留消息, 共享订阅不发送
+        for (int i = 0; i < grantedQoSLevels.length; i++) {
+            MqttQoS granted = MqttQoS.valueOf(grantedQoSLevels[i]);
+            if (granted == MqttQoS.FAILURE || SharedSubscriptions.isShared(topicSubscriptions.get(i).topicName())) {
+                continue;
+            }
+            retainedStore.match(topicSubscriptions.get(i).topicName(), (topic, qos, retained) ->
+                    session.publish(topic, qos.value() < granted.value() ? qos : granted, true, retained));
+        }
     }
 
 
     private void unsubscribe(ChannelHandlerContext ctx, MqttMessage msg) {
-        // TODO 未考虑 * 和 +
         MqttUnsubscribeMessage message = (MqttUnsubscribeMessage) msg;
-        for (String topicSubscription : message.payload().topics()) {
-            TOPIC_CHANNEL_GROUPS.computeIfAbsent(topicSubscription,
-                    k -> new DefaultChannelGroup(GlobalEventExecutor.INSTANCE))
-                    .remove(ctx.channel());
+        MqttSession session = session(ctx);
+        synchronized (session) {
+            for (String topicFilter : message.payload().topics()) {
+                if (session.subscriptions().remove(topicFilter) != null) {
+                    removeSubscription(session, topicFilter);
+                }
+            }
         }
 
 
@@ -193,21 +709,51 @@ public final class MqttBrokerHandler extends SimpleChannelInboundHandler<MqttMes
         ctx.writeAndFlush(unSubAck);
     }
 
+    /**
+     * 打开的连接数
+     */
+    public long connections() {
+        return connections.sum();
+    }
+
+    /**
+     * 完成 CONNECT 的连接数
+     */
+    public long authenticatedConnections() {
+        return authenticated.sum();
+    }
+
+    /**
+     * 订阅了与 topic 匹配的过滤器的会话, 返回的列表不可修改
+     */
+    public List<Subscription> subscribers(String topic) {
+        return topicTrie.match(topic);
+    }
+
+    /**
+     * 订阅数量, 共享订阅按成员计
+     */
+    public int subscriptions() {
+        return topicTrie.size() + sharedSubscriptions.size();
+    }
+
+    /**
+     * 本节点的共享订阅组, 不存在时为 null
+     */
+    public ShareGroup shareGroup(String group, String filter) {
+        return sharedSubscriptions.group(group, filter);
+    }
+
     private boolean checkAuth(ChannelHandlerContext ctx) {
-        MqttConnectPayload mqttConnectPayload = ctx.channel().attr(CONNECT_ATTRIBUTE_KEY).get();
         // TODO 前缀
-        return mqttConnectPayload != null;
+        return session(ctx) != null;
     }
 
-    private int getNextMessageId(Channel channel) {
-        for (; ; ) {
-            AtomicInteger messageId = channel.attr(MESSAGE_ID).get();
-            int i = messageId.get();
-            int next = i + 1 % Short.MAX_VALUE;
-            if (messageId.compareAndSet(i, next)) {
-                return next;
-            }
-        }
+    private static MqttSession session(ChannelHandlerContext ctx) {
+        return ctx.channel().attr(SESSION_KEY).get();
     }
 
+    private static int messageId(MqttMessage msg) {
+        return ((MqttMessageIdVariableHeader) msg.variableHeader()).messageId();
+    }
 }
@@ -1,8 +1,14 @@
 package cn.flizi.push.mqtt;
 
+import cn.flizi.push.mqtt.session.ShareStrategy;
+import cn.flizi.push.mqtt.session.SlowConsumerPolicy;
+import cn.flizi.push.mqtt.tls.TlsProvider;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Configuration
 @ConfigurationProperties(prefix = "mqtt")
 public class MqttProperties {
@@ -11,6 +17,36 @@ public class MqttProperties {
 
     private int idle = 45;
 
+    private int topicCacheSize = 65536;
+
+    private Auth auth = new Auth();
+
+    private Transport transport = new Transport();
+
+    private Delivery delivery = new Delivery();
+
+    private Session session = new Session();
+
+    private Retained retained = new Retained();
+
+    private SlowConsumer slowConsumer = new SlowConsumer();
+
+    private Cluster cluster = new Cluster();
+
+    private RateLimit rateLimit = new RateLimit();
+
+    private Tls tls = new Tls();
+
+    private Presence presence = new Presence();
+
+    private Drain drain = new Drain();
+
+    private Broadcast broadcast = new Broadcast();
+
+    private Alert alert = new Alert();
+
+    private Journal journal = new Journal();
+
     public int getPort() {
         return port;
     }
@@ -26,4 +62,1287 @@ public class MqttProperties {
     public void setIdle(int idle) {
         this.idle = idle;
     }
+
+    public int getTopicCacheSize() {
+        return topicCacheSize;
+    }
+
+    public void setTopicCacheSize(int topicCacheSize) {
+        this.topicCacheSize = topicCacheSize;
+    }
+
+    public Auth getAuth() {
+        return auth;
+    }
+
+    public void setAuth(Auth auth) {
+        this.auth = auth;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    public Delivery getDelivery() {
+        return delivery;
+    }
+
+    public void setDelivery(Delivery delivery) {
+        this.delivery = delivery;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public void setSession(Session session) {
+        this.session = session;
+    }
+
+    public Retained getRetained() {
+        return retained;
+    }
+
+    public void setRetained(Retained retained) {
+        this.retained = retained;
+    }
+
+    public SlowConsumer getSlowConsumer() {
+        return slowConsumer;
+    }
+
+    public void setSlowConsumer(SlowConsumer slowConsumer) {
+        this.slowConsumer = slowConsumer;
+    }
+
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    public RateLimit getRateLimit() {
+        return rateLimit;
+    }
+
+    public void setRateLimit(RateLimit rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    public Tls getTls() {
+        return tls;
+    }
+
+    public void setTls(Tls tls) {
+        this.tls = tls;
+    }
+
+    public Presence getPresence() {
+        return presence;
+    }
+
+    public void setPresence(Presence presence) {
+        this.presence = presence;
+    }
+
+    public Drain getDrain() {
+        return drain;
+    }
+
+    public void setDrain(Drain drain) {
+        this.drain = drain;
+    }
+
+    public Broadcast getBroadcast() {
+        return broadcast;
+    }
+
+    public void setBroadcast(Broadcast broadcast) {
+        this.broadcast = broadcast;
+    }
+
+    public Alert getAlert() {
+        return alert;
+    }
+
+    public void setAlert(Alert alert) {
+        this.alert = alert;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * 设备认证
+     */
+    public static class Auth {
+
+        private int threads = 32;
+
+        private int queueSize = 10000;
+
+        private int cacheSize = 100000;
+
+        private int cacheTtl = 600;
+
+        private int negativeCacheTtl = 5;
+
+        private String jwtSecret = "";
+
+        private int jwtMaxAge = 0;
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public void setThreads(int threads) {
+            this.threads = threads;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public void setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+        }
+
+        public int getCacheSize() {
+            return cacheSize;
+        }
+
+        public void setCacheSize(int cacheSize) {
+            this.cacheSize = cacheSize;
+        }
+
+        public int getCacheTtl() {
+            return cacheTtl;
+        }
+
+        public void setCacheTtl(int cacheTtl) {
+            this.cacheTtl = cacheTtl;
+        }
+
+        public int getNegativeCacheTtl() {
+            return negativeCacheTtl;
+        }
+
+        public void setNegativeCacheTtl(int negativeCacheTtl) {
+            this.negativeCacheTtl = negativeCacheTtl;
+        }
+
+        public String getJwtSecret() {
+            return jwtSecret;
+        }
+
+        public void setJwtSecret(String jwtSecret) {
+            this.jwtSecret = jwtSecret;
+        }
+
+        public int getJwtMaxAge() {
+            return jwtMaxAge;
+        }
+
+        public void setJwtMaxAge(int jwtMaxAge) {
+            this.jwtMaxAge = jwtMaxAge;
+        }
+    }
+
+    /**
+     * 网络传输与线程模型
+     */
+    public static class Transport {
+
+        private boolean epoll = true;
+
+        private int bossThreads = 1;
+
+        private int workerThreads = 0;
+
+        private int handlerThreads = 0;
+
+        private boolean reusePort = false;
+
+        private boolean tcpNoDelay = true;
+
+        private boolean pooledDirect = true;
+
+        private int backlog = 1024;
+
+        private int writeBufferLowWaterMark = 32 * 1024;
+
+        private int writeBufferHighWaterMark = 64 * 1024;
+
+        private boolean density = false;
+
+        private int socketBuffer = 0;
+
+        private boolean wireLog = false;
+
+        public boolean isEpoll() {
+            return epoll;
+        }
+
+        public void setEpoll(boolean epoll) {
+            this.epoll = epoll;
+        }
+
+        public int getBossThreads() {
+            return bossThreads;
+        }
+
+        public void setBossThreads(int bossThreads) {
+            this.bossThreads = bossThreads;
+        }
+
+        public int getWorkerThreads() {
+            return workerThreads;
+        }
+
+        public void setWorkerThreads(int workerThreads) {
+            this.workerThreads = workerThreads;
+        }
+
+        public int getHandlerThreads() {
+            return handlerThreads;
+        }
+
+        public void setHandlerThreads(int handlerThreads) {
+            this.handlerThreads = handlerThreads;
+        }
+
+        public boolean isReusePort() {
+            return reusePort;
+        }
+
+        public void setReusePort(boolean reusePort) {
+            this.reusePort = reusePort;
+        }
+
+        public boolean isTcpNoDelay() {
+            return tcpNoDelay;
+        }
+
+        public void setTcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+        }
+
+        public boolean isPooledDirect() {
+            return pooledDirect;
+        }
+
+        public void setPooledDirect(boolean pooledDirect) {
+            this.pooledDirect = pooledDirect;
+        }
+
+        public int getBacklog() {
+            return backlog;
+        }
+
+        public void setBacklog(int backlog) {
+            this.backlog = backlog;
+        }
+
+        public int getWriteBufferLowWaterMark() {
+            return writeBufferLowWaterMark;
+        }
+
+        public void setWriteBufferLowWaterMark(int writeBufferLowWaterMark) {
+            this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+        }
+
+        public int getWriteBufferHighWaterMark() {
+            return writeBufferHighWaterMark;
+        }
+
+        public void setWriteBufferHighWaterMark(int writeBufferHighWaterMark) {
+            this.writeBufferHighWaterMark = writeBufferHighWaterMark;
+        }
+
+        public boolean isDensity() {
+            return density;
+        }
+
+        public void setDensity(boolean density) {
+            this.density = density;
+        }
+
+        public int getSocketBuffer() {
+            return socketBuffer;
+        }
+
+        public void setSocketBuffer(int socketBuffer) {
+            this.socketBuffer = socketBuffer;
+        }
+
+        public boolean isWireLog() {
+            return wireLog;
+        }
+
+        public void setWireLog(boolean wireLog) {
+            this.wireLog = wireLog;
+        }
+    }
+
+    /**
+     * QoS 1/2 出站投递
+     */
+    public static class Delivery {
+
+        private int maxInFlight = 32;
+
+        private int maxQueued = 1000;
+
+        private int retryInterval = 20;
+
+        private ShareStrategy shareStrategy = ShareStrategy.ROUND_ROBIN;
+
+        public int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        public void setMaxInFlight(int maxInFlight) {
+            this.maxInFlight = Math.min(maxInFlight, 0xFFFF);
+        }
+
+        public int getMaxQueued() {
+            return maxQueued;
+        }
+
+        public void setMaxQueued(int maxQueued) {
+            this.maxQueued = maxQueued;
+        }
+
+        public int getRetryInterval() {
+            return retryInterval;
+        }
+
+        public void setRetryInterval(int retryInterval) {
+            this.retryInterval = retryInterval;
+        }
+
+        public ShareStrategy getShareStrategy() {
+            return shareStrategy;
+        }
+
+        public void setShareStrategy(ShareStrategy shareStrategy) {
+            this.shareStrategy = shareStrategy;
+        }
+    }
+
+    /**
+     * 持久会话与离线消息
+     */
+    public static class Session {
+
+        private int expiry = 86400;
+
+        private boolean offlineEnabled = true;
+
+        private String storeDir = "data/offline";
+
+        private int segmentSize = 64 * 1024 * 1024;
+
+        private long maxStoreSize = 4L * 1024 * 1024 * 1024;
+
+        private int maxAge = 86400;
+
+        private int maxMessagesPerClient = 1000;
+
+        private int offlineQueueSize = 65536;
+
+        public int getExpiry() {
+            return expiry;
+        }
+
+        public void setExpiry(int expiry) {
+            this.expiry = expiry;
+        }
+
+        public boolean isOfflineEnabled() {
+            return offlineEnabled;
+        }
+
+        public void setOfflineEnabled(boolean offlineEnabled) {
+            this.offlineEnabled = offlineEnabled;
+        }
+
+        public String getStoreDir() {
+            return storeDir;
+        }
+
+        public void setStoreDir(String storeDir) {
+            this.storeDir = storeDir;
+        }
+
+        public int getSegmentSize() {
+            return segmentSize;
+        }
+
+        public void setSegmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+        }
+
+        public long getMaxStoreSize() {
+            return maxStoreSize;
+        }
+
+        public void setMaxStoreSize(long maxStoreSize) {
+            this.maxStoreSize = maxStoreSize;
+        }
+
+        public int getMaxAge() {
+            return maxAge;
+        }
+
+        public void setMaxAge(int maxAge) {
+            this.maxAge = maxAge;
+        }
+
+        public int getMaxMessagesPerClient() {
+            return maxMessagesPerClient;
+        }
+
+        public void setMaxMessagesPerClient(int maxMessagesPerClient) {
+            this.maxMessagesPerClient = maxMessagesPerClient;
+        }
+
+        public int getOfflineQueueSize() {
+            return offlineQueueSize;
+        }
+
+        public void setOfflineQueueSize(int offlineQueueSize) {
+            this.offlineQueueSize = offlineQueueSize;
+        }
+    }
+
+    /**
+     * 保留消息
+     */
+    public static class Retained {
+
+        private long maxMemory = 64 * 1024 * 1024;
+
+        private String snapshotFile = "data/retained.snapshot";
+
+        private int snapshotInterval = 300;
+
+        public long getMaxMemory() {
+            return maxMemory;
+        }
+
+        public void setMaxMemory(long maxMemory) {
+            this.maxMemory = maxMemory;
+        }
+
+        public String getSnapshotFile() {
+            return snapshotFile;
+        }
+
+        public void setSnapshotFile(String snapshotFile) {
+            this.snapshotFile = snapshotFile;
+        }
+
+        public int getSnapshotInterval() {
+            return snapshotInterval;
+        }
+
+        public void setSnapshotInterval(int snapshotInterval) {
+            this.snapshotInterval = snapshotInterval;
+        }
+    }
+
+    /**
+     * 慢消费者保护
+     */
+    public static class SlowConsumer {
+
+        private long maxQueuedBytes = 1024 * 1024;
+
+        private SlowConsumerPolicy policy = SlowConsumerPolicy.DROP_NEWEST;
+
+        private List<TopicPolicy> topics = new ArrayList<>();
+
+        public long getMaxQueuedBytes() {
+            return maxQueuedBytes;
+        }
+
+        public void setMaxQueuedBytes(long maxQueuedBytes) {
+            this.maxQueuedBytes = maxQueuedBytes;
+        }
+
+        public SlowConsumerPolicy getPolicy() {
+            return policy;
+        }
+
+        public void setPolicy(SlowConsumerPolicy policy) {
+            this.policy = policy;
+        }
+
+        public List<TopicPolicy> getTopics() {
+            return topics;
+        }
+
+        public void setTopics(List<TopicPolicy> topics) {
+            this.topics = topics;
+        }
+    }
+
+    public static class TopicPolicy {
+
+        private String filter;
+
+        private SlowConsumerPolicy policy;
+
+        public String getFilter() {
+            return filter;
+        }
+
+        public void setFilter(String filter) {
+            this.filter = filter;
+        }
+
+        public SlowConsumerPolicy getPolicy() {
+            return policy;
+        }
+
+        public void setPolicy(SlowConsumerPolicy policy) {
+            this.policy = policy;
+        }
+    }
+
+    /**
+     * 集群
+     */
+    public static class Cluster {
+
+        private boolean enabled = false;
+
+        private String zkConnect = "127.0.0.1:2181";
+
+        private String namespace = "push";
+
+        private int zkSessionTimeout = 15000;
+
+        private String nodeId = "";
+
+        private String host = "127.0.0.1";
+
+        private int port = 1884;
+
+        private int connections = 2;
+
+        private int threads = 0;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getZkConnect() {
+            return zkConnect;
+        }
+
+        public void setZkConnect(String zkConnect) {
+            this.zkConnect = zkConnect;
+        }
+
+        public String getNamespace() {
+            return namespace;
+        }
+
+        public void setNamespace(String namespace) {
+            this.namespace = namespace;
+        }
+
+        public int getZkSessionTimeout() {
+            return zkSessionTimeout;
+        }
+
+        public void setZkSessionTimeout(int zkSessionTimeout) {
+            this.zkSessionTimeout = zkSessionTimeout;
+        }
+
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        public void setNodeId(String nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public void setHost(String host) {
+            this.host = host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public int getConnections() {
+            return connections;
+        }
+
+        public void setConnections(int connections) {
+            this.connections = Math.max(1, connections);
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public void setThreads(int threads) {
+            this.threads = threads;
+        }
+    }
+
+    /**
+     * CONNECT 准入与 PUBLISH 限速
+     */
+    public static class RateLimit {
+
+        private int connectRate = 0;
+
+        private int connectBurst = 0;
+
+        private int ipConnectRate = 0;
+
+        private int ipConnectBurst = 0;
+
+        private int maxTrackedIps = 100000;
+
+        private int publishRate = 0;
+
+        private int publishBurst = 0;
+
+        private boolean disconnectOnLimit = false;
+
+        private List<TopicRate> topics = new ArrayList<>();
+
+        public int getConnectRate() {
+            return connectRate;
+        }
+
+        public void setConnectRate(int connectRate) {
+            this.connectRate = connectRate;
+        }
+
+        public int getConnectBurst() {
+            return connectBurst;
+        }
+
+        public void setConnectBurst(int connectBurst) {
+            this.connectBurst = connectBurst;
+        }
+
+        public int getIpConnectRate() {
+            return ipConnectRate;
+        }
+
+        public void setIpConnectRate(int ipConnectRate) {
+            this.ipConnectRate = ipConnectRate;
+        }
+
+        public int getIpConnectBurst() {
+            return ipConnectBurst;
+        }
+
+        public void setIpConnectBurst(int ipConnectBurst) {
+            this.ipConnectBurst = ipConnectBurst;
+        }
+
+        public int getMaxTrackedIps() {
+            return maxTrackedIps;
+        }
+
+        public void setMaxTrackedIps(int maxTrackedIps) {
+            this.maxTrackedIps = maxTrackedIps;
+        }
+
+        public int getPublishRate() {
+            return publishRate;
+        }
+
+        public void setPublishRate(int publishRate) {
+            this.publishRate = publishRate;
+        }
+
+        public int getPublishBurst() {
+            return publishBurst;
+        }
+
+        public void setPublishBurst(int publishBurst) {
+            this.publishBurst = publishBurst;
+        }
+
+        public boolean isDisconnectOnLimit() {
+            return disconnectOnLimit;
+        }
+
+        public void setDisconnectOnLimit(boolean disconnectOnLimit) {
+            this.disconnectOnLimit = disconnectOnLimit;
+        }
+
+        public List<TopicRate> getTopics() {
+            return topics;
+        }
+
+        public void setTopics(List<TopicRate> topics) {
+            this.topics = topics;
+        }
+    }
+
+    /**
+     * 主题限速
+     */
+    public static class TopicRate {
+
+        private String filter;
+
+        private int rate = 0;
+
+        private int burst = 0;
+
+        public String getFilter() {
+            return filter;
+        }
+
+        public void setFilter(String filter) {
+            this.filter = filter;
+        }
+
+        public int getRate() {
+            return rate;
+        }
+
+        public void setRate(int rate) {
+            this.rate = rate;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+
+        public void setBurst(int burst) {
+            this.burst = burst;
+        }
+    }
+
+    /**
+     * MQTTS
+     */
+    public static class Tls {
+
+        private boolean enabled = false;
+
+        private int port = 8883;
+
+        private String certFile;
+
+        private String keyFile;
+
+        private String keyPassword;
+
+        private TlsProvider provider = TlsProvider.AUTO;
+
+        private List<String> protocols = new ArrayList<>();
+
+        private List<String> ciphers = new ArrayList<>();
+
+        private int sessionCacheSize = 20480;
+
+        private int sessionTimeout = 86400;
+
+        private String ticketKeyFile;
+
+        private int handshakeTimeout = 10000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public String getCertFile() {
+            return certFile;
+        }
+
+        public void setCertFile(String certFile) {
+            this.certFile = certFile;
+        }
+
+        public String getKeyFile() {
+            return keyFile;
+        }
+
+        public void setKeyFile(String keyFile) {
+            this.keyFile = keyFile;
+        }
+
+        public String getKeyPassword() {
+            return keyPassword;
+        }
+
+        public void setKeyPassword(String keyPassword) {
+            this.keyPassword = keyPassword;
+        }
+
+        public TlsProvider getProvider() {
+            return provider;
+        }
+
+        public void setProvider(TlsProvider provider) {
+            this.provider = provider;
+        }
+
+        public List<String> getProtocols() {
+            return protocols;
+        }
+
+        public void setProtocols(List<String> protocols) {
+            this.protocols = protocols;
+        }
+
+        public List<String> getCiphers() {
+            return ciphers;
+        }
+
+        public void setCiphers(List<String> ciphers) {
+            this.ciphers = ciphers;
+        }
+
+        public int getSessionCacheSize() {
+            return sessionCacheSize;
+        }
+
+        public void setSessionCacheSize(int sessionCacheSize) {
+            this.sessionCacheSize = sessionCacheSize;
+        }
+
+        public int getSessionTimeout() {
+            return sessionTimeout;
+        }
+
+        public void setSessionTimeout(int sessionTimeout) {
+            this.sessionTimeout = sessionTimeout;
+        }
+
+        public String getTicketKeyFile() {
+            return ticketKeyFile;
+        }
+
+        public void setTicketKeyFile(String ticketKeyFile) {
+            this.ticketKeyFile = ticketKeyFile;
+        }
+
+        public int getHandshakeTimeout() {
+            return handshakeTimeout;
+        }
+
+        public void setHandshakeTimeout(int handshakeTimeout) {
+            this.handshakeTimeout = handshakeTimeout;
+        }
+    }
+
+    /**
+     * 设备在线状态
+     */
+    public static class Presence {
+
+        private boolean enabled = true;
+
+        private int batchSize = 500;
+
+        private int flushInterval = 1000;
+
+        private int maxPending = 100000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public int getFlushInterval() {
+            return flushInterval;
+        }
+
+        public void setFlushInterval(int flushInterval) {
+            this.flushInterval = flushInterval;
+        }
+
+        public int getMaxPending() {
+            return maxPending;
+        }
+
+        public void setMaxPending(int maxPending) {
+            this.maxPending = maxPending;
+        }
+    }
+
+    /**
+     * 停机前排空连接
+     */
+    public static class Drain {
+
+        private boolean onShutdown = true;
+
+        private int window = 30;
+
+        private int interval = 100;
+
+        private int flushTimeout = 5000;
+
+        public boolean isOnShutdown() {
+            return onShutdown;
+        }
+
+        public void setOnShutdown(boolean onShutdown) {
+            this.onShutdown = onShutdown;
+        }
+
+        public int getWindow() {
+            return window;
+        }
+
+        public void setWindow(int window) {
+            this.window = window;
+        }
+
+        public int getInterval() {
+            return interval;
+        }
+
+        public void setInterval(int interval) {
+            this.interval = interval;
+        }
+
+        public int getFlushTimeout() {
+            return flushTimeout;
+        }
+
+        public void setFlushTimeout(int flushTimeout) {
+            this.flushTimeout = flushTimeout;
+        }
+    }
+
+    /**
+     * 全量广播
+     */
+    public static class Broadcast {
+
+        private int rate = 20000;
+
+        private int interval = 20;
+
+        private int yieldPendingTasks = 256;
+
+        private int maxJobs = 100;
+
+        public int getRate() {
+            return rate;
+        }
+
+        public void setRate(int rate) {
+            this.rate = rate;
+        }
+
+        public int getInterval() {
+            return interval;
+        }
+
+        public void setInterval(int interval) {
+            this.interval = interval;
+        }
+
+        public int getYieldPendingTasks() {
+            return yieldPendingTasks;
+        }
+
+        public void setYieldPendingTasks(int yieldPendingTasks) {
+            this.yieldPendingTasks = yieldPendingTasks;
+        }
+
+        public int getMaxJobs() {
+            return maxJobs;
+        }
+
+        public void setMaxJobs(int maxJobs) {
+            this.maxJobs = maxJobs;
+        }
+    }
+
+    /**
+     * 告警
+     */
+    public static class Alert {
+
+        private String url = "";
+
+        private int queueSize = 1000;
+
+        private int window = 60;
+
+        private int maxPerMinute = 20;
+
+        private int maxLines = 50;
+
+        private int connectTimeout = 3000;
+
+        private int readTimeout = 5000;
+
+        private int checkInterval = 10;
+
+        private int authFailureThreshold = 1000;
+
+        private int connectThreshold = 20000;
+
+        private int tlsFailureThreshold = 1000;
+
+        public String getUrl() {
+            return url;
+        }
+
+        public void setUrl(String url) {
+            this.url = url;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public void setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+        }
+
+        public int getWindow() {
+            return window;
+        }
+
+        public void setWindow(int window) {
+            this.window = window;
+        }
+
+        public int getMaxPerMinute() {
+            return maxPerMinute;
+        }
+
+        public void setMaxPerMinute(int maxPerMinute) {
+            this.maxPerMinute = maxPerMinute;
+        }
+
+        public int getMaxLines() {
+            return maxLines;
+        }
+
+        public void setMaxLines(int maxLines) {
+            this.maxLines = maxLines;
+        }
+
+        public int getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        public void setConnectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+        }
+
+        public int getReadTimeout() {
+            return readTimeout;
+        }
+
+        public void setReadTimeout(int readTimeout) {
+            this.readTimeout = readTimeout;
+        }
+
+        public int getCheckInterval() {
+            return checkInterval;
+        }
+
+        public void setCheckInterval(int checkInterval) {
+            this.checkInterval = checkInterval;
+        }
+
+        public int getAuthFailureThreshold() {
+            return authFailureThreshold;
+        }
+
+        public void setAuthFailureThreshold(int authFailureThreshold) {
+            this.authFailureThreshold = authFailureThreshold;
+        }
+
+        public int getConnectThreshold() {
+            return connectThreshold;
+        }
+
+        public void setConnectThreshold(int connectThreshold) {
+            this.connectThreshold = connectThreshold;
+        }
+
+        public int getTlsFailureThreshold() {
+            return tlsFailureThreshold;
+        }
+
+        public void setTlsFailureThreshold(int tlsFailureThreshold) {
+            this.tlsFailureThreshold = tlsFailureThreshold;
+        }
+    }
+
+    /**
+     * 消息日志
+     */
+    public static class Journal {
+
+        private boolean enabled = false;
+
+        private String dir = "data/journal";
+
+        private int segmentSize = 64 * 1024 * 1024;
+
+        private long maxSize = 4L * 1024 * 1024 * 1024;
+
+        private int maxAge = 86400;
+
+        private int queueSize = 65536;
+
+        private int commitInterval = 10;
+
+        private int batchSize = 1024;
+
+        private boolean sync = true;
+
+        private int indexInterval = 16384;
+
+        private int replayLimit = 10000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getDir() {
+            return dir;
+        }
+
+        public void setDir(String dir) {
+            this.dir = dir;
+        }
+
+        public int getSegmentSize() {
+            return segmentSize;
+        }
+
+        public void setSegmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+        }
+
+        public long getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public int getMaxAge() {
+            return maxAge;
+        }
+
+        public void setMaxAge(int maxAge) {
+            this.maxAge = maxAge;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public void setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+        }
+
+        public int getCommitInterval() {
+            return commitInterval;
+        }
+
+        public void setCommitInterval(int commitInterval) {
+            this.commitInterval = commitInterval;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public boolean isSync() {
+            return sync;
+        }
+
+        public void setSync(boolean sync) {
+            this.sync = sync;
+        }
+
+        public int getIndexInterval() {
+            return indexInterval;
+        }
+
+        public void setIndexInterval(int indexInterval) {
+            this.indexInterval = indexInterval;
+        }
+
+        public int getReplayLimit() {
+            return replayLimit;
+        }
+
+        public void setReplayLimit(int replayLimit) {
+            this.replayLimit = replayLimit;
+        }
+    }
 }
@@ -0,0 +1,276 @@
+package cn.flizi.push.mqtt.alert;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.cluster.ClusterNode;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 告警异步合并发送到钉钉机器人 webhook
+ * <p>
+ * 告警先放入有界的待发送表, 相同 key 的只计数并保留最新内容, 超出 queue-size 的新告警丢弃. 每隔 window
+ * 在单独的线程中合并为一条消息发送, 每分钟不超过 max-per-minute 条, 超出或发送失败时留到下一个窗口.
+ * RestTemplate 只创建一次, 连接由 HttpURLConnection 的 keep-alive 缓存复用.
+ */
+@Component
+@Log4j2
+public class AlertDispatcher {
+
+    private static final String PREFIX = "[PUSH]>";
+
+    /**
+     * 按首次出现的顺序
+     */
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+
+    /**
+     * 最近一分钟的发送时刻, 只在发送线程中访问
+     */
+    private final ArrayDeque<Long> sentAt = new ArrayDeque<>();
+
+    private final LongAdder sent = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder rateLimited = new LongAdder();
+
+    @Autowired
+    private MqttProperties mqttProperties;
+
+    @Autowired
+    private ClusterNode clusterNode;
+
+    private RestTemplate restTemplate;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        MqttProperties.Alert config = mqttProperties.getAlert();
+        if (!StringUtils.hasLength(config.getUrl())) {
+            return;
+        }
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(config.getConnectTimeout());
+        requestFactory.setReadTimeout(config.getReadTimeout());
+        restTemplate = new RestTemplate(requestFactory);
+        executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("alert"));
+        executor.scheduleWithFixedDelay(this::flush, config.getWindow(), config.getWindow(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * 停止定时发送并发送剩余告警
+     */
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        flush();
+    }
+
+    public boolean isEnabled() {
+        return executor != null;
+    }
+
+    public boolean alert(String content) {
+        return alert(content, content);
+    }
+
+    /**
+     * 不阻塞调用线程
+     *
+     * @param key 相同 key 的告警在一个窗口内合并
+     * @return 未配置 url 或队列已满时为 false
+     */
+    public boolean alert(String key, String content) {
+        if (executor == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (pending) {
+            Pending entry = pending.get(key);
+            if (entry != null) {
+                entry.content = content;
+                entry.count++;
+                return true;
+            }
+            if (pending.size() >= mqttProperties.getAlert().getQueueSize()) {
+                dropped.increment();
+                return false;
+            }
+            pending.put(key, new Pending(content, now));
+        }
+        return true;
+    }
+
+    /**
+     * 待发送的告警合并为一条消息发送
+     *
+     * @return 发送的告警种类数, 未发送时为 0
+     */
+    int flush() {
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return 0;
+            }
+        }
+        if (!acquire(System.nanoTime())) {
+            rateLimited.increment();
+            return 0;
+        }
+        Map<String, Pending> batch;
+        synchronized (pending) {
+            batch = new LinkedHashMap<>(pending);
+            pending.clear();
+        }
+        if (send(format(batch))) {
+            sent.increment();
+            return batch.size();
+        }
+        failed.increment();
+        synchronized (pending) {
+            int queueSize = mqttProperties.getAlert().getQueueSize();
+            for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+                Pending newer = pending.get(entry.getKey());
+                if (newer != null) {
+                    newer.count += entry.getValue().count;
+                    newer.firstAt = entry.getValue().firstAt;
+                } else if (pending.size() < queueSize) {
+                    pending.put(entry.getKey(), entry.getValue());
+                } else {
+                    dropped.increment();
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 滑动一分钟窗口内的发送次数
+     */
+    private boolean acquire(long now) {
+        long minute = TimeUnit.MINUTES.toNanos(1);
+        while (!sentAt.isEmpty() && now - sentAt.peekFirst() >= minute) {
+            sentAt.pollFirst();
+        }
+        if (sentAt.size() >= mqttProperties.getAlert().getMaxPerMinute()) {
+            return false;
+        }
+        sentAt.addLast(now);
+        return true;
+    }
+
+    private String format(Map<String, Pending> batch) {
+        int maxLines = mqttProperties.getAlert().getMaxLines();
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss");
+        StringBuilder text = new StringBuilder(PREFIX);
+        if (clusterNode.isEnabled()) {
+            text.append(clusterNode.nodeId()).append(": ");
+        }
+        int lines = 0;
+        for (Pending entry : batch.values()) {
+            if (lines++ >= maxLines) {
+                text.append("\n... 另有 ").append(batch.size() - maxLines).append(" 种告警");
+                break;
+            }
+            if (batch.size() > 1) {
+                text.append('\n');
+            }
+            text.append(entry.content);
+            if (entry.count > 1) {
+                text.append(" (").append(entry.count).append(" 次, 首次 ")
+                        .append(time.format(new Date(entry.firstAt))).append(')');
+            }
+        }
+        return text.toString();
+    }
+
+    private boolean send(String content) {
+        Map<String, Object> message = new LinkedHashMap<>();
+        message.put("msgtype", "text");
+        message.put("text", Collections.singletonMap("content", content));
+        message.put("at", Collections.singletonMap("isAtAll", Boolean.FALSE));
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        try {
+            Map<?, ?> response = restTemplate.postForObject(mqttProperties.getAlert().getUrl(),
+                    new HttpEntity<>(message, headers), Map.class);
+            // 钉钉限流等错误也返回 200, 通过 errcode 区分
+            Object errcode = response == null ? null : response.get("errcode");
+            if (errcode instanceof Number && ((Number) errcode).intValue() != 0) {
+                log.warn("Send alert failed: {}", response);
+                return false;
+            }
+            return true;
+        } catch (RestClientException e) {
+            log.warn("Send alert failed", e);
+            return false;
+        }
+    }
+
+    public int pending() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * 发送的消息数, 每条包含一个窗口内合并的告警
+     */
+    public long sent() {
+        return sent.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public long failed() {
+        return failed.sum();
+    }
+
+    public long rateLimited() {
+        return rateLimited.sum();
+    }
+
+    private static final class Pending {
+
+        private String content;
+
+        private int count = 1;
+
+        private long firstAt;
+
+        Pending(String content, long firstAt) {
+            this.content = content;
+            this.firstAt = firstAt;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package cn.flizi.push.mqtt.alert;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.cluster.ClusterNode;
+import cn.flizi.push.mqtt.metrics.BrokerMetrics;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每隔 check-interval 读取 broker 的计数器和状态, 认证失败、连接数突增、TLS 握手失败超出阈值,
+ * 或集群节点断开时告警
+ * <p>
+ * 只在检查线程中比较前后两次的差值, 不在连接线程中增加开销.
+ */
+@Component
+public class AlertMonitor {
+
+    @Autowired
+    private AlertDispatcher alertDispatcher;
+
+    @Autowired
+    private BrokerMetrics brokerMetrics;
+
+    @Autowired
+    private ClusterNode clusterNode;
+
+    @Autowired
+    private MqttProperties mqttProperties;
+
+    private ScheduledExecutorService executor;
+
+    private boolean started;
+
+    private long accepted;
+
+    private long rejected;
+
+    private long tlsFailed;
+
+    private Set<String> peers = new HashSet<>();
+
+    @PostConstruct
+    public void init() {
+        if (!alertDispatcher.isEnabled()) {
+            return;
+        }
+        int interval = mqttProperties.getAlert().getCheckInterval();
+        executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("alert-monitor"));
+        executor.scheduleWithFixedDelay(this::check, 0, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 与上次检查比较, 第一次只记录当前值
+     */
+    void check() {
+        MqttProperties.Alert config = mqttProperties.getAlert();
+
+        long accepted = brokerMetrics.connectAccepted();
+        long rejected = brokerMetrics.connectRejected();
+        long tlsFailed = brokerMetrics.tlsHandshakeFailed();
+        if (started) {
+            exceeded("auth-failure", "%d 秒内认证失败 %d 次", rejected - this.rejected,
+                    config.getAuthFailureThreshold());
+            exceeded("connect-storm", "%d 秒内新建连接 %d 个", accepted - this.accepted,
+                    config.getConnectThreshold());
+            exceeded("tls-failure", "%d 秒内 TLS 握手失败 %d 次", tlsFailed - this.tlsFailed,
+                    config.getTlsFailureThreshold());
+        }
+        this.accepted = accepted;
+        this.rejected = rejected;
+        this.tlsFailed = tlsFailed;
+        started = true;
+
+        if (clusterNode.isEnabled()) {
+            Set<String> peers = new HashSet<>(clusterNode.peers());
+            for (String peer : this.peers) {
+                if (!peers.contains(peer)) {
+                    alertDispatcher.alert("peer-lost:" + peer, "与集群节点 " + peer + " 断开");
+                }
+            }
+            this.peers = peers;
+        }
+    }
+
+    private void exceeded(String key, String format, long delta, int threshold) {
+        if (threshold > 0 && delta >= threshold) {
+            alertDispatcher.alert(key, String.format(format, mqttProperties.getAlert().getCheckInterval(), delta));
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package cn.flizi.push.mqtt.broadcast;
+
+import cn.flizi.push.mqtt.codec.SharedPublish;
+import cn.flizi.push.mqtt.session.MqttSession;
+import cn.flizi.push.mqtt.session.Subscription;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 一次广播, 目标会话按所在线程分为多条 lane, 每条 lane 在自己的线程中定时发送一批
+ * <p>
+ * 各 lane 的速率按会话数分配总速率, 同时结束. 线程待处理任务超过 yield-pending-tasks 时跳过本次,
+ * 先处理连接上的报文. 报文只编码一次.
+ */
+final class BroadcastJob {
+
+    private final long id;
+
+    private final BroadcastTarget target;
+
+    private final String topic;
+
+    private final long createdAt = System.currentTimeMillis();
+
+    private final SharedPublish packet;
+
+    private final Map<EventExecutor, List<Subscription>> groups;
+
+    private final long total;
+
+    private final LongAdder sent = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder skipped = new LongAdder();
+
+    private final AtomicInteger lanes;
+
+    private final Consumer<BroadcastJob> onFinish;
+
+    private volatile boolean cancelled;
+
+    private volatile BroadcastStatus.State state = BroadcastStatus.State.RUNNING;
+
+    private volatile long finishedAt;
+
+    /**
+     * @param payload  不改变引用计数
+     * @param groups   目标按所在线程分组, 订阅的 QoS 即发送的 QoS
+     * @param onFinish 所有 lane 结束后调用
+     */
+    BroadcastJob(long id, BroadcastTarget target, String topic, MqttQoS qos, ByteBuf payload,
+                 Map<EventExecutor, List<Subscription>> groups, Consumer<BroadcastJob> onFinish) {
+        this.id = id;
+        this.target = target;
+        this.topic = topic;
+        this.groups = groups;
+        this.onFinish = onFinish;
+        this.lanes = new AtomicInteger(groups.size());
+        long total = 0;
+        for (List<Subscription> group : groups.values()) {
+            total += group.size();
+        }
+        this.total = total;
+        packet = new SharedPublish(topic, payload.retainedDuplicate());
+        // lane 线程只读取编码结果
+        for (MqttQoS level : new MqttQoS[]{MqttQoS.AT_MOST_ONCE, MqttQoS.AT_LEAST_ONCE, MqttQoS.EXACTLY_ONCE}) {
+            if (level.value() <= qos.value()) {
+                packet.prepare(level);
+            }
+        }
+    }
+
+    /**
+     * @param rate 每秒发送数
+     */
+    void start(int rate, int interval, int yieldPendingTasks) {
+        if (groups.isEmpty()) {
+            finish();
+            return;
+        }
+        for (Map.Entry<EventExecutor, List<Subscription>> entry : groups.entrySet()) {
+            List<Subscription> group = entry.getValue();
+            double perTick = (double) rate * interval / 1000 * group.size() / total;
+            new Lane(entry.getKey(), group, perTick, yieldPendingTasks).start(interval);
+        }
+        groups.clear();
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    long id() {
+        return id;
+    }
+
+    boolean isRunning() {
+        return state == BroadcastStatus.State.RUNNING;
+    }
+
+    long sent() {
+        return sent.sum();
+    }
+
+    BroadcastStatus status() {
+        BroadcastStatus status = new BroadcastStatus();
+        status.setId(id);
+        status.setTarget(target);
+        status.setTopic(topic);
+        status.setState(state);
+        status.setCreatedAt(createdAt);
+        status.setFinishedAt(finishedAt);
+        status.setTotal(total);
+        long sent = this.sent.sum();
+        long failed = this.failed.sum();
+        long skipped = this.skipped.sum();
+        status.setSent(sent);
+        status.setFailed(failed);
+        status.setCancelled(skipped);
+        status.setRemaining(Math.max(0, total - sent - failed - skipped));
+        return status;
+    }
+
+    private void finish() {
+        state = cancelled ? BroadcastStatus.State.CANCELLED : BroadcastStatus.State.DONE;
+        finishedAt = System.currentTimeMillis();
+        packet.release();
+        onFinish.accept(this);
+    }
+
+    private final class Lane implements Runnable {
+
+        private final EventExecutor executor;
+
+        private final ArrayDeque<Subscription> queue;
+
+        private final double perTick;
+
+        private final int yieldPendingTasks;
+
+        private double credit;
+
+        private boolean done;
+
+        private volatile ScheduledFuture<?> future;
+
+        Lane(EventExecutor executor, List<Subscription> subscriptions, double perTick, int yieldPendingTasks) {
+            this.executor = executor;
+            this.queue = new ArrayDeque<>(subscriptions);
+            this.perTick = perTick;
+            this.yieldPendingTasks = yieldPendingTasks;
+        }
+
+        void start(int interval) {
+            try {
+                future = executor.scheduleAtFixedRate(this, 0, interval, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                failed.add(queue.size());
+                queue.clear();
+                end();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (done) {
+                // 在 future 赋值之前已结束
+                stop();
+                return;
+            }
+            if (cancelled) {
+                skipped.add(queue.size());
+                queue.clear();
+                end();
+                return;
+            }
+            if (busy()) {
+                return;
+            }
+            credit += perTick;
+            while (credit >= 1 && !queue.isEmpty()) {
+                credit--;
+                deliver(queue.poll());
+            }
+            if (queue.isEmpty()) {
+                end();
+            }
+        }
+
+        private boolean busy() {
+            return executor instanceof SingleThreadEventExecutor
+                    && ((SingleThreadEventExecutor) executor).pendingTasks() > yieldPendingTasks;
+        }
+
+        private void deliver(Subscription subscription) {
+            MqttSession session = subscription.session();
+            if (session.context() == null && !session.isPersistent()) {
+                failed.increment();
+                return;
+            }
+            session.publish(packet.retain(), subscription.qos());
+            sent.increment();
+        }
+
+        private void end() {
+            done = true;
+            stop();
+            if (lanes.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+
+        private void stop() {
+            ScheduledFuture<?> future = this.future;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+}
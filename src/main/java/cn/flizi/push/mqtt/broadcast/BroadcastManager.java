@@ -0,0 +1,192 @@
+package cn.flizi.push.mqtt.broadcast;
+
+import cn.flizi.push.mqtt.MqttBrokerHandler;
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.session.MqttSession;
+import cn.flizi.push.mqtt.session.SessionRegistry;
+import cn.flizi.push.mqtt.session.Subscription;
+import cn.flizi.push.mqtt.store.MessageJournal;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.concurrent.EventExecutor;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 全量广播任务, 按速率分批写出, 不一次性占满所有连接的写队列, 可查询进度和中途取消
+ */
+@Component
+@Log4j2
+public class BroadcastManager {
+
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * 按创建顺序, 超出 max-jobs 时删除最早结束的
+     */
+    private final Map<Long, BroadcastJob> jobs = new LinkedHashMap<>();
+
+    private final LongAdder sent = new LongAdder();
+
+    @Autowired
+    private MqttBrokerHandler mqttBrokerHandler;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private MqttProperties mqttProperties;
+
+    @Autowired
+    private MessageJournal messageJournal;
+
+    @PreDestroy
+    public void destroy() {
+        synchronized (jobs) {
+            for (BroadcastJob job : jobs.values()) {
+                job.cancel();
+            }
+        }
+    }
+
+    /**
+     * 创建并开始广播, 每个广播在消息日志中记录一条
+     *
+     * @param clientIds 只用于 {@link BroadcastTarget#CLIENTS}
+     * @param payload   不改变引用计数
+     * @param rate      每秒发送数, 0 为配置的默认值
+     */
+    public BroadcastStatus submit(BroadcastTarget target, String topic, Collection<String> clientIds, MqttQoS qos,
+                                  ByteBuf payload, int rate) {
+        Map<EventExecutor, List<Subscription>> groups = new IdentityHashMap<>();
+        switch (target) {
+            case ALL:
+                for (MqttSession session : sessionRegistry.sessions()) {
+                    if (session.context() != null) {
+                        add(groups, new Subscription(session, qos));
+                    }
+                }
+                break;
+            case TOPIC:
+                for (Subscription subscription : mqttBrokerHandler.subscribers(topic)) {
+                    add(groups, subscription.qos().value() <= qos.value()
+                            ? subscription : new Subscription(subscription.session(), qos));
+                }
+                break;
+            case CLIENTS:
+                for (String clientId : clientIds) {
+                    MqttSession session = sessionRegistry.get(clientId);
+                    if (session != null) {
+                        add(groups, new Subscription(session, qos));
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown target: " + target);
+        }
+
+        messageJournal.append(topic, qos, payload);
+        MqttProperties.Broadcast config = mqttProperties.getBroadcast();
+        BroadcastJob job = new BroadcastJob(ids.incrementAndGet(), target, topic, qos, payload, groups,
+                this::finished);
+        synchronized (jobs) {
+            jobs.put(job.id(), job);
+            evict(config.getMaxJobs());
+        }
+        BroadcastStatus status = job.status();
+        log.info("Broadcast {} started, target: {}, topic: {}, sessions: {}",
+                job.id(), target, topic, status.getTotal());
+        job.start(rate > 0 ? rate : config.getRate(), config.getInterval(), config.getYieldPendingTasks());
+        return status;
+    }
+
+    /**
+     * @return 不存在或已删除时为 null
+     */
+    public BroadcastStatus status(long id) {
+        BroadcastJob job;
+        synchronized (jobs) {
+            job = jobs.get(id);
+        }
+        return job == null ? null : job.status();
+    }
+
+    /**
+     * 停止发送, 各线程的下一批不再发送; 已结束的不受影响
+     *
+     * @return 不存在时为 null
+     */
+    public BroadcastStatus cancel(long id) {
+        BroadcastJob job;
+        synchronized (jobs) {
+            job = jobs.get(id);
+        }
+        if (job == null) {
+            return null;
+        }
+        job.cancel();
+        return job.status();
+    }
+
+    public List<BroadcastStatus> jobs() {
+        List<BroadcastStatus> result = new ArrayList<>();
+        synchronized (jobs) {
+            for (BroadcastJob job : jobs.values()) {
+                result.add(job.status());
+            }
+        }
+        return result;
+    }
+
+    public int running() {
+        int running = 0;
+        synchronized (jobs) {
+            for (BroadcastJob job : jobs.values()) {
+                if (job.isRunning()) {
+                    running++;
+                }
+            }
+        }
+        return running;
+    }
+
+    /**
+     * 已结束的广播发送的消息数
+     */
+    public long sent() {
+        return sent.sum();
+    }
+
+    private void finished(BroadcastJob job) {
+        sent.add(job.sent());
+        BroadcastStatus status = job.status();
+        log.info("Broadcast {} {}, sent: {}, failed: {}, cancelled: {}", status.getId(), status.getState(),
+                status.getSent(), status.getFailed(), status.getCancelled());
+    }
+
+    private void evict(int maxJobs) {
+        Iterator<BroadcastJob> iterator = jobs.values().iterator();
+        while (jobs.size() > maxJobs && iterator.hasNext()) {
+            if (!iterator.next().isRunning()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void add(Map<EventExecutor, List<Subscription>> groups, Subscription subscription) {
+        groups.computeIfAbsent(subscription.session().executor(), executor -> new ArrayList<>())
+                .add(subscription);
+    }
+}
@@ -0,0 +1,48 @@
+package cn.flizi.push.mqtt.broadcast;
+
+import lombok.Data;
+
+/**
+ * 广播进度
+ */
+@Data
+public class BroadcastStatus {
+
+    public enum State {
+        RUNNING, DONE, CANCELLED
+    }
+
+    private long id;
+
+    private BroadcastTarget target;
+
+    private String topic;
+
+    private State state;
+
+    private long createdAt;
+
+    /**
+     * 结束时间, 未结束为 0
+     */
+    private long finishedAt;
+
+    private long total;
+
+    /**
+     * 已交给会话, 离线的持久会话进入离线消息
+     */
+    private long sent;
+
+    /**
+     * 轮到时会话已断开
+     */
+    private long failed;
+
+    /**
+     * 取消时未发送的
+     */
+    private long cancelled;
+
+    private long remaining;
+}
@@ -0,0 +1,22 @@
+package cn.flizi.push.mqtt.broadcast;
+
+/**
+ * 广播对象
+ */
+public enum BroadcastTarget {
+
+    /**
+     * 所有在线会话
+     */
+    ALL,
+
+    /**
+     * 订阅了与广播主题匹配的过滤器的会话, QoS 取订阅时授予的和广播的较小值
+     */
+    TOPIC,
+
+    /**
+     * 指定的 clientId, 包括离线的持久会话
+     */
+    CLIENTS
+}
@@ -0,0 +1,126 @@
+package cn.flizi.push.mqtt.client;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 压测参数, 取自系统属性
+ * <p>
+ * 前 publishers 个连接为发布者, 之后 subscribers 个为订阅者, 其余只保持心跳.
+ * 订阅者按序号轮流订阅各主题, 发布者按 distribution 选择主题: uniform 均匀, zipf 少数主题集中大部分消息.
+ */
+final class LoadProfile {
+
+    final String host = System.getProperty("host", "127.0.0.1");
+
+    final int port = Integer.getInteger("port", 1883);
+
+    final String clientId = System.getProperty("clientId", "guestClient");
+
+    final String userName = System.getProperty("userName", "guest");
+
+    final String password = System.getProperty("password", "guest");
+
+    final int publishers = Integer.getInteger("publishers", 0);
+
+    final int subscribers = Integer.getInteger("subscribers", 0);
+
+    final int connections = Math.max(Integer.getInteger("connections", 1), publishers + subscribers);
+
+    /**
+     * 每秒新建连接数
+     */
+    final int connectRate = Integer.getInteger("connectRate", 500);
+
+    final int topics = Math.max(1, Integer.getInteger("topics", 100));
+
+    final String topicPrefix = System.getProperty("topicPrefix", "load/");
+
+    final String distribution = System.getProperty("distribution", "uniform");
+
+    final double zipfExponent = Double.parseDouble(System.getProperty("zipfExponent", "1.0"));
+
+    /**
+     * 每个发布者每秒消息数
+     */
+    final double rate = Double.parseDouble(System.getProperty("rate", "10"));
+
+    /**
+     * 前 8 字节为发送时间
+     */
+    final int payloadSize = Math.max(8, Integer.getInteger("payloadSize", 64));
+
+    final MqttQoS qos = MqttQoS.valueOf(Integer.getInteger("qos", 0));
+
+    final int keepAlive = Integer.getInteger("keepAlive", 60);
+
+    /**
+     * 断开后 5 秒重连
+     */
+    final boolean reconnect = Boolean.getBoolean("reconnect");
+
+    /**
+     * 建立连接后的运行时间(秒), 0 为一直运行
+     */
+    final int duration = Integer.getInteger("duration", 0);
+
+    /**
+     * 统计输出间隔(秒)
+     */
+    final int interval = Math.max(1, Integer.getInteger("interval", 5));
+
+    /**
+     * zipf 分布的累积概率
+     */
+    private final double[] cumulative;
+
+    LoadProfile() {
+        if ("zipf".equals(distribution)) {
+            cumulative = new double[topics];
+            double sum = 0;
+            for (int i = 0; i < topics; i++) {
+                sum += 1 / Math.pow(i + 1, zipfExponent);
+                cumulative[i] = sum;
+            }
+            for (int i = 0; i < topics; i++) {
+                cumulative[i] /= sum;
+            }
+        } else {
+            cumulative = null;
+        }
+    }
+
+    Role role(int index) {
+        if (index < publishers) {
+            return Role.PUBLISHER;
+        }
+        return index < publishers + subscribers ? Role.SUBSCRIBER : Role.IDLE;
+    }
+
+    String subscriberTopic(int index) {
+        return topicPrefix + (index - publishers) % topics;
+    }
+
+    String nextTopic() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (cumulative == null) {
+            return topicPrefix + random.nextInt(topics);
+        }
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return topicPrefix + Math.min(index < 0 ? -index - 1 : index, topics - 1);
+    }
+
+    String describe() {
+        return String.format("{\"type\":\"profile\",\"host\":\"%s\",\"port\":%d,\"connections\":%d,\"publishers\":%d," +
+                        "\"subscribers\":%d,\"connectRate\":%d,\"topics\":%d,\"distribution\":\"%s\",\"rate\":%s," +
+                        "\"payloadSize\":%d,\"qos\":%d,\"duration\":%d}",
+                host, port, connections, publishers, subscribers, connectRate, topics, distribution, rate,
+                payloadSize, qos.value(), duration);
+    }
+
+    enum Role {
+        PUBLISHER, SUBSCRIBER, IDLE
+    }
+}
@@ -0,0 +1,111 @@
+package cn.flizi.push.mqtt.client;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 压测统计, 每个间隔输出一行 JSON, 结束时输出汇总
+ * <p>
+ * 端到端延迟为订阅者收到消息时与 payload 中发送时间之差, 单位微秒.
+ */
+final class LoadStats {
+
+    private static final long MAX_LATENCY = TimeUnit.MINUTES.toMicros(10);
+
+    final LongAdder connectAttempts = new LongAdder();
+
+    final LongAdder connected = new LongAdder();
+
+    final LongAdder connectFailed = new LongAdder();
+
+    final LongAdder disconnected = new LongAdder();
+
+    final LongAdder published = new LongAdder();
+
+    /**
+     * 连接不可写而未发送的消息
+     */
+    final LongAdder throttled = new LongAdder();
+
+    final LongAdder received = new LongAdder();
+
+    private final Recorder latency = new Recorder(MAX_LATENCY, 3);
+
+    private final Recorder connectLatency = new Recorder(MAX_LATENCY, 3);
+
+    private final Histogram totalLatency = new Histogram(MAX_LATENCY, 3);
+
+    private final Histogram totalConnectLatency = new Histogram(MAX_LATENCY, 3);
+
+    private final long startedAt = System.nanoTime();
+
+    private long lastReportAt = startedAt;
+
+    private long lastPublished;
+
+    private long lastReceived;
+
+    private Histogram intervalLatency;
+
+    private Histogram intervalConnectLatency;
+
+    void recordLatency(long sentAt) {
+        latency.recordValue(Math.min(MAX_LATENCY, Math.max(0, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentAt))));
+    }
+
+    void recordConnect(long startedAt) {
+        connectLatency.recordValue(Math.min(MAX_LATENCY, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedAt)));
+    }
+
+    /**
+     * 只在输出线程调用
+     */
+    String report() {
+        long now = System.nanoTime();
+        double seconds = (now - lastReportAt) / 1e9;
+        long publishedNow = published.sum();
+        long receivedNow = received.sum();
+        intervalLatency = latency.getIntervalHistogram(intervalLatency);
+        intervalConnectLatency = connectLatency.getIntervalHistogram(intervalConnectLatency);
+        totalLatency.add(intervalLatency);
+        totalConnectLatency.add(intervalConnectLatency);
+        String line = String.format("{\"type\":\"interval\",\"elapsed\":%.1f,%s,\"publishRate\":%.1f,\"receiveRate\":%.1f,%s,%s}",
+                (now - startedAt) / 1e9, counters(),
+                (publishedNow - lastPublished) / seconds, (receivedNow - lastReceived) / seconds,
+                percentiles("latency", intervalLatency), percentiles("connect", intervalConnectLatency));
+        lastReportAt = now;
+        lastPublished = publishedNow;
+        lastReceived = receivedNow;
+        return line;
+    }
+
+    /**
+     * 只在输出线程调用, 之前需调用一次 {@link #report()} 收集最后一个间隔
+     */
+    String summary() {
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+        long attempts = connectAttempts.sum();
+        return String.format("{\"type\":\"summary\",\"elapsed\":%.1f,%s,\"connectSuccessRate\":%.4f," +
+                        "\"publishRate\":%.1f,\"receiveRate\":%.1f,%s,%s}",
+                seconds, counters(), attempts == 0 ? 0 : (double) connected.sum() / attempts,
+                published.sum() / seconds, received.sum() / seconds,
+                percentiles("latency", totalLatency), percentiles("connect", totalConnectLatency));
+    }
+
+    private String counters() {
+        return String.format("\"connectAttempts\":%d,\"connected\":%d,\"connectFailed\":%d,\"disconnected\":%d," +
+                        "\"published\":%d,\"throttled\":%d,\"received\":%d",
+                connectAttempts.sum(), connected.sum(), connectFailed.sum(), disconnected.sum(),
+                published.sum(), throttled.sum(), received.sum());
+    }
+
+    private static String percentiles(String name, Histogram histogram) {
+        return String.format("\"%1$s\":{\"count\":%2$d,\"p50\":%3$d,\"p90\":%4$d,\"p99\":%5$d,\"p999\":%6$d,\"max\":%7$d}",
+                name, histogram.getTotalCount(),
+                histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
+    }
+}
@@ -7,58 +7,79 @@ import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.mqtt.MqttDecoder;
 import io.netty.handler.codec.mqtt.MqttEncoder;
-import io.netty.handler.logging.LogLevel;
-import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.ScheduledFuture;
 
 import java.net.InetSocketAddress;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * MQTT 压测客户端
+ * <p>
+ * 按 connectRate 逐步建立连接, 发布者在 payload 中写入发送时间, 订阅者统计端到端延迟.
+ * 统计以 JSON 行输出到标准输出, 每 interval 秒一行, 结束时输出汇总. 参数见 {@link LoadProfile}, 例如:
+ * <pre>
+ * java -Dconnections=10000 -Dpublishers=100 -Dsubscribers=9900 -Drate=50 -Dtopics=1000 -Ddistribution=zipf \
+ *      -Dduration=300 -cp push.jar:lib/* cn.flizi.push.mqtt.client.MqttClient
+ * </pre>
+ * 不带参数时只建立一个连接并保持心跳, -Dreconnect=true 时断开后重连.
+ */
 public final class MqttClient {
     private MqttClient() {
     }
 
-    private static final String HOST = System.getProperty("host", "127.0.0.1");
-    private static final int PORT = Integer.parseInt(System.getProperty("port", "1883"));
-    private static final String CLIENT_ID = System.getProperty("clientId", "guestClient");
-    private static final String USER_NAME = System.getProperty("userName", "guest");
-    private static final String PASSWORD = System.getProperty("password", "guest");
     public static final AttributeKey<Integer> ID_ATTRIBUTE_KEY = AttributeKey.valueOf("ID");
     public static final AttributeKey<InetSocketAddress> ADDRESS_ATTRIBUTE_KEY = AttributeKey.valueOf("address");
 
+    /**
+     * 连接节奏
+     */
+    private static final long RAMP_TICK_MILLIS = 10;
+
     public static void main(String[] args) throws Exception {
+        LoadProfile profile = new LoadProfile();
+        LoadStats stats = new LoadStats();
         EventLoopGroup workerGroup = new NioEventLoopGroup();
 
-        System.out.println("MQTT CLIENT");
+        System.err.println("MQTT CLIENT");
+        System.out.println(profile.describe());
 
         try {
             Bootstrap b = new Bootstrap();
             b.group(workerGroup);
             b.channel(NioSocketChannel.class);
-            b.handler(new ChannelInitializer<SocketChannel>() {
-                protected void initChannel(SocketChannel ch) throws Exception {
-                    ch.pipeline().addLast("encoder", MqttEncoder.INSTANCE);
-                    ch.pipeline().addLast("decoder", new MqttDecoder());
-                    ch.pipeline().addLast("logger", new LoggingHandler(LogLevel.DEBUG));
-                    ch.pipeline().addLast("heartBeatHandler", new IdleStateHandler(0, 20, 0, TimeUnit.SECONDS));
-                    ch.pipeline().addLast("handler", new MqttClientHandler(CLIENT_ID, USER_NAME, PASSWORD));
-                }
-            });
-
-            ChannelFuture[] list = new ChannelFuture[1];
+            b.option(ChannelOption.TCP_NODELAY, true);
+            b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
 
-            for (int i = 0; i < list.length; i++) {
-                InetSocketAddress socketAddress = InetSocketAddress.createUnresolved(HOST, PORT);
-                list[i] = b.connect(socketAddress);
-                list[i].channel().attr(ID_ATTRIBUTE_KEY).set(i);
-                list[i].channel().attr(ADDRESS_ATTRIBUTE_KEY).set(socketAddress);
-                list[i].channel().closeFuture().addListener(channelFutureListener(b));
-            }
+            InetSocketAddress socketAddress = new InetSocketAddress(profile.host, profile.port);
+            AtomicInteger next = new AtomicInteger();
+            double perTick = Math.max(profile.connectRate, 1) * RAMP_TICK_MILLIS / 1000.0;
+            double[] credits = new double[1];
+            ScheduledFuture<?>[] ramp = new ScheduledFuture<?>[1];
+            ramp[0] = workerGroup.next().scheduleAtFixedRate(() -> {
+                credits[0] += perTick;
+                for (; credits[0] >= 1; credits[0]--) {
+                    int id = next.getAndIncrement();
+                    if (id >= profile.connections) {
+                        ramp[0].cancel(false);
+                        return;
+                    }
+                    connect(b, socketAddress, profile, stats, id);
+                }
+            }, 0, RAMP_TICK_MILLIS, TimeUnit.MILLISECONDS);
 
-            while (true) {
-                Thread.sleep(1000);
+            // 所有连接发起后开始计时
+            long rampSeconds = (long) Math.ceil((double) profile.connections / Math.max(profile.connectRate, 1));
+            long deadline = profile.duration > 0
+                    ? System.nanoTime() + TimeUnit.SECONDS.toNanos(rampSeconds + profile.duration) : Long.MAX_VALUE;
+            while (System.nanoTime() < deadline) {
+                Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(profile.interval),
+                        Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))));
+                System.out.println(stats.report());
             }
+            System.out.println(stats.summary());
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
@@ -66,27 +87,44 @@ public final class MqttClient {
         }
     }
 
-    public static ChannelFutureListener channelFutureListener(Bootstrap b) {
-        return channelFuture -> {
-            // 获取当前的ID
-            Integer id = channelFuture.channel().attr(ID_ATTRIBUTE_KEY).get();
-            // 重连地址
-            InetSocketAddress socketAddress = channelFuture.channel().attr(ADDRESS_ATTRIBUTE_KEY).get();
-            // 事件循环
-            EventLoop eventExecutors = channelFuture.channel().eventLoop();
-
-            System.out.println("FAIL    " + id);
-            eventExecutors.schedule(() -> {
-                try {
-                    ChannelFuture connect = b.connect(socketAddress);
-                    connect.channel().closeFuture().addListener(channelFutureListener(b));
-                    connect.channel().attr(ID_ATTRIBUTE_KEY).set(id);
-                    connect.channel().attr(ADDRESS_ATTRIBUTE_KEY).set(socketAddress);
-                    System.out.println("RECONNECT  " + id);
-                } catch (Exception e) {
-                    e.printStackTrace();
+    private static void connect(Bootstrap b, InetSocketAddress socketAddress, LoadProfile profile, LoadStats stats, int id) {
+        String clientId = profile.connections == 1 ? profile.clientId : profile.clientId + "-" + id;
+        stats.connectAttempts.increment();
+        Bootstrap client = b.clone().handler(new ChannelInitializer<SocketChannel>() {
+            protected void initChannel(SocketChannel ch) throws Exception {
+                ch.pipeline().addLast("encoder", MqttEncoder.INSTANCE);
+                ch.pipeline().addLast("decoder", new MqttDecoder());
+                ch.pipeline().addLast("heartBeatHandler", new IdleStateHandler(0, profile.keepAlive / 2, 0, TimeUnit.SECONDS));
+                ch.pipeline().addLast("handler", new MqttClientHandler(clientId, profile.userName, profile.password,
+                        profile, profile.role(id), id, stats));
+            }
+        });
+        client.connect(socketAddress).addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                stats.connectFailed.increment();
+                if (profile.reconnect) {
+                    reconnect(b, socketAddress, profile, stats, id);
                 }
-            }, 5, TimeUnit.SECONDS);
-        };
+                return;
+            }
+            future.channel().attr(ID_ATTRIBUTE_KEY).set(id);
+            future.channel().attr(ADDRESS_ATTRIBUTE_KEY).set(socketAddress);
+            if (profile.reconnect) {
+                future.channel().closeFuture().addListener(f -> {
+                    System.err.println("FAIL    " + id);
+                    reconnect(b, socketAddress, profile, stats, id);
+                });
+            }
+        });
+    }
+
+    /**
+     * 5 秒后重连, 重连同样计入连接次数与失败次数
+     */
+    private static void reconnect(Bootstrap b, InetSocketAddress socketAddress, LoadProfile profile, LoadStats stats, int id) {
+        b.config().group().schedule(() -> {
+            System.err.println("RECONNECT  " + id);
+            connect(b, socketAddress, profile, stats, id);
+        }, 5, TimeUnit.SECONDS);
     }
 }
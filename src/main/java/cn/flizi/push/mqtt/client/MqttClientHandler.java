@@ -1,39 +1,75 @@
 package cn.flizi.push.mqtt.client;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.mqtt.*;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
 public class MqttClientHandler extends ChannelInboundHandlerAdapter {
 
     private static final String PROTOCOL_NAME_MQTT_3_1_1 = "MQTT";
     private static final int PROTOCOL_VERSION_MQTT_3_1_1 = 4;
 
+    /**
+     * 发布者发送间隔
+     */
+    private static final long TICK_MILLIS = 10;
+
     private final String clientId;
     private final String userName;
     private final byte[] password;
+    private final LoadProfile profile;
+    private final LoadProfile.Role role;
+    private final int index;
+    private final LoadStats stats;
+
+    private long connectStartedAt;
+    private ScheduledFuture<?> publishTask;
+    private double credits;
+    private int packetId;
 
     public MqttClientHandler(String clientId, String userName, String password) {
+        this(clientId, userName, password, null, LoadProfile.Role.IDLE, 0, null);
+    }
+
+    MqttClientHandler(String clientId, String userName, String password,
+                      LoadProfile profile, LoadProfile.Role role, int index, LoadStats stats) {
         this.clientId = clientId;
         this.userName = userName;
         this.password = password.getBytes();
+        this.profile = profile;
+        this.role = role;
+        this.index = index;
+        this.stats = stats;
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        // discard all messages
-        ReferenceCountUtil.release(msg);
+        try {
+            if (stats != null) {
+                handle(ctx, (MqttMessage) msg);
+            }
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
     }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
         MqttFixedHeader connectFixedHeader =
                 new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0);
+        // 压测连接使用非持久会话, 避免断开后在服务端堆积消息
+        boolean cleanSession = profile != null;
+        int keepAlive = profile == null ? 20 : profile.keepAlive;
         MqttConnectVariableHeader connectVariableHeader =
                 new MqttConnectVariableHeader(PROTOCOL_NAME_MQTT_3_1_1, PROTOCOL_VERSION_MQTT_3_1_1, true, true, false,
-                                              0, false, false, 20, MqttProperties.NO_PROPERTIES);
+                                              0, false, cleanSession, keepAlive, MqttProperties.NO_PROPERTIES);
         MqttConnectPayload connectPayload = new MqttConnectPayload(clientId,
                 MqttProperties.NO_PROPERTIES,
                 null,
@@ -42,8 +78,22 @@ public class MqttClientHandler extends ChannelInboundHandlerAdapter {
                 password);
         MqttConnectMessage connectMessage =
                 new MqttConnectMessage(connectFixedHeader, connectVariableHeader, connectPayload);
+        connectStartedAt = System.nanoTime();
         ctx.writeAndFlush(connectMessage);
-        System.out.println("Sent CONNECT");
+        if (stats == null) {
+            System.out.println("Sent CONNECT");
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (publishTask != null) {
+            publishTask.cancel(false);
+        }
+        if (stats != null) {
+            stats.disconnected.increment();
+        }
+        super.channelInactive(ctx);
     }
 
     @Override
@@ -53,7 +103,9 @@ public class MqttClientHandler extends ChannelInboundHandlerAdapter {
                     new MqttFixedHeader(MqttMessageType.PINGREQ, false, MqttQoS.AT_MOST_ONCE, false, 0);
             MqttMessage pingreqMessage = new MqttMessage(pingreqFixedHeader);
             ctx.writeAndFlush(pingreqMessage);
-            System.out.println("Sent PINGREQ");
+            if (stats == null) {
+                System.out.println("Sent PINGREQ");
+            }
         } else {
             super.userEventTriggered(ctx, evt);
         }
@@ -61,7 +113,98 @@ public class MqttClientHandler extends ChannelInboundHandlerAdapter {
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-        cause.printStackTrace();
+        if (stats == null) {
+            cause.printStackTrace();
+        }
         ctx.close();
     }
+
+    private void handle(ChannelHandlerContext ctx, MqttMessage msg) {
+        switch (msg.fixedHeader().messageType()) {
+            case CONNACK:
+                MqttConnAckMessage connAck = (MqttConnAckMessage) msg;
+                if (connAck.variableHeader().connectReturnCode() != MqttConnectReturnCode.CONNECTION_ACCEPTED) {
+                    stats.connectFailed.increment();
+                    ctx.close();
+                    return;
+                }
+                stats.connected.increment();
+                stats.recordConnect(connectStartedAt);
+                if (role == LoadProfile.Role.SUBSCRIBER) {
+                    subscribe(ctx);
+                } else if (role == LoadProfile.Role.PUBLISHER) {
+                    publishTask = ctx.executor().scheduleAtFixedRate(() -> publish(ctx),
+                            TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                break;
+            case PUBLISH:
+                MqttPublishMessage publish = (MqttPublishMessage) msg;
+                ByteBuf payload = publish.payload();
+                if (payload.readableBytes() >= 8) {
+                    stats.recordLatency(payload.getLong(payload.readerIndex()));
+                }
+                stats.received.increment();
+                int id = publish.variableHeader().packetId();
+                if (publish.fixedHeader().qosLevel() == MqttQoS.AT_LEAST_ONCE) {
+                    ctx.writeAndFlush(ackMessage(MqttMessageType.PUBACK, id));
+                } else if (publish.fixedHeader().qosLevel() == MqttQoS.EXACTLY_ONCE) {
+                    ctx.writeAndFlush(ackMessage(MqttMessageType.PUBREC, id));
+                }
+                break;
+            case PUBREL:
+                ctx.writeAndFlush(ackMessage(MqttMessageType.PUBCOMP, messageId(msg)));
+                break;
+            case PUBREC:
+                ctx.writeAndFlush(ackMessage(MqttMessageType.PUBREL, messageId(msg)));
+                break;
+            default:
+        }
+    }
+
+    private void subscribe(ChannelHandlerContext ctx) {
+        MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.SUBSCRIBE, false, MqttQoS.AT_LEAST_ONCE, false, 0);
+        MqttTopicSubscription subscription = new MqttTopicSubscription(profile.subscriberTopic(index), profile.qos);
+        ctx.writeAndFlush(new MqttSubscribeMessage(fixedHeader, MqttMessageIdVariableHeader.from(1),
+                new MqttSubscribePayload(Collections.singletonList(subscription))));
+    }
+
+    /**
+     * 按速率累积发送额度, 连接不可写时放弃本轮额度
+     */
+    private void publish(ChannelHandlerContext ctx) {
+        credits += profile.rate * TICK_MILLIS / 1000;
+        boolean sent = false;
+        while (credits >= 1) {
+            credits--;
+            if (!ctx.channel().isWritable()) {
+                stats.throttled.increment();
+                continue;
+            }
+            ByteBuf payload = ctx.alloc().buffer(profile.payloadSize);
+            payload.writeLong(System.nanoTime());
+            payload.writeZero(profile.payloadSize - 8);
+            int id = profile.qos == MqttQoS.AT_MOST_ONCE ? 0 : nextPacketId();
+            MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, false, profile.qos, false, 0);
+            ctx.write(new MqttPublishMessage(fixedHeader, new MqttPublishVariableHeader(profile.nextTopic(), id), payload));
+            stats.published.increment();
+            sent = true;
+        }
+        if (sent) {
+            ctx.flush();
+        }
+    }
+
+    private int nextPacketId() {
+        packetId = packetId >= 0xFFFF ? 1 : packetId + 1;
+        return packetId;
+    }
+
+    private static MqttMessage ackMessage(MqttMessageType type, int id) {
+        MqttQoS qos = type == MqttMessageType.PUBREL ? MqttQoS.AT_LEAST_ONCE : MqttQoS.AT_MOST_ONCE;
+        return new MqttMessage(new MqttFixedHeader(type, false, qos, false, 0), MqttMessageIdVariableHeader.from(id));
+    }
+
+    private static int messageId(MqttMessage msg) {
+        return ((MqttMessageIdVariableHeader) msg.variableHeader()).messageId();
+    }
 }
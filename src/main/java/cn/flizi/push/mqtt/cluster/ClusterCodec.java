@@ -0,0 +1,98 @@
+package cn.flizi.push.mqtt.cluster;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+
+import java.util.List;
+
+/**
+ * 节点间报文, 由 4 字节长度分帧, 帧内首字节为类型
+ * <pre>
+ * HELLO       nodeId, link
+ * RESET
+ * SUBSCRIBE   count, filter...
+ * UNSUBSCRIBE count, filter...
+ * PUBLISH     flags(qos | retain), topic, payload
+ * </pre>
+ * 字符串为 2 字节长度加 UTF-8.
+ */
+final class ClusterCodec {
+
+    static final byte HELLO = 1;
+
+    static final byte RESET = 2;
+
+    static final byte SUBSCRIBE = 3;
+
+    static final byte UNSUBSCRIBE = 4;
+
+    static final byte PUBLISH = 5;
+
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private static final int RETAIN_FLAG = 0x04;
+
+    private ClusterCodec() {
+    }
+
+    static ByteBuf hello(ByteBufAllocator alloc, String nodeId, int link) {
+        ByteBuf buf = alloc.buffer();
+        buf.writeByte(HELLO);
+        writeString(buf, nodeId);
+        buf.writeShort(link);
+        return buf;
+    }
+
+    static ByteBuf reset(ByteBufAllocator alloc) {
+        return alloc.buffer(1).writeByte(RESET);
+    }
+
+    /**
+     * @param type SUBSCRIBE 或 UNSUBSCRIBE
+     */
+    static ByteBuf filters(ByteBufAllocator alloc, byte type, List<String> filters) {
+        ByteBuf buf = alloc.buffer();
+        buf.writeByte(type);
+        buf.writeInt(filters.size());
+        for (String filter : filters) {
+            writeString(buf, filter);
+        }
+        return buf;
+    }
+
+    /**
+     * 头部与 payload 组合, 不复制 payload, 不改变 payload 的引用计数
+     */
+    static ByteBuf publish(ByteBufAllocator alloc, String topic, MqttQoS qos, boolean retain, ByteBuf payload) {
+        ByteBuf header = alloc.buffer(4 + ByteBufUtil.utf8MaxBytes(topic));
+        header.writeByte(PUBLISH);
+        header.writeByte(qos.value() | (retain ? RETAIN_FLAG : 0));
+        writeString(header, topic);
+        return alloc.compositeBuffer(2).addComponents(true, header, payload.retainedDuplicate());
+    }
+
+    static MqttQoS qos(int flags) {
+        return MqttQoS.valueOf(flags & 0x03);
+    }
+
+    static boolean retain(int flags) {
+        return (flags & RETAIN_FLAG) != 0;
+    }
+
+    static String readString(ByteBuf buf) {
+        int length = buf.readUnsignedShort();
+        String value = buf.toString(buf.readerIndex(), length, CharsetUtil.UTF_8);
+        buf.skipBytes(length);
+        return value;
+    }
+
+    private static void writeString(ByteBuf buf, String value) {
+        int index = buf.writerIndex();
+        buf.writeShort(0);
+        int length = buf.writeCharSequence(value, CharsetUtil.UTF_8);
+        buf.setShort(index, length);
+    }
+}
@@ -0,0 +1,611 @@
+package cn.flizi.push.mqtt.cluster;
+
+import cn.flizi.push.mqtt.MqttBrokerHandler;
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.topic.TopicTrie;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.log4j.Log4j2;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.nodes.PersistentNode;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 集群节点
+ * <p>
+ * 节点在 zookeeper 的 /nodes 下注册临时节点并监听其他节点. 订阅关系不经过 zookeeper: 每个节点向其他节点的
+ * 首条连接先发送本节点全部订阅过滤器, 之后只发送增量, 各节点据此维护 过滤器 → 节点 的订阅树.
+ * 发布时只转发给有匹配订阅的节点, 保留消息转发给所有节点. 到每个节点保持多条连接, 同一主题固定使用一条以保证顺序,
+ * 写出由 {@link FlushConsolidationHandler} 合并批量 flush.
+ * <p>
+ * 订阅数在并发 Map 中增减, 过滤器出现或消失时只登记变化; 快照与增量都在同一个集群线程中合并发送,
+ * 不在调用线程持锁写出.
+ */
+@Component
+@Log4j2
+public class ClusterNode {
+
+    private static final String NODES_PATH = "/nodes";
+
+    private static final AttributeKey<String> NODE_KEY = AttributeKey.valueOf("clusterNode");
+
+    private static final int SNAPSHOT_BATCH = 1000;
+
+    private static final long RECONNECT_DELAY = 1;
+
+    @Autowired
+    private MqttProperties mqttProperties;
+
+    @Autowired
+    private MqttBrokerHandler mqttBrokerHandler;
+
+    /**
+     * 本节点的订阅过滤器及订阅数
+     */
+    private final ConcurrentMap<String, Integer> localFilters = new ConcurrentHashMap<>();
+
+    /**
+     * 订阅数在 0 与非 0 之间变化的过滤器, 等待集群线程发送
+     */
+    private final Queue<String> changedFilters = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean announcing = new AtomicBoolean();
+
+    /**
+     * 已向其他节点发送的过滤器, 只在 {@link #control} 中访问
+     */
+    private final Set<String> announcedFilters = new HashSet<>();
+
+    private final ConcurrentMap<String, Peer> peers = new ConcurrentHashMap<>();
+
+    /**
+     * 其他节点的订阅过滤器
+     */
+    private final ConcurrentMap<String, Set<String>> remoteFilters = new ConcurrentHashMap<>();
+
+    /**
+     * 发送订阅关系的入站连接, 断开时清除该节点的订阅
+     */
+    private final ConcurrentMap<String, Channel> interestChannels = new ConcurrentHashMap<>();
+
+    private final Set<Channel> inboundChannels = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder forwarded = new LongAdder();
+
+    private final LongAdder received = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private TopicTrie<String> remoteInterest;
+
+    private String nodeId;
+
+    private EventLoopGroup group;
+
+    /**
+     * 发送订阅关系的集群线程
+     */
+    private EventLoop control;
+
+    private Channel serverChannel;
+
+    private Bootstrap bootstrap;
+
+    private CuratorFramework curator;
+
+    private PersistentNode registration;
+
+    private PathChildrenCache membership;
+
+    private volatile boolean enabled;
+
+    @PostConstruct
+    public void start() throws Exception {
+        MqttProperties.Cluster config = mqttProperties.getCluster();
+        if (!config.isEnabled()) {
+            return;
+        }
+        nodeId = StringUtils.hasLength(config.getNodeId()) ? config.getNodeId() : config.getHost() + ":" + config.getPort();
+        remoteInterest = new TopicTrie<>(mqttProperties.getTopicCacheSize());
+        group = new NioEventLoopGroup(config.getThreads(), new DefaultThreadFactory("mqtt-cluster"));
+        control = group.next();
+        ByteBufAllocator allocator = new PooledByteBufAllocator(true);
+        serverChannel = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(ClusterCodec.MAX_FRAME_LENGTH, 0, 4, 0, 4));
+                        ch.pipeline().addLast(new InboundHandler());
+                    }
+                })
+                .bind(config.getPort()).sync().channel();
+        bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                        mqttProperties.getTransport().getWriteBufferLowWaterMark() * 16,
+                        mqttProperties.getTransport().getWriteBufferHighWaterMark() * 16))
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new FlushConsolidationHandler(256, true));
+                        ch.pipeline().addLast(new LengthFieldPrepender(4));
+                    }
+                });
+        enabled = true;
+
+        curator = CuratorFrameworkFactory.builder()
+                .connectString(config.getZkConnect())
+                .namespace(config.getNamespace())
+                .sessionTimeoutMs(config.getZkSessionTimeout())
+                .retryPolicy(new ExponentialBackoffRetry(1000, 3))
+                .build();
+        curator.start();
+        byte[] address = (config.getHost() + ":" + config.getPort()).getBytes(CharsetUtil.UTF_8);
+        // 会话过期后自动重新创建
+        registration = new PersistentNode(curator, CreateMode.EPHEMERAL, false, ZKPaths.makePath(NODES_PATH, nodeId), address);
+        registration.start();
+        membership = new PathChildrenCache(curator, NODES_PATH, true);
+        membership.getListenable().addListener((client, event) -> onMembershipChanged(event));
+        membership.start();
+        log.info("Cluster node {} started, port: {}, zookeeper: {}", nodeId, config.getPort(), config.getZkConnect());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (!enabled) {
+            return;
+        }
+        enabled = false;
+        CloseableUtils.closeQuietly(membership);
+        CloseableUtils.closeQuietly(registration);
+        CloseableUtils.closeQuietly(curator);
+        for (Peer peer : peers.values()) {
+            peer.close();
+        }
+        peers.clear();
+        serverChannel.close().syncUninterruptibly();
+        group.shutdownGracefully(0, 2, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 已连接的其他节点
+     */
+    public Set<String> peers() {
+        return Collections.unmodifiableSet(peers.keySet());
+    }
+
+    /**
+     * 订阅了主题的其他节点
+     */
+    public Set<String> interestedNodes(String topic) {
+        return enabled ? new HashSet<>(remoteInterest.match(topic)) : Collections.emptySet();
+    }
+
+    public long forwarded() {
+        return forwarded.sum();
+    }
+
+    public long received() {
+        return received.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 本节点新增过滤器的订阅
+     */
+    public void subscribe(String filter) {
+        if (!enabled) {
+            return;
+        }
+        if (localFilters.merge(filter, 1, Integer::sum) == 1) {
+            announce(filter);
+        }
+    }
+
+    /**
+     * 本节点取消过滤器的订阅
+     */
+    public void unsubscribe(String filter) {
+        if (!enabled) {
+            return;
+        }
+        if (localFilters.computeIfPresent(filter, (k, count) -> count > 1 ? count - 1 : null) == null) {
+            announce(filter);
+        }
+    }
+
+    /**
+     * 转发给有匹配订阅的节点, 保留消息转发给所有节点, 不改变 payload 的引用计数
+     *
+     * @return 转发的节点数
+     */
+    public int forward(String topic, MqttQoS qos, boolean retain, ByteBuf payload) {
+        if (!enabled || peers.isEmpty()) {
+            return 0;
+        }
+        Collection<String> targets = retain ? peers.keySet() : remoteInterest.match(topic);
+        if (targets.isEmpty()) {
+            return 0;
+        }
+        ByteBuf frame = ClusterCodec.publish(payload.alloc(), topic, qos, retain, payload);
+        int count = 0;
+        try {
+            Set<String> sent = targets.size() > 1 ? new HashSet<>() : null;
+            for (String target : targets) {
+                Peer peer = peers.get(target);
+                if (peer == null || sent != null && !sent.add(target)) {
+                    continue;
+                }
+                if (peer.send(topic, qos, frame.retainedDuplicate())) {
+                    count++;
+                }
+            }
+        } finally {
+            frame.release();
+        }
+        forwarded.add(count);
+        return count;
+    }
+
+    /**
+     * 登记过滤器的变化, 已有发送任务时由其一并发送
+     */
+    private void announce(String filter) {
+        changedFilters.add(filter);
+        if (announcing.compareAndSet(false, true)) {
+            try {
+                control.execute(this::broadcastInterest);
+            } catch (RejectedExecutionException e) {
+                // 已停止
+            }
+        }
+    }
+
+    /**
+     * 在 {@link #control} 中执行, 按过滤器当前的订阅数与已发送的比较, 合并后发送给所有节点
+     */
+    private void broadcastInterest() {
+        announcing.set(false);
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (String filter; (filter = changedFilters.poll()) != null; ) {
+            if (localFilters.containsKey(filter)) {
+                if (announcedFilters.add(filter)) {
+                    added.add(filter);
+                }
+            } else if (announcedFilters.remove(filter)) {
+                removed.add(filter);
+            }
+        }
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        for (Peer peer : peers.values()) {
+            Channel channel = peer.links.get(0);
+            if (channel != null) {
+                writeFilters(channel, ClusterCodec.SUBSCRIBE, added);
+                writeFilters(channel, ClusterCodec.UNSUBSCRIBE, removed);
+                channel.flush();
+            }
+        }
+    }
+
+    /**
+     * 首条连接建立后在 {@link #control} 中发送全部订阅过滤器, 之后的增量排在其后
+     */
+    private void sendSnapshot(Peer peer, Channel channel) {
+        if (!channel.isActive()) {
+            return;
+        }
+        peer.links.set(0, channel);
+        channel.write(ClusterCodec.reset(channel.alloc()), channel.voidPromise());
+        writeFilters(channel, ClusterCodec.SUBSCRIBE, announcedFilters);
+        channel.flush();
+    }
+
+    private void writeFilters(Channel channel, byte type, Collection<String> filters) {
+        List<String> batch = new ArrayList<>(Math.min(SNAPSHOT_BATCH, filters.size()));
+        for (String filter : filters) {
+            batch.add(filter);
+            if (batch.size() == SNAPSHOT_BATCH) {
+                channel.write(ClusterCodec.filters(channel.alloc(), type, batch), channel.voidPromise());
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            channel.write(ClusterCodec.filters(channel.alloc(), type, batch), channel.voidPromise());
+        }
+    }
+
+    private void onMembershipChanged(PathChildrenCacheEvent event) {
+        ChildData data = event.getData();
+        if (data == null || !enabled) {
+            return;
+        }
+        String id = ZKPaths.getNodeFromPath(data.getPath());
+        if (nodeId.equals(id)) {
+            return;
+        }
+        switch (event.getType()) {
+            case CHILD_ADDED:
+            case CHILD_UPDATED:
+                String address = new String(data.getData(), CharsetUtil.UTF_8);
+                int index = address.lastIndexOf(':');
+                InetSocketAddress remote = new InetSocketAddress(address.substring(0, index),
+                        Integer.parseInt(address.substring(index + 1)));
+                Peer old = peers.get(id);
+                if (old != null && old.address.equals(remote)) {
+                    return;
+                }
+                Peer peer = new Peer(id, remote, mqttProperties.getCluster().getConnections());
+                old = peers.put(id, peer);
+                if (old != null) {
+                    old.close();
+                }
+                log.info("Cluster node joined: {} {}", id, remote);
+                peer.connect();
+                break;
+            case CHILD_REMOVED:
+                Peer removed = peers.remove(id);
+                if (removed != null) {
+                    removed.close();
+                }
+                // 断开对方的入站连接, 对方重新加入时会重新发送订阅
+                for (Channel channel : inboundChannels) {
+                    if (id.equals(channel.attr(NODE_KEY).get())) {
+                        channel.close();
+                    }
+                }
+                removeInterest(id);
+                log.info("Cluster node left: {}", id);
+                break;
+            default:
+        }
+    }
+
+    private void addInterest(String node, String filter) {
+        if (!TopicTrie.isValidFilter(filter)) {
+            return;
+        }
+        if (remoteFilters.computeIfAbsent(node, k -> ConcurrentHashMap.newKeySet()).add(filter)) {
+            remoteInterest.subscribe(filter, node);
+        }
+    }
+
+    private void removeInterest(String node, String filter) {
+        Set<String> filters = remoteFilters.get(node);
+        if (filters != null && filters.remove(filter)) {
+            remoteInterest.unsubscribe(filter, node);
+        }
+    }
+
+    private void removeInterest(String node) {
+        Set<String> filters = remoteFilters.remove(node);
+        if (filters != null) {
+            for (String filter : filters) {
+                remoteInterest.unsubscribe(filter, node);
+            }
+        }
+    }
+
+    /**
+     * 到另一个节点的出站连接
+     */
+    private final class Peer {
+
+        final String id;
+
+        final InetSocketAddress address;
+
+        /**
+         * 第一条同时发送订阅关系, 在连接的 I/O 线程中写入, 在发布线程中读取
+         */
+        final AtomicReferenceArray<Channel> links;
+
+        volatile boolean closed;
+
+        Peer(String id, InetSocketAddress address, int connections) {
+            this.id = id;
+            this.address = address;
+            this.links = new AtomicReferenceArray<>(connections);
+        }
+
+        void connect() {
+            for (int i = 0; i < links.length(); i++) {
+                connect(i);
+            }
+        }
+
+        void connect(int link) {
+            if (closed) {
+                return;
+            }
+            bootstrap.connect(address).addListener((ChannelFutureListener) future -> {
+                if (!future.isSuccess()) {
+                    reconnect(link);
+                    return;
+                }
+                Channel channel = future.channel();
+                if (closed) {
+                    channel.close();
+                    return;
+                }
+                channel.closeFuture().addListener(f -> {
+                    links.compareAndSet(link, channel, null);
+                    reconnect(link);
+                });
+                channel.write(ClusterCodec.hello(channel.alloc(), nodeId, link), channel.voidPromise());
+                if (link == 0) {
+                    channel.flush();
+                    try {
+                        control.execute(() -> sendSnapshot(this, channel));
+                    } catch (RejectedExecutionException e) {
+                        channel.close();
+                    }
+                } else {
+                    links.set(link, channel);
+                    channel.flush();
+                }
+            });
+        }
+
+        void reconnect(int link) {
+            if (!closed && enabled) {
+                group.schedule(() -> connect(link), RECONNECT_DELAY, TimeUnit.SECONDS);
+            }
+        }
+
+        /**
+         * 接管 frame 的引用
+         */
+        boolean send(String topic, MqttQoS qos, ByteBuf frame) {
+            Channel channel = links.get((topic.hashCode() & Integer.MAX_VALUE) % links.length());
+            if (channel == null) {
+                channel = links.get(0);
+            }
+            // 对方处理不过来时丢弃 QoS 0 消息
+            if (channel == null || qos == MqttQoS.AT_MOST_ONCE && !channel.isWritable()) {
+                frame.release();
+                dropped.increment();
+                return false;
+            }
+            channel.writeAndFlush(frame, channel.voidPromise());
+            return true;
+        }
+
+        void close() {
+            closed = true;
+            for (int i = 0; i < links.length(); i++) {
+                Channel channel = links.get(i);
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * 来自其他节点的报文
+     */
+    private final class InboundHandler extends SimpleChannelInboundHandler<ByteBuf> {
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            inboundChannels.add(ctx.channel());
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf buf) {
+            Channel channel = ctx.channel();
+            String node = channel.attr(NODE_KEY).get();
+            byte type = buf.readByte();
+            if (type == ClusterCodec.HELLO) {
+                node = ClusterCodec.readString(buf);
+                channel.attr(NODE_KEY).set(node);
+                if (buf.readUnsignedShort() == 0) {
+                    interestChannels.put(node, channel);
+                }
+                return;
+            }
+            if (node == null) {
+                ctx.close();
+                return;
+            }
+            switch (type) {
+                case ClusterCodec.RESET:
+                    removeInterest(node);
+                    break;
+                case ClusterCodec.SUBSCRIBE:
+                    for (int i = buf.readInt(); i > 0; i--) {
+                        addInterest(node, ClusterCodec.readString(buf));
+                    }
+                    break;
+                case ClusterCodec.UNSUBSCRIBE:
+                    for (int i = buf.readInt(); i > 0; i--) {
+                        removeInterest(node, ClusterCodec.readString(buf));
+                    }
+                    break;
+                case ClusterCodec.PUBLISH:
+                    int flags = buf.readUnsignedByte();
+                    String topic = ClusterCodec.readString(buf);
+                    received.increment();
+                    mqttBrokerHandler.deliver(topic, ClusterCodec.qos(flags), ClusterCodec.retain(flags), buf);
+                    break;
+                default:
+                    ctx.close();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            Channel channel = ctx.channel();
+            inboundChannels.remove(channel);
+            String node = channel.attr(NODE_KEY).get();
+            if (node != null && interestChannels.remove(node, channel)) {
+                removeInterest(node);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.warn("Cluster link error: {}", ctx.channel().remoteAddress(), cause);
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package cn.flizi.push.mqtt.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.mqtt.MqttConnectReturnCode;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+
+/**
+ * 预先编码的固定报文, 直接写出, 不经过 MqttEncoder
+ * <p>
+ * PINGRESP 和 3.1/3.1.1 的 CONNACK 内容固定, 所有连接共享一份, 写出时取池化的 retainedDuplicate;
+ * PUBACK 等确认报文只有 packetId 不同, 直接写入 4 字节的池化缓冲. 编码与 MqttEncoder 逐字节相同.
+ */
+public final class FixedPackets {
+
+    private static final ByteBuf PINGRESP = shared(0xD0, 0x00);
+
+    /**
+     * 下标为返回码 * 2 + sessionPresent, 只包含 3.1.1 的返回码 0 ~ 5
+     */
+    private static final ByteBuf[] CONNACK = new ByteBuf[12];
+
+    static {
+        for (int returnCode = 0; returnCode < 6; returnCode++) {
+            CONNACK[returnCode * 2] = shared(0x20, 0x02, 0x00, returnCode);
+            CONNACK[returnCode * 2 + 1] = shared(0x20, 0x02, 0x01, returnCode);
+        }
+    }
+
+    private FixedPackets() {
+    }
+
+    public static ByteBuf pingResp() {
+        return PINGRESP.retainedDuplicate();
+    }
+
+    /**
+     * 只用于 3.1/3.1.1 连接, MQTT 5 的 CONNACK 带属性
+     *
+     * @return 不是 3.1.1 的返回码时为 null
+     */
+    public static ByteBuf connAck(MqttConnectReturnCode returnCode, boolean sessionPresent) {
+        int index = (returnCode.byteValue() & 0xFF) * 2 + (sessionPresent ? 1 : 0);
+        return index < CONNACK.length ? CONNACK[index].retainedDuplicate() : null;
+    }
+
+    /**
+     * PUBACK, PUBREC, PUBREL, PUBCOMP; MQTT 5 原因码为 0 且没有属性时编码相同
+     */
+    public static ByteBuf ack(ByteBufAllocator alloc, MqttMessageType type, int packetId) {
+        // PUBREL 固定头 QoS 为 1
+        int header = type.value() << 4 | (type == MqttMessageType.PUBREL ? 0x02 : 0);
+        return alloc.buffer(4, 4)
+                .writeByte(header)
+                .writeByte(2)
+                .writeShort(packetId);
+    }
+
+    /**
+     * 引用计数始终不为 0, 不会释放
+     */
+    private static ByteBuf shared(int... bytes) {
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length, bytes.length);
+        for (int b : bytes) {
+            buf.writeByte(b);
+        }
+        return buf;
+    }
+}
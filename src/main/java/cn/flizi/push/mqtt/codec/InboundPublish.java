@@ -0,0 +1,242 @@
+package cn.flizi.push.mqtt.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.Recycler;
+import io.netty.util.ReferenceCounted;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * {@link MqttFastDecoder} 解码的 PUBLISH, 代替 MqttPublishMessage
+ * <p>
+ * 主题和 payload 都是接收缓冲的切片, 不复制. 主题字符串在第一次 {@link #topicName()} 时才解码, 与连接上
+ * 一次的主题字节相同时直接复用上次的字符串. 对象按固定头的标志位分别池化, 释放后回收,
+ * 固定头也是共享的常量, 其 remainingLength 为 0.
+ */
+public final class InboundPublish extends MqttMessage implements ReferenceCounted {
+
+    private static final AtomicIntegerFieldUpdater<InboundPublish> REF_CNT =
+            AtomicIntegerFieldUpdater.newUpdater(InboundPublish.class, "refCnt");
+
+    /**
+     * 下标为固定头的低 4 位, QoS 3 为 null
+     */
+    private static final Recycler<InboundPublish>[] RECYCLERS = newRecyclers();
+
+    private final Recycler.Handle<InboundPublish> handle;
+
+    private volatile int refCnt;
+
+    private int packetId;
+
+    private ByteBuf topic;
+
+    private int topicHash;
+
+    private String topicName;
+
+    private TopicCache topicCache;
+
+    private ByteBuf payload;
+
+    private InboundPublish(MqttFixedHeader fixedHeader, Recycler.Handle<InboundPublish> handle) {
+        super(fixedHeader);
+        this.handle = handle;
+    }
+
+    /**
+     * @param flags   固定头低 4 位, QoS 不能为 3
+     * @param topic   接管引用
+     * @param payload 接管引用
+     */
+    static InboundPublish newInstance(int flags, int packetId, ByteBuf topic, int topicHash, ByteBuf payload,
+                                      TopicCache topicCache) {
+        InboundPublish message = RECYCLERS[flags].get();
+        REF_CNT.set(message, 1);
+        message.packetId = packetId;
+        message.topic = topic;
+        message.topicHash = topicHash;
+        message.topicCache = topicCache;
+        message.payload = payload;
+        return message;
+    }
+
+    public int packetId() {
+        return packetId;
+    }
+
+    /**
+     * 主题的 UTF-8 字节
+     */
+    public ByteBuf topic() {
+        return topic;
+    }
+
+    public int topicHash() {
+        return topicHash;
+    }
+
+    public String topicName() {
+        String name = topicName;
+        if (name == null) {
+            name = topicCache.get(topic, topicHash);
+            topicName = name;
+        }
+        return name;
+    }
+
+    @Override
+    public ByteBuf payload() {
+        return payload;
+    }
+
+    @Override
+    public int refCnt() {
+        return refCnt;
+    }
+
+    @Override
+    public InboundPublish retain() {
+        return retain(1);
+    }
+
+    @Override
+    public InboundPublish retain(int increment) {
+        for (; ; ) {
+            int current = refCnt;
+            if (current <= 0) {
+                throw new IllegalReferenceCountException(current, increment);
+            }
+            if (REF_CNT.compareAndSet(this, current, current + increment)) {
+                return this;
+            }
+        }
+    }
+
+    @Override
+    public InboundPublish touch() {
+        return this;
+    }
+
+    @Override
+    public InboundPublish touch(Object hint) {
+        payload.touch(hint);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return release(1);
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        for (; ; ) {
+            int current = refCnt;
+            if (current < decrement) {
+                throw new IllegalReferenceCountException(current, -decrement);
+            }
+            if (REF_CNT.compareAndSet(this, current, current - decrement)) {
+                if (current == decrement) {
+                    deallocate();
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "InboundPublish[" + fixedHeader() + ", topic=" + topicName() + ", packetId=" + packetId
+                + ", payload=" + payload + ']';
+    }
+
+    /**
+     * payload 可能还被路由出去的副本引用, 只释放本对象持有的一份
+     */
+    private void deallocate() {
+        topic.release();
+        payload.release();
+        topic = null;
+        payload = null;
+        topicName = null;
+        topicCache = null;
+        handle.recycle(this);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Recycler<InboundPublish>[] newRecyclers() {
+        Recycler<InboundPublish>[] recyclers = new Recycler[16];
+        for (int flags = 0; flags < recyclers.length; flags++) {
+            int qos = (flags & 0x06) >> 1;
+            if (qos == 3) {
+                continue;
+            }
+            MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, (flags & 0x08) != 0,
+                    MqttQoS.valueOf(qos), (flags & 0x01) != 0, 0);
+            recyclers[flags] = new Recycler<InboundPublish>() {
+                @Override
+                protected InboundPublish newObject(Handle<InboundPublish> handle) {
+                    return new InboundPublish(fixedHeader, handle);
+                }
+            };
+        }
+        return recyclers;
+    }
+
+    /**
+     * 每个连接一个, 记录上一次解码的主题; 设备通常反复发布到同一主题
+     */
+    static final class TopicCache {
+
+        private volatile Entry last;
+
+        String get(ByteBuf topic, int hash) {
+            Entry entry = last;
+            if (entry != null && entry.hash == hash && entry.matches(topic)) {
+                return entry.name;
+            }
+            byte[] bytes = new byte[topic.readableBytes()];
+            topic.getBytes(topic.readerIndex(), bytes);
+            String name = new String(bytes, CharsetUtil.UTF_8);
+            last = new Entry(hash, bytes, name);
+            return name;
+        }
+    }
+
+    private static final class Entry {
+
+        private final int hash;
+
+        private final byte[] bytes;
+
+        private final String name;
+
+        Entry(int hash, byte[] bytes, String name) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.name = name;
+        }
+
+        boolean matches(ByteBuf topic) {
+            int length = topic.readableBytes();
+            if (length != bytes.length) {
+                return false;
+            }
+            int index = topic.readerIndex();
+            for (int i = 0; i < length; i++) {
+                if (topic.getByte(index + i) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
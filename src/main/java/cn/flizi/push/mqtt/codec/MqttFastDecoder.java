@@ -0,0 +1,172 @@
+package cn.flizi.push.mqtt.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttUnacceptableProtocolVersionException;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.CharsetUtil;
+
+import java.util.List;
+
+/**
+ * 热点报文的解码, 放在 MqttDecoder 之前
+ * <p>
+ * 3.1/3.1.1 连接的 PUBLISH 解码为 {@link InboundPublish}, 不创建主题字符串和报文头对象; PINGREQ 解码为共享的
+ * {@link #PINGREQ}. 其余报文按帧原样交给后面的 MqttDecoder. 帧不完整时等待, 与 MqttDecoder 一样最多缓存
+ * maxBytesInMessage. MQTT 5 连接的 PUBLISH 也交给 MqttDecoder. 超出大小或格式错误时, 此后的数据全部原样交给
+ * MqttDecoder, 与它解码失败后的处理相同.
+ * <p>
+ * CONNECT 原样交给 MqttDecoder 之前读出协议版本记录到 {@link SharedPublish#PROTOCOL_VERSION_KEY}, 在 I/O 线程中
+ * 完成, 因此 broker handler 在独立线程池中运行时, 紧随其后的 PUBLISH 也按正确的版本解码.
+ */
+public final class MqttFastDecoder extends ByteToMessageDecoder {
+
+    /**
+     * 与 MqttDecoder 的默认值相同
+     */
+    public static final int DEFAULT_MAX_BYTES_IN_MESSAGE = 8092;
+
+    public static final MqttMessage PINGREQ = new MqttMessage(
+            new MqttFixedHeader(MqttMessageType.PINGREQ, false, MqttQoS.AT_MOST_ONCE, false, 0));
+
+    private static final int CONNECT = 1;
+
+    private static final int PUBLISH = 3;
+
+    private static final int PINGREQ_HEADER = 0xC0;
+
+    private final int maxBytesInMessage;
+
+    private final InboundPublish.TopicCache topicCache = new InboundPublish.TopicCache();
+
+    private boolean passThrough;
+
+    public MqttFastDecoder() {
+        this(DEFAULT_MAX_BYTES_IN_MESSAGE);
+    }
+
+    public MqttFastDecoder(int maxBytesInMessage) {
+        this.maxBytesInMessage = maxBytesInMessage;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        if (passThrough) {
+            out.add(in.readRetainedSlice(in.readableBytes()));
+            return;
+        }
+        int start = in.readerIndex();
+        int end = in.writerIndex();
+        // 剩余长度最多 4 字节
+        int remaining = 0;
+        int index = start + 1;
+        for (int shift = 0; ; shift += 7) {
+            if (index >= end) {
+                return;
+            }
+            int digit = in.getUnsignedByte(index++);
+            remaining |= (digit & 0x7F) << shift;
+            if ((digit & 0x80) == 0) {
+                break;
+            }
+            if (shift == 21) {
+                passThrough(in, out);
+                return;
+            }
+        }
+        if (remaining > maxBytesInMessage) {
+            passThrough(in, out);
+            return;
+        }
+        int headerSize = index - start;
+        if (end - start < headerSize + remaining) {
+            return;
+        }
+        int header = in.getUnsignedByte(start);
+        Object decoded = null;
+        if (header >> 4 == PUBLISH && SharedPublish.isCompatible(ctx.channel())) {
+            decoded = publish(in, header, index, remaining);
+            if (decoded == null) {
+                passThrough(in, out);
+                return;
+            }
+        } else if (header == PINGREQ_HEADER && remaining == 0) {
+            decoded = PINGREQ;
+        } else if (header >> 4 == CONNECT) {
+            recordVersion(ctx.channel(), in, index, remaining);
+        }
+        if (decoded == null) {
+            out.add(in.readRetainedSlice(headerSize + remaining));
+        } else {
+            in.skipBytes(headerSize + remaining);
+            out.add(decoded);
+        }
+    }
+
+    /**
+     * 只记录第一个 CONNECT, 格式错误或版本不支持时不记录, 由 MqttDecoder 拒绝
+     */
+    private static void recordVersion(Channel channel, ByteBuf in, int index, int remaining) {
+        if (remaining < 2) {
+            return;
+        }
+        int nameLength = in.getUnsignedShort(index);
+        if (2 + nameLength + 1 > remaining) {
+            return;
+        }
+        String name = in.toString(index + 2, nameLength, CharsetUtil.UTF_8);
+        byte level = in.getByte(index + 2 + nameLength);
+        try {
+            channel.attr(SharedPublish.PROTOCOL_VERSION_KEY)
+                    .setIfAbsent(MqttVersion.fromProtocolNameAndLevel(name, level));
+        } catch (MqttUnacceptableProtocolVersionException ignored) {
+            // MqttDecoder 回复 CONNACK 后关闭
+        }
+    }
+
+    /**
+     * @return 格式错误时为 null, 由 MqttDecoder 产生同样的解码错误
+     */
+    private InboundPublish publish(ByteBuf in, int header, int index, int remaining) {
+        int qos = (header & 0x06) >> 1;
+        if (qos == 3 || remaining < 2) {
+            return null;
+        }
+        int topicLength = in.getUnsignedShort(index);
+        int variableHeaderSize = 2 + topicLength + (qos > 0 ? 2 : 0);
+        if (variableHeaderSize > remaining) {
+            return null;
+        }
+        int topicIndex = index + 2;
+        int hash = 1;
+        for (int i = topicIndex; i < topicIndex + topicLength; i++) {
+            byte b = in.getByte(i);
+            // 发布的主题不能包含通配符
+            if (b == '+' || b == '#') {
+                return null;
+            }
+            hash = 31 * hash + b;
+        }
+        int packetId = 0;
+        if (qos > 0) {
+            packetId = in.getUnsignedShort(topicIndex + topicLength);
+            if (packetId == 0) {
+                return null;
+            }
+        }
+        int payloadIndex = index + variableHeaderSize;
+        return InboundPublish.newInstance(header & 0x0F, packetId, in.retainedSlice(topicIndex, topicLength), hash,
+                in.retainedSlice(payloadIndex, remaining - variableHeaderSize), topicCache);
+    }
+
+    private void passThrough(ByteBuf in, List<Object> out) {
+        passThrough = true;
+        out.add(in.readRetainedSlice(in.readableBytes()));
+    }
+}
@@ -0,0 +1,134 @@
+package cn.flizi.push.mqtt.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+
+/**
+ * 一次编码, 所有订阅者共享的 PUBLISH 报文
+ * <p>
+ * 路由线程为用到的每个 QoS 编码一次固定头和主题. QoS 0 连同 payload 编码为完整报文, 订阅者写出它的
+ * retainedDuplicate; QoS 1/2 的 packetId 各不相同, 写出时把共享的头部、2 字节 packetId 和 payload 组合起来,
+ * 不复制 payload. 编码只在路由线程进行, 交给会话线程之后只读.
+ */
+public final class SharedPublish extends AbstractReferenceCounted {
+
+    /**
+     * 连接的协议版本, 由 {@link MqttFastDecoder} 在 I/O 线程中读到 CONNECT 时记录, CONNECT 之前为 null
+     */
+    public static final AttributeKey<MqttVersion> PROTOCOL_VERSION_KEY =
+            AttributeKey.valueOf("protocolVersion");
+
+    private static final int PUBLISH = 0x30;
+
+    private final String topic;
+
+    private final byte[] topicBytes;
+
+    private final ByteBuf payload;
+
+    private final ByteBuf[] encoded = new ByteBuf[3];
+
+    /**
+     * @param payload 接管引用
+     */
+    public SharedPublish(String topic, ByteBuf payload) {
+        this.topic = topic;
+        this.topicBytes = topic.getBytes(CharsetUtil.UTF_8);
+        this.payload = payload;
+    }
+
+    public String topic() {
+        return topic;
+    }
+
+    public ByteBuf payload() {
+        return payload;
+    }
+
+    /**
+     * 编码 qos 对应的共享部分, 只在路由线程中调用
+     */
+    public void prepare(MqttQoS qos) {
+        int level = qos.value();
+        if (encoded[level] != null) {
+            return;
+        }
+        int remaining = 2 + topicBytes.length + (level > 0 ? 2 : 0) + payload.readableBytes();
+        int headerSize = 1 + lengthSize(remaining) + 2 + topicBytes.length;
+        ByteBuf buf = level == 0
+                ? payload.alloc().directBuffer(headerSize + payload.readableBytes())
+                : payload.alloc().directBuffer(headerSize, headerSize);
+        buf.writeByte(PUBLISH | level << 1);
+        writeLength(buf, remaining);
+        buf.writeShort(topicBytes.length);
+        buf.writeBytes(topicBytes);
+        if (level == 0) {
+            buf.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+        }
+        encoded[level] = buf;
+    }
+
+    /**
+     * 编码后的报文, 需先 {@link #prepare(MqttQoS)}, 由调用方写出或释放
+     */
+    public ByteBuf encode(MqttQoS qos, int packetId, ByteBufAllocator alloc) {
+        ByteBuf header = encoded[qos.value()];
+        if (qos == MqttQoS.AT_MOST_ONCE) {
+            return header.retainedDuplicate();
+        }
+        ByteBuf id = alloc.directBuffer(2, 2).writeShort(packetId);
+        return alloc.compositeDirectBuffer(3)
+                .addComponents(true, header.retainedDuplicate(), id, payload.retainedDuplicate());
+    }
+
+    /**
+     * MQTT 5 的 PUBLISH 带属性, 只有 3.1/3.1.1 连接可以直接写出共享编码
+     */
+    public static boolean isCompatible(Channel channel) {
+        return channel.attr(PROTOCOL_VERSION_KEY).get() != MqttVersion.MQTT_5;
+    }
+
+    @Override
+    public SharedPublish retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public SharedPublish touch(Object hint) {
+        payload.touch(hint);
+        return this;
+    }
+
+    @Override
+    protected void deallocate() {
+        payload.release();
+        for (ByteBuf buf : encoded) {
+            if (buf != null) {
+                buf.release();
+            }
+        }
+    }
+
+    private static int lengthSize(int length) {
+        int size = 1;
+        while ((length >>>= 7) > 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void writeLength(ByteBuf buf, int length) {
+        do {
+            int digit = length & 0x7F;
+            length >>>= 7;
+            buf.writeByte(length > 0 ? digit | 0x80 : digit);
+        } while (length > 0);
+    }
+}
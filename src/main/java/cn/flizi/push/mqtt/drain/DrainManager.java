@@ -0,0 +1,229 @@
+package cn.flizi.push.mqtt.drain;
+
+import cn.flizi.push.mqtt.MqttBroker;
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.alert.AlertDispatcher;
+import cn.flizi.push.mqtt.session.MqttSession;
+import cn.flizi.push.mqtt.session.SessionRegistry;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 平滑停机
+ * <p>
+ * 先关闭监听端口, 再把已有连接打乱顺序, 在 window 内每隔 interval 关闭一批, 每批数量为剩余连接数
+ * 按剩余时间均分. 关闭前写出连接上未发送的数据, 超过 flush-timeout 强制关闭. 客户端断开的时刻分散在
+ * 整个窗口内, 重连不会在同一秒压到其余节点.
+ * <p>
+ * MQTT 3.1.1 没有服务端重定向, 断开后由负载均衡把重连分配到其余节点.
+ */
+@Component
+@Log4j2
+public class DrainManager {
+
+    private final CompletableFuture<Void> drained = new CompletableFuture<>();
+
+    private final LongAdder closed = new LongAdder();
+
+    private final AtomicInteger flushing = new AtomicInteger();
+
+    @Autowired
+    private MqttBroker mqttBroker;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private MqttProperties mqttProperties;
+
+    @Autowired
+    private AlertDispatcher alertDispatcher;
+
+    private volatile DrainStatus.State state = DrainStatus.State.IDLE;
+
+    private volatile long startedAt;
+
+    private volatile int window;
+
+    private volatile long total;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * 以下只在 scheduler 线程访问
+     */
+    private final ArrayDeque<Channel> queue = new ArrayDeque<>();
+
+    private final Set<Channel> closing = new HashSet<>();
+
+    private long loggedAt;
+
+    /**
+     * 开始排空, 重复调用返回同一结果
+     *
+     * @param window 计划时长(秒), 0 为立即关闭所有连接
+     * @return 所有连接关闭后完成
+     */
+    public synchronized CompletableFuture<Void> drain(int window) {
+        if (state != DrainStatus.State.IDLE) {
+            return drained;
+        }
+        this.state = DrainStatus.State.DRAINING;
+        this.startedAt = System.currentTimeMillis();
+        this.window = Math.max(0, window);
+        mqttBroker.unbind();
+        log.info("Drain started, window: {}s", this.window);
+        alertDispatcher.alert("drain", "开始排空连接, 窗口 " + this.window + " 秒");
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("mqtt-drain", true));
+        scheduler.scheduleWithFixedDelay(this::tick, 0, mqttProperties.getDrain().getInterval(), TimeUnit.MILLISECONDS);
+        return drained;
+    }
+
+    /**
+     * 容器关闭时先于 {@link MqttBroker#stop()} 执行
+     */
+    @PreDestroy
+    public void destroy() {
+        MqttProperties.Drain config = mqttProperties.getDrain();
+        if (state == DrainStatus.State.IDLE && !config.isOnShutdown()) {
+            return;
+        }
+        CompletableFuture<Void> future = drain(config.getWindow());
+        try {
+            future.get(TimeUnit.SECONDS.toMillis(window) + config.getFlushTimeout() + config.getInterval(),
+                    TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("Drain timeout, {} connections remaining", remaining());
+        } catch (ExecutionException e) {
+            log.error("Drain failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public DrainStatus status() {
+        DrainStatus status = new DrainStatus();
+        status.setState(state);
+        status.setStartedAt(startedAt);
+        status.setWindow(window);
+        status.setTotal(total);
+        status.setClosed(closed.sum());
+        status.setRemaining(remaining());
+        return status;
+    }
+
+    public boolean isDraining() {
+        return state == DrainStatus.State.DRAINING;
+    }
+
+    private long remaining() {
+        return Math.max(0, total - closed.sum());
+    }
+
+    private void tick() {
+        try {
+            if (queue.isEmpty()) {
+                // 首次, 或排空期间又有连接完成 CONNECT
+                refill();
+                if (queue.isEmpty()) {
+                    if (flushing.get() == 0) {
+                        finish();
+                    }
+                    return;
+                }
+            }
+            long now = System.currentTimeMillis();
+            int interval = mqttProperties.getDrain().getInterval();
+            long deadline = startedAt + TimeUnit.SECONDS.toMillis(window);
+            long ticks = Math.max(1, (deadline - now) / interval);
+            long batch = (queue.size() + ticks - 1) / ticks;
+            for (long i = 0; i < batch; i++) {
+                close(queue.poll());
+            }
+            if (now - loggedAt >= 1000) {
+                loggedAt = now;
+                log.info("Draining, closed: {}, remaining: {}", closed.sum(), remaining());
+            }
+        } catch (Throwable cause) {
+            log.error("Drain tick failed", cause);
+        }
+    }
+
+    private void refill() {
+        List<Channel> channels = new ArrayList<>();
+        for (MqttSession session : sessionRegistry.sessions()) {
+            ChannelHandlerContext ctx = session.context();
+            if (ctx != null && ctx.channel().isActive() && !closing.contains(ctx.channel())) {
+                channels.add(ctx.channel());
+            }
+        }
+        Collections.shuffle(channels, ThreadLocalRandom.current());
+        queue.addAll(channels);
+        total += channels.size();
+    }
+
+    private void close(Channel channel) {
+        closing.add(channel);
+        if (!channel.isActive()) {
+            // 客户端已自行断开
+            closed.increment();
+            return;
+        }
+        flushing.incrementAndGet();
+        ScheduledFuture<?> timeout;
+        try {
+            timeout = channel.eventLoop().schedule(() -> {
+                channel.close();
+            }, mqttProperties.getDrain().getFlushTimeout(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            timeout = null;
+        }
+        ScheduledFuture<?> flushTimeout = timeout;
+        channel.closeFuture().addListener(future -> {
+            if (flushTimeout != null) {
+                flushTimeout.cancel(false);
+            }
+            closed.increment();
+            flushing.decrementAndGet();
+        });
+        // 空 buffer 排在已写入的数据之后, 完成时之前的数据已写入 socket
+        channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void finish() {
+        state = DrainStatus.State.DRAINED;
+        closing.clear();
+        log.info("Drain finished, closed: {}, elapsed: {}ms", closed.sum(), System.currentTimeMillis() - startedAt);
+        alertDispatcher.alert("drained", "连接排空完成, 关闭 " + closed.sum() + " 个, 用时 "
+                + (System.currentTimeMillis() - startedAt) + "ms");
+        drained.complete(null);
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,35 @@
+package cn.flizi.push.mqtt.drain;
+
+import lombok.Data;
+
+/**
+ * 排空进度
+ */
+@Data
+public class DrainStatus {
+
+    public enum State {
+        IDLE, DRAINING, DRAINED
+    }
+
+    private State state;
+
+    /**
+     * 开始时间, 毫秒
+     */
+    private long startedAt;
+
+    /**
+     * 计划时长, 秒
+     */
+    private int window;
+
+    /**
+     * 需要关闭的连接数, 排空期间完成 CONNECT 的连接也计入
+     */
+    private long total;
+
+    private long closed;
+
+    private long remaining;
+}
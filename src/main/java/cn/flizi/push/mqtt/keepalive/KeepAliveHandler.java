@@ -0,0 +1,76 @@
+package cn.flizi.push.mqtt.keepalive;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
+
+/**
+ * 每个连接一个, 同时是所在时间轮槽位链表中的节点
+ * <p>
+ * 收到报文只记录时间轮的当前刻度, 不重新调度定时任务. 收到 CONNECT 后超时改为客户端 keepalive 的 1.5 倍.
+ * 所有方法都在连接的 I/O 线程中调用.
+ */
+public final class KeepAliveHandler extends ChannelInboundHandlerAdapter {
+
+    private final KeepAliveManager manager;
+
+    ChannelHandlerContext ctx;
+
+    KeepAliveWheel wheel;
+
+    /**
+     * 最近一次收到报文的刻度(秒)
+     */
+    long lastRead;
+
+    /**
+     * 超时(秒)
+     */
+    long timeout;
+
+    /**
+     * 所在槽位, 不在时间轮中时为 -1
+     */
+    int slot = -1;
+
+    KeepAliveHandler prev;
+
+    KeepAliveHandler next;
+
+    KeepAliveHandler(KeepAliveManager manager, long timeout) {
+        this.manager = manager;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        this.wheel = manager.wheel(ctx.channel().eventLoop());
+        this.lastRead = wheel.now();
+        wheel.add(this);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (wheel != null) {
+            lastRead = wheel.now();
+            if (msg instanceof MqttConnectMessage) {
+                int keepAlive = ((MqttConnectMessage) msg).variableHeader().keepAliveTimeSeconds();
+                timeout = manager.timeout(keepAlive);
+                // 超时可能变短, 移到新的槽位
+                wheel.remove(this);
+                wheel.add(this);
+            }
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (wheel != null) {
+            wheel.remove(this);
+        }
+        super.channelInactive(ctx);
+    }
+}
@@ -0,0 +1,81 @@
+package cn.flizi.push.mqtt.keepalive;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import io.netty.channel.EventLoop;
+import io.netty.util.internal.PlatformDependent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 连接 keepalive 超时
+ * <p>
+ * 代替每个连接一个 IdleStateHandler 定时任务: 每个 I/O 线程一个 {@link KeepAliveWheel}, 每秒检查一次.
+ * CONNECT 之前及 keepalive 为 0 的连接超时为 mqtt.idle, 其余为 keepalive 的 1.5 倍.
+ */
+@Component
+public class KeepAliveManager {
+
+    private final ConcurrentMap<EventLoop, KeepAliveWheel> wheels = PlatformDependent.newConcurrentHashMap();
+
+    private final LongAdder expired = new LongAdder();
+
+    @Autowired
+    private MqttProperties mqttProperties;
+
+    /**
+     * 新连接的 handler, 须加在 MqttDecoder 之后, 不指定业务线程
+     */
+    public KeepAliveHandler newHandler() {
+        return new KeepAliveHandler(this, mqttProperties.getIdle());
+    }
+
+    /**
+     * 由于 keepalive 超时关闭的连接数
+     */
+    public long expired() {
+        return expired.sum();
+    }
+
+    /**
+     * 时间轮中的连接数
+     */
+    public int connections() {
+        int total = 0;
+        for (KeepAliveWheel wheel : wheels.values()) {
+            total += wheel.size();
+        }
+        return total;
+    }
+
+    /**
+     * broker 停止后 I/O 线程不再使用
+     */
+    public void clear() {
+        wheels.clear();
+    }
+
+    long timeout(int keepAlive) {
+        return keepAlive > 0 ? (keepAlive * 3L + 1) / 2 : mqttProperties.getIdle();
+    }
+
+    void onExpired(int count) {
+        expired.add(count);
+    }
+
+    /**
+     * 在 eventLoop 中调用, 首次使用时开始每秒检查
+     */
+    KeepAliveWheel wheel(EventLoop eventLoop) {
+        KeepAliveWheel wheel = wheels.get(eventLoop);
+        if (wheel == null) {
+            wheel = new KeepAliveWheel(this);
+            wheels.put(eventLoop, wheel);
+            eventLoop.scheduleAtFixedRate(wheel, 1, 1, TimeUnit.SECONDS);
+        }
+        return wheel;
+    }
+}
@@ -0,0 +1,112 @@
+package cn.flizi.push.mqtt.keepalive;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个 I/O 线程的 keepalive 时间轮, 只在该线程中访问
+ * <p>
+ * 每秒一个刻度, 连接按到期刻度放入槽位的双向链表. 每个刻度取出整个槽位, 已到期的连接一次性关闭,
+ * 期间有读的连接按新的到期刻度重新放入. 连接在一个超时周期内至多移动一次, 与收到的报文数无关.
+ */
+final class KeepAliveWheel implements Runnable {
+
+    private static final int SLOTS = 512;
+
+    private static final int MASK = SLOTS - 1;
+
+    private final KeepAliveHandler[] heads = new KeepAliveHandler[SLOTS];
+
+    private final KeepAliveManager manager;
+
+    private final long startNanos = System.nanoTime();
+
+    private long now;
+
+    private int size;
+
+    KeepAliveWheel(KeepAliveManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * 当前刻度(秒)
+     */
+    long now() {
+        return now;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void add(KeepAliveHandler handler) {
+        // 到期刻度之后再检查, 刻度粗略但保证空闲时间不少于超时
+        long tick = Math.max(handler.lastRead + handler.timeout + 1, now + 1);
+        int slot = (int) (tick & MASK);
+        KeepAliveHandler head = heads[slot];
+        handler.slot = slot;
+        handler.prev = null;
+        handler.next = head;
+        if (head != null) {
+            head.prev = handler;
+        }
+        heads[slot] = handler;
+        size++;
+    }
+
+    void remove(KeepAliveHandler handler) {
+        if (handler.slot < 0) {
+            return;
+        }
+        if (handler.prev != null) {
+            handler.prev.next = handler.next;
+        } else {
+            heads[handler.slot] = handler.next;
+        }
+        if (handler.next != null) {
+            handler.next.prev = handler.prev;
+        }
+        handler.prev = null;
+        handler.next = null;
+        handler.slot = -1;
+        size--;
+    }
+
+    @Override
+    public void run() {
+        advance(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * 前进到 current 刻度, 依次处理经过的槽位
+     */
+    void advance(long current) {
+        while (now < current) {
+            now++;
+            expire((int) (now & MASK));
+        }
+    }
+
+    private void expire(int slot) {
+        KeepAliveHandler handler = heads[slot];
+        heads[slot] = null;
+        int expired = 0;
+        while (handler != null) {
+            KeepAliveHandler next = handler.next;
+            handler.prev = null;
+            handler.next = null;
+            handler.slot = -1;
+            size--;
+            if (handler.lastRead + handler.timeout < now) {
+                expired++;
+                handler.ctx.close();
+            } else {
+                add(handler);
+            }
+            handler = next;
+        }
+        if (expired > 0) {
+            manager.onExpired(expired);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package cn.flizi.push.mqtt.limit;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.topic.TopicTrie;
+import io.netty.channel.Channel;
+import io.netty.util.internal.PlatformDependent;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CONNECT 准入(全局及每个来源 IP)与 PUBLISH 限速(每个连接及按主题过滤器), 并统计拒绝次数
+ * <p>
+ * 来源 IP 的令牌桶至多 max-tracked-ips 个. 达到上限时删除已回满的桶, 回满的桶与新建的相同, 删除不影响限速;
+ * 扫描每秒至多一次, 仍然没有空位时拒绝未记录的来源, 已记录的来源照常限速.
+ */
+@Component
+@Log4j2
+public class RateLimiter {
+
+    private static final long EVICT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final ConcurrentMap<String, TokenBucket> ipBuckets = PlatformDependent.newConcurrentHashMap();
+
+    /**
+     * 下次允许扫描回满令牌桶的时刻
+     */
+    private final AtomicLong nextEviction = new AtomicLong(System.nanoTime());
+
+    private final LongAdder connectRejected = new LongAdder();
+
+    private final LongAdder publishRejected = new LongAdder();
+
+    @Autowired
+    private MqttProperties mqttProperties;
+
+    private TokenBucket connectBucket;
+
+    private TopicTrie<TokenBucket> topicBuckets;
+
+    @PostConstruct
+    public void init() {
+        MqttProperties.RateLimit config = mqttProperties.getRateLimit();
+        if (config.getConnectRate() > 0) {
+            connectBucket = new TokenBucket(config.getConnectRate(), config.getConnectBurst());
+        }
+        topicBuckets = new TopicTrie<>(config.getTopics().isEmpty() ? 0 : mqttProperties.getTopicCacheSize());
+        for (MqttProperties.TopicRate topic : config.getTopics()) {
+            if (!TopicTrie.isValidFilter(topic.getFilter()) || topic.getRate() <= 0) {
+                log.warn("Invalid topic rate limit: {} {}", topic.getFilter(), topic.getRate());
+                continue;
+            }
+            topicBuckets.subscribe(topic.getFilter(), new TokenBucket(topic.getRate(), topic.getBurst()));
+        }
+    }
+
+    /**
+     * 是否接受该连接的 CONNECT, 在认证之前调用
+     */
+    public boolean tryConnect(Channel channel) {
+        return tryConnect(channel, System.nanoTime());
+    }
+
+    boolean tryConnect(Channel channel, long now) {
+        MqttProperties.RateLimit config = mqttProperties.getRateLimit();
+        if (config.getIpConnectRate() > 0) {
+            String ip = ip(channel.remoteAddress());
+            TokenBucket bucket = ipBuckets.get(ip);
+            if (bucket == null) {
+                if (ipBuckets.size() >= config.getMaxTrackedIps() && !evictFull(now, config.getMaxTrackedIps())) {
+                    connectRejected.increment();
+                    return false;
+                }
+                TokenBucket created = new TokenBucket(config.getIpConnectRate(), config.getIpConnectBurst(), now);
+                bucket = ipBuckets.putIfAbsent(ip, created);
+                if (bucket == null) {
+                    bucket = created;
+                }
+            }
+            if (!bucket.tryAcquire(now)) {
+                connectRejected.increment();
+                return false;
+            }
+        }
+        if (connectBucket != null && !connectBucket.tryAcquire(now)) {
+            connectRejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 新连接的 PUBLISH 令牌桶, 未配置时为 null
+     */
+    public TokenBucket newPublishBucket() {
+        MqttProperties.RateLimit config = mqttProperties.getRateLimit();
+        return config.getPublishRate() > 0 ? new TokenBucket(config.getPublishRate(), config.getPublishBurst()) : null;
+    }
+
+    /**
+     * 是否允许发布, 先检查连接自身的速率, 再检查匹配的所有主题
+     *
+     * @param bucket {@link #newPublishBucket()}, 可为 null
+     */
+    public boolean tryPublish(TokenBucket bucket, String topic) {
+        if (bucket != null && !bucket.tryAcquire()) {
+            publishRejected.increment();
+            return false;
+        }
+        if (topicBuckets.size() > 0) {
+            List<TokenBucket> buckets = topicBuckets.match(topic);
+            for (int i = 0; i < buckets.size(); i++) {
+                if (!buckets.get(i).tryAcquire()) {
+                    publishRejected.increment();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public boolean isDisconnectOnLimit() {
+        return mqttProperties.getRateLimit().isDisconnectOnLimit();
+    }
+
+    public long connectRejected() {
+        return connectRejected.sum();
+    }
+
+    public long publishRejected() {
+        return publishRejected.sum();
+    }
+
+    /**
+     * 删除已回满的来源 IP 令牌桶
+     *
+     * @return 是否有空位
+     */
+    private boolean evictFull(long now, int maxTrackedIps) {
+        long next = nextEviction.get();
+        if (now - next >= 0 && nextEviction.compareAndSet(next, now + EVICT_INTERVAL)) {
+            ipBuckets.values().removeIf(bucket -> bucket.isFull(now));
+        }
+        return ipBuckets.size() < maxTrackedIps;
+    }
+
+    /**
+     * 记录的来源 IP 数
+     */
+    int trackedIps() {
+        return ipBuckets.size();
+    }
+
+    private static String ip(SocketAddress address) {
+        if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null) {
+            return ((InetSocketAddress) address).getAddress().getHostAddress();
+        }
+        return String.valueOf(address);
+    }
+}
@@ -0,0 +1,63 @@
+package cn.flizi.push.mqtt.limit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁令牌桶
+ * <p>
+ * 按 GCRA 实现, 状态只有一个 long: 桶恰好回满的时刻. 每取一个令牌向后推一个间隔, 超过突发容量时拒绝,
+ * 一次 CAS 完成, 不需要定时补充令牌.
+ */
+public final class TokenBucket {
+
+    /**
+     * 两个令牌的间隔(纳秒)
+     */
+    private final long interval;
+
+    /**
+     * 允许提前消耗的时长(纳秒)
+     */
+    private final long tolerance;
+
+    private final AtomicLong full;
+
+    /**
+     * @param rate  每秒令牌数, 大于 0
+     * @param burst 桶容量, 不大于 0 时等于 rate
+     */
+    public TokenBucket(int rate, int burst) {
+        this(rate, burst, System.nanoTime());
+    }
+
+    TokenBucket(int rate, int burst, long now) {
+        this.interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        this.tolerance = interval * (burst > 0 ? burst : rate);
+        this.full = new AtomicLong(now);
+    }
+
+    public boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    /**
+     * 令牌已回满, 与新建的桶状态相同
+     */
+    boolean isFull(long now) {
+        return full.get() - now <= 0;
+    }
+
+    boolean tryAcquire(long now) {
+        for (; ; ) {
+            long current = full.get();
+            long next = (current - now < 0 ? now : current) + interval;
+            if (next - now > tolerance) {
+                return false;
+            }
+            if (full.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+}
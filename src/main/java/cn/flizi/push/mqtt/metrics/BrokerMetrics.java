@@ -0,0 +1,146 @@
+package cn.flizi.push.mqtt.metrics;
+
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * broker 计数器, 在连接及路由线程中记录, 只做 LongAdder 累加, 不分配对象
+ */
+@Component
+public class BrokerMetrics {
+
+    private static final long[] CONNECT_LATENCY_BOUNDS = {
+            1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    private static final long[] FAN_OUT_BOUNDS = {
+            0, 1, 2, 5, 10, 50, 100, 500, 1000, 5000, 10000, 100000};
+
+    private final LongAdder connectAccepted = new LongAdder();
+
+    private final LongAdder connectRejected = new LongAdder();
+
+    private final LongAdder connectUnavailable = new LongAdder();
+
+    private final LongAdder connectInvalid = new LongAdder();
+
+    private final LongAdder published = new LongAdder();
+
+    private final LongAdder publishedBytes = new LongAdder();
+
+    private final LongAdder delivered = new LongAdder();
+
+    private final LongAdder deliveredBytes = new LongAdder();
+
+    private final LongAdder directDelivered = new LongAdder();
+
+    /**
+     * 毫秒
+     */
+    private final BucketHistogram connectLatency = new BucketHistogram(CONNECT_LATENCY_BOUNDS);
+
+    private final BucketHistogram fanOut = new BucketHistogram(FAN_OUT_BOUNDS);
+
+    private final LongAdder tlsHandshakeFailed = new LongAdder();
+
+    /**
+     * 毫秒, 只记录成功的握手
+     */
+    private final BucketHistogram tlsHandshakeLatency = new BucketHistogram(CONNECT_LATENCY_BOUNDS);
+
+    /**
+     * 缺少 clientId、用户名或密码
+     */
+    public void onConnectInvalid() {
+        connectInvalid.increment();
+    }
+
+    /**
+     * @param startNanos 收到 CONNECT 时的 System.nanoTime()
+     */
+    public void onConnect(long startNanos, boolean accepted, boolean unavailable) {
+        if (accepted) {
+            connectAccepted.increment();
+        } else if (unavailable) {
+            connectUnavailable.increment();
+        } else {
+            connectRejected.increment();
+        }
+        connectLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    public void onPublish(int bytes) {
+        published.increment();
+        publishedBytes.add(bytes);
+    }
+
+    /**
+     * @param subscribers 投递的订阅者数量
+     */
+    public void onRoute(int subscribers, int bytes) {
+        fanOut.record(subscribers);
+        if (subscribers > 0) {
+            delivered.add(subscribers);
+            deliveredBytes.add((long) subscribers * bytes);
+        }
+    }
+
+    /**
+     * 按 clientId 直接投递
+     */
+    public void onDirectDelivery(int sessions, int bytes) {
+        directDelivered.add(sessions);
+        delivered.add(sessions);
+        deliveredBytes.add((long) sessions * bytes);
+    }
+
+    /**
+     * @param startNanos 连接建立时的 System.nanoTime()
+     */
+    public void onTlsHandshake(long startNanos, boolean success) {
+        if (success) {
+            tlsHandshakeLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        } else {
+            tlsHandshakeFailed.increment();
+        }
+    }
+
+    public long connectAccepted() {
+        return connectAccepted.sum();
+    }
+
+    /**
+     * 认证失败
+     */
+    public long connectRejected() {
+        return connectRejected.sum();
+    }
+
+    public long tlsHandshakeFailed() {
+        return tlsHandshakeFailed.sum();
+    }
+
+    public void writeTo(PrometheusWriter writer) {
+        String connects = "mqtt_connect_total";
+        writer.header(connects, "CONNECT handled, by result", "counter")
+                .sample(connects, new String[]{"result", "accepted"}, connectAccepted.sum())
+                .sample(connects, new String[]{"result", "rejected"}, connectRejected.sum())
+                .sample(connects, new String[]{"result", "unavailable"}, connectUnavailable.sum())
+                .sample(connects, new String[]{"result", "invalid"}, connectInvalid.sum());
+        writer.histogram("mqtt_connect_latency_milliseconds", "CONNECT to CONNACK latency, including auth",
+                connectLatency);
+        writer.counter("mqtt_publish_received_total", "Messages published to this node", published.sum());
+        writer.counter("mqtt_publish_received_bytes_total", "Payload bytes published to this node",
+                publishedBytes.sum());
+        writer.counter("mqtt_publish_delivered_total", "Messages delivered to local sessions", delivered.sum());
+        writer.counter("mqtt_publish_delivered_bytes_total", "Payload bytes delivered to local sessions",
+                deliveredBytes.sum());
+        writer.counter("mqtt_direct_delivered_total", "Messages delivered to sessions by clientId",
+                directDelivered.sum());
+        writer.histogram("mqtt_publish_fan_out", "Local subscribers matched per routed message", fanOut);
+        writer.histogram("mqtt_tls_handshake_milliseconds", "Successful TLS handshakes", tlsHandshakeLatency);
+        writer.counter("mqtt_tls_handshake_failed_total", "Failed or timed out TLS handshakes",
+                tlsHandshakeFailed.sum());
+    }
+}
@@ -0,0 +1,57 @@
+package cn.flizi.push.mqtt.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定桶的直方图, 每个桶一个 LongAdder, 记录时不加锁不分配
+ */
+public final class BucketHistogram {
+
+    private final long[] bounds;
+
+    /**
+     * 最后一个为 +Inf
+     */
+    private final LongAdder[] counts;
+
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param bounds 各桶上界(含), 升序
+     */
+    public BucketHistogram(long... bounds) {
+        this.bounds = bounds.clone();
+        this.counts = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        int index = Arrays.binarySearch(bounds, value);
+        counts[index >= 0 ? index : -index - 1].increment();
+        sum.add(value);
+    }
+
+    long[] bounds() {
+        return bounds;
+    }
+
+    /**
+     * 各桶累计数量, 与 Prometheus 的 le 语义一致, 最后一个为总数
+     */
+    long[] cumulativeCounts() {
+        long[] result = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i].sum();
+            result[i] = total;
+        }
+        return result;
+    }
+
+    long sum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,82 @@
+package cn.flizi.push.mqtt.metrics;
+
+/**
+ * Prometheus 文本格式(0.0.4)
+ */
+public final class PrometheusWriter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final StringBuilder out = new StringBuilder(4096);
+
+    public PrometheusWriter counter(String name, String help, long value) {
+        header(name, help, "counter");
+        return sample(name, null, value);
+    }
+
+    public PrometheusWriter gauge(String name, String help, long value) {
+        header(name, help, "gauge");
+        return sample(name, null, value);
+    }
+
+    /**
+     * 带标签的指标先写类型, 再逐个写样本
+     */
+    public PrometheusWriter header(String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    /**
+     * @param labels 按 name, value 成对给出
+     */
+    public PrometheusWriter sample(String name, String[] labels, long value) {
+        out.append(name);
+        if (labels != null && labels.length > 0) {
+            out.append('{');
+            for (int i = 0; i < labels.length; i += 2) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(labels[i]).append("=\"");
+                escape(labels[i + 1]);
+                out.append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ').append(value).append('\n');
+        return this;
+    }
+
+    public PrometheusWriter histogram(String name, String help, BucketHistogram histogram) {
+        header(name, help, "histogram");
+        long[] bounds = histogram.bounds();
+        long[] counts = histogram.cumulativeCounts();
+        String bucket = name + "_bucket";
+        for (int i = 0; i < bounds.length; i++) {
+            sample(bucket, new String[]{"le", Long.toString(bounds[i])}, counts[i]);
+        }
+        sample(bucket, new String[]{"le", "+Inf"}, counts[bounds.length]);
+        sample(name + "_sum", null, histogram.sum());
+        return sample(name + "_count", null, counts[bounds.length]);
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+
+    private void escape(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+}
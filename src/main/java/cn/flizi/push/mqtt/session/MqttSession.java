@@ -0,0 +1,666 @@
+package cn.flizi.push.mqtt.session;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.codec.FixedPackets;
+import cn.flizi.push.mqtt.codec.SharedPublish;
+import cn.flizi.push.mqtt.store.OfflineMessageStore;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 客户端会话
+ * <p>
+ * 会话状态只在创建时连接的 {@link #executor()} 中访问, 因此无需同步; 持久会话重连到其他线程时,
+ * 写出由 Netty 转交到新连接的线程. 公开方法可在任意线程调用.
+ * <p>
+ * 订阅表和丢弃标记由会话对象锁保护: 订阅可能在接管后的新连接线程中修改, 清理可能在过期定时任务或
+ * 接管连接的线程中进行, 丢弃后 {@link #attach} 失败, 不再登记订阅.
+ * <p>
+ * 出站 QoS 1/2 消息受在途窗口限制, 超出窗口的消息排队; 重发由共享的时间轮驱动,
+ * 每个会话至多一个定时任务. 在途消息以 packetId 为键存放在原始类型 map 中, 按需创建.
+ * 持久会话离线期间的 QoS 1/2 消息写入离线队列, 重连后在窗口允许时逐批取出: 离线队列在自己的线程中取出,
+ * 回调到会话线程写出, 同一时刻至多一次取出请求. 取出的消息收到 PUBACK/PUBCOMP 后才在离线队列中确认.
+ * <p>
+ * 连接超过写缓冲高水位不可写时停止写出, 消息进入排队队列, 恢复可写后继续; 队列超出条数或字节数限制时
+ * 按主题对应的 {@link SlowConsumerPolicy} 处理, 避免慢消费者的出站缓冲无限增长.
+ */
+public final class MqttSession implements TimerTask {
+
+    private static final int MAX_PACKET_ID = 0xFFFF;
+
+    private final String clientId;
+
+    private final boolean persistent;
+
+    private final EventExecutor executor;
+
+    private final MqttProperties.Delivery delivery;
+
+    private final Timer timer;
+
+    private final OfflineMessageStore offlineStore;
+
+    private final SlowConsumerPolicies policies;
+
+    private final Map<String, MqttQoS> subscriptions = new HashMap<>(4);
+
+    private volatile ChannelHandlerContext ctx;
+
+    private volatile long detachedAt;
+
+    private boolean discarded;
+
+    private IntObjectMap<InFlight> inFlight;
+
+    private ArrayDeque<MqttPublishMessage> queued;
+
+    private long queuedBytes;
+
+    private IntObjectMap<Boolean> received;
+
+    private int packetId;
+
+    private boolean backlog;
+
+    /**
+     * 离线队列的取出请求未返回
+     */
+    private boolean polling;
+
+    /**
+     * 发出取出请求之后又写入了离线队列, 请求返回空时仍需再取
+     */
+    private boolean appendedSincePoll;
+
+    private boolean closed;
+
+    private Timeout retryTimeout;
+
+    public MqttSession(String clientId, boolean persistent, EventExecutor executor,
+                       MqttProperties.Delivery delivery, Timer timer, OfflineMessageStore offlineStore,
+                       SlowConsumerPolicies policies) {
+        this.clientId = clientId;
+        this.persistent = persistent;
+        this.executor = executor;
+        this.delivery = delivery;
+        this.timer = timer;
+        this.offlineStore = offlineStore;
+        this.policies = policies;
+    }
+
+    public String clientId() {
+        return clientId;
+    }
+
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    public EventExecutor executor() {
+        return executor;
+    }
+
+    /**
+     * 当前连接, 离线时为 null
+     */
+    public ChannelHandlerContext context() {
+        return ctx;
+    }
+
+    /**
+     * 离线时刻, 在线时为 0
+     */
+    public long detachedAt() {
+        return detachedAt;
+    }
+
+    /**
+     * 订阅的主题过滤器及授予的 QoS, 访问时持有会话锁
+     */
+    public Map<String, MqttQoS> subscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * 已被丢弃, 访问时持有会话锁
+     */
+    public boolean isDiscarded() {
+        return discarded;
+    }
+
+    /**
+     * 绑定新连接, 重发未确认的消息并开始取出离线消息
+     *
+     * @return 会话已被丢弃时返回 false, 调用方应创建新会话
+     */
+    public synchronized boolean attach(ChannelHandlerContext ctx) {
+        if (discarded) {
+            return false;
+        }
+        this.ctx = ctx;
+        this.detachedAt = 0;
+        execute(this::resume);
+        return true;
+    }
+
+    /**
+     * 连接断开, 持久会话保留在途消息等待重连, 非持久会话释放所有消息
+     */
+    public void detach(ChannelHandlerContext ctx) {
+        if (this.ctx != ctx) {
+            return;
+        }
+        this.ctx = null;
+        this.detachedAt = System.currentTimeMillis();
+        if (!persistent) {
+            execute(this::close);
+        }
+    }
+
+    /**
+     * 向客户端投递消息, 会话接管 payload 的引用
+     */
+    public void publish(String topic, MqttQoS qos, ByteBuf payload) {
+        publish(topic, qos, false, payload);
+    }
+
+    /**
+     * @param retain 是否为订阅时发送的保留消息
+     */
+    public void publish(String topic, MqttQoS qos, boolean retain, ByteBuf payload) {
+        if (executor.inEventLoop()) {
+            publish0(topic, qos, retain, payload);
+            return;
+        }
+        try {
+            executor.execute(() -> publish0(topic, qos, retain, payload));
+        } catch (RejectedExecutionException e) {
+            payload.release();
+        }
+    }
+
+    private void publish0(String topic, MqttQoS qos, boolean retain, ByteBuf payload) {
+        ChannelHandlerContext ctx = this.ctx;
+        if (ctx == null) {
+            if (persistent && qos != MqttQoS.AT_MOST_ONCE && offlineStore.isEnabled()) {
+                offlineStore.append(clientId, topic, qos, payload);
+            }
+            payload.release();
+            return;
+        }
+        if (qos == MqttQoS.AT_MOST_ONCE) {
+            if (writable(ctx)) {
+                ctx.writeAndFlush(publishMessage(topic, qos, 0, payload, false, retain));
+            } else {
+                enqueue(ctx, publishMessage(topic, qos, 0, payload, false, retain));
+            }
+            return;
+        }
+        if (backlog) {
+            // 离线消息未取完, 新消息排在其后
+            offlineStore.append(clientId, topic, qos, payload);
+            appendedSincePoll = true;
+            payload.release();
+            drain();
+            return;
+        }
+        if (!writable(ctx) || inFlightSize() >= delivery.getMaxInFlight()) {
+            enqueue(ctx, publishMessage(topic, qos, 0, payload, false, retain));
+            return;
+        }
+        send(ctx, topic, qos, retain, payload);
+    }
+
+    /**
+     * 投递路由共享编码的消息, 会话接管 packet 的一个引用
+     */
+    public void publish(SharedPublish packet, MqttQoS qos) {
+        if (executor.inEventLoop()) {
+            publish0(packet, qos);
+            return;
+        }
+        try {
+            executor.execute(() -> publish0(packet, qos));
+        } catch (RejectedExecutionException e) {
+            packet.release();
+        }
+    }
+
+    private void publish0(SharedPublish packet, MqttQoS qos) {
+        ChannelHandlerContext ctx = this.ctx;
+        boolean direct = ctx != null && SharedPublish.isCompatible(ctx.channel()) && writable(ctx)
+                && (qos == MqttQoS.AT_MOST_ONCE || !backlog && inFlightSize() < delivery.getMaxInFlight());
+        if (!direct) {
+            // 离线、需要排队或 MQTT 5 连接按普通消息处理
+            publish0(packet.topic(), qos, false, packet.payload().retainedDuplicate());
+        } else if (qos == MqttQoS.AT_MOST_ONCE) {
+            ctx.writeAndFlush(packet.encode(qos, 0, ctx.alloc()));
+        } else {
+            MqttPublishMessage message = track(packet.topic(), qos, false, packet.payload().retainedDuplicate(), -1);
+            ctx.writeAndFlush(packet.encode(qos, message.variableHeader().packetId(), ctx.alloc()));
+            scheduleRetry();
+        }
+        packet.release();
+    }
+
+    private void send(ChannelHandlerContext ctx, String topic, MqttQoS qos, boolean retain, ByteBuf payload) {
+        MqttPublishMessage message = track(topic, qos, retain, payload, -1);
+        ctx.writeAndFlush(message.retainedDuplicate());
+        scheduleRetry();
+    }
+
+    /**
+     * 连接可写且没有排队的消息时才直接写出, 保证顺序
+     */
+    private boolean writable(ChannelHandlerContext ctx) {
+        return ctx.channel().isWritable() && (queued == null || queued.isEmpty());
+    }
+
+    /**
+     * 排队等待窗口或连接恢复可写, 超出限制时按主题的慢消费者策略处理
+     */
+    private void enqueue(ChannelHandlerContext ctx, MqttPublishMessage message) {
+        if (queued == null) {
+            queued = new ArrayDeque<>();
+        }
+        String topic = message.variableHeader().topicName();
+        SlowConsumerPolicy policy = policies.policy(topic);
+        if (policy == SlowConsumerPolicy.CONFLATE) {
+            for (Iterator<MqttPublishMessage> iterator = queued.iterator(); iterator.hasNext(); ) {
+                MqttPublishMessage old = iterator.next();
+                if (old.variableHeader().topicName().equals(topic)) {
+                    iterator.remove();
+                    queuedBytes -= old.payload().readableBytes();
+                    old.release();
+                    policies.onConflated();
+                    break;
+                }
+            }
+        }
+        int size = message.payload().readableBytes();
+        while (!queued.isEmpty() && (queued.size() >= delivery.getMaxQueued()
+                || queuedBytes + size > policies.getMaxQueuedBytes())) {
+            if (policy == SlowConsumerPolicy.DROP_OLDEST) {
+                MqttPublishMessage old = queued.poll();
+                queuedBytes -= old.payload().readableBytes();
+                old.release();
+                policies.onDropped();
+                continue;
+            }
+            message.release();
+            if (policy == SlowConsumerPolicy.DISCONNECT) {
+                if (ctx.channel().isActive()) {
+                    policies.onDisconnected();
+                    ctx.close();
+                }
+            } else {
+                policies.onDropped();
+            }
+            return;
+        }
+        queued.add(message);
+        queuedBytes += size;
+    }
+
+    /**
+     * 分配 packetId 并登记为在途消息, 保留原消息用于重发
+     *
+     * @param position 离线队列中的位置, 不是离线消息时为 -1
+     */
+    private MqttPublishMessage track(String topic, MqttQoS qos, boolean retain, ByteBuf payload, long position) {
+        if (inFlight == null) {
+            inFlight = new IntObjectHashMap<>(8);
+        }
+        int id = nextPacketId();
+        MqttPublishMessage message = publishMessage(topic, qos, id, payload, false, retain);
+        inFlight.put(id, new InFlight(message, System.nanoTime(), position));
+        return message;
+    }
+
+    /**
+     * 连接恢复可写, 继续写出排队的消息
+     */
+    public void onWritable() {
+        execute(this::drain);
+    }
+
+    /**
+     * 客户端 PUBACK, QoS 1 投递完成
+     */
+    public void onPubAck(int id) {
+        if (!executor.inEventLoop()) {
+            execute(() -> onPubAck(id));
+            return;
+        }
+        InFlight entry = inFlight == null ? null : inFlight.get(id);
+        if (entry != null && entry.message != null && entry.message.fixedHeader().qosLevel() == MqttQoS.AT_LEAST_ONCE) {
+            inFlight.remove(id);
+            entry.message.release();
+            delivered(entry);
+            drain();
+        }
+    }
+
+    /**
+     * 客户端 PUBREC, QoS 2 第一阶段完成, 之后只需重发 PUBREL
+     */
+    public void onPubRec(int id) {
+        if (!executor.inEventLoop()) {
+            execute(() -> onPubRec(id));
+            return;
+        }
+        InFlight entry = inFlight == null ? null : inFlight.get(id);
+        ChannelHandlerContext ctx = this.ctx;
+        if (entry == null || ctx == null) {
+            return;
+        }
+        if (entry.message != null) {
+            if (entry.message.fixedHeader().qosLevel() != MqttQoS.EXACTLY_ONCE) {
+                // QoS 1 消息只能由 PUBACK 确认
+                return;
+            }
+            entry.message.release();
+            entry.message = null;
+        }
+        entry.sentAt = System.nanoTime();
+        ctx.writeAndFlush(FixedPackets.ack(ctx.alloc(), MqttMessageType.PUBREL, id));
+    }
+
+    /**
+     * 客户端 PUBCOMP, QoS 2 投递完成
+     */
+    public void onPubComp(int id) {
+        if (!executor.inEventLoop()) {
+            execute(() -> onPubComp(id));
+            return;
+        }
+        InFlight entry = inFlight == null ? null : inFlight.get(id);
+        if (entry != null && entry.message == null) {
+            inFlight.remove(id);
+            delivered(entry);
+            drain();
+        }
+    }
+
+    /**
+     * 入站 QoS 2 消息, 与接管互斥, 已被新连接接管的旧连接不再改变会话状态
+     *
+     * @return 是否首次收到, 重复的消息或来自旧连接的消息不再路由
+     */
+    public synchronized boolean receive(ChannelHandlerContext ctx, int id) {
+        if (this.ctx != ctx) {
+            return false;
+        }
+        if (received == null) {
+            received = new IntObjectHashMap<>(4);
+        }
+        return received.put(id, Boolean.TRUE) == null;
+    }
+
+    /**
+     * 入站 QoS 2 消息的 PUBREL, 与接管互斥
+     */
+    public synchronized void release(ChannelHandlerContext ctx, int id) {
+        if (this.ctx == ctx && received != null) {
+            received.remove(id);
+        }
+    }
+
+    /**
+     * 丢弃会话, 释放未完成的消息及离线消息, 调用方先清理订阅
+     */
+    public synchronized void discard() {
+        if (discarded) {
+            return;
+        }
+        discarded = true;
+        ctx = null;
+        execute(() -> {
+            close();
+            if (persistent && offlineStore.isEnabled()) {
+                offlineStore.remove(clientId);
+            }
+        });
+    }
+
+    @Override
+    public void run(Timeout timeout) {
+        execute(this::retransmit);
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ignored) {
+            // 线程池已关闭
+        }
+    }
+
+    private void resume() {
+        ChannelHandlerContext ctx = this.ctx;
+        if (ctx == null) {
+            return;
+        }
+        if (inFlight != null) {
+            // 重连后立即重发未确认的消息
+            long now = System.nanoTime();
+            for (IntObjectMap.PrimitiveEntry<InFlight> e : inFlight.entries()) {
+                e.value().sentAt = now;
+                ctx.write(retransmitMessage(e.key(), e.value()));
+            }
+            ctx.flush();
+            scheduleRetry();
+        }
+        // 是否有离线消息由取出请求的结果决定
+        backlog = persistent && offlineStore.isEnabled();
+        drain();
+    }
+
+    private void close() {
+        if (retryTimeout != null) {
+            retryTimeout.cancel();
+            retryTimeout = null;
+        }
+        if (inFlight != null) {
+            for (InFlight entry : inFlight.values()) {
+                ReferenceCountUtil.release(entry.message);
+            }
+            inFlight = null;
+        }
+        if (queued != null) {
+            for (MqttPublishMessage message; (message = queued.poll()) != null; ) {
+                message.release();
+            }
+            queued = null;
+            queuedBytes = 0;
+        }
+        received = null;
+        backlog = false;
+        polling = false;
+        closed = true;
+    }
+
+    private void retransmit() {
+        retryTimeout = null;
+        ChannelHandlerContext ctx = this.ctx;
+        if (inFlight == null || ctx == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long interval = TimeUnit.SECONDS.toNanos(delivery.getRetryInterval());
+        boolean sent = false;
+        for (IntObjectMap.PrimitiveEntry<InFlight> e : inFlight.entries()) {
+            InFlight entry = e.value();
+            if (now - entry.sentAt < interval) {
+                continue;
+            }
+            entry.sentAt = now;
+            sent = true;
+            ctx.write(retransmitMessage(e.key(), entry));
+        }
+        if (sent) {
+            ctx.flush();
+        }
+        scheduleRetry();
+    }
+
+    private void drain() {
+        ChannelHandlerContext ctx = this.ctx;
+        while (ctx != null && ctx.channel().isWritable()) {
+            MqttPublishMessage message = queued == null ? null : queued.peek();
+            if (message != null) {
+                MqttQoS qos = message.fixedHeader().qosLevel();
+                if (qos != MqttQoS.AT_MOST_ONCE && inFlightSize() >= delivery.getMaxInFlight()) {
+                    return;
+                }
+                queued.poll();
+                queuedBytes -= message.payload().readableBytes();
+                if (qos == MqttQoS.AT_MOST_ONCE) {
+                    ctx.writeAndFlush(message);
+                } else {
+                    send(ctx, message.variableHeader().topicName(), qos,
+                            message.fixedHeader().isRetain(), message.payload());
+                }
+                continue;
+            }
+            if (!backlog || polling || inFlightSize() >= delivery.getMaxInFlight()) {
+                return;
+            }
+            // 离线消息直接从映射文件中取出, 在 onPolled 中写出
+            polling = true;
+            appendedSincePoll = false;
+            offlineStore.poll(clientId, delivery.getMaxInFlight() - inFlightSize(), this::polled);
+            return;
+        }
+    }
+
+    /**
+     * 离线队列线程中回调
+     */
+    private void polled(List<OfflineMessageStore.Message> messages) {
+        try {
+            executor.execute(() -> onPolled(messages));
+        } catch (RejectedExecutionException e) {
+            for (OfflineMessageStore.Message message : messages) {
+                message.payload().release();
+            }
+        }
+    }
+
+    /**
+     * 取出的消息全部登记为在途消息, 离线时等重连后重发
+     */
+    private void onPolled(List<OfflineMessageStore.Message> messages) {
+        polling = false;
+        if (closed) {
+            for (OfflineMessageStore.Message message : messages) {
+                message.payload().release();
+            }
+            return;
+        }
+        if (messages.isEmpty()) {
+            backlog = appendedSincePoll;
+        } else {
+            ChannelHandlerContext ctx = this.ctx;
+            for (OfflineMessageStore.Message message : messages) {
+                MqttPublishMessage tracked = track(message.topic(), message.qos(), false, message.payload(),
+                        message.position());
+                if (ctx != null) {
+                    ctx.write(tracked.retainedDuplicate());
+                }
+            }
+            if (ctx != null) {
+                ctx.flush();
+            }
+            scheduleRetry();
+        }
+        drain();
+    }
+
+    /**
+     * 投递完成, 离线消息在离线队列中确认
+     */
+    private void delivered(InFlight entry) {
+        if (entry.position >= 0) {
+            offlineStore.ack(clientId, entry.position);
+        }
+    }
+
+    private int inFlightSize() {
+        return inFlight == null ? 0 : inFlight.size();
+    }
+
+    private void scheduleRetry() {
+        if (retryTimeout == null && inFlight != null && !inFlight.isEmpty()) {
+            retryTimeout = timer.newTimeout(this, delivery.getRetryInterval(), TimeUnit.SECONDS);
+        }
+    }
+
+    private int nextPacketId() {
+        for (; ; ) {
+            packetId = packetId >= MAX_PACKET_ID ? 1 : packetId + 1;
+            if (inFlight == null || !inFlight.containsKey(packetId)) {
+                return packetId;
+            }
+        }
+    }
+
+    private static MqttMessage retransmitMessage(int id, InFlight entry) {
+        MqttPublishMessage message = entry.message;
+        if (message == null) {
+            return ackMessage(MqttMessageType.PUBREL, id);
+        }
+        return publishMessage(message.variableHeader().topicName(), message.fixedHeader().qosLevel(),
+                id, message.payload().retainedDuplicate(), true, message.fixedHeader().isRetain());
+    }
+
+    private static MqttPublishMessage publishMessage(String topic, MqttQoS qos, int id, ByteBuf payload,
+                                                     boolean dup, boolean retain) {
+        MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, dup, qos, retain, 0);
+        return new MqttPublishMessage(fixedHeader, new MqttPublishVariableHeader(topic, id), payload);
+    }
+
+    public static MqttMessage ackMessage(MqttMessageType type, int id) {
+        // PUBREL 固定头 QoS 为 1
+        MqttQoS qos = type == MqttMessageType.PUBREL ? MqttQoS.AT_LEAST_ONCE : MqttQoS.AT_MOST_ONCE;
+        MqttFixedHeader fixedHeader = new MqttFixedHeader(type, false, qos, false, 0);
+        return new MqttMessage(fixedHeader, MqttMessageIdVariableHeader.from(id));
+    }
+
+    private static final class InFlight {
+
+        /**
+         * 等待 PUBACK/PUBREC 时为待重发的消息, 等待 PUBCOMP 时为 null
+         */
+        MqttPublishMessage message;
+
+        long sentAt;
+
+        /**
+         * 离线队列中的位置, 不是离线消息时为 -1
+         */
+        final long position;
+
+        InFlight(MqttPublishMessage message, long sentAt, long position) {
+            this.message = message;
+            this.sentAt = sentAt;
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package cn.flizi.push.mqtt.session;
+
+import io.netty.util.internal.PlatformDependent;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * clientId 到会话的映射
+ */
+@Component
+public class SessionRegistry {
+
+    private final ConcurrentMap<String, MqttSession> sessions = PlatformDependent.newConcurrentHashMap();
+
+    public MqttSession get(String clientId) {
+        return sessions.get(clientId);
+    }
+
+    /**
+     * @return 被替换的会话
+     */
+    public MqttSession put(MqttSession session) {
+        return sessions.put(session.clientId(), session);
+    }
+
+    public boolean remove(MqttSession session) {
+        return sessions.remove(session.clientId(), session);
+    }
+
+    public Collection<MqttSession> sessions() {
+        return sessions.values();
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+}
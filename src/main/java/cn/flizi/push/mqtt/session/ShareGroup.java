@@ -0,0 +1,132 @@
+package cn.flizi.push.mqtt.session;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个共享订阅组, 同一组名和过滤器的订阅者为组成员
+ * <p>
+ * 成员为写时复制数组, 发布时选择成员不加锁; 增删成员由 {@link SharedSubscriptions} 串行执行.
+ */
+public final class ShareGroup {
+
+    private static final Subscription[] EMPTY = new Subscription[0];
+
+    private final String name;
+
+    private final String filter;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private volatile Subscription[] members = EMPTY;
+
+    ShareGroup(String name, String filter) {
+        this.name = name;
+        this.filter = filter;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String filter() {
+        return filter;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    /**
+     * 选择一个成员, 都不可写时选在线的成员由会话排队, 都不在线时选持久会话写入离线消息
+     *
+     * @return 没有成员时为 null
+     */
+    public Subscription select(ShareStrategy strategy) {
+        Subscription[] members = this.members;
+        int n = members.length;
+        if (n == 0) {
+            return null;
+        }
+        if (n == 1) {
+            return members[0];
+        }
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+        Subscription best = null;
+        long bestFree = -1;
+        for (int i = 0; i < n; i++) {
+            Subscription member = members[(start + i) % n];
+            Channel channel = channel(member);
+            if (channel == null || !channel.isWritable()) {
+                continue;
+            }
+            if (strategy == ShareStrategy.ROUND_ROBIN) {
+                return member;
+            }
+            // 距不可写的字节数越大, 未发送的越少
+            long free = channel.bytesBeforeUnwritable();
+            if (free > bestFree) {
+                best = member;
+                bestFree = free;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        Subscription persistent = null;
+        for (int i = 0; i < n; i++) {
+            Subscription member = members[(start + i) % n];
+            if (channel(member) != null) {
+                return member;
+            }
+            if (persistent == null && member.session().isPersistent()) {
+                persistent = member;
+            }
+        }
+        return persistent;
+    }
+
+    /**
+     * 同一会话重复订阅时替换 QoS
+     *
+     * @return 是否为新成员
+     */
+    boolean add(Subscription subscription) {
+        Subscription[] members = this.members;
+        int index = Arrays.asList(members).indexOf(subscription);
+        if (index >= 0) {
+            Subscription[] copy = members.clone();
+            copy[index] = subscription;
+            this.members = copy;
+            return false;
+        }
+        Subscription[] copy = Arrays.copyOf(members, members.length + 1);
+        copy[members.length] = subscription;
+        this.members = copy;
+        return true;
+    }
+
+    /**
+     * @return 是否为成员
+     */
+    boolean remove(MqttSession session) {
+        Subscription[] members = this.members;
+        int index = Arrays.asList(members).indexOf(new Subscription(session, null));
+        if (index < 0) {
+            return false;
+        }
+        Subscription[] copy = new Subscription[members.length - 1];
+        System.arraycopy(members, 0, copy, 0, index);
+        System.arraycopy(members, index + 1, copy, index, copy.length - index);
+        this.members = copy;
+        return true;
+    }
+
+    private static Channel channel(Subscription member) {
+        ChannelHandlerContext ctx = member.session().context();
+        return ctx == null ? null : ctx.channel();
+    }
+}
@@ -0,0 +1,17 @@
+package cn.flizi.push.mqtt.session;
+
+/**
+ * 共享订阅组内选择成员的方式, 都跳过不可写的连接
+ */
+public enum ShareStrategy {
+
+    /**
+     * 轮流
+     */
+    ROUND_ROBIN,
+
+    /**
+     * 连接上未发送字节最少的, 相同时轮流
+     */
+    LEAST_PENDING
+}
@@ -0,0 +1,117 @@
+package cn.flizi.push.mqtt.session;
+
+import cn.flizi.push.mqtt.topic.TopicTrie;
+import io.netty.util.internal.PlatformDependent;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 共享订阅 $share/{group}/{filter}, 每条消息只投递给组内一个成员
+ * <p>
+ * 组按过滤器放入单独的订阅树, 发布时的匹配和选择成员都不加锁. 同一组的增删成员通过
+ * ConcurrentHashMap.compute 串行执行, 最后一个成员退出时删除组. 组只在本节点内, 集群中
+ * 每个有成员的节点各投递一次.
+ */
+public final class SharedSubscriptions {
+
+    public static final String PREFIX = "$share/";
+
+    private final TopicTrie<ShareGroup> topicTrie;
+
+    /**
+     * key 为去掉前缀的 {group}/{filter}
+     */
+    private final ConcurrentMap<String, ShareGroup> groups = PlatformDependent.newConcurrentHashMap();
+
+    private final AtomicInteger members = new AtomicInteger();
+
+    public SharedSubscriptions(int cacheSize) {
+        topicTrie = new TopicTrie<>(cacheSize);
+    }
+
+    public static boolean isShared(String filter) {
+        return filter.startsWith(PREFIX);
+    }
+
+    /**
+     * 组名不能为空或包含通配符, 其后为普通的主题过滤器
+     */
+    public static boolean isValidFilter(String filter) {
+        int slash = filter.indexOf('/', PREFIX.length());
+        if (!isShared(filter) || slash <= PREFIX.length()) {
+            return false;
+        }
+        String group = filter.substring(PREFIX.length(), slash);
+        return group.indexOf('+') < 0 && group.indexOf('#') < 0
+                && TopicTrie.isValidFilter(filter.substring(slash + 1));
+    }
+
+    /**
+     * 用于匹配发布主题的过滤器, 普通订阅原样返回
+     */
+    public static String topicFilter(String filter) {
+        return isShared(filter) ? filter.substring(filter.indexOf('/', PREFIX.length()) + 1) : filter;
+    }
+
+    /**
+     * @param filter 经过 {@link #isValidFilter} 校验
+     * @return 是否新建了组
+     */
+    public boolean subscribe(String filter, Subscription subscription) {
+        String key = filter.substring(PREFIX.length());
+        boolean[] created = new boolean[1];
+        groups.compute(key, (k, group) -> {
+            if (group == null) {
+                int slash = k.indexOf('/');
+                group = new ShareGroup(k.substring(0, slash), k.substring(slash + 1));
+                topicTrie.subscribe(group.filter(), group);
+                created[0] = true;
+            }
+            if (group.add(subscription)) {
+                members.incrementAndGet();
+            }
+            return group;
+        });
+        return created[0];
+    }
+
+    /**
+     * @return 是否删除了组
+     */
+    public boolean unsubscribe(String filter, MqttSession session) {
+        String key = filter.substring(PREFIX.length());
+        boolean[] removed = new boolean[1];
+        groups.computeIfPresent(key, (k, group) -> {
+            if (group.remove(session)) {
+                members.decrementAndGet();
+            }
+            if (group.size() > 0) {
+                return group;
+            }
+            topicTrie.unsubscribe(group.filter(), group);
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    /**
+     * 过滤器与发布主题匹配的组
+     */
+    public List<ShareGroup> match(String topic) {
+        return topicTrie.match(topic);
+    }
+
+    public ShareGroup group(String group, String filter) {
+        return groups.get(group + "/" + filter);
+    }
+
+    /**
+     * 所有组的成员总数
+     */
+    public int size() {
+        return members.get();
+    }
+}
@@ -0,0 +1,100 @@
+package cn.flizi.push.mqtt.session;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.topic.TopicTrie;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按主题查找慢消费者策略, 并统计丢弃、合并及断开的次数
+ */
+@Component
+@Log4j2
+public class SlowConsumerPolicies {
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder conflated = new LongAdder();
+
+    private final LongAdder disconnected = new LongAdder();
+
+    @Autowired
+    private MqttProperties mqttProperties;
+
+    private TopicTrie<Rule> rules;
+
+    @PostConstruct
+    public void init() {
+        MqttProperties.SlowConsumer config = mqttProperties.getSlowConsumer();
+        rules = new TopicTrie<>(config.getTopics().isEmpty() ? 0 : mqttProperties.getTopicCacheSize());
+        for (int i = 0; i < config.getTopics().size(); i++) {
+            MqttProperties.TopicPolicy topic = config.getTopics().get(i);
+            if (!TopicTrie.isValidFilter(topic.getFilter()) || topic.getPolicy() == null) {
+                log.warn("Invalid slow consumer policy: {} {}", topic.getFilter(), topic.getPolicy());
+                continue;
+            }
+            rules.subscribe(topic.getFilter(), new Rule(i, topic.getPolicy()));
+        }
+    }
+
+    public long getMaxQueuedBytes() {
+        return mqttProperties.getSlowConsumer().getMaxQueuedBytes();
+    }
+
+    /**
+     * 主题匹配多条配置时取最先配置的, 都不匹配时为默认策略
+     */
+    public SlowConsumerPolicy policy(String topic) {
+        Rule matched = null;
+        if (rules.size() > 0) {
+            List<Rule> list = rules.match(topic);
+            for (Rule rule : list) {
+                if (matched == null || rule.order < matched.order) {
+                    matched = rule;
+                }
+            }
+        }
+        return matched != null ? matched.policy : mqttProperties.getSlowConsumer().getPolicy();
+    }
+
+    public void onDropped() {
+        dropped.increment();
+    }
+
+    public void onConflated() {
+        conflated.increment();
+    }
+
+    public void onDisconnected() {
+        disconnected.increment();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public long conflated() {
+        return conflated.sum();
+    }
+
+    public long disconnected() {
+        return disconnected.sum();
+    }
+
+    private static final class Rule {
+
+        final int order;
+
+        final SlowConsumerPolicy policy;
+
+        Rule(int order, SlowConsumerPolicy policy) {
+            this.order = order;
+            this.policy = policy;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package cn.flizi.push.mqtt.session;
+
+/**
+ * 连接不可写导致排队消息超出限制时的处理方式
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * 丢弃新消息
+     */
+    DROP_NEWEST,
+
+    /**
+     * 丢弃队列中最早的消息
+     */
+    DROP_OLDEST,
+
+    /**
+     * 同一主题只保留最新的一条, 仍超出时丢弃新消息
+     */
+    CONFLATE,
+
+    /**
+     * 断开连接
+     */
+    DISCONNECT
+}
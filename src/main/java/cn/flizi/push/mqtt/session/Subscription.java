@@ -0,0 +1,36 @@
+package cn.flizi.push.mqtt.session;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+/**
+ * 订阅树中的订阅者, 同一会话视为同一订阅者
+ */
+public final class Subscription {
+
+    private final MqttSession session;
+
+    private final MqttQoS qos;
+
+    public Subscription(MqttSession session, MqttQoS qos) {
+        this.session = session;
+        this.qos = qos;
+    }
+
+    public MqttSession session() {
+        return session;
+    }
+
+    public MqttQoS qos() {
+        return qos;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Subscription && ((Subscription) o).session == session;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(session);
+    }
+}
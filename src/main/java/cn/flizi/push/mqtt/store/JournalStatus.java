@@ -0,0 +1,45 @@
+package cn.flizi.push.mqtt.store;
+
+import lombok.Data;
+
+/**
+ * 消息日志状态
+ */
+@Data
+public class JournalStatus {
+
+    private boolean enabled;
+
+    /**
+     * 最早一条未删除消息的偏移
+     */
+    private long firstOffset;
+
+    /**
+     * 下一条写入的消息的偏移
+     */
+    private long nextOffset;
+
+    /**
+     * 最早一条消息的时间, 毫秒, 没有消息时为 0
+     */
+    private long firstTimestamp;
+
+    private long lastTimestamp;
+
+    private int segments;
+
+    /**
+     * 段文件总大小
+     */
+    private long size;
+
+    /**
+     * 等待写入的消息数
+     */
+    private int pending;
+
+    private long appended;
+
+    private long dropped;
+}
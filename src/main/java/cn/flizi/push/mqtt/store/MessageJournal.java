@@ -0,0 +1,622 @@
+package cn.flizi.push.mqtt.store;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * 消息日志, 记录本节点发布的消息, 可按偏移或时间范围重放
+ * <p>
+ * 客户端及 HTTP 接口的发布、广播和按 clientId 的投递各记录一条, 其他节点转发来的消息和重放的消息不记录.
+ * <p>
+ * 发布线程只把消息放入有界队列; mqtt-journal 线程每隔 commit-interval, 或待写数量达到 batch-size 时,
+ * 把队列中的消息一批追加到定长的内存映射段文件, 每批只刷盘一次. 偏移为消息在整个日志中的字节位置,
+ * 段文件以其第一条消息的偏移命名. 每个段在内存中每隔 index-interval 字节记录一个时间索引,
+ * 消息时间取写入时间且单调不减, 按时间查找时先二分索引再顺序扫描. 超过保存时间或总大小超限时删除最早的段.
+ * 重启时顺序扫描所有段, 校验 crc 并重建索引.
+ * <p>
+ * 记录格式: length(int) crc(int) timestamp(long) qos(byte) topic(short+bytes) payload
+ */
+@Component
+@Log4j2
+public class MessageJournal {
+
+    private static final int RECORD_HEADER = 8;
+
+    private static final String SUFFIX = ".journal";
+
+    private final NavigableMap<Long, Segment> segments = new TreeMap<>();
+
+    private final AtomicBoolean commitScheduled = new AtomicBoolean();
+
+    private final LongAdder appended = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    @Autowired
+    private MqttProperties mqttProperties;
+
+    private Queue<Entry> queue;
+
+    private File dir;
+
+    private int segmentSize;
+
+    private Segment active;
+
+    /**
+     * 最后写入的消息时间
+     */
+    private long lastTimestamp;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void open() throws IOException {
+        MqttProperties.Journal config = mqttProperties.getJournal();
+        if (!config.isEnabled()) {
+            return;
+        }
+        dir = new File(config.getDir());
+        Files.createDirectories(dir.toPath());
+        segmentSize = config.getSegmentSize();
+        recover();
+        queue = PlatformDependent.newFixedMpscQueue(config.getQueueSize());
+        executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("mqtt-journal"));
+        executor.scheduleWithFixedDelay(this::commit, config.getCommitInterval(), config.getCommitInterval(),
+                TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::compact, 60, 60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 写入队列中剩余的消息后关闭
+     */
+    @PreDestroy
+    public void close() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        commit();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+                segment.close();
+            }
+            segments.clear();
+            active = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return queue != null;
+    }
+
+    /**
+     * 放入写入队列, 不改变 payload 的引用计数
+     *
+     * @return 是否放入, 未开启或队列已满时返回 false
+     */
+    public boolean append(String topic, MqttQoS qos, ByteBuf payload) {
+        if (queue == null) {
+            return false;
+        }
+        Entry entry = new Entry(topic, qos, payload.retainedDuplicate(), System.currentTimeMillis());
+        if (!queue.offer(entry)) {
+            entry.payload.release();
+            dropped.increment();
+            return false;
+        }
+        if (queue.size() >= mqttProperties.getJournal().getBatchSize() && commitScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> {
+                    commitScheduled.set(false);
+                    commit();
+                });
+            } catch (RejectedExecutionException e) {
+                // 已关闭, 由 close 写入
+                commitScheduled.set(false);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 写入队列中的消息, 写完后刷盘一次
+     *
+     * @return 写入的条数
+     */
+    int commit() {
+        int count = 0;
+        Segment segment;
+        synchronized (this) {
+            // 只处理至多一个队列长度, 持续写入时不会一直占用锁
+            int remaining = mqttProperties.getJournal().getQueueSize();
+            for (Entry entry; remaining-- > 0 && (entry = queue.poll()) != null; ) {
+                try {
+                    if (write(entry)) {
+                        count++;
+                    } else {
+                        dropped.increment();
+                    }
+                } finally {
+                    entry.payload.release();
+                }
+            }
+            segment = active;
+        }
+        if (count > 0) {
+            appended.add(count);
+            if (mqttProperties.getJournal().isSync()) {
+                segment.buffer.force();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 按顺序重放偏移在 [from, to) 内的消息, from 不是消息的起始位置时从其后的第一条开始.
+     * payload 为映射内存的包装, 回调返回后释放, 需要保留时由 consumer retain
+     *
+     * @param max 最多重放的消息数
+     * @return 下一条消息的偏移, 用作继续重放的 from; 范围内没有消息时为 from
+     */
+    public long replay(long from, long to, int max, RecordConsumer consumer) {
+        long next = from;
+        int count = 0;
+        for (Range range : ranges(from, to)) {
+            Segment segment = range.segment;
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int position = range.start;
+            while (position < range.end) {
+                if (count >= max) {
+                    return segment.base + position;
+                }
+                int end = position + RECORD_HEADER + buffer.getInt(position);
+                buffer.limit(end).position(position + RECORD_HEADER);
+                long timestamp = buffer.getLong();
+                MqttQoS qos = MqttQoS.valueOf(buffer.get());
+                String topic = getString(buffer);
+                ByteBuf payload = Unpooled.wrappedBuffer(buffer.slice());
+                try {
+                    consumer.accept(segment.base + position, timestamp, topic, qos, payload);
+                } finally {
+                    payload.release();
+                }
+                buffer.clear();
+                position = end;
+                count++;
+            }
+            next = segment.base + range.end;
+        }
+        return next;
+    }
+
+    /**
+     * 把偏移在 [from, to) 内的原始记录写入 target, target 为文件或 socket 时由内核直接复制
+     *
+     * @return 写入的字节数
+     */
+    public long transferTo(long from, long to, WritableByteChannel target) throws IOException {
+        long total = 0;
+        for (Range range : ranges(from, to)) {
+            long position = range.start;
+            while (position < range.end) {
+                position += range.segment.channel.transferTo(position, range.end - position, target);
+            }
+            total += range.end - range.start;
+        }
+        return total;
+    }
+
+    /**
+     * 偏移在 [from, to) 内的原始记录, 每个段一个 FileRegion, 可直接写入 netty 的 Channel
+     */
+    public List<FileRegion> regions(long from, long to) {
+        List<Range> ranges = ranges(from, to);
+        List<FileRegion> regions = new ArrayList<>(ranges.size());
+        for (Range range : ranges) {
+            regions.add(new DefaultFileRegion(range.segment.file, range.start, range.end - range.start));
+        }
+        return regions;
+    }
+
+    /**
+     * 时间不早于 timestamp 的第一条消息的偏移, 没有时为 {@link #nextOffset()}
+     */
+    public synchronized long offsetOf(long timestamp) {
+        for (Segment segment : segments.values()) {
+            if (segment.writePos == 0 || segment.lastTimestamp < timestamp) {
+                continue;
+            }
+            int position = segment.floorTimestamp(timestamp);
+            while (segment.buffer.getLong(position + RECORD_HEADER) < timestamp) {
+                position += RECORD_HEADER + segment.buffer.getInt(position);
+            }
+            return segment.base + position;
+        }
+        return nextOffset();
+    }
+
+    /**
+     * 最早一条未删除消息的偏移
+     */
+    public synchronized long firstOffset() {
+        return segments.isEmpty() ? 0 : segments.firstKey();
+    }
+
+    /**
+     * 下一条写入的消息的偏移
+     */
+    public synchronized long nextOffset() {
+        return active == null ? 0 : active.base + active.writePos;
+    }
+
+    public synchronized JournalStatus status() {
+        JournalStatus status = new JournalStatus();
+        status.setEnabled(isEnabled());
+        status.setFirstOffset(firstOffset());
+        status.setNextOffset(nextOffset());
+        for (Segment segment : segments.values()) {
+            if (segment.writePos > 0 && status.getFirstTimestamp() == 0) {
+                status.setFirstTimestamp(segment.buffer.getLong(RECORD_HEADER));
+            }
+            status.setSize(status.getSize() + segment.capacity());
+        }
+        status.setLastTimestamp(lastTimestamp);
+        status.setSegments(segments.size());
+        status.setPending(pending());
+        status.setAppended(appended());
+        status.setDropped(dropped());
+        return status;
+    }
+
+    public int pending() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    public long appended() {
+        return appended.sum();
+    }
+
+    /**
+     * 队列已满或消息超过段大小而未写入的消息数
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 删除过期或超出总大小的段, 从最早的开始
+     */
+    public synchronized void compact() {
+        if (active == null) {
+            return;
+        }
+        MqttProperties.Journal config = mqttProperties.getJournal();
+        long expireBefore = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(config.getMaxAge());
+        long size = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.capacity();
+        }
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment == active || segment.lastTimestamp >= expireBefore && size <= config.getMaxSize()) {
+                break;
+            }
+            iterator.remove();
+            size -= segment.capacity();
+            segment.close();
+            if (!segment.file.delete()) {
+                log.warn("Journal segment {} delete failed", segment.file);
+            }
+        }
+    }
+
+    /**
+     * 偏移在 [from, to) 内的记录在各段中的位置, 两端对齐到记录的起始位置
+     */
+    private synchronized List<Range> ranges(long from, long to) {
+        List<Range> ranges = new ArrayList<>();
+        Long first = segments.floorKey(from);
+        Collection<Segment> candidates = first == null ? segments.values() : segments.tailMap(first, true).values();
+        for (Segment segment : candidates) {
+            if (segment.base >= to) {
+                break;
+            }
+            int start = segment.align(from - segment.base);
+            int end = segment.align(to - segment.base);
+            if (start < end) {
+                ranges.add(new Range(segment, start, end));
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @return 是否写入, 消息超过段大小或切换段失败时返回 false
+     */
+    private boolean write(Entry entry) {
+        if (active == null) {
+            return false;
+        }
+        byte[] topicBytes = entry.topic.getBytes(CharsetUtil.UTF_8);
+        int bodyLength = 8 + 1 + 2 + topicBytes.length + entry.payload.readableBytes();
+        int length = RECORD_HEADER + bodyLength;
+        // 段尾保留 4 字节 0 作为结束标记
+        if (length + 4 > segmentSize) {
+            return false;
+        }
+        if (active.writePos + length + 4 > active.capacity()) {
+            try {
+                roll();
+            } catch (IOException e) {
+                log.error("Journal segment roll fail", e);
+                return false;
+            }
+        }
+        long timestamp = Math.max(entry.timestamp, lastTimestamp);
+        int offset = active.writePos;
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.limit(offset + length).position(offset + RECORD_HEADER);
+        buffer.putLong(timestamp);
+        buffer.put((byte) entry.qos.value());
+        buffer.putShort((short) topicBytes.length);
+        buffer.put(topicBytes);
+        entry.payload.getBytes(entry.payload.readerIndex(), buffer);
+
+        buffer.position(offset + RECORD_HEADER);
+        CRC32 crc = new CRC32();
+        crc.update(buffer);
+        active.buffer.putInt(offset + 4, (int) crc.getValue());
+        // 长度最后写入作为提交标记
+        active.buffer.putInt(offset, bodyLength);
+        active.append(offset, length, timestamp, mqttProperties.getJournal().getIndexInterval());
+        lastTimestamp = timestamp;
+        return true;
+    }
+
+    private void roll() throws IOException {
+        long base = active == null ? 0 : active.base + active.writePos;
+        if (active != null) {
+            active.buffer.force();
+        }
+        active = Segment.open(new File(dir, String.format("%020d%s", base, SUFFIX)), base, segmentSize);
+        segments.put(base, active);
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                long base = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+                Segment segment = Segment.open(file, base, (int) file.length());
+                segments.put(base, segment);
+                scan(segment);
+                active = segment;
+            }
+        }
+        if (active != null && active.writePos == 0 && active.capacity() != segmentSize) {
+            // 段大小已修改, 空段按新的大小重建
+            segments.remove(active.base);
+            active.close();
+            Files.delete(active.file.toPath());
+            active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        }
+        if (active == null || active.capacity() != segmentSize) {
+            roll();
+        }
+        log.info("Journal recovered, segments: {}, offset: {} ~ {}", segments.size(), firstOffset(), nextOffset());
+    }
+
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int interval = mqttProperties.getJournal().getIndexInterval();
+        int offset = 0;
+        while (offset + RECORD_HEADER <= buffer.capacity()) {
+            int bodyLength = buffer.getInt(offset);
+            if (bodyLength <= 0 || offset + RECORD_HEADER + bodyLength > buffer.capacity()) {
+                break;
+            }
+            buffer.limit(offset + RECORD_HEADER + bodyLength).position(offset + RECORD_HEADER);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                log.warn("Journal segment {} corrupted at {}", segment.file, offset);
+                break;
+            }
+            long timestamp = buffer.getLong();
+            segment.append(offset, RECORD_HEADER + bodyLength, timestamp, interval);
+            lastTimestamp = Math.max(lastTimestamp, timestamp);
+            offset += RECORD_HEADER + bodyLength;
+            buffer.clear();
+        }
+        buffer.clear();
+        if (offset + 4 <= buffer.capacity() && buffer.getInt(offset) != 0) {
+            // 损坏之后的数据不再使用, 清零避免之后写入的记录与残留数据拼接
+            for (int i = offset; i < buffer.capacity(); i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, CharsetUtil.UTF_8);
+    }
+
+    public interface RecordConsumer {
+
+        void accept(long offset, long timestamp, String topic, MqttQoS qos, ByteBuf payload);
+    }
+
+    private static final class Entry {
+
+        final String topic;
+
+        final MqttQoS qos;
+
+        final ByteBuf payload;
+
+        final long timestamp;
+
+        Entry(String topic, MqttQoS qos, ByteBuf payload, long timestamp) {
+            this.topic = topic;
+            this.qos = qos;
+            this.payload = payload;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static final class Range {
+
+        final Segment segment;
+
+        final int start;
+
+        final int end;
+
+        Range(Segment segment, int start, int end) {
+            this.segment = segment;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static final class Segment {
+
+        final long base;
+
+        final File file;
+
+        final FileChannel channel;
+
+        final MappedByteBuffer buffer;
+
+        int writePos;
+
+        long lastTimestamp;
+
+        /**
+         * 稀疏时间索引, 段内偏移及该位置消息的时间, 两者都递增
+         */
+        int[] indexOffsets = new int[16];
+
+        long[] indexTimestamps = new long[16];
+
+        int indexSize;
+
+        private Segment(long base, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.base = base;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment open(File file, long base, int size) throws IOException {
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            return new Segment(base, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        /**
+         * 记录已写入的消息, 距上一个索引项超过 interval 字节时加入索引
+         */
+        void append(int offset, int length, long timestamp, int interval) {
+            if (indexSize == 0 || offset - indexOffsets[indexSize - 1] >= interval) {
+                if (indexSize == indexOffsets.length) {
+                    indexOffsets = Arrays.copyOf(indexOffsets, indexSize << 1);
+                    indexTimestamps = Arrays.copyOf(indexTimestamps, indexSize << 1);
+                }
+                indexOffsets[indexSize] = offset;
+                indexTimestamps[indexSize] = timestamp;
+                indexSize++;
+            }
+            writePos = offset + length;
+            lastTimestamp = timestamp;
+        }
+
+        /**
+         * 不小于段内偏移 relative 的第一条记录的位置, 超出已写入部分时为 writePos
+         */
+        int align(long relative) {
+            if (relative <= 0) {
+                return 0;
+            }
+            if (relative >= writePos) {
+                return writePos;
+            }
+            int index = Arrays.binarySearch(indexOffsets, 0, indexSize, (int) relative);
+            int position = indexOffsets[index >= 0 ? index : -index - 2];
+            while (position < relative) {
+                position += RECORD_HEADER + buffer.getInt(position);
+            }
+            return position;
+        }
+
+        /**
+         * 时间早于 timestamp 的最后一个索引项的位置, 从这里开始扫描
+         */
+        int floorTimestamp(long timestamp) {
+            int low = 0;
+            int high = indexSize - 1;
+            int position = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexTimestamps[mid] < timestamp) {
+                    position = indexOffsets[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return position;
+        }
+
+        /**
+         * 映射内存在不再被引用后由 GC 回收, 重放中的段被删除时仍可读取
+         */
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,700 @@
+package cn.flizi.push.mqtt.store;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * 离线消息队列
+ * <p>
+ * 所有客户端共用一组定长的内存映射段文件, 只追加写入. 每个客户端在内存中只保存消息位置,
+ * 消费时直接包装映射内存, 不复制到堆中. 段内消息全部确认, 超过保存时间或总大小超限时整段删除.
+ * <p>
+ * 所有状态只在 mqtt-offline 线程中访问, 不加锁: 写入、取出、确认和删除都提交到该线程执行, 切换段、
+ * 刷盘和删除段也在该线程中进行, 不占用 I/O 线程. 取出的消息通过回调交给会话, 由会话在自己的线程中写出.
+ * 同一线程按提交顺序执行, 会话先写入再取出时一定能取到. 待写入的消息数超过 offline-queue-size 时丢弃.
+ * <p>
+ * 取出的消息在客户端确认之前仍然保留, 确认时按顺序推进游标写入同一日志; 重启时顺序扫描恢复,
+ * 游标之后未确认的消息重新投递. 超出配额丢弃的消息单独记录, 不影响游标.
+ * <p>
+ * 记录格式: length(int) crc(int) type(byte) timestamp(long) clientId(short+bytes) 之后为
+ * 消息: qos(byte) topic(short+bytes) payload, 游标(此位置及之前的消息已确认)或丢弃(只丢弃此位置): position(long)
+ */
+@Component
+@Log4j2
+public class OfflineMessageStore {
+
+    private static final byte TYPE_MESSAGE = 1;
+
+    private static final byte TYPE_CURSOR = 2;
+
+    private static final byte TYPE_SKIP = 3;
+
+    private static final int RECORD_HEADER = 8;
+
+    private static final String SUFFIX = ".log";
+
+    private final NavigableMap<Long, Segment> segments = new TreeMap<>();
+
+    private final Map<String, Client> clients = new HashMap<>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final LongAdder dropped = new LongAdder();
+
+    @Autowired
+    private MqttProperties mqttProperties;
+
+    private File dir;
+
+    private int segmentSize;
+
+    private Segment active;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void open() throws IOException {
+        MqttProperties.Session config = mqttProperties.getSession();
+        if (!config.isOfflineEnabled()) {
+            return;
+        }
+        dir = new File(config.getStoreDir());
+        Files.createDirectories(dir.toPath());
+        segmentSize = config.getSegmentSize();
+        recover();
+        executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("mqtt-offline"));
+        executor.scheduleWithFixedDelay(this::compact0, 60, 60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 执行完已提交的操作后关闭
+     */
+    @PreDestroy
+    public void close() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Offline store close timeout");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+            segment.close();
+        }
+        segments.clear();
+        clients.clear();
+        active = null;
+    }
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * 提交一条消息, 不改变 payload 的引用计数
+     *
+     * @return 是否提交, 未开启、消息超过段大小或待写入的消息过多时返回 false
+     */
+    public boolean append(String clientId, String topic, MqttQoS qos, ByteBuf payload) {
+        if (executor == null) {
+            return false;
+        }
+        byte[] clientBytes = clientId.getBytes(CharsetUtil.UTF_8);
+        byte[] topicBytes = topic.getBytes(CharsetUtil.UTF_8);
+        int bodyLength = 1 + 8 + 2 + clientBytes.length + 1 + 2 + topicBytes.length + payload.readableBytes();
+        if (RECORD_HEADER + bodyLength > segmentSize) {
+            return false;
+        }
+        if (pending.incrementAndGet() > mqttProperties.getSession().getOfflineQueueSize()) {
+            pending.decrementAndGet();
+            dropped.increment();
+            return false;
+        }
+        ByteBuf retained = payload.retainedDuplicate();
+        long timestamp = System.currentTimeMillis();
+        boolean submitted = execute(() -> {
+            try {
+                append0(clientId, clientBytes, topicBytes, qos, retained, timestamp, bodyLength);
+            } finally {
+                pending.decrementAndGet();
+                retained.release();
+            }
+        });
+        if (!submitted) {
+            pending.decrementAndGet();
+            retained.release();
+        }
+        return submitted;
+    }
+
+    /**
+     * 按顺序取出至多 max 条消息, 在 mqtt-offline 线程中回调, 已关闭时回调空列表.
+     * payload 为映射内存的包装, 由 callback 负责释放; 消息在 {@link #ack} 之前重启会重新投递
+     */
+    public void poll(String clientId, int max, Consumer<List<Message>> callback) {
+        if (!execute(() -> callback.accept(poll0(clientId, max)))) {
+            callback.accept(Collections.emptyList());
+        }
+    }
+
+    /**
+     * 客户端确认取出的消息
+     *
+     * @param position {@link Message#position()}
+     */
+    public void ack(String clientId, long position) {
+        execute(() -> ack0(clientId, position));
+    }
+
+    /**
+     * 丢弃客户端的所有离线消息, 包括已取出未确认的
+     */
+    public void remove(String clientId) {
+        execute(() -> remove0(clientId));
+    }
+
+    /**
+     * 未取出的消息数, 等待之前提交的操作完成, 不在 I/O 线程中调用
+     */
+    public int size(String clientId) {
+        if (executor == null) {
+            return 0;
+        }
+        return call(() -> {
+            Client client = clients.get(clientId);
+            return client == null ? 0 : client.queue.size();
+        });
+    }
+
+    /**
+     * 因配额、队列已满或段删除丢弃的消息数
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 删除已确认, 过期或超出总大小的段, 等待完成
+     */
+    public void compact() {
+        if (executor != null) {
+            call(() -> {
+                compact0();
+                return null;
+            });
+        }
+    }
+
+    private boolean execute(Runnable task) {
+        if (executor == null) {
+            return false;
+        }
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private <T> T call(Callable<T> task) {
+        try {
+            return executor.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void append0(String clientId, byte[] clientBytes, byte[] topicBytes, MqttQoS qos, ByteBuf payload,
+                         long timestamp, int bodyLength) {
+        ByteBuffer buffer = reserve(bodyLength);
+        if (buffer == null) {
+            dropped.increment();
+            return;
+        }
+        int start = buffer.position();
+        buffer.put(TYPE_MESSAGE);
+        buffer.putLong(timestamp);
+        putBytes(buffer, clientBytes);
+        buffer.put((byte) qos.value());
+        putBytes(buffer, topicBytes);
+        payload.getBytes(payload.readerIndex(), buffer);
+        long position = commit(buffer, start, bodyLength);
+
+        Client client = clients.computeIfAbsent(clientId, k -> new Client());
+        client.queue.add(position);
+        active.live++;
+        if (client.size() > mqttProperties.getSession().getMaxMessagesPerClient() && client.queue.size() > 0) {
+            // 配额包括已取出未确认的消息, 超出时丢弃最早未取出的, 记录后重启时不再恢复
+            long oldest = client.queue.poll();
+            release(oldest);
+            dropped.increment();
+            appendPosition(TYPE_SKIP, clientId, oldest);
+        }
+    }
+
+    private List<Message> poll0(String clientId, int max) {
+        Client client = clients.get(clientId);
+        if (client == null || client.queue.size() == 0) {
+            return Collections.emptyList();
+        }
+        List<Message> messages = new ArrayList<>(Math.min(max, client.queue.size()));
+        while (messages.size() < max && client.queue.size() > 0) {
+            long position = client.queue.poll();
+            Segment segment = segments.get(segmentId(position));
+            if (segment == null) {
+                // 段已过期删除
+                continue;
+            }
+            ByteBuffer record = segment.buffer.duplicate();
+            record.position(offset(position) + RECORD_HEADER + 1 + 8);
+            record.position(record.position() + (record.getShort() & 0xFFFF));
+            MqttQoS qos = MqttQoS.valueOf(record.get());
+            String topic = getString(record);
+            record.limit(offset(position) + RECORD_HEADER + segment.buffer.getInt(offset(position)));
+            client.delivered.add(position);
+            messages.add(new Message(position, topic, qos, Unpooled.wrappedBuffer(record.slice())));
+        }
+        return messages;
+    }
+
+    /**
+     * 确认可能乱序, 从最早取出的消息开始连续确认的部分推进游标
+     */
+    private void ack0(String clientId, long position) {
+        Client client = clients.get(clientId);
+        if (client == null || client.delivered.size() == 0 || position < client.delivered.peek()) {
+            return;
+        }
+        client.acked.add(position);
+        long last = -1;
+        while (client.delivered.size() > 0 && client.acked.remove(client.delivered.peek())) {
+            last = client.delivered.poll();
+            release(last);
+        }
+        if (last >= 0) {
+            appendPosition(TYPE_CURSOR, clientId, last);
+        }
+        if (client.isEmpty()) {
+            clients.remove(clientId);
+        }
+    }
+
+    private void remove0(String clientId) {
+        Client client = clients.remove(clientId);
+        if (client == null) {
+            return;
+        }
+        long last = -1;
+        while (client.delivered.size() > 0) {
+            last = client.delivered.poll();
+            release(last);
+        }
+        while (client.queue.size() > 0) {
+            last = client.queue.poll();
+            release(last);
+        }
+        if (last >= 0) {
+            appendPosition(TYPE_CURSOR, clientId, last);
+        }
+    }
+
+    private void compact0() {
+        if (active == null) {
+            return;
+        }
+        MqttProperties.Session config = mqttProperties.getSession();
+        long expireBefore = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(config.getMaxAge());
+        long maxSegments = Math.max(2, config.getMaxStoreSize() / segmentSize);
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment == active) {
+                break;
+            }
+            if (segment.live <= 0 || segment.lastAppend < expireBefore || segments.size() > maxSegments) {
+                if (segment.live > 0) {
+                    log.warn("Offline segment {} deleted with {} messages", segment.id, segment.live);
+                    dropped.add(segment.live);
+                }
+                iterator.remove();
+                segment.close();
+                if (!segment.file.delete()) {
+                    log.warn("Offline segment {} delete failed", segment.file);
+                }
+            }
+        }
+    }
+
+    private void appendPosition(byte type, String clientId, long position) {
+        byte[] clientBytes = clientId.getBytes(CharsetUtil.UTF_8);
+        int bodyLength = 1 + 8 + 2 + clientBytes.length + 8;
+        ByteBuffer buffer = reserve(bodyLength);
+        if (buffer == null) {
+            return;
+        }
+        int start = buffer.position();
+        buffer.put(type);
+        buffer.putLong(System.currentTimeMillis());
+        putBytes(buffer, clientBytes);
+        buffer.putLong(position);
+        commit(buffer, start, bodyLength);
+    }
+
+    /**
+     * 在当前段预留一条记录的空间, 不足时切换到新段
+     */
+    private ByteBuffer reserve(int bodyLength) {
+        int length = RECORD_HEADER + bodyLength;
+        if (active == null || length > segmentSize) {
+            return null;
+        }
+        // 段尾保留 4 字节 0 作为结束标记
+        if (active.writePos + length + 4 > segmentSize) {
+            try {
+                roll();
+            } catch (IOException e) {
+                log.error("Offline segment roll fail", e);
+                return null;
+            }
+        }
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(active.writePos + RECORD_HEADER);
+        return buffer;
+    }
+
+    /**
+     * 写入 crc 与长度, 长度最后写入作为提交标记
+     *
+     * @return 记录位置
+     */
+    private long commit(ByteBuffer buffer, int start, int bodyLength) {
+        ByteBuffer body = buffer.duplicate();
+        body.position(start).limit(start + bodyLength);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        int offset = active.writePos;
+        active.buffer.putInt(offset + 4, (int) crc.getValue());
+        active.buffer.putInt(offset, bodyLength);
+        active.writePos = offset + RECORD_HEADER + bodyLength;
+        active.lastAppend = System.currentTimeMillis();
+        return position(active.id, offset);
+    }
+
+    private void release(long position) {
+        Segment segment = segments.get(segmentId(position));
+        if (segment != null) {
+            segment.live--;
+        }
+    }
+
+    private void roll() throws IOException {
+        long id = active == null ? 0 : active.id + 1;
+        if (active != null) {
+            active.buffer.force();
+        }
+        active = Segment.open(new File(dir, String.format("%020d%s", id, SUFFIX)), id, segmentSize);
+        segments.put(id, active);
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                long id = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+                Segment segment = Segment.open(file, id, (int) file.length());
+                segments.put(id, segment);
+                scan(segment);
+                active = segment;
+            }
+        }
+        // 扫描完再按配额丢弃最早的, 丢弃记录在消息之后
+        int maxMessages = mqttProperties.getSession().getMaxMessagesPerClient();
+        for (Client client : clients.values()) {
+            while (client.queue.size() > maxMessages) {
+                release(client.queue.poll());
+                dropped.increment();
+            }
+        }
+        if (active == null || active.capacity() != segmentSize) {
+            roll();
+        }
+        log.info("Offline store recovered, segments: {}, clients: {}", segments.size(), clients.size());
+    }
+
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = 0;
+        while (offset + RECORD_HEADER <= buffer.capacity()) {
+            int bodyLength = buffer.getInt(offset);
+            if (bodyLength <= 0 || offset + RECORD_HEADER + bodyLength > buffer.capacity()) {
+                break;
+            }
+            ByteBuffer body = buffer.duplicate();
+            body.position(offset + RECORD_HEADER).limit(offset + RECORD_HEADER + bodyLength);
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                log.warn("Offline segment {} corrupted at {}", segment.file, offset);
+                break;
+            }
+            byte type = body.get();
+            long timestamp = body.getLong();
+            String clientId = getString(body);
+            long position = position(segment.id, offset);
+            if (type == TYPE_MESSAGE) {
+                Client client = clients.computeIfAbsent(clientId, k -> new Client());
+                client.queue.add(position);
+                segment.live++;
+            } else if (type == TYPE_CURSOR) {
+                long cursor = body.getLong();
+                Client client = clients.get(clientId);
+                while (client != null && client.queue.size() > 0 && client.queue.peek() <= cursor) {
+                    release(client.queue.poll());
+                }
+                if (client != null && client.isEmpty()) {
+                    clients.remove(clientId);
+                }
+            } else if (type == TYPE_SKIP) {
+                Client client = clients.get(clientId);
+                long skipped = body.getLong();
+                if (client != null && client.queue.remove(skipped)) {
+                    release(skipped);
+                    if (client.isEmpty()) {
+                        clients.remove(clientId);
+                    }
+                }
+            }
+            segment.lastAppend = timestamp;
+            offset += RECORD_HEADER + bodyLength;
+        }
+        segment.writePos = offset;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, CharsetUtil.UTF_8);
+    }
+
+    private static long position(long segmentId, int offset) {
+        return segmentId << 32 | offset;
+    }
+
+    private static long segmentId(long position) {
+        return position >>> 32;
+    }
+
+    private static int offset(long position) {
+        return (int) position;
+    }
+
+    /**
+     * 取出的消息
+     */
+    public static final class Message {
+
+        private final long position;
+
+        private final String topic;
+
+        private final MqttQoS qos;
+
+        private final ByteBuf payload;
+
+        Message(long position, String topic, MqttQoS qos, ByteBuf payload) {
+            this.position = position;
+            this.topic = topic;
+            this.qos = qos;
+            this.payload = payload;
+        }
+
+        /**
+         * 消息在日志中的位置, 确认时使用
+         */
+        public long position() {
+            return position;
+        }
+
+        public String topic() {
+            return topic;
+        }
+
+        public MqttQoS qos() {
+            return qos;
+        }
+
+        public ByteBuf payload() {
+            return payload;
+        }
+    }
+
+    private static final class Segment {
+
+        final long id;
+
+        final File file;
+
+        final FileChannel channel;
+
+        final MappedByteBuffer buffer;
+
+        int writePos;
+
+        int live;
+
+        long lastAppend = System.currentTimeMillis();
+
+        private Segment(long id, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment open(File file, long id, int size) throws IOException {
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            return new Segment(id, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        /**
+         * 映射内存在不再被引用后由 GC 回收, 已交给客户端的 payload 仍然有效
+         */
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // ignore
+            }
+        }
+    }
+
+    private static final class Client {
+
+        /**
+         * 未取出的消息
+         */
+        final Positions queue = new Positions();
+
+        /**
+         * 已取出未确认的消息, 按取出顺序
+         */
+        final Positions delivered = new Positions();
+
+        /**
+         * 先于更早取出的消息确认的位置
+         */
+        final Set<Long> acked = new HashSet<>(4);
+
+        int size() {
+            return queue.size() + delivered.size();
+        }
+
+        boolean isEmpty() {
+            return size() == 0;
+        }
+    }
+
+    /**
+     * 消息位置的环形队列, 位置递增
+     */
+    private static final class Positions {
+
+        private long[] positions = new long[4];
+
+        private int head;
+
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        void add(long position) {
+            if (size == positions.length) {
+                long[] grown = new long[positions.length << 1];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = positions[(head + i) & (positions.length - 1)];
+                }
+                positions = grown;
+                head = 0;
+            }
+            positions[(head + size) & (positions.length - 1)] = position;
+            size++;
+        }
+
+        long peek() {
+            return positions[head];
+        }
+
+        long poll() {
+            long position = positions[head];
+            head = (head + 1) & (positions.length - 1);
+            size--;
+            return position;
+        }
+
+        /**
+         * 删除任意位置的元素, 只在恢复时使用
+         */
+        boolean remove(long position) {
+            int mask = positions.length - 1;
+            for (int i = 0; i < size; i++) {
+                if (positions[(head + i) & mask] == position) {
+                    for (int j = i; j < size - 1; j++) {
+                        positions[(head + j) & mask] = positions[(head + j + 1) & mask];
+                    }
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
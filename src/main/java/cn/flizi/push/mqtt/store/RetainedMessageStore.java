@@ -0,0 +1,395 @@
+package cn.flizi.push.mqtt.store;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.topic.TopicTrie;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * 保留消息
+ * <p>
+ * payload 复制到池化的直接内存中. 主题按层级组织成树, 通配符订阅只遍历过滤器能匹配的分支.
+ * 总内存超过上限时淘汰最早写入的消息. 可选定期及关闭时写快照, 启动时加载.
+ */
+@Component
+@Log4j2
+public class RetainedMessageStore {
+
+    private static final int SNAPSHOT_MAGIC = 0x52544e31;
+
+    private final Node root = new Node(null, null);
+
+    /**
+     * 写入顺序, 用于淘汰
+     */
+    private final LinkedHashMap<String, Retained> order = new LinkedHashMap<>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+    @Autowired
+    private MqttProperties mqttProperties;
+
+    private long memory;
+
+    private ScheduledExecutorService snapshotExecutor;
+
+    @PostConstruct
+    public void open() {
+        MqttProperties.Retained config = mqttProperties.getRetained();
+        if (!StringUtils.hasLength(config.getSnapshotFile())) {
+            return;
+        }
+        load(new File(config.getSnapshotFile()));
+        if (config.getSnapshotInterval() > 0) {
+            snapshotExecutor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("mqtt-retained"));
+            snapshotExecutor.scheduleWithFixedDelay(this::snapshot,
+                    config.getSnapshotInterval(), config.getSnapshotInterval(), TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdown();
+        }
+        if (StringUtils.hasLength(mqttProperties.getRetained().getSnapshotFile())) {
+            snapshot();
+        }
+        lock.writeLock().lock();
+        try {
+            for (Retained retained : order.values()) {
+                retained.payload.release();
+            }
+            order.clear();
+            root.children.clear();
+            memory = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 保存主题的保留消息, payload 为空时删除, 不改变 payload 的引用计数
+     */
+    public void put(String topic, MqttQoS qos, ByteBuf payload) {
+        int length = payload.readableBytes();
+        if (length == 0) {
+            remove(topic);
+            return;
+        }
+        if (length > mqttProperties.getRetained().getMaxMemory()) {
+            return;
+        }
+        ByteBuf copy = allocator.directBuffer(length, length);
+        copy.writeBytes(payload, payload.readerIndex(), length);
+        put(new Retained(topic, qos, copy));
+    }
+
+    public void remove(String topic) {
+        lock.writeLock().lock();
+        try {
+            Retained retained = order.remove(topic);
+            if (retained != null) {
+                detach(retained);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 查找匹配订阅过滤器的保留消息, consumer 收到的 payload 需要释放
+     *
+     * @return 匹配的消息数
+     */
+    public int match(String topicFilter, MessageConsumer consumer) {
+        String[] levels = topicFilter.split("/", -1);
+        lock.readLock().lock();
+        try {
+            return collect(root, levels, 0, consumer);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return order.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long memory() {
+        lock.readLock().lock();
+        try {
+            return memory;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 写快照, 先写临时文件再替换
+     * <p>
+     * 只在读锁内复制条目并增加 payload 引用, 文件写入不持有锁, 不阻塞保留消息的写入; 快照之间互斥.
+     */
+    public synchronized void snapshot() {
+        File file = new File(mqttProperties.getRetained().getSnapshotFile());
+        File temp = new File(file.getPath() + ".tmp");
+        List<Retained> entries;
+        lock.readLock().lock();
+        try {
+            entries = new ArrayList<>(order.size());
+            for (Retained retained : order.values()) {
+                entries.add(new Retained(retained.topic, retained.qos, retained.payload.retainedDuplicate()));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            if (file.getParentFile() != null) {
+                Files.createDirectories(file.getParentFile().toPath());
+            }
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                CRC32 crc = new CRC32();
+                ByteBuffer header = ByteBuffer.allocate(8);
+                header.putInt(SNAPSHOT_MAGIC).putInt(entries.size()).flip();
+                write(channel, header, crc);
+                for (Retained retained : entries) {
+                    byte[] topic = retained.topic.getBytes(CharsetUtil.UTF_8);
+                    ByteBuffer meta = ByteBuffer.allocate(2 + topic.length + 1 + 4);
+                    meta.putShort((short) topic.length).put(topic)
+                            .put((byte) retained.qos.value())
+                            .putInt(retained.payload.readableBytes()).flip();
+                    write(channel, meta, crc);
+                    write(channel, retained.payload.nioBuffer(), crc);
+                }
+                ByteBuffer trailer = ByteBuffer.allocate(8);
+                trailer.putLong(crc.getValue()).flip();
+                channel.write(trailer);
+                channel.force(false);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Retained snapshot fail: {}", file, e);
+        } finally {
+            for (Retained retained : entries) {
+                retained.payload.release();
+            }
+        }
+    }
+
+    private void load(File file) {
+        if (!file.isFile()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 16 || buffer.getInt(0) != SNAPSHOT_MAGIC) {
+                log.warn("Retained snapshot ignored, bad header: {}", file);
+                return;
+            }
+            ByteBuffer body = buffer.duplicate();
+            body.limit(buffer.capacity() - 8);
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            if (crc.getValue() != buffer.getLong(buffer.capacity() - 8)) {
+                log.warn("Retained snapshot ignored, bad crc: {}", file);
+                return;
+            }
+            body.position(4);
+            int count = body.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] topic = new byte[body.getShort() & 0xFFFF];
+                body.get(topic);
+                MqttQoS qos = MqttQoS.valueOf(body.get());
+                int length = body.getInt();
+                ByteBuf payload = allocator.directBuffer(length, length);
+                ByteBuffer slice = body.duplicate();
+                slice.limit(slice.position() + length);
+                payload.writeBytes(slice);
+                body.position(body.position() + length);
+                put(new Retained(new String(topic, CharsetUtil.UTF_8), qos, payload));
+            }
+            log.info("Retained snapshot loaded: {}, messages: {}", file, count);
+        } catch (IOException | RuntimeException e) {
+            log.error("Retained snapshot load fail: {}", file, e);
+        }
+    }
+
+    private void put(Retained retained) {
+        long maxMemory = mqttProperties.getRetained().getMaxMemory();
+        lock.writeLock().lock();
+        try {
+            Retained old = order.remove(retained.topic);
+            if (old != null) {
+                detach(old);
+            }
+            Node node = root;
+            for (String level : retained.topic.split("/", -1)) {
+                Node parent = node;
+                node = parent.children.computeIfAbsent(level, k -> new Node(parent, k));
+            }
+            node.retained = retained;
+            order.put(retained.topic, retained);
+            memory += retained.payload.capacity();
+            // 淘汰最早写入的消息
+            Iterator<Retained> iterator = order.values().iterator();
+            while (memory > maxMemory && iterator.hasNext()) {
+                Retained eldest = iterator.next();
+                iterator.remove();
+                detach(eldest);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 从树中移除并释放, 调用时持有写锁
+     */
+    private void detach(Retained retained) {
+        Node node = root;
+        for (String level : retained.topic.split("/", -1)) {
+            node = node.children.get(level);
+            if (node == null) {
+                break;
+            }
+        }
+        if (node != null && node.retained == retained) {
+            node.retained = null;
+            while (node.parent != null && node.retained == null && node.children.isEmpty()) {
+                node.parent.children.remove(node.level);
+                node = node.parent;
+            }
+        }
+        memory -= retained.payload.capacity();
+        retained.payload.release();
+    }
+
+    private int collect(Node node, String[] levels, int index, MessageConsumer consumer) {
+        if (index == levels.length) {
+            return accept(node, consumer);
+        }
+        String level = levels[index];
+        int count = 0;
+        if (TopicTrie.MULTI_LEVEL.equals(level)) {
+            // "a/#" 同样匹配 "a"
+            if (index > 0) {
+                count += accept(node, consumer);
+            }
+            for (Map.Entry<String, Node> child : node.children.entrySet()) {
+                if (index > 0 || !child.getKey().startsWith("$")) {
+                    count += collectAll(child.getValue(), consumer);
+                }
+            }
+        } else if (TopicTrie.SINGLE_LEVEL.equals(level)) {
+            for (Map.Entry<String, Node> child : node.children.entrySet()) {
+                if (index > 0 || !child.getKey().startsWith("$")) {
+                    count += collect(child.getValue(), levels, index + 1, consumer);
+                }
+            }
+        } else {
+            Node child = node.children.get(level);
+            if (child != null) {
+                count += collect(child, levels, index + 1, consumer);
+            }
+        }
+        return count;
+    }
+
+    private int collectAll(Node node, MessageConsumer consumer) {
+        int count = accept(node, consumer);
+        for (Node child : node.children.values()) {
+            count += collectAll(child, consumer);
+        }
+        return count;
+    }
+
+    private static int accept(Node node, MessageConsumer consumer) {
+        Retained retained = node.retained;
+        if (retained == null) {
+            return 0;
+        }
+        consumer.accept(retained.topic, retained.qos, retained.payload.retainedDuplicate());
+        return 1;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+        crc.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public interface MessageConsumer {
+
+        void accept(String topic, MqttQoS qos, ByteBuf payload);
+    }
+
+    private static final class Retained {
+
+        final String topic;
+
+        final MqttQoS qos;
+
+        final ByteBuf payload;
+
+        Retained(String topic, MqttQoS qos, ByteBuf payload) {
+            this.topic = topic;
+            this.qos = qos;
+            this.payload = payload;
+        }
+    }
+
+    private static final class Node {
+
+        final Node parent;
+
+        final String level;
+
+        final Map<String, Node> children = new HashMap<>(4);
+
+        Retained retained;
+
+        Node(Node parent, String level) {
+            this.parent = parent;
+            this.level = level;
+        }
+    }
+}
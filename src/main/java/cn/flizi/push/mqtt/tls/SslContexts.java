@@ -0,0 +1,92 @@
+package cn.flizi.push.mqtt.tls;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import org.springframework.util.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * 服务端 SslContext
+ * <p>
+ * 会话缓存使断线重连的客户端用 session id 恢复会话, 跳过证书校验和密钥交换. OpenSSL 默认启用 session ticket,
+ * 密钥随进程生成; 配置 ticket-key-file 后各节点使用相同的密钥, 重连到其他节点也能恢复.
+ * JDK 实现只在 JDK 13 以上支持 TLS 1.3 的 session ticket.
+ */
+public final class SslContexts {
+
+    /**
+     * 一个 ticket 密钥: 16 字节名称, 16 字节 HMAC 密钥, 16 字节 AES 密钥
+     */
+    private static final int TICKET_KEY_SIZE = 48;
+
+    private SslContexts() {
+    }
+
+    public static SslContext forServer(MqttProperties.Tls tls) throws IOException {
+        SslProvider provider = provider(tls.getProvider());
+        SslContextBuilder builder = SslContextBuilder
+                .forServer(new File(tls.getCertFile()), new File(tls.getKeyFile()),
+                        StringUtils.hasLength(tls.getKeyPassword()) ? tls.getKeyPassword() : null)
+                .sslProvider(provider)
+                .sessionCacheSize(tls.getSessionCacheSize())
+                .sessionTimeout(tls.getSessionTimeout());
+        if (!tls.getProtocols().isEmpty()) {
+            builder.protocols(tls.getProtocols());
+        }
+        if (!tls.getCiphers().isEmpty()) {
+            builder.ciphers(tls.getCiphers());
+        }
+        SslContext context = builder.build();
+        if (StringUtils.hasLength(tls.getTicketKeyFile())) {
+            if (!(context.sessionContext() instanceof OpenSslSessionContext)) {
+                throw new IllegalStateException("ticket-key-file requires the OpenSSL provider");
+            }
+            ((OpenSslSessionContext) context.sessionContext()).setTicketKeys(ticketKeys(tls.getTicketKeyFile()));
+        }
+        return context;
+    }
+
+    public static SslProvider provider(TlsProvider provider) {
+        switch (provider) {
+            case OPENSSL:
+                if (!OpenSsl.isAvailable()) {
+                    throw new IllegalStateException("OpenSSL unavailable", OpenSsl.unavailabilityCause());
+                }
+                return SslProvider.OPENSSL;
+            case JDK:
+                return SslProvider.JDK;
+            default:
+                return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+        }
+    }
+
+    /**
+     * 文件由若干 48 字节的密钥组成, 第一个用于加密新 ticket, 其余只用于解密, 便于轮换
+     */
+    private static OpenSslSessionTicketKey[] ticketKeys(String file) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(file));
+        if (bytes.length == 0 || bytes.length % TICKET_KEY_SIZE != 0) {
+            throw new IllegalArgumentException("Ticket key file must contain multiples of "
+                    + TICKET_KEY_SIZE + " bytes: " + file);
+        }
+        OpenSslSessionTicketKey[] keys = new OpenSslSessionTicketKey[bytes.length / TICKET_KEY_SIZE];
+        for (int i = 0; i < keys.length; i++) {
+            int offset = i * TICKET_KEY_SIZE;
+            keys[i] = new OpenSslSessionTicketKey(
+                    Arrays.copyOfRange(bytes, offset, offset + 16),
+                    Arrays.copyOfRange(bytes, offset + 16, offset + 32),
+                    Arrays.copyOfRange(bytes, offset + 32, offset + 48));
+        }
+        return keys;
+    }
+}
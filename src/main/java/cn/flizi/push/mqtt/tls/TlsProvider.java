@@ -0,0 +1,19 @@
+package cn.flizi.push.mqtt.tls;
+
+/**
+ * TLS 实现
+ */
+public enum TlsProvider {
+
+    /**
+     * OpenSSL 可用时使用, 否则回退 JDK
+     */
+    AUTO,
+
+    /**
+     * netty-tcnative, 不可用时启动失败
+     */
+    OPENSSL,
+
+    JDK
+}
@@ -0,0 +1,290 @@
+package cn.flizi.push.mqtt.topic;
+
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.internal.PlatformDependent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 主题订阅树, 支持 + 和 # 通配符
+ * <p>
+ * 读路径无锁: 子节点使用 ConcurrentHashMap, 节点上的订阅者使用写时复制数组, 写操作串行执行.
+ * 匹配结果按发布主题缓存, 订阅变更时失效: 精确主题只失效对应的一项, 通配符订阅清空整个缓存.
+ *
+ * @param <T> 订阅者, 通过 equals 判断是否为同一订阅者
+ */
+public final class TopicTrie<T> {
+
+    public static final String SINGLE_LEVEL = "+";
+
+    public static final String MULTI_LEVEL = "#";
+
+    /**
+     * MQTT 字符串长度字段为两字节, 主题编码后不能超过 65535 字节
+     */
+    public static final int MAX_TOPIC_BYTES = 65535;
+
+    private static final Object[] EMPTY = new Object[0];
+
+    private final Node root = new Node(null, null);
+
+    private final ConcurrentMap<String, List<T>> cache = PlatformDependent.newConcurrentHashMap();
+
+    private final int cacheSize;
+
+    private final Object lock = new Object();
+
+    private volatile long version;
+
+    private volatile int size;
+
+    /**
+     * @param cacheSize 匹配结果缓存的最大主题数, 0 表示不缓存
+     */
+    public TopicTrie(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * 添加订阅, 同一过滤器下相同的订阅者会被替换
+     *
+     * @return 是否为新增订阅
+     */
+    public boolean subscribe(String filter, T subscriber) {
+        if (!isValidFilter(filter)) {
+            throw new IllegalArgumentException("invalid topic filter: " + filter);
+        }
+        String[] levels = split(filter);
+        synchronized (lock) {
+            Node node = root;
+            for (String level : levels) {
+                Node parent = node;
+                node = parent.children.computeIfAbsent(level, k -> new Node(parent, k));
+            }
+            Object[] subscribers = node.subscribers;
+            int index = indexOf(subscribers, subscriber);
+            Object[] copy;
+            if (index < 0) {
+                copy = Arrays.copyOf(subscribers, subscribers.length + 1);
+                copy[subscribers.length] = subscriber;
+                size++;
+            } else {
+                copy = subscribers.clone();
+                copy[index] = subscriber;
+            }
+            node.subscribers = copy;
+            invalidate(filter);
+            return index < 0;
+        }
+    }
+
+    /**
+     * 取消订阅
+     *
+     * @return 订阅是否存在
+     */
+    public boolean unsubscribe(String filter, T subscriber) {
+        String[] levels = split(filter);
+        synchronized (lock) {
+            Node node = root;
+            for (String level : levels) {
+                node = node.children.get(level);
+                if (node == null) {
+                    return false;
+                }
+            }
+            Object[] subscribers = node.subscribers;
+            int index = indexOf(subscribers, subscriber);
+            if (index < 0) {
+                return false;
+            }
+            if (subscribers.length == 1) {
+                node.subscribers = EMPTY;
+            } else {
+                Object[] copy = new Object[subscribers.length - 1];
+                System.arraycopy(subscribers, 0, copy, 0, index);
+                System.arraycopy(subscribers, index + 1, copy, index, copy.length - index);
+                node.subscribers = copy;
+            }
+            size--;
+            // 清理空节点
+            while (node.parent != null && node.subscribers.length == 0 && node.children.isEmpty()) {
+                node.parent.children.remove(node.level, node);
+                node = node.parent;
+            }
+            invalidate(filter);
+            return true;
+        }
+    }
+
+    /**
+     * 查找匹配发布主题的订阅者, 同一订阅者通过多个过滤器匹配时会出现多次
+     */
+    public List<T> match(String topic) {
+        List<T> result = cache.get(topic);
+        if (result != null) {
+            return result;
+        }
+        long start = version;
+        List<Object[]> found = new ArrayList<>(4);
+        collect(root, split(topic), 0, found);
+        result = toList(found);
+        if (cacheSize > 0) {
+            if (cache.size() >= cacheSize) {
+                cache.clear();
+            }
+            cache.put(topic, result);
+            // 计算期间订阅发生变化, 结果可能已过期
+            if (version != start) {
+                cache.remove(topic, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 订阅总数
+     */
+    public int size() {
+        return size;
+    }
+
+    public static boolean isValidFilter(String filter) {
+        if (filter == null || filter.isEmpty()) {
+            return false;
+        }
+        String[] levels = split(filter);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.length() > 1 && (level.indexOf('+') >= 0 || level.indexOf('#') >= 0)) {
+                return false;
+            }
+            if (MULTI_LEVEL.equals(level) && i != levels.length - 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 发布的主题不能包含通配符, UTF-8 编码后不能超过 {@link #MAX_TOPIC_BYTES}
+     */
+    public static boolean isValidTopic(String topic) {
+        return topic != null && !topic.isEmpty() && topic.indexOf('+') < 0 && topic.indexOf('#') < 0
+                // 每个 char 最多编码为 3 字节, 短主题不用计算
+                && (topic.length() <= MAX_TOPIC_BYTES / 3 || ByteBufUtil.utf8Bytes(topic) <= MAX_TOPIC_BYTES);
+    }
+
+    static String[] split(String topic) {
+        int count = 1;
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) == '/') {
+                count++;
+            }
+        }
+        String[] levels = new String[count];
+        int start = 0;
+        int n = 0;
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) == '/') {
+                levels[n++] = topic.substring(start, i);
+                start = i + 1;
+            }
+        }
+        levels[n] = topic.substring(start);
+        return levels;
+    }
+
+    private void collect(Node node, String[] levels, int index, List<Object[]> found) {
+        if (index == levels.length) {
+            addTo(found, node.subscribers);
+            // "a/#" 同样匹配 "a"
+            Node multi = node.children.get(MULTI_LEVEL);
+            if (multi != null) {
+                addTo(found, multi.subscribers);
+            }
+            return;
+        }
+        // 以 $ 开头的主题不匹配首层通配符
+        if (index > 0 || !levels[0].startsWith("$")) {
+            Node multi = node.children.get(MULTI_LEVEL);
+            if (multi != null) {
+                addTo(found, multi.subscribers);
+            }
+            Node single = node.children.get(SINGLE_LEVEL);
+            if (single != null) {
+                collect(single, levels, index + 1, found);
+            }
+        }
+        Node exact = node.children.get(levels[index]);
+        if (exact != null) {
+            collect(exact, levels, index + 1, found);
+        }
+    }
+
+    private void invalidate(String filter) {
+        version++;
+        if (filter.indexOf('+') >= 0 || filter.indexOf('#') >= 0) {
+            cache.clear();
+        } else {
+            cache.remove(filter);
+        }
+    }
+
+    private static void addTo(List<Object[]> found, Object[] subscribers) {
+        if (subscribers.length > 0) {
+            found.add(subscribers);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<T> toList(List<Object[]> found) {
+        if (found.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 订阅者数组写时复制, 可直接包装
+        if (found.size() == 1) {
+            return (List<T>) Collections.unmodifiableList(Arrays.asList(found.get(0)));
+        }
+        int length = 0;
+        for (Object[] subscribers : found) {
+            length += subscribers.length;
+        }
+        Object[] all = new Object[length];
+        int offset = 0;
+        for (Object[] subscribers : found) {
+            System.arraycopy(subscribers, 0, all, offset, subscribers.length);
+            offset += subscribers.length;
+        }
+        return (List<T>) Collections.unmodifiableList(Arrays.asList(all));
+    }
+
+    private static int indexOf(Object[] subscribers, Object subscriber) {
+        for (int i = 0; i < subscribers.length; i++) {
+            if (subscribers[i].equals(subscriber)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static final class Node {
+
+        final Node parent;
+
+        final String level;
+
+        final ConcurrentMap<String, Node> children = PlatformDependent.newConcurrentHashMap();
+
+        volatile Object[] subscribers = EMPTY;
+
+        Node(Node parent, String level) {
+            this.parent = parent;
+            this.level = level;
+        }
+    }
+}
@@ -1,6 +1,25 @@
 package cn.flizi.push.service;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface DeviceService {
 
-    Boolean auth(String username, String password);
+    /**
+     * 设备认证, 不阻塞调用线程
+     *
+     * @return 认证结果, 认证服务不可用时异常完成
+     */
+    CompletableFuture<Boolean> auth(String username, String password);
+
+    /**
+     * 设备上线, 在连接线程调用, 不阻塞
+     */
+    default void online(String clientId) {
+    }
+
+    /**
+     * 设备下线, 被同一 clientId 的新连接踢下时不调用
+     */
+    default void offline(String clientId) {
+    }
 }
@@ -0,0 +1,83 @@
+package cn.flizi.push.service.impl;
+
+import io.netty.util.internal.PlatformDependent;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 有容量上限的认证结果缓存
+ * <p>
+ * 所有条目有效期相同, 按写入顺序保存也就是按过期顺序保存. 查询只读并发 Map, 不加锁;
+ * 写入时从最早的条目开始删除已过期的, 仍然超出容量时继续删除最早写入的, 不会整体清空.
+ * 并发写入时容量是近似的.
+ */
+final class AuthCache {
+
+    private final ConcurrentMap<String, Entry> entries = PlatformDependent.newConcurrentHashMap();
+
+    /**
+     * 写入顺序, 重新写入的 key 留下的旧条目出队时忽略
+     */
+    private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+
+    private final int maxSize;
+
+    /**
+     * 有效期(毫秒), 不大于 0 时不缓存
+     */
+    private final long ttl;
+
+    AuthCache(int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    boolean contains(String key, long now) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.expireAt < now) {
+            entries.remove(key, entry);
+            return false;
+        }
+        return true;
+    }
+
+    void put(String key, long now) {
+        if (ttl <= 0 || maxSize <= 0) {
+            return;
+        }
+        Entry entry = new Entry(key, now + ttl);
+        entries.put(key, entry);
+        order.add(entry);
+        for (Entry head; (head = order.peek()) != null; ) {
+            if (head.expireAt >= now && entries.size() <= maxSize) {
+                break;
+            }
+            // 并发写入时取出的可能已不是 head, 仍然是最早的条目之一
+            head = order.poll();
+            if (head != null) {
+                entries.remove(head.key, head);
+            }
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private static final class Entry {
+
+        private final String key;
+
+        private final long expireAt;
+
+        Entry(String key, long expireAt) {
+            this.key = key;
+            this.expireAt = expireAt;
+        }
+    }
+}
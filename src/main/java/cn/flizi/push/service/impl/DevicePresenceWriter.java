@@ -0,0 +1,180 @@
+package cn.flizi.push.service.impl;
+
+import cn.flizi.push.entity.DevicePresence;
+import cn.flizi.push.mapper.DeviceMapper;
+import cn.flizi.push.mqtt.MqttProperties;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+import lombok.extern.log4j.Log4j2;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 设备在线状态异步批量写入
+ * <p>
+ * 同一设备未写入的状态只保留最新的一条; 待写数量达到 batch-size 或每隔 flush-interval
+ * 在单独的线程中按 JDBC batch 写入. 数据库慢或不可用时待写数量不超过 max-pending,
+ * 超出后新设备的状态丢弃, 已在队列中的设备仍会更新为最新状态.
+ */
+@Component
+@Log4j2
+public class DevicePresenceWriter {
+
+    private final ConcurrentMap<String, DevicePresence> pending = PlatformDependent.newConcurrentHashMap();
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final LongAdder written = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    @Autowired
+    private SqlSessionFactory sqlSessionFactory;
+
+    @Autowired
+    private MqttProperties mqttProperties;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        MqttProperties.Presence config = mqttProperties.getPresence();
+        if (!config.isEnabled()) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("device-presence"));
+        executor.scheduleWithFixedDelay(this::flush, config.getFlushInterval(), config.getFlushInterval(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止定时写入并写出剩余状态
+     */
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        flush();
+    }
+
+    public void online(String clientId) {
+        record(clientId, true);
+    }
+
+    public void offline(String clientId) {
+        record(clientId, false);
+    }
+
+    private void record(String clientId, boolean online) {
+        if (executor == null) {
+            return;
+        }
+        MqttProperties.Presence config = mqttProperties.getPresence();
+        if (pending.size() >= config.getMaxPending() && !pending.containsKey(clientId)) {
+            dropped.increment();
+            return;
+        }
+        pending.put(clientId, new DevicePresence(clientId, online, new Date()));
+        if (pending.size() >= config.getBatchSize() && flushScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> {
+                    flushScheduled.set(false);
+                    flush();
+                });
+            } catch (RejectedExecutionException e) {
+                // 已关闭, 由 destroy 写出
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * 写出当前待写的状态, 每 batch-size 条一个 batch; 写入失败时放回, 等下次重试
+     *
+     * @return 写入的条数
+     */
+    int flush() {
+        int batchSize = mqttProperties.getPresence().getBatchSize();
+        // 只处理开始时的数量, 持续写入时不会一直占用
+        int remaining = pending.size();
+        int total = 0;
+        List<DevicePresence> batch = new ArrayList<>(Math.min(remaining, batchSize));
+        for (DevicePresence presence : pending.values()) {
+            if (remaining-- <= 0) {
+                break;
+            }
+            if (pending.remove(presence.getClientId(), presence)) {
+                batch.add(presence);
+            }
+            if (batch.size() >= batchSize) {
+                if (!write(batch)) {
+                    return total;
+                }
+                total += batch.size();
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty() && write(batch)) {
+            total += batch.size();
+        }
+        return total;
+    }
+
+    private boolean write(List<DevicePresence> batch) {
+        try (SqlSession session = sqlSessionFactory.openSession(ExecutorType.BATCH, false)) {
+            DeviceMapper mapper = session.getMapper(DeviceMapper.class);
+            for (DevicePresence presence : batch) {
+                mapper.savePresence(presence);
+            }
+            session.flushStatements();
+            session.commit();
+            written.add(batch.size());
+            return true;
+        } catch (RuntimeException e) {
+            failed.increment();
+            log.warn("Write device presence failed, {} pending", pending.size() + batch.size(), e);
+            for (DevicePresence presence : batch) {
+                // 期间有更新的状态时保留更新的
+                pending.putIfAbsent(presence.getClientId(), presence);
+            }
+            return false;
+        }
+    }
+
+    public int pending() {
+        return pending.size();
+    }
+
+    public long written() {
+        return written.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public long failed() {
+        return failed.sum();
+    }
+}
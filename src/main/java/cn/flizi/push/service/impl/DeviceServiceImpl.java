@@ -1,17 +1,200 @@
 package cn.flizi.push.service.impl;
 
+import cn.flizi.push.entity.Device;
+import cn.flizi.push.mapper.DeviceMapper;
+import cn.flizi.push.mqtt.MqttProperties;
 import cn.flizi.push.service.DeviceService;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.Jwts;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.crypto.factory.PasswordEncoderFactories;
+import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 设备认证
+ * <p>
+ * JWT 密码在调用线程直接校验; 其他密码先查缓存, 未命中时在独立的有界线程池中查询,
+ * 相同凭证的并发查询合并为一次. 在线状态由 {@link DevicePresenceWriter} 异步批量写入.
+ * <p>
+ * JWT 不查询数据库, 禁用设备不会使已签发的 JWT 失效, 只能等其过期; 因此 JWT 必须带过期时间,
+ * 可通过 jwt-max-age 限制签发时间, 缩短禁用后仍可连接的窗口.
+ */
 @Service
+@Log4j2
 public class DeviceServiceImpl implements DeviceService {
+
+    private static final CompletableFuture<Boolean> ACCEPTED = CompletableFuture.completedFuture(Boolean.TRUE);
+
+    private static final CompletableFuture<Boolean> REJECTED = CompletableFuture.completedFuture(Boolean.FALSE);
+
+    private final ConcurrentMap<String, CompletableFuture<Boolean>> loading = PlatformDependent.newConcurrentHashMap();
+
+    private final PasswordEncoder passwordEncoder = PasswordEncoderFactories.createDelegatingPasswordEncoder();
+
+    @Autowired
+    private MqttProperties mqttProperties;
+
+    @Autowired
+    private DeviceMapper deviceMapper;
+
+    @Autowired
+    private DevicePresenceWriter presenceWriter;
+
+    private ThreadPoolExecutor authExecutor;
+
+    private AuthCache acceptedCache;
+
+    private AuthCache rejectedCache;
+
+    private byte[] jwtKey;
+
+    private long jwtMaxAge;
+
+    @PostConstruct
+    public void init() {
+        MqttProperties.Auth auth = mqttProperties.getAuth();
+        authExecutor = new ThreadPoolExecutor(auth.getThreads(), auth.getThreads(), 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(auth.getQueueSize()), new DefaultThreadFactory("mqtt-auth"));
+        authExecutor.allowCoreThreadTimeOut(true);
+        acceptedCache = new AuthCache(auth.getCacheSize(), TimeUnit.SECONDS.toMillis(auth.getCacheTtl()));
+        rejectedCache = new AuthCache(auth.getCacheSize(), TimeUnit.SECONDS.toMillis(auth.getNegativeCacheTtl()));
+        if (StringUtils.hasLength(auth.getJwtSecret())) {
+            jwtKey = auth.getJwtSecret().getBytes(CharsetUtil.UTF_8);
+        }
+        jwtMaxAge = TimeUnit.SECONDS.toMillis(auth.getJwtMaxAge());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        authExecutor.shutdown();
+    }
+
     @Override
-    public Boolean auth(String username, String password) {
+    public CompletableFuture<Boolean> auth(String username, String password) {
+        if (jwtKey != null && isJwt(password)) {
+            return verifyJwt(username, password) ? ACCEPTED : REJECTED;
+        }
+        String key = cacheKey(username, password);
+        long now = System.currentTimeMillis();
+        if (acceptedCache.contains(key, now)) {
+            return ACCEPTED;
+        }
+        if (rejectedCache.contains(key, now)) {
+            return REJECTED;
+        }
+
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        CompletableFuture<Boolean> exist = loading.putIfAbsent(key, future);
+        if (exist != null) {
+            return exist;
+        }
+        try {
+            authExecutor.execute(() -> {
+                try {
+                    boolean accepted = check(username, password);
+                    if (accepted) {
+                        acceptedCache.put(key, System.currentTimeMillis());
+                    } else {
+                        rejectedCache.put(key, System.currentTimeMillis());
+                    }
+                    future.complete(accepted);
+                } catch (Throwable cause) {
+                    future.completeExceptionally(cause);
+                } finally {
+                    loading.remove(key, future);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loading.remove(key, future);
+            log.warn("Auth queue full, reject: {}", username);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    @Override
+    public void online(String clientId) {
+        presenceWriter.online(clientId);
+    }
+
+    @Override
+    public void offline(String clientId) {
+        presenceWriter.offline(clientId);
+    }
+
+    /**
+     * 查询数据库, 阻塞; 数据库异常时抛出, 返回服务不可用
+     */
+    private boolean check(String username, String password) {
+        Device device = deviceMapper.findByUsername(username);
+        if (device == null || !device.isEnabled()) {
+            return false;
+        }
+        try {
+            return passwordEncoder.matches(password, device.getPassword());
+        } catch (IllegalArgumentException e) {
+            // 没有算法前缀
+            log.warn("Unsupported password encoding: {}", username);
+            return false;
+        }
+    }
+
+    /**
+     * 已过期的 JWT 由解析时拒绝; 没有过期时间的永久 JWT 也拒绝
+     */
+    private boolean verifyJwt(String username, String token) {
+        try {
+            Claims claims = Jwts.parser().setSigningKey(jwtKey).parseClaimsJws(token).getBody();
+            if (claims.getExpiration() == null || !username.equals(claims.getSubject())) {
+                return false;
+            }
+            if (jwtMaxAge > 0) {
+                Date issuedAt = claims.getIssuedAt();
+                return issuedAt != null && System.currentTimeMillis() - issuedAt.getTime() <= jwtMaxAge;
+            }
+            return true;
+        } catch (JwtException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean isJwt(String password) {
+        return password.startsWith("eyJ") && password.indexOf('.') > 0
+                && password.indexOf('.') != password.lastIndexOf('.');
+    }
+
+    /**
+     * 缓存中不保存明文密码
+     */
+    private static String cacheKey(String username, String password) {
         try {
-            Thread.sleep(100);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(username.getBytes(CharsetUtil.UTF_8));
+            digest.update((byte) 0);
+            digest.update(password.getBytes(CharsetUtil.UTF_8));
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
-        return true;
     }
 }
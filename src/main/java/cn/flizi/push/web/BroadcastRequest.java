@@ -0,0 +1,36 @@
+package cn.flizi.push.web;
+
+import cn.flizi.push.mqtt.broadcast.BroadcastTarget;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 广播请求
+ */
+@Data
+public class BroadcastRequest {
+
+    private BroadcastTarget target = BroadcastTarget.ALL;
+
+    /**
+     * PUBLISH 报文中的主题, target 为 TOPIC 时同时用于匹配订阅
+     */
+    private String topic;
+
+    /**
+     * target 为 CLIENTS 时的目标
+     */
+    private List<String> clientIds;
+
+    private int qos;
+
+    private String payload;
+
+    private boolean base64;
+
+    /**
+     * 每秒发送数, 0 为配置的默认值
+     */
+    private int rate;
+}
@@ -0,0 +1,41 @@
+package cn.flizi.push.web;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.drain.DrainManager;
+import cn.flizi.push.mqtt.drain.DrainStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * 滚动发布时先排空节点再停止进程
+ */
+@RestController
+@RequestMapping("/mqtt/drain")
+public class DrainController {
+
+    @Autowired
+    private DrainManager drainManager;
+
+    @Autowired
+    private MqttProperties mqttProperties;
+
+    @GetMapping
+    public DrainStatus status() {
+        return drainManager.status();
+    }
+
+    /**
+     * 开始排空, 立即返回; 已开始时不重复执行
+     *
+     * @param window 计划时长(秒), 默认取配置
+     */
+    @PostMapping
+    public DrainStatus drain(@RequestParam(required = false) Integer window) {
+        drainManager.drain(window != null ? window : mqttProperties.getDrain().getWindow());
+        return drainManager.status();
+    }
+}
@@ -0,0 +1,103 @@
+package cn.flizi.push.web;
+
+import cn.flizi.push.mqtt.MqttBrokerHandler;
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.store.JournalStatus;
+import cn.flizi.push.mqtt.store.MessageJournal;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.nio.channels.Channels;
+
+/**
+ * 消息日志的查询, 重放与导出. 范围可用偏移 from/to 或毫秒时间 fromTime/toTime 指定, 不指定结束时到日志末尾
+ */
+@RestController
+@RequestMapping("/mqtt/journal")
+public class JournalController {
+
+    @Autowired
+    private MessageJournal messageJournal;
+
+    @Autowired
+    private MqttBrokerHandler mqttBrokerHandler;
+
+    @Autowired
+    private MqttProperties mqttProperties;
+
+    @GetMapping
+    public JournalStatus status() {
+        return messageJournal.status();
+    }
+
+    /**
+     * 按顺序重新发布到订阅路由, 每次至多 limit 条, 未重放完时以返回的 next 作为 from 继续
+     */
+    @PostMapping("/replay")
+    public ReplayResult replay(@RequestParam(required = false) Long from, @RequestParam(required = false) Long to,
+                               @RequestParam(required = false) Long fromTime,
+                               @RequestParam(required = false) Long toTime,
+                               @RequestParam(required = false) Integer limit) {
+        int max = mqttProperties.getJournal().getReplayLimit();
+        if (limit != null && limit > 0) {
+            max = Math.min(limit, max);
+        }
+        ReplayResult result = new ReplayResult();
+        result.setFrom(start(from, fromTime));
+        result.setTo(end(to, toTime));
+        result.setNext(messageJournal.replay(result.getFrom(), result.getTo(), max,
+                (offset, timestamp, topic, qos, payload) -> {
+                    result.setReplayed(result.getReplayed() + 1);
+                    result.setDelivered(result.getDelivered() + mqttBrokerHandler.replay(topic, qos, payload));
+                }));
+        return result;
+    }
+
+    /**
+     * 下载范围内的原始记录, 格式与段文件相同
+     */
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> export(@RequestParam(required = false) Long from,
+                                                        @RequestParam(required = false) Long to,
+                                                        @RequestParam(required = false) Long fromTime,
+                                                        @RequestParam(required = false) Long toTime) {
+        long start = start(from, fromTime);
+        long end = end(to, toTime);
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .header(HttpHeaders.CONTENT_DISPOSITION,
+                        "attachment; filename=\"journal-" + start + "-" + end + ".journal\"")
+                .body(out -> messageJournal.transferTo(start, end, Channels.newChannel(out)));
+    }
+
+    private long start(Long from, Long fromTime) {
+        if (!messageJournal.isEnabled()) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Journal not enabled");
+        }
+        if (from != null) {
+            return from;
+        }
+        if (fromTime != null) {
+            return messageJournal.offsetOf(fromTime);
+        }
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Missing from or fromTime");
+    }
+
+    private long end(Long to, Long toTime) {
+        if (to != null) {
+            return to;
+        }
+        // 不包含之后写入的消息
+        return toTime != null ? messageJournal.offsetOf(toTime) : messageJournal.nextOffset();
+    }
+}
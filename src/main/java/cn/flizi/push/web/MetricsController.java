@@ -0,0 +1,176 @@
+package cn.flizi.push.web;
+
+import cn.flizi.push.mqtt.MqttBroker;
+import cn.flizi.push.mqtt.MqttBrokerHandler;
+import cn.flizi.push.mqtt.alert.AlertDispatcher;
+import cn.flizi.push.mqtt.broadcast.BroadcastManager;
+import cn.flizi.push.mqtt.cluster.ClusterNode;
+import cn.flizi.push.mqtt.drain.DrainManager;
+import cn.flizi.push.mqtt.drain.DrainStatus;
+import cn.flizi.push.mqtt.keepalive.KeepAliveManager;
+import cn.flizi.push.mqtt.limit.RateLimiter;
+import cn.flizi.push.mqtt.metrics.BrokerMetrics;
+import cn.flizi.push.mqtt.metrics.PrometheusWriter;
+import cn.flizi.push.mqtt.session.MqttSession;
+import cn.flizi.push.mqtt.session.SessionRegistry;
+import cn.flizi.push.mqtt.session.SlowConsumerPolicies;
+import cn.flizi.push.mqtt.store.MessageJournal;
+import cn.flizi.push.mqtt.store.RetainedMessageStore;
+import cn.flizi.push.service.impl.DevicePresenceWriter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Prometheus 指标, 计数器来自 {@link BrokerMetrics}, 其余在抓取时读取
+ */
+@RestController
+public class MetricsController {
+
+    @Autowired
+    private BrokerMetrics brokerMetrics;
+
+    @Autowired
+    private MqttBroker mqttBroker;
+
+    @Autowired
+    private MqttBrokerHandler mqttBrokerHandler;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private RetainedMessageStore retainedStore;
+
+    @Autowired
+    private SlowConsumerPolicies slowConsumerPolicies;
+
+    @Autowired
+    private ClusterNode clusterNode;
+
+    @Autowired
+    private RateLimiter rateLimiter;
+
+    @Autowired
+    private KeepAliveManager keepAliveManager;
+
+    @Autowired
+    private DevicePresenceWriter presenceWriter;
+
+    @Autowired
+    private DrainManager drainManager;
+
+    @Autowired
+    private BroadcastManager broadcastManager;
+
+    @Autowired
+    private AlertDispatcher alertDispatcher;
+
+    @Autowired
+    private MessageJournal messageJournal;
+
+    @GetMapping(value = "/mqtt/metrics", produces = PrometheusWriter.CONTENT_TYPE)
+    public String metrics() {
+        PrometheusWriter writer = new PrometheusWriter();
+        writer.gauge("mqtt_connections", "Open TCP connections", mqttBrokerHandler.connections());
+        writer.gauge("mqtt_connections_authenticated", "Connections that completed CONNECT",
+                mqttBrokerHandler.authenticatedConnections());
+        writer.gauge("mqtt_sessions", "Sessions including offline persistent ones", sessionRegistry.size());
+        writer.gauge("mqtt_subscriptions", "Subscriptions in the topic tree", mqttBrokerHandler.subscriptions());
+        writer.gauge("mqtt_outbound_pending_bytes", "Bytes written but not yet flushed to sockets",
+                pendingWriteBytes());
+        writer.counter("mqtt_keepalive_expired_total", "Connections closed by keepalive timeout",
+                keepAliveManager.expired());
+        DrainStatus drain = drainManager.status();
+        writer.gauge("mqtt_draining", "1 while connections are being drained", drainManager.isDraining() ? 1 : 0);
+        writer.gauge("mqtt_drain_remaining", "Connections left to close by the drain", drain.getRemaining());
+        brokerMetrics.writeTo(writer);
+
+        writer.header("mqtt_executor_pending_tasks", "Tasks queued on each event loop", "gauge");
+        pendingTasks(writer, "mqtt-work", mqttBroker.workerGroup());
+        pendingTasks(writer, "mqtt-hand", mqttBroker.handlerGroup());
+
+        writer.gauge("mqtt_retained_messages", "Retained messages", retainedStore.size());
+        writer.gauge("mqtt_retained_memory_bytes", "Direct memory used by retained payloads", retainedStore.memory());
+        writer.counter("mqtt_slow_consumer_dropped_total", "Messages dropped for slow consumers",
+                slowConsumerPolicies.dropped());
+        writer.counter("mqtt_slow_consumer_conflated_total", "Messages conflated for slow consumers",
+                slowConsumerPolicies.conflated());
+        writer.counter("mqtt_slow_consumer_disconnected_total", "Slow consumers disconnected",
+                slowConsumerPolicies.disconnected());
+        writer.counter("mqtt_rate_limit_connect_rejected_total", "CONNECT refused by admission control",
+                rateLimiter.connectRejected());
+        writer.counter("mqtt_rate_limit_publish_rejected_total", "PUBLISH dropped by rate limits",
+                rateLimiter.publishRejected());
+        writer.gauge("mqtt_broadcast_running", "Broadcast jobs in progress", broadcastManager.running());
+        writer.counter("mqtt_broadcast_sent_total", "Messages sent by finished broadcast jobs",
+                broadcastManager.sent());
+        writer.gauge("device_presence_pending", "Presence updates waiting to be written", presenceWriter.pending());
+        writer.counter("device_presence_written_total", "Presence rows written", presenceWriter.written());
+        writer.counter("device_presence_dropped_total", "Presence updates dropped because the queue was full",
+                presenceWriter.dropped());
+        writer.counter("device_presence_failed_total", "Failed presence batches", presenceWriter.failed());
+        writer.gauge("alert_pending", "Distinct alerts waiting for the next window", alertDispatcher.pending());
+        writer.counter("alert_sent_total", "Alert messages sent, each summarizing one window",
+                alertDispatcher.sent());
+        writer.counter("alert_dropped_total", "Alerts dropped because the queue was full", alertDispatcher.dropped());
+        writer.counter("alert_failed_total", "Failed alert requests", alertDispatcher.failed());
+        writer.counter("alert_rate_limited_total", "Windows deferred by the per-minute limit",
+                alertDispatcher.rateLimited());
+        if (messageJournal.isEnabled()) {
+            writer.gauge("journal_pending", "Messages waiting to be appended", messageJournal.pending());
+            writer.counter("journal_appended_total", "Messages appended to the journal", messageJournal.appended());
+            writer.counter("journal_dropped_total", "Messages not appended because the queue was full",
+                    messageJournal.dropped());
+            writer.gauge("journal_next_offset", "Offset of the next appended message", messageJournal.nextOffset());
+        }
+        if (clusterNode.isEnabled()) {
+            writer.gauge("mqtt_cluster_peers", "Connected cluster nodes", clusterNode.peers().size());
+            writer.counter("mqtt_cluster_forwarded_total", "Messages forwarded to other nodes",
+                    clusterNode.forwarded());
+            writer.counter("mqtt_cluster_received_total", "Messages received from other nodes",
+                    clusterNode.received());
+            writer.counter("mqtt_cluster_dropped_total", "Messages not forwarded because the link was down",
+                    clusterNode.dropped());
+        }
+        return writer.toString();
+    }
+
+    /**
+     * 只统计已认证的连接, 认证之前不会写出数据
+     */
+    private long pendingWriteBytes() {
+        long total = 0;
+        for (MqttSession session : sessionRegistry.sessions()) {
+            ChannelHandlerContext ctx = session.context();
+            if (ctx == null) {
+                continue;
+            }
+            ChannelOutboundBuffer buffer = ctx.channel().unsafe().outboundBuffer();
+            if (buffer != null) {
+                total += buffer.totalPendingWriteBytes();
+            }
+        }
+        return total;
+    }
+
+    private static void pendingTasks(PrometheusWriter writer, String group, EventExecutorGroup executors) {
+        if (executors == null) {
+            return;
+        }
+        int index = 0;
+        for (EventExecutor executor : executors) {
+            if (executor instanceof SingleThreadEventExecutor) {
+                writer.sample("mqtt_executor_pending_tasks",
+                        new String[]{"group", group, "index", Integer.toString(index)},
+                        ((SingleThreadEventExecutor) executor).pendingTasks());
+            }
+            index++;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package cn.flizi.push.web;
+
+import cn.flizi.push.mqtt.MqttBrokerHandler;
+import cn.flizi.push.mqtt.broadcast.BroadcastManager;
+import cn.flizi.push.mqtt.broadcast.BroadcastStatus;
+import cn.flizi.push.mqtt.broadcast.BroadcastTarget;
+import cn.flizi.push.mqtt.topic.TopicTrie;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * 服务端批量推送, 消息直接进入 broker 的订阅路由或按 clientId 投递, 不经过 MQTT 连接和编解码
+ */
+@RestController
+@RequestMapping("/mqtt")
+public class PublishController {
+
+    private static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    @Autowired
+    private MqttBrokerHandler mqttBrokerHandler;
+
+    @Autowired
+    private BroadcastManager broadcastManager;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    /**
+     * 批量发布, 请求体为消息数组
+     */
+    @PostMapping(value = "/publish", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public PublishResult publish(@RequestBody List<PublishRequest> requests) {
+        PublishResult result = new PublishResult();
+        for (PublishRequest request : requests) {
+            publish(request, result);
+        }
+        return result;
+    }
+
+    /**
+     * 流式批量发布, 每行一条消息, 边读边路由, 不在内存中保留整批请求
+     * <p>
+     * 遇到无法解析的行时停止, 之前的消息已经发布, 仍返回 200, 在结果的 error 和 line 中说明
+     */
+    @PostMapping(value = "/publish", consumes = APPLICATION_NDJSON)
+    public PublishResult publishStream(HttpServletRequest servletRequest) throws IOException {
+        PublishResult result = new PublishResult();
+        try (MappingIterator<PublishRequest> iterator =
+                     objectMapper.readerFor(PublishRequest.class).readValues(servletRequest.getInputStream())) {
+            while (iterator.hasNextValue()) {
+                publish(iterator.nextValue(), result);
+            }
+        } catch (JsonProcessingException e) {
+            result.setError(e.getOriginalMessage());
+            result.setLine(e.getLocation() == null ? result.getReceived() + 1 : e.getLocation().getLineNr());
+        }
+        return result;
+    }
+
+    /**
+     * 按 clientId 直接推送到会话, 不经过订阅匹配, 目标较多时按连接所在线程分组写出
+     */
+    @PostMapping(value = "/push", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public PushResult push(@RequestBody PushRequest request) {
+        byte[] bytes = payload(request.getPayload(), request.isBase64());
+        if (request.getClientIds() == null || !TopicTrie.isValidTopic(request.getTopic())
+                || request.getQos() < 0 || request.getQos() > 2 || bytes == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid clientIds, topic, qos or payload");
+        }
+        PushResult result = new PushResult();
+        result.setRequested(request.getClientIds().size());
+        ByteBuf payload = PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length).writeBytes(bytes);
+        try {
+            result.setDelivered(mqttBrokerHandler.deliverTo(request.getClientIds(), request.getTopic(),
+                    MqttQoS.valueOf(request.getQos()), payload));
+        } finally {
+            payload.release();
+        }
+        return result;
+    }
+
+    /**
+     * 按速率分批广播, 立即返回广播 id 及目标数量
+     */
+    @PostMapping(value = "/broadcast", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public BroadcastStatus broadcast(@RequestBody BroadcastRequest request) {
+        byte[] bytes = payload(request.getPayload(), request.isBase64());
+        if (request.getTarget() == null || !TopicTrie.isValidTopic(request.getTopic())
+                || request.getQos() < 0 || request.getQos() > 2 || bytes == null || request.getRate() < 0
+                || request.getTarget() == BroadcastTarget.CLIENTS && request.getClientIds() == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid target, topic, qos, rate or payload");
+        }
+        ByteBuf payload = PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length).writeBytes(bytes);
+        try {
+            return broadcastManager.submit(request.getTarget(), request.getTopic(), request.getClientIds(),
+                    MqttQoS.valueOf(request.getQos()), payload, request.getRate());
+        } finally {
+            payload.release();
+        }
+    }
+
+    @GetMapping("/broadcast")
+    public List<BroadcastStatus> broadcasts() {
+        return broadcastManager.jobs();
+    }
+
+    @GetMapping("/broadcast/{id}")
+    public BroadcastStatus broadcast(@PathVariable long id) {
+        return found(broadcastManager.status(id));
+    }
+
+    /**
+     * 取消广播, 已发送的不撤回
+     */
+    @DeleteMapping("/broadcast/{id}")
+    public BroadcastStatus cancelBroadcast(@PathVariable long id) {
+        return found(broadcastManager.cancel(id));
+    }
+
+    private void publish(PublishRequest request, PublishResult result) {
+        result.setReceived(result.getReceived() + 1);
+        byte[] bytes = payload(request.getPayload(), request.isBase64());
+        if (!TopicTrie.isValidTopic(request.getTopic()) || request.getQos() < 0 || request.getQos() > 2
+                || bytes == null) {
+            result.setInvalid(result.getInvalid() + 1);
+            return;
+        }
+        ByteBuf payload = PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length).writeBytes(bytes);
+        try {
+            int delivered = mqttBrokerHandler.publish(request.getTopic(), MqttQoS.valueOf(request.getQos()),
+                    request.isRetain(), payload);
+            if (delivered > 0) {
+                result.setRouted(result.getRouted() + 1);
+                result.setDelivered(result.getDelivered() + delivered);
+            }
+        } finally {
+            payload.release();
+        }
+    }
+
+    private static BroadcastStatus found(BroadcastStatus status) {
+        if (status == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Broadcast not found");
+        }
+        return status;
+    }
+
+    private static byte[] payload(String payload, boolean base64) {
+        if (payload == null) {
+            return null;
+        }
+        if (!base64) {
+            return payload.getBytes(CharsetUtil.UTF_8);
+        }
+        try {
+            return Base64.getDecoder().decode(payload);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package cn.flizi.push.web;
+
+import lombok.Data;
+
+/**
+ * 发布请求中的一条消息
+ */
+@Data
+public class PublishRequest {
+
+    private String topic;
+
+    private int qos;
+
+    private boolean retain;
+
+    private String payload;
+
+    /**
+     * payload 是否为 Base64 编码的二进制, 否则按 UTF-8 文本发送
+     */
+    private boolean base64;
+}
@@ -0,0 +1,40 @@
+package cn.flizi.push.web;
+
+import lombok.Data;
+
+/**
+ * 一批消息的发布结果
+ */
+@Data
+public class PublishResult {
+
+    /**
+     * 收到的消息数
+     */
+    private long received;
+
+    /**
+     * 主题格式、QoS 或 payload 不合法的消息数
+     */
+    private long invalid;
+
+    /**
+     * 至少有一个订阅者的消息数
+     */
+    private long routed;
+
+    /**
+     * 投递给订阅者的总次数
+     */
+    private long delivered;
+
+    /**
+     * 流式请求中无法解析的消息, 该行及之后的消息未处理; 全部处理时为 null
+     */
+    private String error;
+
+    /**
+     * 无法解析的消息所在行号, 从 1 开始; 全部处理时为 0
+     */
+    private long line;
+}
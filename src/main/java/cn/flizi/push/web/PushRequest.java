@@ -0,0 +1,28 @@
+package cn.flizi.push.web;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 按 clientId 推送的请求
+ */
+@Data
+public class PushRequest {
+
+    private List<String> clientIds;
+
+    /**
+     * PUBLISH 报文中的主题, 不做订阅匹配
+     */
+    private String topic;
+
+    private int qos;
+
+    private String payload;
+
+    /**
+     * payload 是否为 Base64 编码的二进制, 否则按 UTF-8 文本发送
+     */
+    private boolean base64;
+}
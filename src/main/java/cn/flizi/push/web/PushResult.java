@@ -0,0 +1,20 @@
+package cn.flizi.push.web;
+
+import lombok.Data;
+
+/**
+ * 按 clientId 推送的结果
+ */
+@Data
+public class PushResult {
+
+    /**
+     * 请求中的 clientId 数
+     */
+    private long requested;
+
+    /**
+     * 在本节点找到会话的 clientId 数, 包括离线的持久会话
+     */
+    private long delivered;
+}
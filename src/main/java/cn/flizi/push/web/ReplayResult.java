@@ -0,0 +1,29 @@
+package cn.flizi.push.web;
+
+import lombok.Data;
+
+/**
+ * 一次重放的结果
+ */
+@Data
+public class ReplayResult {
+
+    private long from;
+
+    /**
+     * 下一条消息的偏移, 等于 to 或日志末尾时已重放完, 否则作为 from 继续重放
+     */
+    private long next;
+
+    private long to;
+
+    /**
+     * 重放的消息数
+     */
+    private long replayed;
+
+    /**
+     * 本节点投递给订阅者的总次数
+     */
+    private long delivered;
+}
@@ -0,0 +1,17 @@
+-- 设备账号, 由业务系统写入
+CREATE TABLE IF NOT EXISTS device (
+    id BIGINT NOT NULL AUTO_INCREMENT,
+    username VARCHAR(64) NOT NULL,
+    password VARCHAR(128) NOT NULL,
+    enabled TINYINT NOT NULL DEFAULT 1,
+    PRIMARY KEY (id),
+    CONSTRAINT uk_device_username UNIQUE (username)
+);
+
+-- 设备在线状态, 由 broker 异步批量写入
+CREATE TABLE IF NOT EXISTS device_presence (
+    client_id VARCHAR(128) NOT NULL,
+    online TINYINT NOT NULL,
+    last_seen DATETIME(3) NOT NULL,
+    PRIMARY KEY (client_id)
+);
@@ -0,0 +1,126 @@
+package cn.flizi.push.mqtt;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.handler.codec.mqtt.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 每个连接在 broker 中的堆内存, 不含 Netty Channel 本身
+ * <p>
+ * 同一 JVM 中用 LocalChannel 建立连接, 与服务端不加任何 handler 的连接相减, 差值为 broker 的 pipeline、
+ * 解码器、keepalive、会话及注册表的开销.
+ * <p>
+ * 结果受 GC 时机和 JVM 参数影响, 只作为报告, 默认构建不运行: mvn test -Dgroups=density -DexcludedGroups=
+ */
+@Tag("density")
+class ConnectionDensityTests {
+
+	private static final int CONNECTIONS = 10000;
+
+	private MqttBrokerHandler handler;
+
+	private MqttBroker broker;
+
+	private EventLoopGroup group;
+
+	@BeforeEach
+	void start() {
+		MqttProperties properties = new MqttProperties();
+		properties.getTransport().setDensity(true);
+		handler = TestBrokers.handler(properties);
+		broker = TestBrokers.broker(properties, handler);
+		group = new DefaultEventLoopGroup(1);
+	}
+
+	@AfterEach
+	void stop() {
+		group.shutdownGracefully().syncUninterruptibly();
+		TestBrokers.close(handler);
+	}
+
+	@Test
+	void bytesPerConnection() throws Exception {
+		long bare = measure("bare", new Discard(), () -> true);
+		long mqtt = measure("mqtt", broker.channelInitializer(null),
+				() -> handler.authenticatedConnections() == CONNECTIONS);
+		long perConnection = (mqtt - bare) / CONNECTIONS;
+		System.out.printf("broker heap per connection: %d bytes (%d connections)%n", perConnection, CONNECTIONS);
+	}
+
+	/**
+	 * 建立 CONNECTIONS 个连接并各发送一个 CONNECT, 返回增加的堆内存
+	 */
+	private long measure(String name, ChannelHandler childHandler, BooleanSupplier ready) throws Exception {
+		LocalAddress address = new LocalAddress("density-" + name);
+		Channel server = new ServerBootstrap().group(group)
+				.channel(LocalServerChannel.class)
+				.childHandler(childHandler)
+				.bind(address).sync().channel();
+		Bootstrap bootstrap = new Bootstrap().group(group)
+				.channel(LocalChannel.class)
+				.handler(new Discard());
+
+		long before = usedHeap();
+		List<Channel> clients = new ArrayList<>(CONNECTIONS);
+		for (int i = 0; i < CONNECTIONS; i++) {
+			Channel client = bootstrap.connect(address).sync().channel();
+			client.writeAndFlush(encodedConnect("client-" + i));
+			clients.add(client);
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (!ready.getAsBoolean()) {
+			assertThat(System.nanoTime()).as("timeout").isLessThan(deadline);
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+		// 等待 CONNACK 写出完成
+		group.submit(() -> null).sync();
+		long used = usedHeap() - before;
+
+		for (Channel client : clients) {
+			client.close().sync();
+		}
+		server.close().sync();
+		return used;
+	}
+
+	private static ByteBuf encodedConnect(String clientId) {
+		EmbeddedChannel encoder = new EmbeddedChannel(MqttEncoder.INSTANCE);
+		encoder.writeOutbound(new MqttConnectMessage(
+				new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+				new MqttConnectVariableHeader("MQTT", 4, true, true, false, 0, false, true, 60),
+				new MqttConnectPayload(clientId, null, (byte[]) null, "test", "test".getBytes())));
+		ByteBuf encoded = encoder.readOutbound();
+		encoder.finish();
+		return encoded;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			TimeUnit.MILLISECONDS.sleep(50);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	@ChannelHandler.Sharable
+	private static final class Discard extends ChannelInboundHandlerAdapter {
+	}
+}
@@ -0,0 +1,135 @@
+package cn.flizi.push.mqtt;
+
+import cn.flizi.push.mqtt.cluster.ClusterNode;
+import cn.flizi.push.mqtt.metrics.BrokerMetrics;
+import cn.flizi.push.mqtt.session.SessionRegistry;
+import cn.flizi.push.mqtt.store.MessageJournal;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DirectDeliveryTests {
+
+	private final BrokerMetrics metrics = new BrokerMetrics();
+
+	private MqttBrokerHandler handler;
+
+	@BeforeEach
+	void start() {
+		handler = TestBrokers.handler(new MqttProperties(), new SessionRegistry(), new ClusterNode(), metrics);
+	}
+
+	@AfterEach
+	void stop() {
+		TestBrokers.close(handler);
+	}
+
+	@Test
+	void deliverByClientId() {
+		EmbeddedChannel a = connect("a");
+		EmbeddedChannel b = connect("b");
+		EmbeddedChannel c = connect("c");
+
+		ByteBuf payload = Unpooled.copiedBuffer("hello", CharsetUtil.UTF_8);
+		int delivered = handler.deliverTo(Arrays.asList("a", "b", "missing"), "device/cmd",
+				MqttQoS.AT_MOST_ONCE, payload);
+		assertThat(delivered).isEqualTo(2);
+		assertThat(payload.refCnt()).isEqualTo(1);
+		payload.release();
+
+		a.runPendingTasks();
+		b.runPendingTasks();
+		c.runPendingTasks();
+		assertThat(received(a)).containsExactly("device/cmd:hello");
+		assertThat(received(b)).containsExactly("device/cmd:hello");
+		assertThat(received(c)).isEmpty();
+		a.finishAndReleaseAll();
+		b.finishAndReleaseAll();
+		c.finishAndReleaseAll();
+	}
+
+	@Test
+	void takeOverDuplicateClientId() {
+		EmbeddedChannel first = connect("same");
+		EmbeddedChannel second = connect("same");
+		assertThat(first.isActive()).isFalse();
+		assertThat(second.isActive()).isTrue();
+
+		ByteBuf payload = Unpooled.copiedBuffer("x", CharsetUtil.UTF_8);
+		assertThat(handler.deliverTo(Arrays.asList("same"), "t", MqttQoS.AT_MOST_ONCE, payload)).isEqualTo(1);
+		payload.release();
+		second.runPendingTasks();
+		assertThat(received(second)).containsExactly("t:x");
+		first.finishAndReleaseAll();
+		second.finishAndReleaseAll();
+	}
+
+	@Test
+	void journalOncePerRequest(@TempDir Path dir) throws Exception {
+		MessageJournal journal = TestBrokers.journal(dir);
+		ReflectionTestUtils.setField(handler, "messageJournal", journal);
+		try {
+			EmbeddedChannel a = connect("a");
+			EmbeddedChannel b = connect("b");
+			ByteBuf payload = Unpooled.copiedBuffer("hello", CharsetUtil.UTF_8);
+			assertThat(handler.deliverTo(Arrays.asList("a", "b"), "device/cmd", MqttQoS.AT_MOST_ONCE, payload))
+					.isEqualTo(2);
+			payload.release();
+			assertThat(journal.pending()).isEqualTo(1);
+			a.finishAndReleaseAll();
+			b.finishAndReleaseAll();
+		} finally {
+			journal.close();
+		}
+	}
+
+	private EmbeddedChannel connect(String clientId) {
+		EmbeddedChannel channel = new EmbeddedChannel(handler);
+		channel.writeInbound(new MqttConnectMessage(
+				new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+				new MqttConnectVariableHeader("MQTT", 4, true, true, false, 0, false, true, 60),
+				new MqttConnectPayload(clientId, null, (byte[]) null, "test", "test".getBytes())));
+		channel.runPendingTasks();
+		// CONNACK 是预先编码的报文
+		ByteBuf connAck = channel.readOutbound();
+		assertThat(connAck.getUnsignedByte(0) >> 4).isEqualTo(MqttMessageType.CONNACK.value());
+		connAck.release();
+		return channel;
+	}
+
+	/**
+	 * 共享编码的报文先解码
+	 */
+	private static List<String> received(EmbeddedChannel channel) {
+		EmbeddedChannel decoder = new EmbeddedChannel(new MqttDecoder());
+		for (Object msg; (msg = channel.readOutbound()) != null; ) {
+			if (msg instanceof ByteBuf) {
+				decoder.writeInbound(msg);
+			} else {
+				ReferenceCountUtil.release(msg);
+			}
+		}
+		List<String> result = new ArrayList<>();
+		for (MqttPublishMessage message; (message = decoder.readInbound()) != null; ) {
+			result.add(message.variableHeader().topicName() + ":" + message.payload().toString(CharsetUtil.UTF_8));
+			message.release();
+		}
+		decoder.finishAndReleaseAll();
+		return result;
+	}
+}
@@ -0,0 +1,175 @@
+package cn.flizi.push.mqtt;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.NettyRuntime;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 不同线程模型下的 QoS 0 转发吞吐量, loopback
+ * <p>
+ * 运行: java -cp target/test-classes:target/classes:lib/* cn.flizi.push.mqtt.MqttBrokerBenchmark
+ */
+public class MqttBrokerBenchmark {
+
+	private static final int PUBLISHERS = 4;
+
+	private static final int SUBSCRIBERS = 4;
+
+	private static final int PAYLOAD_SIZE = 256;
+
+	private static final long DURATION_SECONDS = 10;
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("mode,msg/s");
+		run("nio+handler-group", 18830, t -> {
+			t.setEpoll(false);
+			t.setHandlerThreads(NettyRuntime.availableProcessors() * 2);
+		});
+		run("nio", 18831, t -> t.setEpoll(false));
+		run("epoll", 18832, t -> t.setEpoll(true));
+		run("epoll+reuse-port", 18833, t -> {
+			t.setEpoll(true);
+			t.setReusePort(true);
+			t.setBossThreads(4);
+		});
+	}
+
+	private static void run(String mode, int port, Consumer<MqttProperties.Transport> config) throws Exception {
+		MqttProperties properties = new MqttProperties();
+		properties.setPort(port);
+		config.accept(properties.getTransport());
+		MqttBrokerHandler handler = TestBrokers.handler(properties);
+		MqttBroker broker = TestBrokers.broker(properties, handler);
+		broker.start();
+
+		EventLoopGroup group = new NioEventLoopGroup();
+		LongAdder received = new LongAdder();
+		try {
+			CountDownLatch subscribed = new CountDownLatch(SUBSCRIBERS);
+			for (int i = 0; i < SUBSCRIBERS; i++) {
+				connect(group, port, "sub-" + i, new Subscriber(subscribed, received));
+			}
+			subscribed.await(10, TimeUnit.SECONDS);
+			Publisher[] publishers = new Publisher[PUBLISHERS];
+			for (int i = 0; i < PUBLISHERS; i++) {
+				publishers[i] = new Publisher();
+				connect(group, port, "pub-" + i, publishers[i]);
+			}
+			// 预热
+			TimeUnit.SECONDS.sleep(3);
+			long start = received.sum();
+			TimeUnit.SECONDS.sleep(DURATION_SECONDS);
+			long count = received.sum() - start;
+			for (Publisher publisher : publishers) {
+				publisher.running = false;
+			}
+			System.out.printf("%s,%d%n", mode, count / DURATION_SECONDS);
+		} finally {
+			group.shutdownGracefully().syncUninterruptibly();
+			broker.stop();
+			TestBrokers.close(handler);
+		}
+	}
+
+	private static void connect(EventLoopGroup group, int port, String clientId, ChannelHandler handler) {
+		new Bootstrap().group(group)
+				.channel(NioSocketChannel.class)
+				.option(ChannelOption.TCP_NODELAY, true)
+				.handler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel ch) {
+						ch.pipeline().addLast(MqttEncoder.INSTANCE, new MqttDecoder(), handler);
+					}
+				})
+				.connect("127.0.0.1", port)
+				.addListener((ChannelFutureListener) future -> {
+					if (future.isSuccess()) {
+						future.channel().writeAndFlush(connectMessage(clientId));
+					}
+				});
+	}
+
+	private static MqttConnectMessage connectMessage(String clientId) {
+		return new MqttConnectMessage(
+				new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+				new MqttConnectVariableHeader("MQTT", 4, true, true, false, 0, false, true, 60),
+				new MqttConnectPayload(clientId, null, (byte[]) null, "bench", "bench".getBytes()));
+	}
+
+	private static class Subscriber extends ChannelInboundHandlerAdapter {
+
+		private final CountDownLatch subscribed;
+
+		private final LongAdder received;
+
+		Subscriber(CountDownLatch subscribed, LongAdder received) {
+			this.subscribed = subscribed;
+			this.received = received;
+		}
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			MqttMessageType type = ((MqttMessage) msg).fixedHeader().messageType();
+			if (type == MqttMessageType.CONNACK) {
+				ctx.writeAndFlush(new MqttSubscribeMessage(
+						new MqttFixedHeader(MqttMessageType.SUBSCRIBE, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+						MqttMessageIdVariableHeader.from(1),
+						new MqttSubscribePayload(Collections.singletonList(
+								new MqttTopicSubscription("bench/#", MqttQoS.AT_MOST_ONCE)))));
+			} else if (type == MqttMessageType.SUBACK) {
+				subscribed.countDown();
+			} else if (type == MqttMessageType.PUBLISH) {
+				received.increment();
+			}
+			ReferenceCountUtil.release(msg);
+		}
+	}
+
+	private static class Publisher extends ChannelInboundHandlerAdapter {
+
+		private final byte[] payload = new byte[PAYLOAD_SIZE];
+
+		private volatile boolean running = true;
+
+		private boolean connected;
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			if (((MqttMessage) msg).fixedHeader().messageType() == MqttMessageType.CONNACK) {
+				connected = true;
+				pump(ctx);
+			}
+			ReferenceCountUtil.release(msg);
+		}
+
+		@Override
+		public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+			pump(ctx);
+		}
+
+		private void pump(ChannelHandlerContext ctx) {
+			if (!connected) {
+				return;
+			}
+			while (running && ctx.channel().isWritable()) {
+				ctx.write(new MqttPublishMessage(
+						new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+						new MqttPublishVariableHeader("bench/" + ctx.channel().id().asShortText(), 0),
+						Unpooled.wrappedBuffer(payload)));
+			}
+			ctx.flush();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package cn.flizi.push.mqtt;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.Timeout;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SessionExpiryTests {
+
+	private final MqttProperties properties = new MqttProperties();
+
+	private MqttBrokerHandler handler;
+
+	@BeforeEach
+	void start() {
+		properties.getSession().setExpiry(0);
+		handler = TestBrokers.handler(properties);
+	}
+
+	@AfterEach
+	void stop() {
+		TestBrokers.close(handler);
+	}
+
+	@Test
+	void expiredSessionIsNotResumed() throws Exception {
+		EmbeddedChannel first = connect("p", false);
+		subscribe(first, "a/#");
+		assertThat(handler.subscriptions()).isEqualTo(1);
+		first.close();
+		TimeUnit.MILLISECONDS.sleep(10);
+
+		expireSessions();
+		// 清理在会话线程中进行
+		assertThat(handler.subscriptions()).isEqualTo(1);
+		first.runPendingTasks();
+		assertThat(handler.subscriptions()).isZero();
+
+		EmbeddedChannel second = new EmbeddedChannel(handler);
+		assertThat(sessionPresent(second, "p")).isFalse();
+		first.finishAndReleaseAll();
+		second.finishAndReleaseAll();
+	}
+
+	@Test
+	void resumedSessionIsNotExpired() throws Exception {
+		EmbeddedChannel first = connect("p", false);
+		subscribe(first, "a/#");
+		first.close();
+		TimeUnit.MILLISECONDS.sleep(10);
+
+		// 过期检查之后、清理执行之前重连
+		expireSessions();
+		EmbeddedChannel second = new EmbeddedChannel(handler);
+		assertThat(sessionPresent(second, "p")).isTrue();
+		first.runPendingTasks();
+		assertThat(handler.subscriptions()).isEqualTo(1);
+		first.finishAndReleaseAll();
+		second.finishAndReleaseAll();
+	}
+
+	@Test
+	void cleanSessionDiscardsSubscriptions() {
+		EmbeddedChannel first = connect("p", false);
+		subscribe(first, "a/#");
+		EmbeddedChannel second = new EmbeddedChannel(handler);
+		assertThat(sessionPresent(second, "p", true)).isFalse();
+		assertThat(first.isActive()).isFalse();
+		assertThat(handler.subscriptions()).isZero();
+		first.finishAndReleaseAll();
+		second.finishAndReleaseAll();
+	}
+
+	private void expireSessions() {
+		ReflectionTestUtils.invokeMethod(handler, "expireSessions", (Timeout) null);
+	}
+
+	private EmbeddedChannel connect(String clientId, boolean cleanSession) {
+		EmbeddedChannel channel = new EmbeddedChannel(handler);
+		sessionPresent(channel, clientId, cleanSession);
+		return channel;
+	}
+
+	private static boolean sessionPresent(EmbeddedChannel channel, String clientId) {
+		return sessionPresent(channel, clientId, false);
+	}
+
+	/**
+	 * 发送 CONNECT, 返回 CONNACK 中的 session present
+	 */
+	private static boolean sessionPresent(EmbeddedChannel channel, String clientId, boolean cleanSession) {
+		channel.writeInbound(new MqttConnectMessage(
+				new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+				new MqttConnectVariableHeader("MQTT", 4, true, true, false, 0, false, cleanSession, 60),
+				new MqttConnectPayload(clientId, null, (byte[]) null, "test", "test".getBytes())));
+		channel.runPendingTasks();
+		ByteBuf connAck = channel.readOutbound();
+		try {
+			assertThat(connAck.getUnsignedByte(0) >> 4).isEqualTo(MqttMessageType.CONNACK.value());
+			assertThat(connAck.getUnsignedByte(3)).isEqualTo((short) 0);
+			return (connAck.getUnsignedByte(2) & 0x01) != 0;
+		} finally {
+			connAck.release();
+		}
+	}
+
+	private static void subscribe(EmbeddedChannel channel, String filter) {
+		channel.writeInbound(new MqttSubscribeMessage(
+				new MqttFixedHeader(MqttMessageType.SUBSCRIBE, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+				MqttMessageIdVariableHeader.from(1),
+				new MqttSubscribePayload(Collections.singletonList(
+						new MqttTopicSubscription(filter, MqttQoS.AT_LEAST_ONCE)))));
+		channel.runPendingTasks();
+		MqttSubAckMessage subAck = channel.readOutbound();
+		assertThat(subAck.payload().grantedQoSLevels()).containsExactly(MqttQoS.AT_LEAST_ONCE.value());
+	}
+}
@@ -0,0 +1,209 @@
+package cn.flizi.push.mqtt;
+
+import cn.flizi.push.mqtt.session.ShareStrategy;
+import cn.flizi.push.mqtt.session.SharedSubscriptions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SharedSubscriptionTests {
+
+	private final MqttProperties properties = new MqttProperties();
+
+	private final List<EmbeddedChannel> channels = new ArrayList<>();
+
+	private MqttBrokerHandler handler;
+
+	@BeforeEach
+	void start() {
+		handler = TestBrokers.handler(properties);
+	}
+
+	@AfterEach
+	void stop() {
+		for (EmbeddedChannel channel : channels) {
+			channel.finishAndReleaseAll();
+		}
+		TestBrokers.close(handler);
+	}
+
+	@Test
+	void roundRobinWithinGroup() {
+		EmbeddedChannel a = connect("a");
+		EmbeddedChannel b = connect("b");
+		EmbeddedChannel c = connect("c");
+		EmbeddedChannel plain = connect("plain");
+		assertThat(subscribe(a, "$share/workers/job/+")).isEqualTo(0);
+		assertThat(subscribe(b, "$share/workers/job/+")).isEqualTo(0);
+		assertThat(subscribe(c, "$share/audit/job/#")).isEqualTo(0);
+		assertThat(subscribe(plain, "job/+")).isEqualTo(0);
+		assertThat(handler.shareGroup("workers", "job/+").size()).isEqualTo(2);
+		assertThat(handler.subscriptions()).isEqualTo(4);
+
+		for (int i = 0; i < 4; i++) {
+			// 普通订阅一份, 每个组各一份
+			assertThat(route("job/" + i)).isEqualTo(3);
+		}
+		List<String> toA = received(a);
+		List<String> toB = received(b);
+		assertThat(toA).hasSize(2);
+		assertThat(toB).hasSize(2);
+		assertThat(toA).doesNotContainAnyElementsOf(toB);
+		assertThat(received(c)).containsExactly("job/0:x", "job/1:x", "job/2:x", "job/3:x");
+		assertThat(received(plain)).containsExactly("job/0:x", "job/1:x", "job/2:x", "job/3:x");
+	}
+
+	@Test
+	void skipUnwritableMember() {
+		EmbeddedChannel a = connect("a");
+		EmbeddedChannel b = connect("b");
+		subscribe(a, "$share/g/t");
+		subscribe(b, "$share/g/t");
+		a.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+
+		for (int i = 0; i < 3; i++) {
+			route("t");
+		}
+		assertThat(received(b)).hasSize(3);
+
+		// 都不可写时仍投递给在线成员, 由会话排队
+		b.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+		assertThat(route("t")).isEqualTo(1);
+		assertThat(received(a).size() + received(b).size()).isZero();
+		a.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+		b.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+		assertThat(received(a).size() + received(b).size()).isEqualTo(1);
+	}
+
+	@Test
+	void leastPending() {
+		properties.getDelivery().setShareStrategy(ShareStrategy.LEAST_PENDING);
+		EmbeddedChannel a = connect("a");
+		EmbeddedChannel b = connect("b");
+		subscribe(a, "$share/g/t");
+		subscribe(b, "$share/g/t");
+		// b 距不可写只剩 1 KB, 视为积压更多
+		b.config().setWriteBufferWaterMark(new WriteBufferWaterMark(512, 1024));
+
+		for (int i = 0; i < 4; i++) {
+			route("t");
+		}
+		assertThat(received(a)).hasSize(4);
+		assertThat(received(b)).isEmpty();
+	}
+
+	@Test
+	void removeGroupWithLastMember() {
+		EmbeddedChannel a = connect("a");
+		EmbeddedChannel b = connect("b");
+		subscribe(a, "$share/g/t");
+		subscribe(b, "$share/g/t");
+
+		unsubscribe(a, "$share/g/t");
+		assertThat(handler.shareGroup("g", "t").size()).isEqualTo(1);
+		route("t");
+		assertThat(received(a)).isEmpty();
+		assertThat(received(b)).containsExactly("t:x");
+
+		b.close();
+		assertThat(handler.shareGroup("g", "t")).isNull();
+		assertThat(handler.subscriptions()).isZero();
+		assertThat(route("t")).isZero();
+	}
+
+	@Test
+	void rejectInvalidFilter() {
+		EmbeddedChannel a = connect("a");
+		for (String filter : Arrays.asList("$share/g", "$share//t", "$share/g+/t", "$share/g/t/#/x")) {
+			assertThat(subscribe(a, filter)).as(filter).isEqualTo(MqttQoS.FAILURE.value());
+			assertThat(SharedSubscriptions.isValidFilter(filter)).as(filter).isFalse();
+		}
+		assertThat(SharedSubscriptions.topicFilter("$share/g/a/+")).isEqualTo("a/+");
+		assertThat(SharedSubscriptions.topicFilter("a/+")).isEqualTo("a/+");
+	}
+
+	private int route(String topic) {
+		ByteBuf payload = Unpooled.copiedBuffer("x", CharsetUtil.UTF_8);
+		try {
+			return handler.route(topic, MqttQoS.AT_MOST_ONCE, payload);
+		} finally {
+			assertThat(payload.refCnt()).isEqualTo(1);
+			payload.release();
+		}
+	}
+
+	private EmbeddedChannel connect(String clientId) {
+		EmbeddedChannel channel = new EmbeddedChannel(handler);
+		channel.writeInbound(new MqttConnectMessage(
+				new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+				new MqttConnectVariableHeader("MQTT", 4, true, true, false, 0, false, true, 60),
+				new MqttConnectPayload(clientId, null, (byte[]) null, "test", "test".getBytes())));
+		channel.runPendingTasks();
+		// CONNACK 是预先编码的报文
+		ByteBuf connAck = channel.readOutbound();
+		assertThat(connAck.getUnsignedByte(0) >> 4).isEqualTo(MqttMessageType.CONNACK.value());
+		connAck.release();
+		channels.add(channel);
+		return channel;
+	}
+
+	/**
+	 * @return 授予的 QoS
+	 */
+	private static int subscribe(EmbeddedChannel channel, String filter) {
+		channel.writeInbound(new MqttSubscribeMessage(
+				new MqttFixedHeader(MqttMessageType.SUBSCRIBE, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+				MqttMessageIdVariableHeader.from(1),
+				new MqttSubscribePayload(Collections.singletonList(
+						new MqttTopicSubscription(filter, MqttQoS.AT_MOST_ONCE)))));
+		channel.runPendingTasks();
+		MqttSubAckMessage subAck = channel.readOutbound();
+		return subAck.payload().grantedQoSLevels().get(0);
+	}
+
+	private static void unsubscribe(EmbeddedChannel channel, String filter) {
+		channel.writeInbound(new MqttUnsubscribeMessage(
+				new MqttFixedHeader(MqttMessageType.UNSUBSCRIBE, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+				MqttMessageIdVariableHeader.from(2),
+				new MqttUnsubscribePayload(Collections.singletonList(filter))));
+		channel.runPendingTasks();
+		MqttMessage unsubAck = channel.readOutbound();
+		assertThat(unsubAck.fixedHeader().messageType()).isEqualTo(MqttMessageType.UNSUBACK);
+	}
+
+	/**
+	 * 共享编码的报文先解码
+	 */
+	private static List<String> received(EmbeddedChannel channel) {
+		channel.runPendingTasks();
+		EmbeddedChannel decoder = new EmbeddedChannel(new MqttDecoder());
+		for (Object msg; (msg = channel.readOutbound()) != null; ) {
+			if (msg instanceof ByteBuf) {
+				decoder.writeInbound(msg);
+			} else {
+				ReferenceCountUtil.release(msg);
+			}
+		}
+		List<String> result = new ArrayList<>();
+		for (MqttPublishMessage message; (message = decoder.readInbound()) != null; ) {
+			result.add(message.variableHeader().topicName() + ":" + message.payload().toString(CharsetUtil.UTF_8));
+			message.release();
+		}
+		decoder.finishAndReleaseAll();
+		return result;
+	}
+}
@@ -0,0 +1,113 @@
+package cn.flizi.push.mqtt;
+
+import cn.flizi.push.mqtt.cluster.ClusterNode;
+import cn.flizi.push.mqtt.keepalive.KeepAliveManager;
+import cn.flizi.push.mqtt.limit.RateLimiter;
+import cn.flizi.push.mqtt.metrics.BrokerMetrics;
+import cn.flizi.push.mqtt.session.SessionRegistry;
+import cn.flizi.push.mqtt.session.SlowConsumerPolicies;
+import cn.flizi.push.mqtt.store.MessageJournal;
+import cn.flizi.push.mqtt.store.OfflineMessageStore;
+import cn.flizi.push.mqtt.store.RetainedMessageStore;
+import cn.flizi.push.service.DeviceService;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 不依赖 Spring 容器组装 broker, 测试和 push-benchmark 共用
+ * <p>
+ * 认证直接通过, 离线消息和保留消息快照关闭, 消息日志未开启. handler 新增依赖时只需修改这里.
+ */
+public final class TestBrokers {
+
+	private static final CompletableFuture<Boolean> ACCEPTED = CompletableFuture.completedFuture(Boolean.TRUE);
+
+	private TestBrokers() {
+	}
+
+	public static MqttBrokerHandler handler(MqttProperties properties) {
+		return handler(properties, new SessionRegistry(), new ClusterNode(), new BrokerMetrics());
+	}
+
+	/**
+	 * @param clusterNode 未启动的节点, 开启集群时由调用方设置其 mqttBrokerHandler 后启动
+	 */
+	public static MqttBrokerHandler handler(MqttProperties properties, SessionRegistry sessionRegistry,
+											ClusterNode clusterNode, BrokerMetrics brokerMetrics) {
+		properties.getSession().setOfflineEnabled(false);
+		properties.getRetained().setSnapshotFile("");
+		OfflineMessageStore offlineStore = new OfflineMessageStore();
+		ReflectionTestUtils.setField(offlineStore, "mqttProperties", properties);
+		try {
+			offlineStore.open();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		RetainedMessageStore retainedStore = new RetainedMessageStore();
+		ReflectionTestUtils.setField(retainedStore, "mqttProperties", properties);
+		retainedStore.open();
+		SlowConsumerPolicies policies = new SlowConsumerPolicies();
+		ReflectionTestUtils.setField(policies, "mqttProperties", properties);
+		policies.init();
+		RateLimiter rateLimiter = new RateLimiter();
+		ReflectionTestUtils.setField(rateLimiter, "mqttProperties", properties);
+		rateLimiter.init();
+		DeviceService deviceService = (username, password) -> ACCEPTED;
+
+		MqttBrokerHandler handler = new MqttBrokerHandler();
+		ReflectionTestUtils.setField(handler, "deviceService", deviceService);
+		ReflectionTestUtils.setField(handler, "mqttProperties", properties);
+		ReflectionTestUtils.setField(handler, "sessionRegistry", sessionRegistry);
+		ReflectionTestUtils.setField(handler, "offlineStore", offlineStore);
+		ReflectionTestUtils.setField(handler, "retainedStore", retainedStore);
+		ReflectionTestUtils.setField(handler, "messageJournal", new MessageJournal());
+		ReflectionTestUtils.setField(handler, "slowConsumerPolicies", policies);
+		ReflectionTestUtils.setField(handler, "clusterNode", clusterNode);
+		ReflectionTestUtils.setField(handler, "brokerMetrics", brokerMetrics);
+		ReflectionTestUtils.setField(handler, "rateLimiter", rateLimiter);
+		handler.init();
+		return handler;
+	}
+
+	/**
+	 * 未启动的 broker, 与 handler 共用配置和指标
+	 */
+	public static MqttBroker broker(MqttProperties properties, MqttBrokerHandler handler) {
+		KeepAliveManager keepAliveManager = new KeepAliveManager();
+		ReflectionTestUtils.setField(keepAliveManager, "mqttProperties", properties);
+		MqttBroker broker = new MqttBroker();
+		ReflectionTestUtils.setField(broker, "mqttBrokerHandler", handler);
+		ReflectionTestUtils.setField(broker, "mqttProperties", properties);
+		ReflectionTestUtils.setField(broker, "keepAliveManager", keepAliveManager);
+		ReflectionTestUtils.setField(broker, "brokerMetrics", ReflectionTestUtils.getField(handler, "brokerMetrics"));
+		return broker;
+	}
+
+	/**
+	 * 开启的消息日志, 写入队列中的消息不会自动提交
+	 */
+	public static MessageJournal journal(Path dir) throws IOException {
+		MqttProperties properties = new MqttProperties();
+		MqttProperties.Journal config = properties.getJournal();
+		config.setEnabled(true);
+		config.setDir(dir.toString());
+		config.setCommitInterval(3600_000);
+		MessageJournal journal = new MessageJournal();
+		ReflectionTestUtils.setField(journal, "mqttProperties", properties);
+		journal.open();
+		return journal;
+	}
+
+	/**
+	 * 停止 handler 并关闭它的存储
+	 */
+	public static void close(MqttBrokerHandler handler) {
+		handler.destroy();
+		((RetainedMessageStore) ReflectionTestUtils.getField(handler, "retainedStore")).close();
+		((OfflineMessageStore) ReflectionTestUtils.getField(handler, "offlineStore")).close();
+	}
+}
@@ -0,0 +1,178 @@
+package cn.flizi.push.mqtt.alert;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.cluster.ClusterNode;
+import cn.flizi.push.mqtt.metrics.BrokerMetrics;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AlertTests {
+
+	private static final String OK = "{\"errcode\":0,\"errmsg\":\"ok\"}";
+
+	private final MqttProperties properties = new MqttProperties();
+
+	private final AlertDispatcher dispatcher = new AlertDispatcher();
+
+	/**
+	 * 收到的消息内容
+	 */
+	private final List<String> received = new CopyOnWriteArrayList<>();
+
+	private final AtomicReference<String> response = new AtomicReference<>(OK);
+
+	private HttpServer server;
+
+	@BeforeEach
+	void start() throws Exception {
+		ObjectMapper mapper = new ObjectMapper();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/robot/send", exchange -> {
+			try (InputStream in = exchange.getRequestBody()) {
+				JsonNode message = mapper.readTree(in);
+				assertThat(message.get("msgtype").asText()).isEqualTo("text");
+				received.add(message.get("text").get("content").asText());
+			}
+			byte[] body = response.get().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+
+		MqttProperties.Alert config = properties.getAlert();
+		config.setUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/robot/send?access_token=test");
+		// 只在测试中调用 flush
+		config.setWindow(3600);
+		ReflectionTestUtils.setField(dispatcher, "mqttProperties", properties);
+		ReflectionTestUtils.setField(dispatcher, "clusterNode", new ClusterNode());
+	}
+
+	@AfterEach
+	void stop() throws Exception {
+		dispatcher.destroy();
+		server.stop(0);
+	}
+
+	@Test
+	void coalesceWithinWindow() {
+		dispatcher.init();
+		for (int i = 0; i < 5; i++) {
+			assertThat(dispatcher.alert("auth-failure", "认证失败 " + i + " 次")).isTrue();
+		}
+		dispatcher.alert("drain", "开始排空连接");
+		assertThat(dispatcher.pending()).isEqualTo(2);
+
+		assertThat(dispatcher.flush()).isEqualTo(2);
+		assertThat(received).hasSize(1);
+		assertThat(received.get(0))
+				.startsWith("[PUSH]>")
+				.contains("认证失败 4 次 (5 次, 首次 ")
+				.contains("\n开始排空连接");
+		assertThat(dispatcher.sent()).isEqualTo(1);
+		assertThat(dispatcher.pending()).isZero();
+		assertThat(dispatcher.flush()).isZero();
+		assertThat(received).hasSize(1);
+	}
+
+	@Test
+	void boundedQueue() {
+		properties.getAlert().setQueueSize(3);
+		dispatcher.init();
+		for (int i = 0; i < 5; i++) {
+			dispatcher.alert("alert " + i);
+		}
+		// 已在队列中的仍可更新
+		assertThat(dispatcher.alert("alert 0")).isTrue();
+		assertThat(dispatcher.pending()).isEqualTo(3);
+		assertThat(dispatcher.dropped()).isEqualTo(2);
+	}
+
+	@Test
+	void rateLimit() {
+		properties.getAlert().setMaxPerMinute(2);
+		dispatcher.init();
+		for (int i = 0; i < 3; i++) {
+			dispatcher.alert("alert " + i);
+			dispatcher.flush();
+		}
+		assertThat(received).containsExactly("[PUSH]>alert 0", "[PUSH]>alert 1");
+		assertThat(dispatcher.rateLimited()).isEqualTo(1);
+		assertThat(dispatcher.pending()).isEqualTo(1);
+	}
+
+	@Test
+	void retryAfterFailure() {
+		dispatcher.init();
+		dispatcher.alert("a", "first");
+		// 钉钉限流时同样返回 200
+		response.set("{\"errcode\":130101,\"errmsg\":\"send too fast\"}");
+		assertThat(dispatcher.flush()).isZero();
+		assertThat(dispatcher.failed()).isEqualTo(1);
+		assertThat(dispatcher.pending()).isEqualTo(1);
+
+		dispatcher.alert("a", "second");
+		response.set(OK);
+		assertThat(dispatcher.flush()).isEqualTo(1);
+		assertThat(received.get(received.size() - 1)).startsWith("[PUSH]>second (2 次, 首次 ");
+	}
+
+	@Test
+	void disabledWithoutUrl() {
+		properties.getAlert().setUrl("");
+		dispatcher.init();
+		assertThat(dispatcher.isEnabled()).isFalse();
+		assertThat(dispatcher.alert("ignored")).isFalse();
+		assertThat(dispatcher.pending()).isZero();
+	}
+
+	@Test
+	void monitorThresholds() {
+		dispatcher.init();
+		BrokerMetrics metrics = new BrokerMetrics();
+		AlertMonitor monitor = new AlertMonitor();
+		ReflectionTestUtils.setField(monitor, "alertDispatcher", dispatcher);
+		ReflectionTestUtils.setField(monitor, "brokerMetrics", metrics);
+		ReflectionTestUtils.setField(monitor, "clusterNode", new ClusterNode());
+		ReflectionTestUtils.setField(monitor, "mqttProperties", properties);
+		properties.getAlert().setAuthFailureThreshold(3);
+
+		// 启动前的计数不告警
+		reject(metrics, 5);
+		monitor.check();
+		assertThat(dispatcher.pending()).isZero();
+
+		reject(metrics, 2);
+		monitor.check();
+		assertThat(dispatcher.pending()).isZero();
+
+		reject(metrics, 3);
+		metrics.onConnect(System.nanoTime(), true, false);
+		monitor.check();
+		assertThat(dispatcher.flush()).isEqualTo(1);
+		assertThat(received).containsExactly("[PUSH]>10 秒内认证失败 3 次");
+	}
+
+	private static void reject(BrokerMetrics metrics, int times) {
+		for (int i = 0; i < times; i++) {
+			metrics.onConnect(System.nanoTime(), false, false);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package cn.flizi.push.mqtt.broadcast;
+
+import cn.flizi.push.mqtt.MqttBrokerHandler;
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.TestBrokers;
+import cn.flizi.push.mqtt.cluster.ClusterNode;
+import cn.flizi.push.mqtt.metrics.BrokerMetrics;
+import cn.flizi.push.mqtt.session.SessionRegistry;
+import cn.flizi.push.mqtt.store.MessageJournal;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BroadcastTests {
+
+	private final MqttProperties properties = new MqttProperties();
+
+	private final BroadcastManager broadcastManager = new BroadcastManager();
+
+	private final List<EmbeddedChannel> channels = new ArrayList<>();
+
+	private MqttBrokerHandler handler;
+
+	@BeforeEach
+	void start() {
+		SessionRegistry sessionRegistry = new SessionRegistry();
+		handler = TestBrokers.handler(properties, sessionRegistry, new ClusterNode(), new BrokerMetrics());
+
+		ReflectionTestUtils.setField(broadcastManager, "mqttBrokerHandler", handler);
+		ReflectionTestUtils.setField(broadcastManager, "sessionRegistry", sessionRegistry);
+		ReflectionTestUtils.setField(broadcastManager, "mqttProperties", properties);
+		ReflectionTestUtils.setField(broadcastManager, "messageJournal", new MessageJournal());
+	}
+
+	@AfterEach
+	void stop() {
+		for (EmbeddedChannel channel : channels) {
+			channel.finishAndReleaseAll();
+		}
+		TestBrokers.close(handler);
+	}
+
+	@Test
+	void pacedBroadcastToAll() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			connect("client-" + i);
+		}
+		long startNanos = System.nanoTime();
+		// 10 个会话每秒 100 条, 约 100ms 发完
+		BroadcastStatus status = submit(BroadcastTarget.ALL, Collections.emptyList(), 100);
+		assertThat(status.getTotal()).isEqualTo(10);
+
+		runPendingTasks();
+		status = broadcastManager.status(status.getId());
+		assertThat(status.getSent()).isZero();
+		assertThat(status.getRemaining()).isEqualTo(10);
+
+		status = await(status.getId());
+		assertThat(System.nanoTime() - startNanos).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(60));
+		assertThat(status.getState()).isEqualTo(BroadcastStatus.State.DONE);
+		assertThat(status.getSent()).isEqualTo(10);
+		assertThat(status.getRemaining()).isZero();
+		assertThat(status.getFinishedAt()).isPositive();
+		for (EmbeddedChannel channel : channels) {
+			assertThat(received(channel)).containsExactly("notice:hello");
+		}
+		assertThat(broadcastManager.sent()).isEqualTo(10);
+		assertThat(broadcastManager.running()).isZero();
+	}
+
+	@Test
+	void topicAndClientTargets() throws Exception {
+		EmbeddedChannel a = connect("a");
+		EmbeddedChannel b = connect("b");
+		subscribe(a, "notice");
+
+		BroadcastStatus status = submit(BroadcastTarget.TOPIC, Collections.emptyList(), 0);
+		assertThat(status.getTotal()).isEqualTo(1);
+		await(status.getId());
+		assertThat(received(a)).containsExactly("notice:hello");
+		assertThat(received(b)).isEmpty();
+
+		status = submit(BroadcastTarget.CLIENTS, Arrays.asList("b", "missing"), 0);
+		assertThat(status.getTotal()).isEqualTo(1);
+		await(status.getId());
+		assertThat(received(a)).isEmpty();
+		assertThat(received(b)).containsExactly("notice:hello");
+	}
+
+	@Test
+	void cancel() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			connect("client-" + i);
+		}
+		BroadcastStatus status = submit(BroadcastTarget.ALL, Collections.emptyList(), 1);
+		runPendingTasks();
+		assertThat(broadcastManager.cancel(status.getId()).getState()).isEqualTo(BroadcastStatus.State.RUNNING);
+
+		// 各 lane 的下一批停止
+		status = await(status.getId());
+		assertThat(status.getState()).isEqualTo(BroadcastStatus.State.CANCELLED);
+		assertThat(status.getCancelled()).isEqualTo(3);
+		assertThat(status.getSent()).isZero();
+		assertThat(status.getRemaining()).isZero();
+		for (EmbeddedChannel channel : channels) {
+			assertThat(received(channel)).isEmpty();
+		}
+		assertThat(broadcastManager.cancel(-1)).isNull();
+	}
+
+	@Test
+	void journalOncePerBroadcast(@TempDir Path dir) throws Exception {
+		MessageJournal journal = TestBrokers.journal(dir);
+		ReflectionTestUtils.setField(broadcastManager, "messageJournal", journal);
+		try {
+			for (int i = 0; i < 5; i++) {
+				connect("client-" + i);
+			}
+			ByteBuf payload = Unpooled.copiedBuffer("hello", CharsetUtil.UTF_8);
+			BroadcastStatus status = broadcastManager.submit(BroadcastTarget.ALL, "notice", Collections.emptyList(),
+					MqttQoS.AT_MOST_ONCE, payload, 0);
+			payload.release();
+			assertThat(await(status.getId()).getSent()).isEqualTo(5);
+			assertThat(journal.pending()).isEqualTo(1);
+		} finally {
+			journal.close();
+		}
+	}
+
+	private BroadcastStatus submit(BroadcastTarget target, List<String> clientIds, int rate) {
+		ByteBuf payload = Unpooled.copiedBuffer("hello", CharsetUtil.UTF_8);
+		try {
+			return broadcastManager.submit(target, "notice", clientIds, MqttQoS.AT_MOST_ONCE, payload, rate);
+		} finally {
+			assertThat(payload.refCnt()).isEqualTo(1);
+			payload.release();
+		}
+	}
+
+	private BroadcastStatus await(long id) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		BroadcastStatus status;
+		while ((status = broadcastManager.status(id)).getState() == BroadcastStatus.State.RUNNING) {
+			assertThat(System.nanoTime()).as("timeout").isLessThan(deadline);
+			TimeUnit.MILLISECONDS.sleep(5);
+			runPendingTasks();
+		}
+		return status;
+	}
+
+	/**
+	 * 每个 EmbeddedChannel 有自己的 event loop, 即一条 lane
+	 */
+	private void runPendingTasks() {
+		for (EmbeddedChannel channel : channels) {
+			channel.runPendingTasks();
+		}
+	}
+
+	private EmbeddedChannel connect(String clientId) {
+		EmbeddedChannel channel = new EmbeddedChannel(handler);
+		channel.writeInbound(new MqttConnectMessage(
+				new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+				new MqttConnectVariableHeader("MQTT", 4, true, true, false, 0, false, true, 60),
+				new MqttConnectPayload(clientId, null, (byte[]) null, "test", "test".getBytes())));
+		channel.runPendingTasks();
+		// CONNACK 是预先编码的报文
+		ByteBuf connAck = channel.readOutbound();
+		assertThat(connAck.getUnsignedByte(0) >> 4).isEqualTo(MqttMessageType.CONNACK.value());
+		connAck.release();
+		channels.add(channel);
+		return channel;
+	}
+
+	private static void subscribe(EmbeddedChannel channel, String filter) {
+		channel.writeInbound(new MqttSubscribeMessage(
+				new MqttFixedHeader(MqttMessageType.SUBSCRIBE, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+				MqttMessageIdVariableHeader.from(1),
+				new MqttSubscribePayload(Collections.singletonList(
+						new MqttTopicSubscription(filter, MqttQoS.AT_MOST_ONCE)))));
+		channel.runPendingTasks();
+		MqttMessage subAck = channel.readOutbound();
+		assertThat(subAck.fixedHeader().messageType()).isEqualTo(MqttMessageType.SUBACK);
+	}
+
+	/**
+	 * 共享编码的报文先解码
+	 */
+	private static List<String> received(EmbeddedChannel channel) {
+		EmbeddedChannel decoder = new EmbeddedChannel(new MqttDecoder());
+		for (Object msg; (msg = channel.readOutbound()) != null; ) {
+			if (msg instanceof ByteBuf) {
+				decoder.writeInbound(msg);
+			} else {
+				ReferenceCountUtil.release(msg);
+			}
+		}
+		List<String> result = new ArrayList<>();
+		for (MqttPublishMessage message; (message = decoder.readInbound()) != null; ) {
+			result.add(message.variableHeader().topicName() + ":" + message.payload().toString(CharsetUtil.UTF_8));
+			message.release();
+		}
+		decoder.finishAndReleaseAll();
+		return result;
+	}
+}
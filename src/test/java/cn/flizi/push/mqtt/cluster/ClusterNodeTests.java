@@ -0,0 +1,235 @@
+package cn.flizi.push.mqtt.cluster;
+
+import cn.flizi.push.mqtt.MqttBroker;
+import cn.flizi.push.mqtt.MqttBrokerHandler;
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.TestBrokers;
+import cn.flizi.push.mqtt.metrics.BrokerMetrics;
+import cn.flizi.push.mqtt.session.SessionRegistry;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.apache.curator.test.TestingServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ClusterNodeTests {
+
+	private static final AttributeKey<BlockingQueue<MqttMessageType>> ACKS = AttributeKey.valueOf("acks");
+
+	private TestingServer zookeeper;
+
+	private EventLoopGroup clientGroup;
+
+	private final List<Node> nodes = new ArrayList<>();
+
+	@BeforeEach
+	void start() throws Exception {
+		zookeeper = new TestingServer(true);
+		clientGroup = new NioEventLoopGroup(2);
+		for (int i = 0; i < 3; i++) {
+			nodes.add(new Node("node-" + i, freePort(), freePort(), zookeeper.getConnectString()));
+		}
+		await(() -> nodes.stream().allMatch(node -> node.cluster.peers().size() == 2));
+	}
+
+	@AfterEach
+	void stop() throws Exception {
+		clientGroup.shutdownGracefully().syncUninterruptibly();
+		for (Node node : nodes) {
+			node.stop();
+		}
+		zookeeper.close();
+	}
+
+	@Test
+	void forwardOnlyToInterestedNodes() throws Exception {
+		Node publisherNode = nodes.get(0);
+		Node subscriberNode = nodes.get(1);
+		Node idleNode = nodes.get(2);
+
+		BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		Channel subscriber = connect(subscriberNode.port, "sub", received);
+		subscribe(subscriber, "device/+/cmd");
+		await(() -> publisherNode.cluster.interestedNodes("device/1/cmd").contains("node-1"));
+
+		Channel publisher = connect(publisherNode.port, "pub", new LinkedBlockingQueue<>());
+		publish(publisher, "device/1/cmd", "hello");
+
+		assertThat(received.poll(5, TimeUnit.SECONDS)).isEqualTo("device/1/cmd:hello");
+		assertThat(publisherNode.cluster.forwarded()).isEqualTo(1);
+		assertThat(subscriberNode.cluster.received()).isEqualTo(1);
+		assertThat(idleNode.cluster.received()).isZero();
+
+		// 取消订阅后不再转发
+		subscriber.close().syncUninterruptibly();
+		await(() -> publisherNode.cluster.interestedNodes("device/1/cmd").isEmpty());
+		publish(publisher, "device/1/cmd", "again");
+		TimeUnit.MILLISECONDS.sleep(200);
+		assertThat(publisherNode.cluster.forwarded()).isEqualTo(1);
+	}
+
+	@Test
+	void nodeLeaves() throws Exception {
+		Node subscriberNode = nodes.get(2);
+		Channel subscriber = connect(subscriberNode.port, "sub", new LinkedBlockingQueue<>());
+		subscribe(subscriber, "a/#");
+		await(() -> nodes.get(0).cluster.interestedNodes("a/b").contains("node-2"));
+
+		subscriberNode.stop();
+		nodes.remove(subscriberNode);
+		await(() -> nodes.get(0).cluster.peers().size() == 1
+				&& nodes.get(0).cluster.interestedNodes("a/b").isEmpty());
+	}
+
+	@Test
+	void concurrentSubscribeConverges() throws Exception {
+		ClusterNode cluster = nodes.get(0).cluster;
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < 1000; j++) {
+					cluster.subscribe("x/#");
+					cluster.unsubscribe("x/#");
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		cluster.subscribe("x/#");
+		await(() -> nodes.get(1).cluster.interestedNodes("x/y").contains("node-0"));
+
+		cluster.unsubscribe("x/#");
+		await(() -> nodes.get(1).cluster.interestedNodes("x/y").isEmpty()
+				&& nodes.get(2).cluster.interestedNodes("x/y").isEmpty());
+	}
+
+	private Channel connect(int port, String clientId, BlockingQueue<String> received) throws Exception {
+		BlockingQueue<MqttMessageType> acks = new LinkedBlockingQueue<>();
+		Channel channel = new Bootstrap().group(clientGroup)
+				.channel(NioSocketChannel.class)
+				.handler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel ch) {
+						ch.pipeline().addLast(MqttEncoder.INSTANCE, new MqttDecoder(), new ChannelInboundHandlerAdapter() {
+							@Override
+							public void channelRead(ChannelHandlerContext ctx, Object msg) {
+								MqttMessage message = (MqttMessage) msg;
+								if (message.fixedHeader().messageType() == MqttMessageType.PUBLISH) {
+									MqttPublishMessage publish = (MqttPublishMessage) message;
+									received.add(publish.variableHeader().topicName() + ":"
+											+ publish.payload().toString(CharsetUtil.UTF_8));
+								} else {
+									acks.add(message.fixedHeader().messageType());
+								}
+								ReferenceCountUtil.release(msg);
+							}
+						});
+					}
+				})
+				.connect("127.0.0.1", port).sync().channel();
+		channel.writeAndFlush(new MqttConnectMessage(
+				new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+				new MqttConnectVariableHeader("MQTT", 4, true, true, false, 0, false, true, 60),
+				new MqttConnectPayload(clientId, null, (byte[]) null, "test", "test".getBytes())));
+		assertThat(acks.poll(5, TimeUnit.SECONDS)).isEqualTo(MqttMessageType.CONNACK);
+		channel.attr(ACKS).set(acks);
+		return channel;
+	}
+
+	private static void subscribe(Channel channel, String filter) throws Exception {
+		channel.writeAndFlush(new MqttSubscribeMessage(
+				new MqttFixedHeader(MqttMessageType.SUBSCRIBE, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+				MqttMessageIdVariableHeader.from(1),
+				new MqttSubscribePayload(Collections.singletonList(new MqttTopicSubscription(filter, MqttQoS.AT_MOST_ONCE)))));
+		assertThat(channel.attr(ACKS).get().poll(5, TimeUnit.SECONDS)).isEqualTo(MqttMessageType.SUBACK);
+	}
+
+	private static void publish(Channel channel, String topic, String payload) {
+		channel.writeAndFlush(new MqttPublishMessage(
+				new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+				new MqttPublishVariableHeader(topic, 0),
+				Unpooled.copiedBuffer(payload, CharsetUtil.UTF_8)));
+	}
+
+	/**
+	 * 运行时取空闲端口, 节点在 zookeeper 中登记配置的端口, 不能直接绑定 0
+	 */
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			assertThat(System.nanoTime()).as("timeout").isLessThan(deadline);
+			TimeUnit.MILLISECONDS.sleep(20);
+		}
+	}
+
+	/**
+	 * 一个完整的 broker 实例
+	 */
+	private static final class Node {
+
+		final int port;
+
+		final ClusterNode cluster;
+
+		final MqttBroker broker;
+
+		final MqttBrokerHandler handler;
+
+		Node(String nodeId, int port, int clusterPort, String zkConnect) throws Exception {
+			this.port = port;
+			MqttProperties properties = new MqttProperties();
+			properties.setPort(port);
+			properties.getTransport().setEpoll(false);
+			MqttProperties.Cluster config = properties.getCluster();
+			config.setEnabled(true);
+			config.setZkConnect(zkConnect);
+			config.setNodeId(nodeId);
+			config.setPort(clusterPort);
+			config.setThreads(2);
+
+			cluster = new ClusterNode();
+			ReflectionTestUtils.setField(cluster, "mqttProperties", properties);
+			handler = TestBrokers.handler(properties, new SessionRegistry(), cluster, new BrokerMetrics());
+			ReflectionTestUtils.setField(cluster, "mqttBrokerHandler", handler);
+			cluster.start();
+			broker = TestBrokers.broker(properties, handler);
+			broker.start();
+		}
+
+		void stop() {
+			broker.stop();
+			cluster.stop();
+			TestBrokers.close(handler);
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package cn.flizi.push.mqtt.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MqttFastCodecTests {
+
+	@Test
+	void fixedPacketsSameBytesAsMqttEncoder() {
+		assertSameBytes(FixedPackets.pingResp(), new MqttMessage(
+				new MqttFixedHeader(MqttMessageType.PINGRESP, false, MqttQoS.AT_MOST_ONCE, false, 0)));
+		for (MqttConnectReturnCode returnCode : MqttConnectReturnCode.values()) {
+			for (boolean sessionPresent : new boolean[]{false, true}) {
+				ByteBuf connAck = FixedPackets.connAck(returnCode, sessionPresent);
+				if (returnCode.byteValue() > 5 || returnCode.byteValue() < 0) {
+					assertThat(connAck).isNull();
+					continue;
+				}
+				assertSameBytes(connAck, new MqttConnAckMessage(
+						new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
+						new MqttConnAckVariableHeader(returnCode, sessionPresent)));
+			}
+		}
+		MqttMessageType[] types = {MqttMessageType.PUBACK, MqttMessageType.PUBREC, MqttMessageType.PUBREL,
+				MqttMessageType.PUBCOMP};
+		for (MqttMessageType type : types) {
+			for (int packetId : new int[]{1, 300, 65535}) {
+				MqttQoS qos = type == MqttMessageType.PUBREL ? MqttQoS.AT_LEAST_ONCE : MqttQoS.AT_MOST_ONCE;
+				assertSameBytes(FixedPackets.ack(UnpooledByteBufAllocator.DEFAULT, type, packetId), new MqttMessage(
+						new MqttFixedHeader(type, false, qos, false, 0), MqttMessageIdVariableHeader.from(packetId)));
+			}
+		}
+	}
+
+	@Test
+	void publishSameAsMqttDecoder() {
+		byte[] small = "hello".getBytes(CharsetUtil.UTF_8);
+		// 剩余长度需要两个字节
+		byte[] large = new byte[300];
+		for (byte[] payload : new byte[][]{small, large, new byte[0]}) {
+			for (MqttQoS qos : new MqttQoS[]{MqttQoS.AT_MOST_ONCE, MqttQoS.AT_LEAST_ONCE, MqttQoS.EXACTLY_ONCE}) {
+				for (boolean flag : new boolean[]{false, true}) {
+					boolean dup = flag && qos != MqttQoS.AT_MOST_ONCE;
+					int packetId = qos == MqttQoS.AT_MOST_ONCE ? 0 : 4660;
+					ByteBuf encoded = encode(new MqttPublishMessage(
+							new MqttFixedHeader(MqttMessageType.PUBLISH, dup, qos, flag, 0),
+							new MqttPublishVariableHeader("device/设备/cmd", packetId),
+							Unpooled.copiedBuffer(payload)));
+
+					EmbeddedChannel stock = new EmbeddedChannel(new MqttDecoder());
+					stock.writeInbound(encoded.retainedDuplicate());
+					MqttPublishMessage expected = stock.readInbound();
+
+					EmbeddedChannel fast = fastChannel();
+					fast.writeInbound(encoded);
+					InboundPublish actual = fast.readInbound();
+
+					assertThat(actual.decoderResult().isSuccess()).isTrue();
+					assertThat(actual.fixedHeader().messageType()).isEqualTo(MqttMessageType.PUBLISH);
+					assertThat(actual.fixedHeader().isDup()).isEqualTo(expected.fixedHeader().isDup());
+					assertThat(actual.fixedHeader().qosLevel()).isEqualTo(expected.fixedHeader().qosLevel());
+					assertThat(actual.fixedHeader().isRetain()).isEqualTo(expected.fixedHeader().isRetain());
+					assertThat(actual.topicName()).isEqualTo(expected.variableHeader().topicName());
+					assertThat(actual.packetId()).isEqualTo(expected.variableHeader().packetId());
+					assertThat(ByteBufUtil.getBytes(actual.payload())).isEqualTo(payload);
+					expected.release();
+					assertThat(actual.release()).isTrue();
+					assertThat(stock.finishAndReleaseAll()).isFalse();
+					assertThat(fast.finishAndReleaseAll()).isFalse();
+				}
+			}
+		}
+	}
+
+	@Test
+	void fragmentedFrames() {
+		ByteBuf first = encode(publish("a/b", 1, "first"));
+		ByteBuf second = encode(publish("a/c", 2, "second"));
+		ByteBuf ping = encode(new MqttMessage(
+				new MqttFixedHeader(MqttMessageType.PINGREQ, false, MqttQoS.AT_MOST_ONCE, false, 0)));
+		ByteBuf all = Unpooled.wrappedBuffer(first, second, ping);
+
+		EmbeddedChannel channel = fastChannel();
+		while (all.isReadable()) {
+			channel.writeInbound(all.readRetainedSlice(1));
+		}
+		all.release();
+		InboundPublish a = channel.readInbound();
+		InboundPublish b = channel.readInbound();
+		assertThat(a.topicName()).isEqualTo("a/b");
+		assertThat(a.payload().toString(CharsetUtil.UTF_8)).isEqualTo("first");
+		assertThat(b.topicName()).isEqualTo("a/c");
+		assertThat(b.packetId()).isEqualTo(2);
+		assertThat(b.payload().toString(CharsetUtil.UTF_8)).isEqualTo("second");
+		assertThat((Object) channel.readInbound()).isSameAs(MqttFastDecoder.PINGREQ);
+		a.release();
+		b.release();
+		assertThat(channel.finishAndReleaseAll()).isFalse();
+	}
+
+	@Test
+	void otherPacketsFallBack() {
+		ByteBuf connect = encode(new MqttConnectMessage(
+				new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+				new MqttConnectVariableHeader("MQTT", 4, true, true, false, 0, false, true, 60),
+				new MqttConnectPayload("client", null, (byte[]) null, "test", "test".getBytes())));
+		ByteBuf subscribe = encode(new MqttSubscribeMessage(
+				new MqttFixedHeader(MqttMessageType.SUBSCRIBE, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+				MqttMessageIdVariableHeader.from(7),
+				new MqttSubscribePayload(Collections.singletonList(
+						new MqttTopicSubscription("a/#", MqttQoS.AT_LEAST_ONCE)))));
+		ByteBuf publish = encode(publish("a/b", 8, "x"));
+
+		EmbeddedChannel channel = fastChannel();
+		channel.writeInbound(Unpooled.wrappedBuffer(connect, subscribe, publish));
+		MqttConnectMessage connectMessage = channel.readInbound();
+		assertThat(connectMessage.payload().clientIdentifier()).isEqualTo("client");
+		MqttSubscribeMessage subscribeMessage = channel.readInbound();
+		assertThat(subscribeMessage.variableHeader().messageId()).isEqualTo(7);
+		assertThat(subscribeMessage.payload().topicSubscriptions().get(0).topicName()).isEqualTo("a/#");
+		InboundPublish publishMessage = channel.readInbound();
+		assertThat(publishMessage.packetId()).isEqualTo(8);
+		publishMessage.release();
+		assertThat(channel.attr(SharedPublish.PROTOCOL_VERSION_KEY).get()).isEqualTo(MqttVersion.MQTT_3_1_1);
+		assertThat(channel.finishAndReleaseAll()).isFalse();
+	}
+
+	@Test
+	void mqtt5PublishPassedToMqttDecoder() {
+		ByteBuf connect = encode(new MqttConnectMessage(
+				new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+				new MqttConnectVariableHeader("MQTT", 5, true, true, false, 0, false, true, 60),
+				new MqttConnectPayload("client", null, (byte[]) null, "test", "test".getBytes())));
+		// QoS 1, 主题 a/b, packetId 1, 属性长度 0
+		ByteBuf publish = Unpooled.wrappedBuffer(new byte[]{0x32, 9, 0, 3, 'a', '/', 'b', 0, 1, 0, 'x'});
+
+		// 与 CONNECT 同一次读到的 PUBLISH 也按 MQTT 5 解码
+		EmbeddedChannel channel = fastChannel();
+		channel.writeInbound(Unpooled.wrappedBuffer(connect, publish));
+		assertThat(channel.attr(SharedPublish.PROTOCOL_VERSION_KEY).get()).isEqualTo(MqttVersion.MQTT_5);
+		assertThat(SharedPublish.isCompatible(channel)).isFalse();
+		MqttConnectMessage connectMessage = channel.readInbound();
+		assertThat(connectMessage.variableHeader().version()).isEqualTo(5);
+		MqttPublishMessage publishMessage = channel.readInbound();
+		assertThat(publishMessage.variableHeader().topicName()).isEqualTo("a/b");
+		assertThat(publishMessage.variableHeader().packetId()).isEqualTo(1);
+		assertThat(publishMessage.payload().toString(CharsetUtil.UTF_8)).isEqualTo("x");
+		publishMessage.release();
+		assertThat(channel.finishAndReleaseAll()).isFalse();
+	}
+
+	@Test
+	void malformedPassedToMqttDecoder() {
+		// 发布的主题含通配符
+		EmbeddedChannel channel = fastChannel();
+		channel.writeInbound(encode(publish("a/+", 1, "x")));
+		MqttMessage wildcard = channel.readInbound();
+		assertThat(wildcard.decoderResult().isFailure()).isTrue();
+		channel.finishAndReleaseAll();
+
+		// 超出大小
+		channel = new EmbeddedChannel(new MqttFastDecoder(16), new MqttDecoder(16));
+		channel.writeInbound(encode(publish("a/b", 1, "0123456789abcdef")));
+		MqttMessage tooLong = channel.readInbound();
+		assertThat(tooLong.decoderResult().isFailure()).isTrue();
+		channel.finishAndReleaseAll();
+	}
+
+	@Test
+	void reuseTopicName() {
+		EmbeddedChannel channel = fastChannel();
+		channel.writeInbound(encode(publish("device/1/up", 1, "a")));
+		channel.writeInbound(encode(publish("device/1/up", 2, "b")));
+		channel.writeInbound(encode(publish("device/2/up", 3, "c")));
+		InboundPublish first = channel.readInbound();
+		InboundPublish second = channel.readInbound();
+		InboundPublish third = channel.readInbound();
+		assertThat(second.topicHash()).isEqualTo(first.topicHash());
+		assertThat(second.topicName()).isEqualTo("device/1/up").isSameAs(first.topicName());
+		assertThat(third.topicName()).isEqualTo("device/2/up");
+		first.release();
+		second.release();
+		third.release();
+		channel.finishAndReleaseAll();
+	}
+
+	@Test
+	void releaseSlices() {
+		ByteBuf encoded = encode(publish("a/b", 1, "x"));
+		encoded.retain();
+		EmbeddedChannel channel = fastChannel();
+		channel.writeInbound(encoded);
+		InboundPublish message = channel.readInbound();
+		// 主题和 payload 各持有一份接收缓冲
+		assertThat(encoded.refCnt()).isEqualTo(3);
+		message.retain();
+		assertThat(message.release()).isFalse();
+		assertThat(message.release()).isTrue();
+		assertThat(message.refCnt()).isZero();
+		assertThat(encoded.refCnt()).isEqualTo(1);
+		encoded.release();
+		channel.finishAndReleaseAll();
+	}
+
+	private static EmbeddedChannel fastChannel() {
+		return new EmbeddedChannel(new MqttFastDecoder(), new MqttDecoder());
+	}
+
+	private static MqttPublishMessage publish(String topic, int packetId, String payload) {
+		return new MqttPublishMessage(
+				new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+				new MqttPublishVariableHeader(topic, packetId),
+				Unpooled.copiedBuffer(payload, CharsetUtil.UTF_8));
+	}
+
+	private static void assertSameBytes(ByteBuf actual, MqttMessage message) {
+		ByteBuf expected = encode(message);
+		assertThat(ByteBufUtil.getBytes(actual)).isEqualTo(ByteBufUtil.getBytes(expected));
+		actual.release();
+		expected.release();
+	}
+
+	private static ByteBuf encode(MqttMessage message) {
+		EmbeddedChannel channel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+		channel.writeOutbound(message);
+		ByteBuf buf = channel.readOutbound();
+		channel.finishAndReleaseAll();
+		return buf;
+	}
+}
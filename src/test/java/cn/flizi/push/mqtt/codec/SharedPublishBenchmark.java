@@ -0,0 +1,97 @@
+package cn.flizi.push.mqtt.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.ReferenceCountUtil;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * 一条消息扇出给大量订阅者时的编码开销: 逐个 MqttEncoder 编码与共享编码对比
+ * <p>
+ * 堆分配取自 ThreadMXBean, 直接内存为扇出过程中池化分配器的峰值占用.
+ * 运行: java -cp target/test-classes:target/classes:lib/* cn.flizi.push.mqtt.codec.SharedPublishBenchmark
+ */
+public class SharedPublishBenchmark {
+
+	private static final int SUBSCRIBERS = 100_000;
+
+	private static final int[] PAYLOAD_SIZES = {64, 4096};
+
+	private static final int ROUNDS = 5;
+
+	private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) {
+		PooledByteBufAllocator alloc = new PooledByteBufAllocator(true);
+		EmbeddedChannel channel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+		channel.config().setAllocator(alloc);
+		System.out.println("mode,qos,payload,ns/subscriber,heap bytes/subscriber,peak direct bytes");
+		for (int size : PAYLOAD_SIZES) {
+			for (MqttQoS qos : new MqttQoS[]{MqttQoS.AT_MOST_ONCE, MqttQoS.AT_LEAST_ONCE}) {
+				for (boolean shared : new boolean[]{false, true}) {
+					ByteBuf payload = alloc.directBuffer(size).writeZero(size);
+					// 预热
+					run(channel, alloc, shared, qos, payload);
+					long heap = allocatedBytes();
+					long start = System.nanoTime();
+					long direct = 0;
+					for (int i = 0; i < ROUNDS; i++) {
+						direct = Math.max(direct, run(channel, alloc, shared, qos, payload));
+					}
+					long cost = System.nanoTime() - start;
+					heap = allocatedBytes() - heap;
+					long messages = (long) SUBSCRIBERS * ROUNDS;
+					System.out.printf("%s,%d,%d,%.1f,%d,%d%n", shared ? "shared" : "per-subscriber",
+							qos.value(), size, (double) cost / messages, heap / messages, direct);
+					payload.release();
+				}
+			}
+		}
+		channel.finishAndReleaseAll();
+	}
+
+	/**
+	 * 模拟扇出: 所有报文先写出, 全部排在出站缓冲区中后再释放, 返回此时的直接内存占用
+	 */
+	private static long run(EmbeddedChannel channel, ByteBufAllocator alloc, boolean shared, MqttQoS qos, ByteBuf payload) {
+		SharedPublish packet = shared ? new SharedPublish("bench/topic", payload.retainedDuplicate()) : null;
+		if (packet != null) {
+			packet.prepare(qos);
+		}
+		for (int i = 0; i < SUBSCRIBERS; i++) {
+			int packetId = qos == MqttQoS.AT_MOST_ONCE ? 0 : (i & 0x7FFF) + 1;
+			if (packet != null) {
+				channel.write(packet.encode(qos, packetId, alloc));
+			} else {
+				channel.write(new MqttPublishMessage(
+						new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0),
+						new MqttPublishVariableHeader("bench/topic", packetId),
+						payload.retainedDuplicate()));
+			}
+		}
+		if (packet != null) {
+			packet.release();
+		}
+		long direct = usedDirectMemory(alloc);
+		channel.flush();
+		for (Object msg; (msg = channel.readOutbound()) != null; ) {
+			ReferenceCountUtil.release(msg);
+		}
+		return direct;
+	}
+
+	private static long usedDirectMemory(ByteBufAllocator alloc) {
+		PooledByteBufAllocatorMetric metric = ((PooledByteBufAllocator) alloc).metric();
+		return metric.usedDirectMemory();
+	}
+
+	private static long allocatedBytes() {
+		return THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
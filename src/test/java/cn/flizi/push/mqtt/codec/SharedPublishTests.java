@@ -0,0 +1,69 @@
+package cn.flizi.push.mqtt.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SharedPublishTests {
+
+	@Test
+	void sameBytesAsMqttEncoder() {
+		byte[] small = "hello".getBytes(CharsetUtil.UTF_8);
+		// 剩余长度需要两个字节
+		byte[] large = new byte[300];
+		for (byte[] payload : new byte[][]{small, large}) {
+			for (MqttQoS qos : new MqttQoS[]{MqttQoS.AT_MOST_ONCE, MqttQoS.AT_LEAST_ONCE, MqttQoS.EXACTLY_ONCE}) {
+				int packetId = qos == MqttQoS.AT_MOST_ONCE ? 0 : 4660;
+				SharedPublish packet = new SharedPublish("device/设备/cmd", Unpooled.copiedBuffer(payload));
+				packet.prepare(qos);
+				ByteBuf shared = packet.encode(qos, packetId, UnpooledByteBufAllocator.DEFAULT);
+				ByteBuf expected = encode(new MqttPublishMessage(
+						new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0),
+						new MqttPublishVariableHeader("device/设备/cmd", packetId),
+						Unpooled.copiedBuffer(payload)));
+
+				assertThat(ByteBufUtil.getBytes(shared)).isEqualTo(ByteBufUtil.getBytes(expected));
+				shared.release();
+				expected.release();
+				assertThat(packet.release()).isTrue();
+			}
+		}
+	}
+
+	@Test
+	void sharedAcrossSubscribers() {
+		ByteBuf payload = Unpooled.directBuffer().writeBytes(new byte[64]);
+		SharedPublish packet = new SharedPublish("a/b", payload);
+		packet.prepare(MqttQoS.AT_MOST_ONCE);
+		packet.prepare(MqttQoS.AT_LEAST_ONCE);
+		ByteBuf first = packet.encode(MqttQoS.AT_LEAST_ONCE, 1, payload.alloc());
+		ByteBuf second = packet.encode(MqttQoS.AT_LEAST_ONCE, 2, payload.alloc());
+		ByteBuf third = packet.encode(MqttQoS.AT_MOST_ONCE, 0, payload.alloc());
+		// 写出的报文各自持有共享缓冲区的引用
+		assertThat(packet.release()).isTrue();
+		assertThat(payload.refCnt()).isEqualTo(2);
+
+		// 只有 packetId 不同
+		assertThat(first.getUnsignedShort(first.readableBytes() - 66)).isEqualTo(1);
+		assertThat(second.getUnsignedShort(second.readableBytes() - 66)).isEqualTo(2);
+		first.release();
+		second.release();
+		third.release();
+		assertThat(payload.refCnt()).isZero();
+	}
+
+	private static ByteBuf encode(MqttMessage message) {
+		EmbeddedChannel channel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+		channel.writeOutbound(message);
+		ByteBuf buf = channel.readOutbound();
+		channel.finishAndReleaseAll();
+		return buf;
+	}
+}
@@ -0,0 +1,173 @@
+package cn.flizi.push.mqtt.drain;
+
+import cn.flizi.push.mqtt.MqttBroker;
+import cn.flizi.push.mqtt.MqttBrokerHandler;
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.TestBrokers;
+import cn.flizi.push.mqtt.alert.AlertDispatcher;
+import cn.flizi.push.mqtt.cluster.ClusterNode;
+import cn.flizi.push.mqtt.metrics.BrokerMetrics;
+import cn.flizi.push.mqtt.session.SessionRegistry;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DrainTests {
+
+	private static final int PORT = 21895;
+
+	private static final int CLIENTS = 40;
+
+	private final EventLoopGroup clientGroup = new NioEventLoopGroup(2);
+
+	private final MqttProperties properties = new MqttProperties();
+
+	private MqttBroker broker;
+
+	private MqttBrokerHandler handler;
+
+	private DrainManager drainManager;
+
+	@BeforeEach
+	void start() throws Exception {
+		properties.setPort(PORT);
+		properties.getTransport().setEpoll(false);
+		properties.getDrain().setInterval(50);
+
+		SessionRegistry sessionRegistry = new SessionRegistry();
+		handler = TestBrokers.handler(properties, sessionRegistry, new ClusterNode(), new BrokerMetrics());
+		broker = TestBrokers.broker(properties, handler);
+		broker.start();
+		List<?> channels = (List<?>) ReflectionTestUtils.getField(broker, "channels");
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (channels.isEmpty()) {
+			assertThat(System.nanoTime()).as("timeout").isLessThan(deadline);
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+
+		drainManager = new DrainManager();
+		ReflectionTestUtils.setField(drainManager, "mqttBroker", broker);
+		ReflectionTestUtils.setField(drainManager, "sessionRegistry", sessionRegistry);
+		ReflectionTestUtils.setField(drainManager, "mqttProperties", properties);
+		// 未配置 url, 告警不发送
+		ReflectionTestUtils.setField(drainManager, "alertDispatcher", new AlertDispatcher());
+	}
+
+	@AfterEach
+	void stop() {
+		clientGroup.shutdownGracefully().syncUninterruptibly();
+		broker.stop();
+		TestBrokers.close(handler);
+	}
+
+	@Test
+	void closeInPacedBatches() throws Exception {
+		ConcurrentLinkedQueue<Long> closedAt = new ConcurrentLinkedQueue<>();
+		AtomicInteger flushedBeforeClose = new AtomicInteger();
+		List<String> clientIds = new ArrayList<>();
+		for (int i = 0; i < CLIENTS; i++) {
+			clientIds.add("client-" + i);
+			connect("client-" + i, closedAt, flushedBeforeClose);
+		}
+
+		// 排空前写出的消息在连接关闭前送达
+		ByteBuf payload = Unpooled.copiedBuffer(new byte[16]);
+		handler.deliverTo(clientIds, "notice", MqttQoS.AT_MOST_ONCE, payload);
+		payload.release();
+		long startedAt = System.currentTimeMillis();
+		CompletableFuture<Void> drained = drainManager.drain(1);
+
+		assertThatThrownBy(() -> new Bootstrap().group(clientGroup)
+				.channel(NioSocketChannel.class)
+				.handler(new ChannelInboundHandlerAdapter())
+				.connect("127.0.0.1", PORT).sync())
+				.as("listener closed")
+				.isNotNull();
+
+		drained.get(5, TimeUnit.SECONDS);
+		long lastClosedAt = System.currentTimeMillis();
+		DrainStatus status = drainManager.status();
+		assertThat(status.getState()).isEqualTo(DrainStatus.State.DRAINED);
+		assertThat(status.getTotal()).isEqualTo(CLIENTS);
+		assertThat(status.getClosed()).isEqualTo(CLIENTS);
+		assertThat(status.getRemaining()).isZero();
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (closedAt.size() < CLIENTS) {
+			assertThat(System.nanoTime()).as("timeout").isLessThan(deadline);
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+		assertThat(flushedBeforeClose.get()).isEqualTo(CLIENTS);
+		long first = closedAt.stream().mapToLong(Long::longValue).min().getAsLong();
+		long last = closedAt.stream().mapToLong(Long::longValue).max().getAsLong();
+		// 分散在窗口内, 而不是同时断开
+		assertThat(last - first).isGreaterThanOrEqualTo(500);
+		assertThat(last - startedAt).isLessThan(2000);
+		assertThat(lastClosedAt - startedAt).isLessThan(3000);
+	}
+
+	@Test
+	void drainTwice() throws Exception {
+		connect("client", new ConcurrentLinkedQueue<>(), new AtomicInteger());
+		CompletableFuture<Void> drained = drainManager.drain(0);
+		assertThat(drainManager.drain(30)).isSameAs(drained);
+		drained.get(5, TimeUnit.SECONDS);
+		assertThat(drainManager.status().getWindow()).isZero();
+		assertThat(drainManager.status().getClosed()).isEqualTo(1);
+	}
+
+	private void connect(String clientId, ConcurrentLinkedQueue<Long> closedAt, AtomicInteger flushedBeforeClose)
+			throws Exception {
+		BlockingQueue<MqttMessageType> received = new LinkedBlockingQueue<>();
+		Channel channel = new Bootstrap().group(clientGroup)
+				.channel(NioSocketChannel.class)
+				.handler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel ch) {
+						ch.pipeline().addLast(MqttEncoder.INSTANCE, new MqttDecoder(), new ChannelInboundHandlerAdapter() {
+							@Override
+							public void channelRead(ChannelHandlerContext ctx, Object msg) {
+								received.add(((MqttMessage) msg).fixedHeader().messageType());
+								ReferenceCountUtil.release(msg);
+							}
+
+							@Override
+							public void channelInactive(ChannelHandlerContext ctx) {
+								if (received.contains(MqttMessageType.PUBLISH)) {
+									flushedBeforeClose.incrementAndGet();
+								}
+								closedAt.add(System.currentTimeMillis());
+							}
+						});
+					}
+				})
+				.connect("127.0.0.1", PORT).sync().channel();
+		channel.writeAndFlush(new MqttConnectMessage(
+				new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+				new MqttConnectVariableHeader("MQTT", 4, true, true, false, 0, false, true, 60),
+				new MqttConnectPayload(clientId, null, (byte[]) null, "test", "test".getBytes())));
+		assertThat(received.poll(5, TimeUnit.SECONDS)).isEqualTo(MqttMessageType.CONNACK);
+	}
+}
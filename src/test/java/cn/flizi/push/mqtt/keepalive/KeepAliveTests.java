@@ -0,0 +1,71 @@
+package cn.flizi.push.mqtt.keepalive;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KeepAliveTests {
+
+	@Test
+	void expireBeforeConnect() {
+		KeepAliveManager manager = manager(10);
+		EmbeddedChannel channel = new EmbeddedChannel(manager.newHandler());
+		KeepAliveWheel wheel = manager.wheel(channel.eventLoop());
+
+		wheel.advance(10);
+		assertThat(channel.isActive()).isTrue();
+		wheel.advance(11);
+		assertThat(channel.isActive()).isFalse();
+		assertThat(manager.expired()).isEqualTo(1);
+		assertThat(wheel.size()).isZero();
+	}
+
+	@Test
+	void negotiatedKeepAlive() {
+		KeepAliveManager manager = manager(100);
+		EmbeddedChannel channel = new EmbeddedChannel(manager.newHandler());
+		KeepAliveWheel wheel = manager.wheel(channel.eventLoop());
+
+		// keepalive 4 秒, 超时 6 秒
+		channel.writeInbound(connect(4));
+		wheel.advance(5);
+		channel.writeInbound(new MqttMessage(
+				new MqttFixedHeader(MqttMessageType.PINGREQ, false, MqttQoS.AT_MOST_ONCE, false, 0)));
+		wheel.advance(11);
+		assertThat(channel.isActive()).isTrue();
+		wheel.advance(12);
+		assertThat(channel.isActive()).isFalse();
+		channel.finishAndReleaseAll();
+	}
+
+	@Test
+	void removeOnClose() {
+		KeepAliveManager manager = manager(10);
+		EmbeddedChannel first = new EmbeddedChannel(manager.newHandler());
+		EmbeddedChannel second = new EmbeddedChannel(manager.newHandler());
+		assertThat(manager.connections()).isEqualTo(2);
+		first.close();
+		second.close();
+		assertThat(manager.connections()).isZero();
+		assertThat(manager.expired()).isZero();
+	}
+
+	private static MqttConnectMessage connect(int keepAlive) {
+		return new MqttConnectMessage(
+				new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+				new MqttConnectVariableHeader("MQTT", 4, true, true, false, 0, false, true, keepAlive),
+				new MqttConnectPayload("client", null, (byte[]) null, "test", "test".getBytes()));
+	}
+
+	private static KeepAliveManager manager(int idle) {
+		MqttProperties properties = new MqttProperties();
+		properties.setIdle(idle);
+		KeepAliveManager manager = new KeepAliveManager();
+		ReflectionTestUtils.setField(manager, "mqttProperties", properties);
+		return manager;
+	}
+}
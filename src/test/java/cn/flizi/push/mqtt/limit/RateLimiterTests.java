@@ -0,0 +1,118 @@
+package cn.flizi.push.mqtt.limit;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RateLimiterTests {
+
+	@Test
+	void burstThenRefill() {
+		TokenBucket bucket = new TokenBucket(10, 3);
+		long now = System.nanoTime();
+		assertThat(bucket.tryAcquire(now)).isTrue();
+		assertThat(bucket.tryAcquire(now)).isTrue();
+		assertThat(bucket.tryAcquire(now)).isTrue();
+		assertThat(bucket.tryAcquire(now)).isFalse();
+
+		// 每 100ms 补充一个
+		long later = now + TimeUnit.MILLISECONDS.toNanos(100);
+		assertThat(bucket.tryAcquire(later)).isTrue();
+		assertThat(bucket.tryAcquire(later)).isFalse();
+
+		// 空闲再久也不超过容量
+		long idle = now + TimeUnit.SECONDS.toNanos(10);
+		for (int i = 0; i < 3; i++) {
+			assertThat(bucket.tryAcquire(idle)).isTrue();
+		}
+		assertThat(bucket.tryAcquire(idle)).isFalse();
+	}
+
+	@Test
+	void publishByClientAndTopic() {
+		MqttProperties properties = new MqttProperties();
+		MqttProperties.RateLimit config = properties.getRateLimit();
+		config.setPublishRate(1);
+		config.setPublishBurst(2);
+		MqttProperties.TopicRate topic = new MqttProperties.TopicRate();
+		topic.setFilter("sensor/#");
+		topic.setRate(1);
+		topic.setBurst(1);
+		config.getTopics().add(topic);
+		RateLimiter limiter = newLimiter(properties);
+
+		TokenBucket first = limiter.newPublishBucket();
+		TokenBucket second = limiter.newPublishBucket();
+		assertThat(limiter.tryPublish(first, "device/1")).isTrue();
+		assertThat(limiter.tryPublish(first, "device/1")).isTrue();
+		assertThat(limiter.tryPublish(first, "device/1")).isFalse();
+		// 主题限速由所有客户端共享
+		assertThat(limiter.tryPublish(second, "sensor/1")).isTrue();
+		assertThat(limiter.tryPublish(second, "sensor/2")).isFalse();
+		assertThat(limiter.tryPublish(limiter.newPublishBucket(), "device/2")).isTrue();
+		assertThat(limiter.publishRejected()).isEqualTo(2);
+	}
+
+	@Test
+	void connectAdmission() {
+		MqttProperties properties = new MqttProperties();
+		properties.getRateLimit().setIpConnectRate(1);
+		properties.getRateLimit().setIpConnectBurst(2);
+		RateLimiter limiter = newLimiter(properties);
+
+		EmbeddedChannel channel = new EmbeddedChannel();
+		assertThat(limiter.tryConnect(channel)).isTrue();
+		assertThat(limiter.tryConnect(channel)).isTrue();
+		assertThat(limiter.tryConnect(channel)).isFalse();
+		assertThat(limiter.connectRejected()).isEqualTo(1);
+		assertThat(limiter.newPublishBucket()).isNull();
+	}
+
+	@Test
+	void evictIdleIps() {
+		MqttProperties properties = new MqttProperties();
+		properties.getRateLimit().setIpConnectRate(1);
+		properties.getRateLimit().setIpConnectBurst(1);
+		properties.getRateLimit().setMaxTrackedIps(2);
+		RateLimiter limiter = newLimiter(properties);
+		long now = System.nanoTime();
+
+		assertThat(limiter.tryConnect(from("10.0.0.1"), now)).isTrue();
+		assertThat(limiter.tryConnect(from("10.0.0.2"), now)).isTrue();
+		// 没有回满的桶, 新来源被拒绝, 已限速的来源不会被重置
+		assertThat(limiter.tryConnect(from("10.0.0.3"), now)).isFalse();
+		assertThat(limiter.tryConnect(from("10.0.0.1"), now)).isFalse();
+		assertThat(limiter.trackedIps()).isEqualTo(2);
+
+		// 10.0.0.1 在 1s 后用掉回满的令牌, 只有 10.0.0.2 空闲
+		long later = now + TimeUnit.SECONDS.toNanos(1);
+		assertThat(limiter.tryConnect(from("10.0.0.1"), later)).isTrue();
+		assertThat(limiter.tryConnect(from("10.0.0.3"), later)).isTrue();
+		assertThat(limiter.trackedIps()).isEqualTo(2);
+		assertThat(limiter.tryConnect(from("10.0.0.1"), later)).isFalse();
+		assertThat(limiter.connectRejected()).isEqualTo(3);
+	}
+
+	private static EmbeddedChannel from(String ip) {
+		return new EmbeddedChannel() {
+			@Override
+			protected SocketAddress remoteAddress0() {
+				return new InetSocketAddress(ip, 1883);
+			}
+		};
+	}
+
+	private static RateLimiter newLimiter(MqttProperties properties) {
+		RateLimiter limiter = new RateLimiter();
+		ReflectionTestUtils.setField(limiter, "mqttProperties", properties);
+		limiter.init();
+		return limiter;
+	}
+}
@@ -0,0 +1,52 @@
+package cn.flizi.push.mqtt.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BrokerMetricsTests {
+
+	@Test
+	void cumulativeBuckets() {
+		BucketHistogram histogram = new BucketHistogram(1, 10, 100);
+		histogram.record(0);
+		histogram.record(1);
+		histogram.record(5);
+		histogram.record(100);
+		histogram.record(1000);
+
+		String text = new PrometheusWriter().histogram("fan_out", "test", histogram).toString();
+		assertThat(text).contains(
+				"# TYPE fan_out histogram\n",
+				"fan_out_bucket{le=\"1\"} 2\n",
+				"fan_out_bucket{le=\"10\"} 3\n",
+				"fan_out_bucket{le=\"100\"} 4\n",
+				"fan_out_bucket{le=\"+Inf\"} 5\n",
+				"fan_out_sum 1106\n",
+				"fan_out_count 5\n");
+	}
+
+	@Test
+	void routeAndConnect() {
+		BrokerMetrics metrics = new BrokerMetrics();
+		metrics.onPublish(10);
+		metrics.onRoute(3, 10);
+		metrics.onRoute(0, 10);
+		metrics.onConnect(System.nanoTime(), true, false);
+		metrics.onConnect(System.nanoTime(), false, false);
+		metrics.onConnect(System.nanoTime(), false, true);
+
+		PrometheusWriter writer = new PrometheusWriter();
+		metrics.writeTo(writer);
+		assertThat(writer.toString()).contains(
+				"mqtt_connect_total{result=\"accepted\"} 1\n",
+				"mqtt_connect_total{result=\"rejected\"} 1\n",
+				"mqtt_connect_total{result=\"unavailable\"} 1\n",
+				"mqtt_connect_latency_milliseconds_count 3\n",
+				"mqtt_publish_received_total 1\n",
+				"mqtt_publish_delivered_total 3\n",
+				"mqtt_publish_delivered_bytes_total 30\n",
+				"mqtt_publish_fan_out_bucket{le=\"0\"} 1\n",
+				"mqtt_publish_fan_out_count 2\n");
+	}
+}
@@ -0,0 +1,296 @@
+package cn.flizi.push.mqtt.session;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 出站 QoS 1/2 的在途窗口、重发及 QoS 2 握手, 时间轮由手动触发的 {@link ManualTimer} 代替
+ */
+class InFlightTests {
+
+	private final ManualTimer timer = new ManualTimer();
+
+	private final MqttProperties.Delivery delivery = new MqttProperties.Delivery();
+
+	private EmbeddedChannel channel;
+
+	private ChannelHandlerContext ctx;
+
+	private MqttSession session;
+
+	@BeforeEach
+	void start() {
+		delivery.setMaxInFlight(2);
+		// 定时任务触发时所有在途消息都到期
+		delivery.setRetryInterval(0);
+		SlowConsumerPolicies policies = new SlowConsumerPolicies();
+		ReflectionTestUtils.setField(policies, "mqttProperties", new MqttProperties());
+		policies.init();
+		channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		ctx = channel.pipeline().firstContext();
+		session = new MqttSession("client", false, channel.eventLoop(), delivery, timer, null, policies);
+		session.attach(ctx);
+		channel.runPendingTasks();
+	}
+
+	@AfterEach
+	void stop() {
+		session.detach(ctx);
+		channel.runPendingTasks();
+		channel.finishAndReleaseAll();
+	}
+
+	@Test
+	void windowLimitsInFlight() {
+		for (int i = 1; i <= 4; i++) {
+			session.publish("t", MqttQoS.AT_LEAST_ONCE, payload("m" + i));
+		}
+		assertThat(sent()).containsExactly("PUBLISH 1 m1", "PUBLISH 2 m2");
+
+		// 确认后按顺序补足窗口, 重复或未知的确认不影响
+		session.onPubAck(1);
+		session.onPubAck(1);
+		session.onPubAck(100);
+		assertThat(sent()).containsExactly("PUBLISH 3 m3");
+		session.onPubAck(2);
+		session.onPubAck(3);
+		assertThat(sent()).containsExactly("PUBLISH 4 m4");
+
+		// QoS 0 不占用窗口
+		session.publish("t", MqttQoS.AT_LEAST_ONCE, payload("m5"));
+		session.publish("t", MqttQoS.AT_MOST_ONCE, payload("m6"));
+		assertThat(sent()).containsExactly("PUBLISH 5 m5", "PUBLISH 0 m6");
+	}
+
+	@Test
+	void retransmitUntilAcked() {
+		session.publish("t", MqttQoS.AT_LEAST_ONCE, payload("m1"));
+		session.publish("t", MqttQoS.AT_LEAST_ONCE, payload("m2"));
+		assertThat(sent()).hasSize(2);
+		// 会话只有一个定时任务
+		assertThat(timer.pending()).isEqualTo(1);
+
+		timer.fire();
+		channel.runPendingTasks();
+		assertThat(sent()).containsExactly("PUBLISH 1 m1 dup", "PUBLISH 2 m2 dup");
+
+		session.onPubAck(1);
+		timer.fire();
+		channel.runPendingTasks();
+		assertThat(sent()).containsExactly("PUBLISH 2 m2 dup");
+
+		session.onPubAck(2);
+		timer.fire();
+		channel.runPendingTasks();
+		assertThat(sent()).isEmpty();
+		assertThat(timer.pending()).isZero();
+	}
+
+	@Test
+	void exactlyOnceHandshake() {
+		session.publish("t", MqttQoS.EXACTLY_ONCE, payload("m1"));
+		assertThat(sent()).containsExactly("PUBLISH 1 m1");
+		// PUBACK 和 PUBCOMP 不能结束 PUBREC 之前的 QoS 2 消息
+		session.onPubAck(1);
+		session.onPubComp(1);
+		timer.fire();
+		channel.runPendingTasks();
+		assertThat(sent()).containsExactly("PUBLISH 1 m1 dup");
+
+		session.onPubRec(1);
+		assertThat(sent()).containsExactly("PUBREL 1");
+		// 之后只重发 PUBREL, 重复的 PUBREC 也回复 PUBREL
+		timer.fire();
+		channel.runPendingTasks();
+		assertThat(sent()).containsExactly("PUBREL 1");
+		session.onPubRec(1);
+		assertThat(sent()).containsExactly("PUBREL 1");
+
+		session.onPubComp(1);
+		timer.fire();
+		channel.runPendingTasks();
+		assertThat(sent()).isEmpty();
+		assertThat(timer.pending()).isZero();
+	}
+
+	@Test
+	void pubRecIgnoredForAtLeastOnce() {
+		delivery.setMaxInFlight(1);
+		session.publish("t", MqttQoS.AT_LEAST_ONCE, payload("m1"));
+		session.publish("t", MqttQoS.AT_LEAST_ONCE, payload("m2"));
+		assertThat(sent()).containsExactly("PUBLISH 1 m1");
+
+		session.onPubRec(1);
+		session.onPubComp(1);
+		assertThat(sent()).isEmpty();
+		timer.fire();
+		channel.runPendingTasks();
+		assertThat(sent()).containsExactly("PUBLISH 1 m1 dup");
+
+		session.onPubAck(1);
+		assertThat(sent()).containsExactly("PUBLISH 2 m2");
+	}
+
+	@Test
+	void takenOverConnectionIgnored() {
+		assertThat(session.receive(ctx, 1)).isTrue();
+		assertThat(session.receive(ctx, 1)).isFalse();
+
+		EmbeddedChannel other = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		ChannelHandlerContext otherCtx = other.pipeline().firstContext();
+		session.attach(otherCtx);
+		channel.runPendingTasks();
+		// 旧连接的 PUBREL 与 PUBLISH 不改变会话状态
+		session.release(ctx, 1);
+		assertThat(session.receive(ctx, 2)).isFalse();
+		assertThat(session.receive(otherCtx, 1)).isFalse();
+		assertThat(session.receive(otherCtx, 2)).isTrue();
+
+		session.release(otherCtx, 1);
+		assertThat(session.receive(otherCtx, 1)).isTrue();
+		session.detach(otherCtx);
+		channel.runPendingTasks();
+		other.finishAndReleaseAll();
+	}
+
+	private static ByteBuf payload(String text) {
+		return Unpooled.copiedBuffer(text, CharsetUtil.UTF_8);
+	}
+
+	/**
+	 * 写出的报文, PUBREL 可能是预先编码的 ByteBuf 或 MqttMessage
+	 */
+	private List<String> sent() {
+		List<String> result = new ArrayList<>();
+		for (Object message; (message = channel.readOutbound()) != null; ) {
+			if (message instanceof MqttPublishMessage) {
+				MqttPublishMessage publish = (MqttPublishMessage) message;
+				result.add("PUBLISH " + publish.variableHeader().packetId() + " "
+						+ publish.payload().toString(CharsetUtil.UTF_8)
+						+ (publish.fixedHeader().isDup() ? " dup" : ""));
+				publish.release();
+			} else if (message instanceof ByteBuf) {
+				ByteBuf buf = (ByteBuf) message;
+				result.add(MqttMessageType.valueOf(buf.getUnsignedByte(0) >> 4) + " " + buf.getUnsignedShort(2));
+				buf.release();
+			} else {
+				MqttMessage ack = (MqttMessage) message;
+				result.add(ack.fixedHeader().messageType() + " "
+						+ ((MqttMessageIdVariableHeader) ack.variableHeader()).messageId());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 只记录定时任务, 由测试调用 {@link #fire()} 执行
+	 */
+	private static class ManualTimer implements Timer {
+
+		private List<ManualTimeout> timeouts = new ArrayList<>();
+
+		@Override
+		public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+			ManualTimeout timeout = new ManualTimeout(this, task);
+			timeouts.add(timeout);
+			return timeout;
+		}
+
+		@Override
+		public Set<Timeout> stop() {
+			Set<Timeout> unprocessed = new HashSet<>(timeouts);
+			timeouts.clear();
+			return unprocessed;
+		}
+
+		int pending() {
+			timeouts.removeIf(Timeout::isCancelled);
+			return timeouts.size();
+		}
+
+		void fire() {
+			List<ManualTimeout> fired = timeouts;
+			timeouts = new ArrayList<>();
+			for (ManualTimeout timeout : fired) {
+				if (!timeout.isCancelled()) {
+					timeout.expired = true;
+					try {
+						timeout.task.run(timeout);
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}
+		}
+	}
+
+	private static class ManualTimeout implements Timeout {
+
+		private final Timer timer;
+
+		private final TimerTask task;
+
+		private boolean expired;
+
+		private boolean cancelled;
+
+		ManualTimeout(Timer timer, TimerTask task) {
+			this.timer = timer;
+			this.task = task;
+		}
+
+		@Override
+		public Timer timer() {
+			return timer;
+		}
+
+		@Override
+		public TimerTask task() {
+			return task;
+		}
+
+		@Override
+		public boolean isExpired() {
+			return expired;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public boolean cancel() {
+			if (expired || cancelled) {
+				return false;
+			}
+			cancelled = true;
+			return true;
+		}
+	}
+}
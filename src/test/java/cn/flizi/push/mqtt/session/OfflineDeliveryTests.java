@@ -0,0 +1,102 @@
+package cn.flizi.push.mqtt.session;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.store.OfflineMessageStore;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+import io.netty.util.HashedWheelTimer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 持久会话重连后从离线队列取出消息, 客户端确认后才在离线队列中确认
+ */
+class OfflineDeliveryTests {
+
+	@TempDir
+	Path dir;
+
+	private final MqttProperties properties = new MqttProperties();
+
+	private final HashedWheelTimer timer = new HashedWheelTimer();
+
+	private OfflineMessageStore store;
+
+	private EmbeddedChannel channel;
+
+	private MqttSession session;
+
+	@BeforeEach
+	void start() throws Exception {
+		properties.getSession().setStoreDir(dir.toString());
+		store = open();
+		SlowConsumerPolicies policies = new SlowConsumerPolicies();
+		ReflectionTestUtils.setField(policies, "mqttProperties", properties);
+		policies.init();
+		channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		session = new MqttSession("client", true, channel.eventLoop(), properties.getDelivery(), timer, store,
+				policies);
+	}
+
+	@AfterEach
+	void stop() {
+		channel.finishAndReleaseAll();
+		store.close();
+		timer.stop();
+	}
+
+	@Test
+	void ackAfterPubAck() throws Exception {
+		session.publish("t", MqttQoS.AT_LEAST_ONCE, Unpooled.copiedBuffer("m1", CharsetUtil.UTF_8));
+		session.publish("t", MqttQoS.AT_LEAST_ONCE, Unpooled.copiedBuffer("m2", CharsetUtil.UTF_8));
+		assertThat(store.size("client")).isEqualTo(2);
+
+		ChannelHandlerContext ctx = channel.pipeline().firstContext();
+		assertThat(session.attach(ctx)).isTrue();
+		channel.runPendingTasks();
+		// 等待取出请求执行, 结果已提交到会话线程
+		assertThat(store.size("client")).isZero();
+		channel.runPendingTasks();
+		assertThat(received()).containsExactly("1:m1", "2:m2");
+		// 再次取出为空, 离线队列取完
+		assertThat(store.size("client")).isZero();
+		channel.runPendingTasks();
+
+		session.onPubAck(1);
+		session.detach(ctx);
+		// 未确认的 m2 重启后重新投递
+		store.close();
+		store = open();
+		assertThat(store.size("client")).isEqualTo(1);
+	}
+
+	private OfflineMessageStore open() throws Exception {
+		OfflineMessageStore store = new OfflineMessageStore();
+		ReflectionTestUtils.setField(store, "mqttProperties", properties);
+		store.open();
+		return store;
+	}
+
+	private List<String> received() {
+		List<String> result = new ArrayList<>();
+		for (MqttPublishMessage message; (message = channel.readOutbound()) != null; ) {
+			result.add(message.variableHeader().packetId() + ":" + message.payload().toString(CharsetUtil.UTF_8));
+			message.release();
+		}
+		return result;
+	}
+}
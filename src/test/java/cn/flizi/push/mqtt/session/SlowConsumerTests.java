@@ -0,0 +1,132 @@
+package cn.flizi.push.mqtt.session;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+import io.netty.util.HashedWheelTimer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SlowConsumerTests {
+
+	private final HashedWheelTimer timer = new HashedWheelTimer();
+
+	@AfterEach
+	void stop() {
+		timer.stop();
+	}
+
+	@Test
+	void topicPolicy() {
+		SlowConsumerPolicies policies = policies(SlowConsumerPolicy.DROP_NEWEST,
+				"sensor/+/telemetry", SlowConsumerPolicy.CONFLATE,
+				"sensor/#", SlowConsumerPolicy.DROP_OLDEST);
+
+		assertThat(policies.policy("sensor/1/telemetry")).isEqualTo(SlowConsumerPolicy.CONFLATE);
+		assertThat(policies.policy("sensor/1/alarm")).isEqualTo(SlowConsumerPolicy.DROP_OLDEST);
+		assertThat(policies.policy("device/1")).isEqualTo(SlowConsumerPolicy.DROP_NEWEST);
+	}
+
+	@Test
+	void conflateWhileUnwritable() {
+		SlowConsumerPolicies policies = policies(SlowConsumerPolicy.CONFLATE);
+		EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		MqttSession session = session(channel, policies);
+
+		channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+		session.publish("a", MqttQoS.AT_MOST_ONCE, payload("a1"));
+		session.publish("b", MqttQoS.AT_MOST_ONCE, payload("b1"));
+		session.publish("a", MqttQoS.AT_MOST_ONCE, payload("a2"));
+		assertThat(received(channel)).isEmpty();
+
+		channel.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+		session.onWritable();
+		channel.runPendingTasks();
+		assertThat(received(channel)).containsExactly("b1", "a2");
+		assertThat(policies.conflated()).isEqualTo(1);
+		channel.finishAndReleaseAll();
+	}
+
+	@Test
+	void dropOldestWhenFull() {
+		SlowConsumerPolicies policies = policies(SlowConsumerPolicy.DROP_OLDEST);
+		EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		MqttSession session = session(channel, policies);
+
+		channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+		for (int i = 0; i < 5; i++) {
+			session.publish("t", MqttQoS.AT_MOST_ONCE, payload("m" + i));
+		}
+		channel.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+		session.onWritable();
+		channel.runPendingTasks();
+		assertThat(received(channel)).containsExactly("m2", "m3", "m4");
+		assertThat(policies.dropped()).isEqualTo(2);
+		channel.finishAndReleaseAll();
+	}
+
+	@Test
+	void disconnectWhenFull() {
+		SlowConsumerPolicies policies = policies(SlowConsumerPolicy.DISCONNECT);
+		EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		MqttSession session = session(channel, policies);
+
+		channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+		for (int i = 0; i < 4; i++) {
+			session.publish("t", MqttQoS.AT_MOST_ONCE, payload("m" + i));
+		}
+		assertThat(channel.isActive()).isFalse();
+		assertThat(policies.disconnected()).isEqualTo(1);
+		channel.finishAndReleaseAll();
+	}
+
+	private MqttSession session(EmbeddedChannel channel, SlowConsumerPolicies policies) {
+		MqttProperties.Delivery delivery = new MqttProperties.Delivery();
+		delivery.setMaxQueued(3);
+		ChannelHandlerContext ctx = channel.pipeline().firstContext();
+		MqttSession session = new MqttSession("client", false, channel.eventLoop(), delivery, timer, null, policies);
+		session.attach(ctx);
+		channel.runPendingTasks();
+		return session;
+	}
+
+	private static SlowConsumerPolicies policies(SlowConsumerPolicy policy, Object... topics) {
+		MqttProperties properties = new MqttProperties();
+		properties.getSlowConsumer().setPolicy(policy);
+		for (int i = 0; i < topics.length; i += 2) {
+			MqttProperties.TopicPolicy topic = new MqttProperties.TopicPolicy();
+			topic.setFilter((String) topics[i]);
+			topic.setPolicy((SlowConsumerPolicy) topics[i + 1]);
+			properties.getSlowConsumer().getTopics().add(topic);
+		}
+		SlowConsumerPolicies policies = new SlowConsumerPolicies();
+		ReflectionTestUtils.setField(policies, "mqttProperties", properties);
+		policies.init();
+		return policies;
+	}
+
+	private static ByteBuf payload(String text) {
+		return Unpooled.copiedBuffer(text, CharsetUtil.UTF_8);
+	}
+
+	private static List<String> received(EmbeddedChannel channel) {
+		List<String> result = new ArrayList<>();
+		for (MqttPublishMessage message; (message = channel.readOutbound()) != null; ) {
+			result.add(message.payload().toString(CharsetUtil.UTF_8));
+			message.release();
+		}
+		return result;
+	}
+}
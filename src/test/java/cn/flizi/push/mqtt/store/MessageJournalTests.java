@@ -0,0 +1,242 @@
+package cn.flizi.push.mqtt.store;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MessageJournalTests {
+
+	@TempDir
+	Path dir;
+
+	private final MqttProperties properties = new MqttProperties();
+
+	private MessageJournal journal;
+
+	@BeforeEach
+	void setUp() {
+		MqttProperties.Journal config = properties.getJournal();
+		config.setEnabled(true);
+		config.setDir(dir.toString());
+		// 每段只能容纳几条消息
+		config.setSegmentSize(256);
+		config.setIndexInterval(64);
+		// 只在测试中调用 commit
+		config.setCommitInterval(3600_000);
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		journal.close();
+	}
+
+	@Test
+	void appendAndReplay() throws Exception {
+		journal = open();
+		for (int i = 0; i < 20; i++) {
+			assertThat(append("device/" + i, "m" + i)).isTrue();
+		}
+		assertThat(journal.pending()).isEqualTo(20);
+		assertThat(journal.commit()).isEqualTo(20);
+		assertThat(journal.status().getSegments()).isGreaterThan(1);
+		assertThat(journal.appended()).isEqualTo(20);
+
+		List<String> replayed = new ArrayList<>();
+		long next = journal.replay(0, Long.MAX_VALUE, 5, (offset, timestamp, topic, qos, payload) ->
+				replayed.add(topic + ":" + payload.toString(CharsetUtil.UTF_8)));
+		assertThat(replayed).containsExactly("device/0:m0", "device/1:m1", "device/2:m2", "device/3:m3",
+				"device/4:m4");
+		assertThat(journal.replay(next, Long.MAX_VALUE, 100, (offset, timestamp, topic, qos, payload) ->
+				replayed.add(topic + ":" + payload.toString(CharsetUtil.UTF_8)))).isEqualTo(journal.nextOffset());
+		assertThat(replayed).hasSize(20).endsWith("device/19:m19");
+
+		// 不是消息起始位置时从下一条开始
+		List<Long> offsets = offsets(0, Long.MAX_VALUE);
+		assertThat(offsets(1, offsets.get(3))).containsExactly(offsets.get(1), offsets.get(2));
+		assertThat(offsets(offsets.get(19) + 1, Long.MAX_VALUE)).isEmpty();
+	}
+
+	@Test
+	void offsetOfTime() throws Exception {
+		journal = open();
+		append("a", "1");
+		append("a", "2");
+		journal.commit();
+		TimeUnit.MILLISECONDS.sleep(20);
+		long time = System.currentTimeMillis();
+		long offset = journal.nextOffset();
+		append("b", "3");
+		journal.commit();
+
+		assertThat(journal.offsetOf(time)).isEqualTo(offset);
+		assertThat(journal.offsetOf(0)).isZero();
+		assertThat(journal.offsetOf(Long.MAX_VALUE)).isEqualTo(journal.nextOffset());
+	}
+
+	@Test
+	void recoverAfterRestart() throws Exception {
+		journal = open();
+		for (int i = 0; i < 10; i++) {
+			append("device/" + i, "m" + i);
+		}
+		journal.commit();
+		long next = journal.nextOffset();
+		journal.close();
+
+		journal = open();
+		assertThat(journal.nextOffset()).isEqualTo(next);
+		assertThat(offsets(0, Long.MAX_VALUE)).hasSize(10);
+		append("device/10", "m10");
+		journal.commit();
+		List<Long> offsets = offsets(0, Long.MAX_VALUE);
+		assertThat(offsets).hasSize(11);
+		assertThat(offsets.get(10)).isEqualTo(next);
+	}
+
+	@Test
+	void dropCorruptedTail() throws Exception {
+		journal = open();
+		append("a", "first");
+		append("a", "second");
+		journal.commit();
+		journal.close();
+
+		File segment = dir.resolve(String.format("%020d.journal", 0)).toFile();
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			// 第二条消息 payload 的最后一个字节
+			long position = 2 * (8 + 8 + 1 + 2 + 1) + "first".length() + "second".length() - 1;
+			file.seek(position);
+			file.write('x');
+		}
+		journal = open();
+		assertThat(offsets(0, Long.MAX_VALUE)).containsExactly(0L);
+		append("a", "third");
+		journal.commit();
+		List<String> payloads = new ArrayList<>();
+		journal.replay(0, Long.MAX_VALUE, 100, (offset, timestamp, topic, qos, payload) ->
+				payloads.add(payload.toString(CharsetUtil.UTF_8)));
+		assertThat(payloads).containsExactly("first", "third");
+	}
+
+	@Test
+	void retention() throws Exception {
+		properties.getJournal().setMaxSize(3 * 256);
+		journal = open();
+		for (int i = 0; i < 30; i++) {
+			append("device/" + i, "m" + i);
+		}
+		journal.commit();
+		assertThat(journal.status().getSegments()).isGreaterThan(3);
+		journal.compact();
+		assertThat(journal.status().getSegments()).isEqualTo(3);
+		assertThat(dir.toFile().list()).hasSize(3);
+		assertThat(journal.firstOffset()).isPositive();
+
+		// 已删除的部分跳过
+		List<Long> offsets = offsets(0, Long.MAX_VALUE);
+		assertThat(offsets.get(0)).isEqualTo(journal.firstOffset());
+		assertThat(offsets.get(offsets.size() - 1)).isLessThan(journal.nextOffset());
+	}
+
+	@Test
+	void transferRawRecords() throws Exception {
+		journal = open();
+		for (int i = 0; i < 10; i++) {
+			append("device/" + i, "m" + i);
+		}
+		journal.commit();
+		List<Long> offsets = offsets(0, Long.MAX_VALUE);
+
+		Path exported = dir.resolve("export.bin");
+		try (FileChannel channel = FileChannel.open(exported, StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE)) {
+			assertThat(journal.transferTo(offsets.get(2), offsets.get(8), channel))
+					.isEqualTo(Files.size(exported))
+					.isEqualTo(6 * (8 + 8 + 1 + 2 + "device/0".length() + "m0".length()));
+		}
+		// 导出的文件与段文件格式相同
+		byte[] bytes = Files.readAllBytes(exported);
+		ByteBuf buf = Unpooled.wrappedBuffer(bytes);
+		List<String> topics = new ArrayList<>();
+		while (buf.isReadable()) {
+			int length = buf.readInt();
+			ByteBuf body = buf.skipBytes(4).readSlice(length);
+			body.skipBytes(8 + 1);
+			topics.add(body.readCharSequence(body.readUnsignedShort(), CharsetUtil.UTF_8).toString());
+		}
+		assertThat(topics).containsExactly("device/2", "device/3", "device/4", "device/5", "device/6", "device/7");
+
+		long count = 0;
+		for (FileRegion region : journal.regions(offsets.get(2), offsets.get(8))) {
+			count += region.count();
+			region.release();
+		}
+		assertThat(count).isEqualTo(bytes.length);
+	}
+
+	@Test
+	void dropWhenQueueFull() throws Exception {
+		properties.getJournal().setQueueSize(2);
+		journal = open();
+		ByteBuf payload = Unpooled.copiedBuffer("x", CharsetUtil.UTF_8);
+		assertThat(journal.append("a", MqttQoS.AT_MOST_ONCE, payload)).isTrue();
+		assertThat(journal.append("a", MqttQoS.AT_MOST_ONCE, payload)).isTrue();
+		assertThat(journal.append("a", MqttQoS.AT_MOST_ONCE, payload)).isFalse();
+		assertThat(journal.dropped()).isEqualTo(1);
+		assertThat(payload.refCnt()).isEqualTo(3);
+		journal.commit();
+		assertThat(payload.refCnt()).isEqualTo(1);
+		payload.release();
+	}
+
+	@Test
+	void disabled() throws Exception {
+		properties.getJournal().setEnabled(false);
+		journal = open();
+		assertThat(journal.isEnabled()).isFalse();
+		assertThat(append("a", "x")).isFalse();
+		assertThat(dir.toFile().list()).isEmpty();
+	}
+
+	private MessageJournal open() throws Exception {
+		MessageJournal journal = new MessageJournal();
+		ReflectionTestUtils.setField(journal, "mqttProperties", properties);
+		journal.open();
+		return journal;
+	}
+
+	private boolean append(String topic, String payload) {
+		ByteBuf buf = Unpooled.copiedBuffer(payload, CharsetUtil.UTF_8);
+		try {
+			return journal.append(topic, MqttQoS.AT_LEAST_ONCE, buf);
+		} finally {
+			buf.release();
+		}
+	}
+
+	private List<Long> offsets(long from, long to) {
+		List<Long> offsets = new ArrayList<>();
+		journal.replay(from, to, Integer.MAX_VALUE, (offset, timestamp, topic, qos, payload) -> offsets.add(offset));
+		return offsets;
+	}
+}
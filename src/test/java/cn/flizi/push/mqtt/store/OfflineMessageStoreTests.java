@@ -0,0 +1,306 @@
+package cn.flizi.push.mqtt.store;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OfflineMessageStoreTests {
+
+	/**
+	 * 段文件很小, 每段只能容纳几条消息
+	 */
+	private static final int SEGMENT_SIZE = 128;
+
+	@TempDir
+	Path dir;
+
+	private final MqttProperties properties = new MqttProperties();
+
+	private OfflineMessageStore store;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		MqttProperties.Session config = properties.getSession();
+		config.setOfflineEnabled(true);
+		config.setStoreDir(dir.toString());
+		config.setSegmentSize(SEGMENT_SIZE);
+		store = open();
+	}
+
+	@AfterEach
+	void tearDown() {
+		store.close();
+	}
+
+	@Test
+	void appendAndPoll() throws Exception {
+		assertThat(append("c", "m1")).isTrue();
+		assertThat(append("c", "m2")).isTrue();
+		assertThat(append("c", "m3")).isTrue();
+		assertThat(append("other", "x")).isTrue();
+		assertThat(store.size("c")).isEqualTo(3);
+
+		assertThat(poll("c", 2)).containsExactly("t:m1", "t:m2");
+		assertThat(store.size("c")).isEqualTo(1);
+		assertThat(poll("c", 10)).containsExactly("t:m3");
+		assertThat(store.size("c")).isZero();
+		assertThat(poll("c", 10)).isEmpty();
+		assertThat(store.size("other")).isEqualTo(1);
+	}
+
+	@Test
+	void rejectLargerThanSegment() {
+		assertThat(append("c", new String(new char[SEGMENT_SIZE]))).isFalse();
+		assertThat(store.size("c")).isZero();
+	}
+
+	@Test
+	void remove() throws Exception {
+		append("c", "m1");
+		append("c", "m2");
+		store.remove("c");
+		assertThat(store.size("c")).isZero();
+
+		restart();
+		assertThat(store.size("c")).isZero();
+	}
+
+	@Test
+	void unackedRedeliveredAfterRestart() throws Exception {
+		append("c", "m1");
+		append("c", "m2");
+		append("c", "m3");
+		List<OfflineMessageStore.Message> taken = take("c", 2);
+		assertThat(store.size("c")).isEqualTo(1);
+		// 乱序确认不推进游标
+		store.ack("c", taken.get(1).position());
+		assertThat(texts(taken)).containsExactly("t:m1", "t:m2");
+
+		restart();
+		assertThat(store.size("c")).isEqualTo(3);
+		taken = take("c", 10);
+		assertThat(texts(taken)).containsExactly("t:m1", "t:m2", "t:m3");
+		store.ack("c", taken.get(1).position());
+		store.ack("c", taken.get(0).position());
+
+		restart();
+		assertThat(poll("c", 10)).containsExactly("t:m3");
+		restart();
+		assertThat(store.size("c")).isZero();
+	}
+
+	@Test
+	void recoverAfterRestart() throws Exception {
+		append("c", "m1");
+		append("c", "m2");
+		append("c", "m3");
+		append("other", "x");
+		assertThat(poll("c", 1)).containsExactly("t:m1");
+
+		restart();
+		assertThat(store.size("c")).isEqualTo(2);
+		assertThat(poll("c", 10)).containsExactly("t:m2", "t:m3");
+		assertThat(poll("other", 10)).containsExactly("t:x");
+
+		// 恢复后继续追加到原有的段之后
+		append("c", "m4");
+		restart();
+		assertThat(poll("c", 10)).containsExactly("t:m4");
+	}
+
+	@Test
+	void dropCorruptedTail() throws Exception {
+		append("c", "first");
+		append("c", "second");
+		store.close();
+
+		File segment = dir.resolve(String.format("%020d.log", 0)).toFile();
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			// 第二条消息 payload 的最后一个字节
+			int record = 8 + 1 + 8 + 2 + "c".length() + 1 + 2 + "t".length();
+			file.seek(2 * record + "first".length() + "second".length() - 1);
+			file.write('x');
+		}
+		store = open();
+		assertThat(store.size("c")).isEqualTo(1);
+		// 损坏处之后继续写入
+		append("c", "third");
+		restart();
+		assertThat(poll("c", 10)).containsExactly("t:first", "t:third");
+	}
+
+	@Test
+	void compactConsumedSegments() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			append("c", "m" + i);
+		}
+		assertThat(dir.toFile().list().length).isGreaterThan(2);
+
+		// 未消费的段保留
+		store.compact();
+		assertThat(store.size("c")).isEqualTo(10);
+		// 取出未确认的段也保留
+		List<OfflineMessageStore.Message> taken = take("c", 10);
+		store.compact();
+		assertThat(dir.toFile().list().length).isGreaterThan(2);
+
+		for (OfflineMessageStore.Message message : taken) {
+			store.ack("c", message.position());
+		}
+		assertThat(texts(taken)).hasSize(10);
+		store.compact();
+		assertThat(dir.toFile().list()).hasSize(1);
+		assertThat(store.dropped()).isZero();
+	}
+
+	@Test
+	void compactOverMaxStoreSize() throws Exception {
+		properties.getSession().setMaxStoreSize(2 * SEGMENT_SIZE);
+		for (int i = 0; i < 10; i++) {
+			append("c", "m" + i);
+		}
+		store.compact();
+		assertThat(dir.toFile().list()).hasSize(2);
+		assertThat(store.dropped()).isPositive();
+		// 已删除段中的消息跳过
+		List<String> polled = poll("c", 10);
+		assertThat(polled).isNotEmpty().hasSizeLessThan(10).endsWith("t:m9");
+	}
+
+	@Test
+	void quotaDropsOldest() throws Exception {
+		properties.getSession().setMaxMessagesPerClient(2);
+		append("c", "m1");
+		append("c", "m2");
+		append("c", "m3");
+		assertThat(store.size("c")).isEqualTo(2);
+		assertThat(store.dropped()).isEqualTo(1);
+
+		// 丢弃的消息重启后不再恢复
+		restart();
+		assertThat(store.size("c")).isEqualTo(2);
+		assertThat(poll("c", 10)).containsExactly("t:m2", "t:m3");
+	}
+
+	@Test
+	void quotaKeepsUnacked() throws Exception {
+		properties.getSession().setMaxMessagesPerClient(2);
+		append("c", "m1");
+		List<OfflineMessageStore.Message> taken = take("c", 1);
+		append("c", "m2");
+		append("c", "m3");
+		append("c", "m4");
+		// 配额包括未确认的 m1
+		assertThat(store.size("c")).isEqualTo(1);
+		assertThat(store.dropped()).isEqualTo(2);
+		assertThat(texts(taken)).containsExactly("t:m1");
+
+		// 丢弃记录不影响未确认的 m1
+		restart();
+		assertThat(store.dropped()).isZero();
+		assertThat(poll("c", 10)).containsExactly("t:m1", "t:m4");
+	}
+
+	@Test
+	void dropWhenQueueFull() throws Exception {
+		properties.getSession().setOfflineQueueSize(2);
+		// 阻塞 mqtt-offline 线程
+		CountDownLatch blocked = new CountDownLatch(1);
+		store.poll("c", 1, messages -> {
+			try {
+				blocked.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		assertThat(append("c", "m1")).isTrue();
+		assertThat(append("c", "m2")).isTrue();
+		assertThat(append("c", "m3")).isFalse();
+		assertThat(store.dropped()).isEqualTo(1);
+		blocked.countDown();
+		assertThat(poll("c", 10)).containsExactly("t:m1", "t:m2");
+	}
+
+	@Test
+	void quotaAppliedOnRecovery() throws Exception {
+		append("c", "m1");
+		append("c", "m2");
+		append("c", "m3");
+		properties.getSession().setMaxMessagesPerClient(2);
+
+		restart();
+		assertThat(store.size("c")).isEqualTo(2);
+		assertThat(poll("c", 10)).containsExactly("t:m2", "t:m3");
+	}
+
+	private OfflineMessageStore open() throws Exception {
+		OfflineMessageStore store = new OfflineMessageStore();
+		ReflectionTestUtils.setField(store, "mqttProperties", properties);
+		store.open();
+		return store;
+	}
+
+	private void restart() throws Exception {
+		store.close();
+		store = open();
+	}
+
+	private boolean append(String clientId, String payload) {
+		ByteBuf buf = Unpooled.copiedBuffer(payload, CharsetUtil.UTF_8);
+		try {
+			return store.append(clientId, "t", MqttQoS.AT_LEAST_ONCE, buf);
+		} finally {
+			buf.release();
+		}
+	}
+
+	/**
+	 * 取出并确认
+	 */
+	private List<String> poll(String clientId, int max) throws Exception {
+		List<OfflineMessageStore.Message> taken = take(clientId, max);
+		for (OfflineMessageStore.Message message : taken) {
+			store.ack(clientId, message.position());
+		}
+		return texts(taken);
+	}
+
+	/**
+	 * 取出不确认
+	 */
+	private List<OfflineMessageStore.Message> take(String clientId, int max) throws Exception {
+		CompletableFuture<List<OfflineMessageStore.Message>> future = new CompletableFuture<>();
+		store.poll(clientId, max, future::complete);
+		return future.get(5, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * topic:payload, 并释放 payload
+	 */
+	private static List<String> texts(List<OfflineMessageStore.Message> messages) {
+		List<String> texts = new ArrayList<>();
+		for (OfflineMessageStore.Message message : messages) {
+			texts.add(message.topic() + ":" + message.payload().toString(CharsetUtil.UTF_8));
+			message.payload().release();
+		}
+		return texts;
+	}
+}
@@ -0,0 +1,191 @@
+package cn.flizi.push.mqtt.store;
+
+import cn.flizi.push.mqtt.MqttProperties;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RetainedMessageStoreTests {
+
+	@TempDir
+	Path dir;
+
+	private final MqttProperties properties = new MqttProperties();
+
+	private RetainedMessageStore store;
+
+	@BeforeEach
+	void setUp() {
+		properties.getRetained().setSnapshotFile("");
+		store = open();
+	}
+
+	@AfterEach
+	void tearDown() {
+		store.close();
+	}
+
+	@Test
+	void putAndReplace() {
+		put("a/b", "1");
+		put("a/b", "2");
+		assertThat(store.size()).isEqualTo(1);
+		assertThat(store.memory()).isEqualTo(1);
+		assertThat(match("a/b")).containsExactly("a/b:2");
+		assertThat(match("a")).isEmpty();
+
+		// payload 已复制, 原缓冲可以释放或修改
+		ByteBuf payload = Unpooled.copiedBuffer("3", CharsetUtil.UTF_8);
+		store.put("a/c", MqttQoS.AT_LEAST_ONCE, payload);
+		payload.setByte(0, 'x');
+		assertThat(payload.refCnt()).isEqualTo(1);
+		payload.release();
+		assertThat(match("a/c")).containsExactly("a/c:3");
+	}
+
+	@Test
+	void emptyPayloadDeletes() {
+		put("a/b", "1");
+		put("a/b/c", "2");
+		put("a/b", "");
+		assertThat(store.size()).isEqualTo(1);
+		assertThat(match("a/#")).containsExactly("a/b/c:2");
+		// 删除不存在的主题
+		put("x", "");
+		store.remove("a/b/c");
+		assertThat(store.size()).isZero();
+		assertThat(store.memory()).isZero();
+		assertThat(match("#")).isEmpty();
+	}
+
+	@Test
+	void wildcardMatch() {
+		put("a", "1");
+		put("a/b", "2");
+		put("a/b/c", "3");
+		put("a/c", "4");
+		put("$SYS/x", "5");
+
+		assertThat(match("a/#")).containsExactly("a/b/c:3", "a/b:2", "a/c:4", "a:1");
+		assertThat(match("a/+")).containsExactly("a/b:2", "a/c:4");
+		assertThat(match("+/b")).containsExactly("a/b:2");
+		assertThat(match("a/+/c")).containsExactly("a/b/c:3");
+		// 通配符开头不匹配 $ 主题
+		assertThat(match("#")).containsExactly("a/b/c:3", "a/b:2", "a/c:4", "a:1");
+		assertThat(match("+/x")).isEmpty();
+		assertThat(match("$SYS/#")).containsExactly("$SYS/x:5");
+	}
+
+	@Test
+	void evictOldestOverMaxMemory() {
+		store.close();
+		properties.getRetained().setMaxMemory(10);
+		store = open();
+
+		put("a", "12345");
+		put("b", "12345");
+		assertThat(store.size()).isEqualTo(2);
+		put("c", "123");
+		assertThat(match("#")).containsExactly("b:12345", "c:123");
+		assertThat(store.memory()).isEqualTo(8);
+
+		// 重新写入的主题排到最后
+		put("b", "1234");
+		put("d", "1234");
+		assertThat(match("#")).containsExactly("b:1234", "d:1234");
+		// 超过上限的消息不保存
+		put("e", "12345678901");
+		assertThat(store.size()).isEqualTo(2);
+	}
+
+	@Test
+	void snapshotRoundTrip() {
+		store.close();
+		properties.getRetained().setSnapshotFile(dir.resolve("retained.snapshot").toString());
+		properties.getRetained().setSnapshotInterval(0);
+		store = open();
+		put("a/b", "1");
+		put("a/c", MqttQoS.EXACTLY_ONCE, "2");
+		put("x", "3");
+		put("x", "");
+		// 关闭时写快照
+		store.close();
+
+		store = open();
+		assertThat(store.size()).isEqualTo(2);
+		List<MqttQoS> levels = new ArrayList<>();
+		store.match("a/c", (topic, qos, payload) -> {
+			levels.add(qos);
+			payload.release();
+		});
+		assertThat(levels).containsExactly(MqttQoS.EXACTLY_ONCE);
+		assertThat(match("#")).containsExactly("a/b:1", "a/c:2");
+	}
+
+	@Test
+	void corruptedSnapshotIgnored() throws Exception {
+		store.close();
+		Path file = dir.resolve("retained.snapshot");
+		properties.getRetained().setSnapshotFile(file.toString());
+		properties.getRetained().setSnapshotInterval(0);
+		store = open();
+		put("a", "1");
+		store.close();
+
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			// 唯一一条消息的 payload
+			raf.seek(8 + 2 + "a".length() + 1 + 4);
+			raf.write('x');
+		}
+		store = open();
+		assertThat(store.size()).isZero();
+	}
+
+	private RetainedMessageStore open() {
+		RetainedMessageStore store = new RetainedMessageStore();
+		ReflectionTestUtils.setField(store, "mqttProperties", properties);
+		store.open();
+		return store;
+	}
+
+	private void put(String topic, String payload) {
+		put(topic, MqttQoS.AT_LEAST_ONCE, payload);
+	}
+
+	private void put(String topic, MqttQoS qos, String payload) {
+		ByteBuf buf = Unpooled.copiedBuffer(payload, CharsetUtil.UTF_8);
+		try {
+			store.put(topic, qos, buf);
+		} finally {
+			buf.release();
+		}
+	}
+
+	/**
+	 * 按主题排序的 topic:payload
+	 */
+	private List<String> match(String topicFilter) {
+		List<String> matched = new ArrayList<>();
+		int count = store.match(topicFilter, (topic, qos, payload) -> {
+			matched.add(topic + ":" + payload.toString(CharsetUtil.UTF_8));
+			payload.release();
+		});
+		assertThat(count).isEqualTo(matched.size());
+		Collections.sort(matched);
+		return matched;
+	}
+}
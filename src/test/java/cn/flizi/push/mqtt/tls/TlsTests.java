@@ -0,0 +1,133 @@
+package cn.flizi.push.mqtt.tls;
+
+import cn.flizi.push.mqtt.MqttBroker;
+import cn.flizi.push.mqtt.MqttBrokerHandler;
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.TestBrokers;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TlsTests {
+
+	private static final int PORT = 21893;
+
+	private static final int TLS_PORT = 21894;
+
+	private final SelfSignedCertificate certificate;
+
+	private final EventLoopGroup clientGroup = new NioEventLoopGroup(1);
+
+	private MqttBroker broker;
+
+	private MqttBrokerHandler handler;
+
+	TlsTests() throws Exception {
+		certificate = new SelfSignedCertificate("localhost");
+	}
+
+	@AfterEach
+	void stop() {
+		clientGroup.shutdownGracefully().syncUninterruptibly();
+		if (broker != null) {
+			broker.stop();
+			TestBrokers.close(handler);
+		}
+		certificate.delete();
+	}
+
+	@ParameterizedTest
+	@EnumSource(value = TlsProvider.class, names = {"JDK", "AUTO"})
+	void connectAndResume(TlsProvider provider) throws Exception {
+		start(provider);
+		SslContext client = SslContextBuilder.forClient()
+				.sslProvider(SslProvider.JDK)
+				.trustManager(InsecureTrustManagerFactory.INSTANCE)
+				.protocols("TLSv1.2")
+				.build();
+
+		byte[] first = connect(client, "first");
+		byte[] second = connect(client, "second");
+		if (provider == TlsProvider.JDK) {
+			// 客户端按 host:port 缓存会话, 服务端缓存命中时沿用同一 session id
+			assertThat(second).isEqualTo(first);
+		}
+	}
+
+	/**
+	 * @return TLS session id
+	 */
+	private byte[] connect(SslContext sslContext, String clientId) throws Exception {
+		BlockingQueue<MqttMessageType> received = new LinkedBlockingQueue<>();
+		Channel channel = new Bootstrap().group(clientGroup)
+				.channel(NioSocketChannel.class)
+				.handler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel ch) {
+						ch.pipeline().addLast(sslContext.newHandler(ch.alloc(), "localhost", TLS_PORT));
+						ch.pipeline().addLast(MqttEncoder.INSTANCE, new MqttDecoder(), new ChannelInboundHandlerAdapter() {
+							@Override
+							public void channelRead(ChannelHandlerContext ctx, Object msg) {
+								received.add(((MqttMessage) msg).fixedHeader().messageType());
+								ReferenceCountUtil.release(msg);
+							}
+						});
+					}
+				})
+				.connect("127.0.0.1", TLS_PORT).sync().channel();
+		SslHandler ssl = channel.pipeline().get(SslHandler.class);
+		ssl.handshakeFuture().sync();
+		channel.writeAndFlush(new MqttConnectMessage(
+				new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+				new MqttConnectVariableHeader("MQTT", 4, true, true, false, 0, false, true, 60),
+				new MqttConnectPayload(clientId, null, (byte[]) null, "test", "test".getBytes())));
+		assertThat(received.poll(5, TimeUnit.SECONDS)).isEqualTo(MqttMessageType.CONNACK);
+		byte[] id = ssl.engine().getSession().getId();
+		channel.close().sync();
+		return id;
+	}
+
+	private void start(TlsProvider provider) throws Exception {
+		MqttProperties properties = new MqttProperties();
+		properties.setPort(PORT);
+		properties.getTransport().setEpoll(false);
+		MqttProperties.Tls tls = properties.getTls();
+		tls.setEnabled(true);
+		tls.setPort(TLS_PORT);
+		tls.setCertFile(certificate.certificate().getPath());
+		tls.setKeyFile(certificate.privateKey().getPath());
+		tls.setProvider(provider);
+
+		handler = TestBrokers.handler(properties);
+		broker = TestBrokers.broker(properties, handler);
+		broker.start();
+		// 等待明文和 TLS 端口绑定完成
+		List<?> channels = (List<?>) ReflectionTestUtils.getField(broker, "channels");
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (channels.size() < 2) {
+			assertThat(System.nanoTime()).as("timeout").isLessThan(deadline);
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+	}
+}
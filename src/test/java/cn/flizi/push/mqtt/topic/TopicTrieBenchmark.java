@@ -0,0 +1,53 @@
+package cn.flizi.push.mqtt.topic;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 主题路由延迟与订阅数量的关系
+ * <p>
+ * 运行: java -cp target/test-classes:target/classes:lib/* cn.flizi.push.mqtt.topic.TopicTrieBenchmark
+ */
+public class TopicTrieBenchmark {
+
+	private static final int[] SUBSCRIPTIONS = {1_000, 10_000, 100_000, 500_000};
+
+	private static final int ROUNDS = 1_000_000;
+
+	public static void main(String[] args) {
+		System.out.println("subscriptions,cache,ns/match");
+		for (int count : SUBSCRIPTIONS) {
+			for (int cacheSize : new int[]{0, 65536}) {
+				TopicTrie<Integer> trie = new TopicTrie<>(cacheSize);
+				for (int i = 0; i < count; i++) {
+					trie.subscribe("device/" + i + "/cmd", i);
+					if (i % 100 == 0) {
+						trie.subscribe("tenant/" + (i / 100) + "/#", i);
+					}
+				}
+				trie.subscribe("device/+/status", -1);
+				String[] topics = new String[4096];
+				for (int i = 0; i < topics.length; i++) {
+					int id = ThreadLocalRandom.current().nextInt(count);
+					topics[i] = (i & 1) == 0 ? "device/" + id + "/cmd" : "tenant/" + (id / 100) + "/x/y";
+				}
+				// 预热
+				long sink = run(trie, topics, ROUNDS);
+				long start = System.nanoTime();
+				sink += run(trie, topics, ROUNDS);
+				long cost = System.nanoTime() - start;
+				System.out.printf("%d,%b,%.1f%n", count, cacheSize > 0, (double) cost / ROUNDS);
+				if (sink == 42) {
+					System.out.println();
+				}
+			}
+		}
+	}
+
+	private static long run(TopicTrie<Integer> trie, String[] topics, int rounds) {
+		long sink = 0;
+		for (int i = 0; i < rounds; i++) {
+			sink += trie.match(topics[i & (topics.length - 1)]).size();
+		}
+		return sink;
+	}
+}
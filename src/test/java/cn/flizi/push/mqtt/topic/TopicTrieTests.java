@@ -0,0 +1,72 @@
+package cn.flizi.push.mqtt.topic;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TopicTrieTests {
+
+	@Test
+	void wildcardMatch() {
+		TopicTrie<String> trie = new TopicTrie<>(16);
+		trie.subscribe("device/1/cmd", "exact");
+		trie.subscribe("device/+/cmd", "single");
+		trie.subscribe("device/#", "multi");
+		trie.subscribe("#", "all");
+
+		assertThat(trie.match("device/1/cmd")).containsExactlyInAnyOrder("exact", "single", "multi", "all");
+		assertThat(trie.match("device/2/cmd")).containsExactlyInAnyOrder("single", "multi", "all");
+		assertThat(trie.match("device")).containsExactlyInAnyOrder("multi", "all");
+		assertThat(trie.match("device/2/status")).containsExactlyInAnyOrder("multi", "all");
+		assertThat(trie.match("$SYS/broker")).isEmpty();
+	}
+
+	@Test
+	void cacheInvalidation() {
+		TopicTrie<String> trie = new TopicTrie<>(16);
+		trie.subscribe("tenant/1/a", "s1");
+		assertThat(trie.match("tenant/1/a")).containsExactly("s1");
+
+		trie.subscribe("tenant/+/a", "s2");
+		assertThat(trie.match("tenant/1/a")).containsExactlyInAnyOrder("s1", "s2");
+
+		trie.unsubscribe("tenant/1/a", "s1");
+		assertThat(trie.match("tenant/1/a")).containsExactly("s2");
+
+		trie.unsubscribe("tenant/+/a", "s2");
+		assertThat(trie.match("tenant/1/a")).isEmpty();
+		assertThat(trie.size()).isZero();
+	}
+
+	@Test
+	void invalidFilter() {
+		List<String> invalid = Arrays.asList("", "a/#/b", "a/b#", "a+/b");
+		for (String filter : invalid) {
+			assertThat(TopicTrie.isValidFilter(filter)).as(filter).isFalse();
+		}
+		assertThat(TopicTrie.isValidFilter("+/+/#")).isTrue();
+		assertThat(new TopicTrie<String>(0).match("a")).isEqualTo(Collections.emptyList());
+	}
+
+	@Test
+	void topicLengthLimit() {
+		assertThat(TopicTrie.isValidTopic(repeat("a", 65535))).isTrue();
+		assertThat(TopicTrie.isValidTopic(repeat("a", 65536))).isFalse();
+		// 按 UTF-8 字节数而不是字符数计算
+		assertThat(TopicTrie.isValidTopic(repeat("中", 21845))).isTrue();
+		assertThat(TopicTrie.isValidTopic(repeat("中", 21846))).isFalse();
+	}
+
+	private static String repeat(String s, int count) {
+		StringBuilder builder = new StringBuilder(s.length() * count);
+		for (int i = 0; i < count; i++) {
+			builder.append(s);
+		}
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,243 @@
+package cn.flizi.push.service.impl;
+
+import cn.flizi.push.entity.Device;
+import cn.flizi.push.entity.DevicePresence;
+import cn.flizi.push.mapper.DeviceMapper;
+import cn.flizi.push.mqtt.MqttProperties;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 认证缓存、并发查询合并与 JWT 校验, 数据库查询由计数的 {@link DeviceMapper} 代替
+ */
+class DeviceServiceTests {
+
+	private static final String SECRET = "test-secret";
+
+	private final MqttProperties properties = new MqttProperties();
+
+	private final CountingMapper mapper = new CountingMapper();
+
+	private DeviceServiceImpl deviceService;
+
+	@AfterEach
+	void tearDown() {
+		deviceService.destroy();
+	}
+
+	@Test
+	void jwtVerifiedWithoutQuery() throws Exception {
+		properties.getAuth().setJwtSecret(SECRET);
+		deviceService = newService();
+
+		assertThat(deviceService.auth("device", token("device", SECRET)).isDone()).isTrue();
+		assertThat(deviceService.auth("device", token("device", SECRET)).get()).isTrue();
+		// 主题不是用户名或签名密钥不同
+		assertThat(deviceService.auth("other", token("device", SECRET)).get()).isFalse();
+		assertThat(deviceService.auth("device", token("device", "other-secret")).get()).isFalse();
+		assertThat(mapper.queries.get()).isZero();
+
+		// 普通密码仍然查询数据库
+		assertThat(auth("device", "secret")).isTrue();
+		assertThat(mapper.queries.get()).isEqualTo(1);
+	}
+
+	@Test
+	void jwtRequiresExpiration() throws Exception {
+		properties.getAuth().setJwtSecret(SECRET);
+		deviceService = newService();
+		long now = System.currentTimeMillis();
+
+		assertThat(deviceService.auth("device", token("device", SECRET, null, null)).get()).isFalse();
+		assertThat(deviceService.auth("device", token("device", SECRET, null, new Date(now - 1000))).get())
+				.isFalse();
+		assertThat(mapper.queries.get()).isZero();
+	}
+
+	@Test
+	void jwtMaxAge() throws Exception {
+		properties.getAuth().setJwtSecret(SECRET);
+		properties.getAuth().setJwtMaxAge(60);
+		deviceService = newService();
+		long now = System.currentTimeMillis();
+		Date expiration = new Date(now + 3600_000);
+
+		assertThat(deviceService.auth("device", token("device", SECRET, new Date(now - 1000), expiration)).get())
+				.isTrue();
+		assertThat(deviceService.auth("device", token("device", SECRET, new Date(now - 120_000), expiration)).get())
+				.isFalse();
+		// 限制签发时间时必须带 iat
+		assertThat(deviceService.auth("device", token("device", SECRET, null, expiration)).get()).isFalse();
+	}
+
+	@Test
+	void jwtDisabledWithoutSecret() throws Exception {
+		deviceService = newService();
+		assertThat(auth("device", token("device", SECRET))).isFalse();
+		assertThat(mapper.queries.get()).isEqualTo(1);
+	}
+
+	@Test
+	void cacheAcceptedAndRejected() throws Exception {
+		deviceService = newService();
+		assertThat(auth("device", "secret")).isTrue();
+		assertThat(auth("device", "secret")).isTrue();
+		assertThat(mapper.queries.get()).isEqualTo(1);
+
+		assertThat(auth("device", "wrong")).isFalse();
+		assertThat(auth("device", "wrong")).isFalse();
+		assertThat(auth("unknown", "secret")).isFalse();
+		assertThat(mapper.queries.get()).isEqualTo(3);
+	}
+
+	@Test
+	void cacheDisabled() throws Exception {
+		properties.getAuth().setCacheTtl(0);
+		properties.getAuth().setNegativeCacheTtl(0);
+		deviceService = newService();
+		auth("device", "secret");
+		auth("device", "secret");
+		auth("device", "wrong");
+		auth("device", "wrong");
+		assertThat(mapper.queries.get()).isEqualTo(4);
+	}
+
+	@Test
+	void coalesceConcurrentQueries() throws Exception {
+		deviceService = newService();
+		mapper.gate = new CountDownLatch(1);
+		CompletableFuture<Boolean> first = deviceService.auth("device", "secret");
+		CompletableFuture<Boolean> second = deviceService.auth("device", "secret");
+		CompletableFuture<Boolean> other = deviceService.auth("device", "wrong");
+		assertThat(second).isSameAs(first);
+		assertThat(other).isNotSameAs(first);
+
+		mapper.gate.countDown();
+		assertThat(first.get(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(other.get(5, TimeUnit.SECONDS)).isFalse();
+		assertThat(mapper.queries.get()).isEqualTo(2);
+		// 查询完成后走缓存
+		assertThat(deviceService.auth("device", "secret").isDone()).isTrue();
+	}
+
+	@Test
+	void cacheExpiry() {
+		AuthCache cache = new AuthCache(10, 1000);
+		cache.put("a", 0);
+		assertThat(cache.contains("a", 1000)).isTrue();
+		assertThat(cache.contains("a", 1001)).isFalse();
+		assertThat(cache.size()).isZero();
+
+		// 写入时删除已过期的条目
+		cache.put("b", 0);
+		cache.put("c", 2000);
+		assertThat(cache.size()).isEqualTo(1);
+		assertThat(cache.contains("c", 2000)).isTrue();
+	}
+
+	@Test
+	void cacheEvictsOldestWhenFull() {
+		AuthCache cache = new AuthCache(2, 1000);
+		cache.put("a", 0);
+		cache.put("b", 1);
+		// 重新写入的条目不会先被删除
+		cache.put("a", 2);
+		cache.put("c", 3);
+		assertThat(cache.size()).isEqualTo(2);
+		assertThat(cache.contains("b", 3)).isFalse();
+		assertThat(cache.contains("a", 3)).isTrue();
+		assertThat(cache.contains("c", 3)).isTrue();
+	}
+
+	@Test
+	void cacheBoundedUnderConcurrentPuts() throws Exception {
+		AuthCache cache = new AuthCache(100, 60_000);
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			String prefix = "t" + i + "-";
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < 10000; j++) {
+					cache.put(prefix + j, 0);
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		// 并发写入时可能多删, 不会超出容量
+		assertThat(cache.size()).isBetween(1, 100);
+	}
+
+	private DeviceServiceImpl newService() {
+		DeviceServiceImpl deviceService = new DeviceServiceImpl();
+		ReflectionTestUtils.setField(deviceService, "mqttProperties", properties);
+		ReflectionTestUtils.setField(deviceService, "deviceMapper", mapper);
+		deviceService.init();
+		return deviceService;
+	}
+
+	private boolean auth(String username, String password) throws Exception {
+		return deviceService.auth(username, password).get(5, TimeUnit.SECONDS);
+	}
+
+	private static String token(String subject, String secret) {
+		return token(subject, secret, null, new Date(System.currentTimeMillis() + 3600_000));
+	}
+
+	private static String token(String subject, String secret, Date issuedAt, Date expiration) {
+		return Jwts.builder().setSubject(subject).setIssuedAt(issuedAt).setExpiration(expiration)
+				.signWith(SignatureAlgorithm.HS256, secret.getBytes(CharsetUtil.UTF_8))
+				.compact();
+	}
+
+	/**
+	 * 只有 device/secret 一个账号, 查询可以被阻塞
+	 */
+	private static class CountingMapper implements DeviceMapper {
+
+		private final AtomicInteger queries = new AtomicInteger();
+
+		private volatile CountDownLatch gate = new CountDownLatch(0);
+
+		@Override
+		public Device findByUsername(String username) {
+			queries.incrementAndGet();
+			try {
+				gate.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (!"device".equals(username)) {
+				return null;
+			}
+			Device device = new Device();
+			device.setUsername(username);
+			device.setPassword("{noop}secret");
+			device.setEnabled(true);
+			return device;
+		}
+
+		@Override
+		public int savePresence(DevicePresence presence) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public DevicePresence findPresence(String clientId) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
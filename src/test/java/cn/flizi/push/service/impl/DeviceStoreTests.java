@@ -0,0 +1,159 @@
+package cn.flizi.push.service.impl;
+
+import cn.flizi.push.entity.DevicePresence;
+import cn.flizi.push.mapper.DeviceMapper;
+import cn.flizi.push.mqtt.MqttProperties;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mybatis.spring.SqlSessionTemplate;
+import org.mybatis.spring.transaction.SpringManagedTransactionFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ScriptUtils;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 设备认证及在线状态写入, H2 MySQL 兼容模式代替 MySQL
+ */
+class DeviceStoreTests {
+
+	private static final AtomicInteger DATABASES = new AtomicInteger();
+
+	private final MqttProperties properties = new MqttProperties();
+
+	private JdbcTemplate jdbc;
+
+	private DeviceMapper deviceMapper;
+
+	private DevicePresenceWriter presenceWriter;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:device" + DATABASES.incrementAndGet() + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+		try (Connection connection = dataSource.getConnection()) {
+			ScriptUtils.executeSqlScript(connection, new ClassPathResource("sql/device.sql"));
+		}
+		jdbc = new JdbcTemplate(dataSource);
+
+		Configuration configuration = new Configuration(
+				new Environment("test", new SpringManagedTransactionFactory(), dataSource));
+		configuration.setMapUnderscoreToCamelCase(true);
+		configuration.addMapper(DeviceMapper.class);
+		SqlSessionFactory sqlSessionFactory = new SqlSessionFactoryBuilder().build(configuration);
+		deviceMapper = new SqlSessionTemplate(sqlSessionFactory).getMapper(DeviceMapper.class);
+
+		properties.getPresence().setBatchSize(2);
+		properties.getPresence().setFlushInterval(60000);
+		properties.getPresence().setMaxPending(3);
+		presenceWriter = new DevicePresenceWriter();
+		ReflectionTestUtils.setField(presenceWriter, "sqlSessionFactory", sqlSessionFactory);
+		ReflectionTestUtils.setField(presenceWriter, "mqttProperties", properties);
+		presenceWriter.init();
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		presenceWriter.destroy();
+	}
+
+	@Test
+	void auth() throws Exception {
+		jdbc.update("INSERT INTO device (username, password, enabled) VALUES (?, ?, ?)", "plain", "{noop}secret", 1);
+		jdbc.update("INSERT INTO device (username, password, enabled) VALUES (?, ?, ?)",
+				"hashed", "{bcrypt}" + new BCryptPasswordEncoder(4).encode("secret"), 1);
+		jdbc.update("INSERT INTO device (username, password, enabled) VALUES (?, ?, ?)", "disabled", "{noop}secret", 0);
+		jdbc.update("INSERT INTO device (username, password, enabled) VALUES (?, ?, ?)", "legacy", "secret", 1);
+		DeviceServiceImpl deviceService = new DeviceServiceImpl();
+		ReflectionTestUtils.setField(deviceService, "mqttProperties", properties);
+		ReflectionTestUtils.setField(deviceService, "deviceMapper", deviceMapper);
+		ReflectionTestUtils.setField(deviceService, "presenceWriter", presenceWriter);
+		deviceService.init();
+		try {
+			assertThat(deviceService.auth("plain", "secret").get(5, TimeUnit.SECONDS)).isTrue();
+			assertThat(deviceService.auth("plain", "wrong").get(5, TimeUnit.SECONDS)).isFalse();
+			assertThat(deviceService.auth("hashed", "secret").get(5, TimeUnit.SECONDS)).isTrue();
+			assertThat(deviceService.auth("disabled", "secret").get(5, TimeUnit.SECONDS)).isFalse();
+			assertThat(deviceService.auth("legacy", "secret").get(5, TimeUnit.SECONDS)).isFalse();
+			assertThat(deviceService.auth("unknown", "secret").get(5, TimeUnit.SECONDS)).isFalse();
+		} finally {
+			deviceService.destroy();
+		}
+	}
+
+	@Test
+	void coalescePerDevice() {
+		presenceWriter.online("a");
+		presenceWriter.offline("a");
+		assertThat(presenceWriter.pending()).isEqualTo(1);
+
+		assertThat(presenceWriter.flush()).isEqualTo(1);
+		DevicePresence presence = deviceMapper.findPresence("a");
+		assertThat(presence.isOnline()).isFalse();
+		assertThat(presence.getLastSeen()).isNotNull();
+
+		presenceWriter.online("a");
+		assertThat(presenceWriter.flush()).isEqualTo(1);
+		assertThat(deviceMapper.findPresence("a").isOnline()).isTrue();
+		assertThat(presenceWriter.written()).isEqualTo(2);
+	}
+
+	@Test
+	void flushWhenBatchIsFull() throws Exception {
+		presenceWriter.online("a");
+		TimeUnit.MILLISECONDS.sleep(100);
+		assertThat(presenceWriter.written()).isZero();
+
+		presenceWriter.online("b");
+		await(() -> presenceWriter.written() == 2);
+		assertThat(presenceWriter.pending()).isZero();
+		assertThat(jdbc.queryForObject("SELECT COUNT(*) FROM device_presence WHERE online = 1", Integer.class))
+				.isEqualTo(2);
+	}
+
+	@Test
+	void boundedWhileDatabaseIsDown() {
+		// 不触发按数量写入
+		properties.getPresence().setBatchSize(10);
+		jdbc.execute("ALTER TABLE device_presence RENAME TO device_presence_off");
+		presenceWriter.online("a");
+		assertThat(presenceWriter.flush()).isZero();
+		assertThat(presenceWriter.failed()).isEqualTo(1);
+		assertThat(presenceWriter.pending()).isEqualTo(1);
+
+		presenceWriter.online("b");
+		presenceWriter.online("c");
+		presenceWriter.online("d");
+		// 已在队列中的设备仍然更新
+		presenceWriter.offline("a");
+		assertThat(presenceWriter.pending()).isEqualTo(3);
+		assertThat(presenceWriter.dropped()).isEqualTo(1);
+
+		jdbc.execute("ALTER TABLE device_presence_off RENAME TO device_presence");
+		assertThat(presenceWriter.flush()).isEqualTo(3);
+		assertThat(deviceMapper.findPresence("a").isOnline()).isFalse();
+		assertThat(deviceMapper.findPresence("d")).isNull();
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!condition.getAsBoolean()) {
+			assertThat(System.nanoTime()).as("timeout").isLessThan(deadline);
+			TimeUnit.MILLISECONDS.sleep(20);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package cn.flizi.push.web;
+
+import cn.flizi.push.mqtt.MqttBrokerHandler;
+import cn.flizi.push.mqtt.MqttProperties;
+import cn.flizi.push.mqtt.TestBrokers;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.Collections;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * 批量发布接口, JSON 数组及 NDJSON 请求体; 一个订阅 a/# 的客户端
+ */
+class PublishControllerTests {
+
+	private MqttBrokerHandler handler;
+
+	private EmbeddedChannel subscriber;
+
+	private MockMvc mvc;
+
+	@BeforeEach
+	void start() {
+		handler = TestBrokers.handler(new MqttProperties());
+		subscriber = new EmbeddedChannel(handler);
+		subscribe(subscriber, "s", "a/#");
+
+		PublishController controller = new PublishController();
+		ReflectionTestUtils.setField(controller, "mqttBrokerHandler", handler);
+		ReflectionTestUtils.setField(controller, "objectMapper", new ObjectMapper());
+		mvc = MockMvcBuilders.standaloneSetup(controller).build();
+	}
+
+	@AfterEach
+	void stop() {
+		subscriber.finishAndReleaseAll();
+		TestBrokers.close(handler);
+	}
+
+	@Test
+	void publishJsonArray() throws Exception {
+		mvc.perform(post("/mqtt/publish").contentType(MediaType.APPLICATION_JSON)
+				.content("[{\"topic\":\"a/1\",\"payload\":\"x\"},"
+						+ "{\"topic\":\"b\",\"payload\":\"eQ==\",\"base64\":true},"
+						+ "{\"topic\":\"a/#\",\"payload\":\"z\"},"
+						+ "{\"topic\":\"a/2\",\"qos\":3,\"payload\":\"z\"}]"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.received").value(4))
+				.andExpect(jsonPath("$.invalid").value(2))
+				.andExpect(jsonPath("$.routed").value(1))
+				.andExpect(jsonPath("$.delivered").value(1))
+				.andExpect(jsonPath("$.error").doesNotExist());
+	}
+
+	@Test
+	void publishNdjson() throws Exception {
+		mvc.perform(post("/mqtt/publish").contentType("application/x-ndjson")
+				.content("{\"topic\":\"a/1\",\"payload\":\"x\"}\n"
+						+ "{\"topic\":\"b\",\"payload\":\"y\"}\n"
+						+ "{\"topic\":\"a/2\",\"qos\":1,\"payload\":\"z\"}\n"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.received").value(3))
+				.andExpect(jsonPath("$.invalid").value(0))
+				.andExpect(jsonPath("$.routed").value(2))
+				.andExpect(jsonPath("$.delivered").value(2))
+				.andExpect(jsonPath("$.error").doesNotExist())
+				.andExpect(jsonPath("$.line").value(0));
+	}
+
+	@Test
+	void ndjsonStopsAtBadLine() throws Exception {
+		// 之前的消息已经发布, 结果中说明出错的行
+		mvc.perform(post("/mqtt/publish").contentType("application/x-ndjson")
+				.content("{\"topic\":\"a/1\",\"payload\":\"x\"}\n"
+						+ "{\"topic\":\"a/2\",\"qos\":\"high\",\"payload\":\"y\"}\n"
+						+ "{\"topic\":\"a/3\",\"payload\":\"z\"}\n"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.received").value(1))
+				.andExpect(jsonPath("$.delivered").value(1))
+				.andExpect(jsonPath("$.error").isNotEmpty())
+				.andExpect(jsonPath("$.line").value(2));
+
+		mvc.perform(post("/mqtt/publish").contentType("application/x-ndjson")
+				.content("{\"topic\":\"a/1\",\"payload\":\"x\"}\n"
+						+ "{\"topic\":\"a/2\",\"payload\":\"y\"}\n"
+						+ "{\"topic\" \"a/3\"}\n"
+						+ "{\"topic\":\"a/4\",\"payload\":\"w\"}\n"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.received").value(2))
+				.andExpect(jsonPath("$.delivered").value(2))
+				.andExpect(jsonPath("$.error").isNotEmpty())
+				.andExpect(jsonPath("$.line").value(3));
+	}
+
+	private static void subscribe(EmbeddedChannel channel, String clientId, String filter) {
+		channel.writeInbound(new MqttConnectMessage(
+				new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+				new MqttConnectVariableHeader("MQTT", 4, true, true, false, 0, false, true, 60),
+				new MqttConnectPayload(clientId, null, (byte[]) null, "test", "test".getBytes())));
+		channel.runPendingTasks();
+		((ByteBuf) channel.readOutbound()).release();
+		channel.writeInbound(new MqttSubscribeMessage(
+				new MqttFixedHeader(MqttMessageType.SUBSCRIBE, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+				MqttMessageIdVariableHeader.from(1),
+				new MqttSubscribePayload(Collections.singletonList(
+						new MqttTopicSubscription(filter, MqttQoS.AT_LEAST_ONCE)))));
+		channel.runPendingTasks();
+		channel.readOutbound();
+	}
+}